@@ -0,0 +1,127 @@
+/*
+ *------------------------------------------------------------------------------
+ *  Copyright (C) 2018 University of Dundee. All rights reserved.
+ *
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *------------------------------------------------------------------------------
+ */
+package ome.formats;
+
+import java.util.concurrent.TimeUnit;
+
+import ome.formats.model.InstanceProvider;
+import ome.formats.model.ModelException;
+import ome.xml.model.primitives.NonNegativeInteger;
+import ome.xml.model.primitives.PositiveInteger;
+import omero.model.IObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Replays the metadata store calls that a reader makes for a plate into a
+ * fresh {@link OMEROMetadataStoreClient}, so that the cost of finding the
+ * containers by {@link OMEROMetadataStoreClient#getIObjectContainer} is
+ * measured as the plate grows. No server is needed: the store is never
+ * initialized and model objects are instantiated directly.
+ *
+ * @since 5.5
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PlateSetterStreamBenchmark
+{
+
+    /** Wells of the plate: 96, 384 or 1536. */
+    @Param({"96", "384", "1536"})
+    public int wells;
+
+    /** Fields, hence images, per well. */
+    @Param({"4", "16"})
+    public int fields;
+
+    /** Channels per image. */
+    @Param({"3"})
+    public int channels;
+
+    /** Instantiates model objects without the server's enumerations. */
+    private static final InstanceProvider INSTANCES = new InstanceProvider()
+    {
+        @SuppressWarnings("unchecked")
+        public <T extends IObject> T getInstance(Class<T> klass)
+                throws ModelException
+        {
+            try
+            {
+                return (T) Class.forName(klass.getName() + "I").newInstance();
+            }
+            catch (Exception e)
+            {
+                throw new ModelException("Unable to instantiate object.",
+                        klass, e);
+            }
+        }
+    };
+
+    @Benchmark
+    public OMEROMetadataStoreClient replayPlate()
+    {
+        OMEROMetadataStoreClient store = new OMEROMetadataStoreClient();
+        store.setInstanceProvider(INSTANCES);
+        int columns = wells == 96 ? 12 : wells == 384 ? 24 : 48;
+        store.setPlateID("Plate:0", 0);
+        store.setPlateName("plate", 0);
+        store.setPlateRows(new PositiveInteger(wells / columns), 0);
+        store.setPlateColumns(new PositiveInteger(columns), 0);
+        for (int well = 0; well < wells; well++)
+        {
+            store.setWellID("Well:" + well, 0, well);
+            store.setWellRow(new NonNegativeInteger(well / columns), 0, well);
+            store.setWellColumn(new NonNegativeInteger(well % columns), 0,
+                    well);
+            for (int field = 0; field < fields; field++)
+            {
+                int image = well * fields + field;
+                store.setWellSampleID("WellSample:" + image, 0, well, field);
+                store.setWellSampleIndex(new NonNegativeInteger(image), 0,
+                        well, field);
+                store.setWellSampleImageRef("Image:" + image, 0, well, field);
+                store.setImageID("Image:" + image, image);
+                store.setImageName("image " + image, image);
+                store.setPixelsID("Pixels:" + image, image);
+                store.setPixelsSizeX(new PositiveInteger(2048), image);
+                store.setPixelsSizeY(new PositiveInteger(2048), image);
+                store.setPixelsSizeZ(new PositiveInteger(1), image);
+                store.setPixelsSizeC(new PositiveInteger(channels), image);
+                store.setPixelsSizeT(new PositiveInteger(1), image);
+                for (int channel = 0; channel < channels; channel++)
+                {
+                    store.setChannelID("Channel:" + image + ":" + channel,
+                            image, channel);
+                    store.setChannelName("channel " + channel, image,
+                            channel);
+                }
+            }
+        }
+        return store;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ *------------------------------------------------------------------------------
+ *  Copyright (C) 2018 University of Dundee. All rights reserved.
+ *
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *------------------------------------------------------------------------------
+ */
+package ome.formats.importer.transfers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import ome.util.checksum.ChecksumProviderFactory;
+import ome.util.checksum.ChecksumProviderFactoryImpl;
+import ome.util.checksum.ChecksumType;
+import omero.ServerError;
+import omero.api.RawFileStorePrx;
+import omero.api.RawFileStorePrxHelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Uploads a file through {@link UploadFileTransfer} to a stand-in
+ * {@link RawFileStorePrx} served over a loopback connection, so that the
+ * effect of the write window can be measured against a server round-trip.
+ * The stand-in discards the data and answers every call after the given
+ * latency; the client still marshals every block.
+ *
+ * @since 5.5
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class UploadFileTransferBenchmark
+{
+
+    /** Writes that may be outstanding, 1 being synchronous. */
+    @Param({"1", "4", "16"})
+    public int window;
+
+    /** Simulated server time per call in microseconds. */
+    @Param({"0", "2000"})
+    public int latency;
+
+    /** Length of the uploaded file, which need not fill the last block. */
+    @Param({"100000", "33554432"})
+    public int fileSize;
+
+    /** Length of the block buffer. */
+    @Param({"1048576"})
+    public int blockSize;
+
+    private static final ChecksumProviderFactory CHECKSUMS =
+            new ChecksumProviderFactoryImpl();
+
+    private Ice.Communicator communicator;
+
+    private ScheduledExecutorService server;
+
+    private RawFileStorePrx rawFileStore;
+
+    private File file;
+
+    private byte[] buf;
+
+    private UploadFileTransfer transfer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        Ice.InitializationData id = new Ice.InitializationData();
+        id.properties = Ice.Util.createProperties();
+        id.properties.setProperty("Ice.MessageSizeMax",
+                Integer.toString(2 * blockSize / 1024 + 1024));
+        id.properties.setProperty("Ice.ThreadPool.Server.Size", "1");
+        communicator = Ice.Util.initialize(id);
+        server = Executors.newSingleThreadScheduledExecutor();
+
+        Ice.ObjectAdapter adapter = communicator
+                .createObjectAdapterWithEndpoints("RawFileStore",
+                        "tcp -h 127.0.0.1");
+        Ice.ObjectPrx prx = adapter.add(new StandInRawFileStore(),
+                communicator.stringToIdentity("RawFileStore"));
+        adapter.activate();
+        rawFileStore = RawFileStorePrxHelper.uncheckedCast(
+                prx.ice_collocationOptimized(false));
+
+        file = File.createTempFile("upload", ".bin");
+        file.deleteOnExit();
+        byte[] data = new byte[fileSize];
+        new Random(fileSize).nextBytes(data);
+        FileOutputStream stream = new FileOutputStream(file);
+        try
+        {
+            stream.write(data);
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        buf = new byte[blockSize];
+        transfer = new UploadFileTransfer(window);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        communicator.destroy();
+        server.shutdownNow();
+        file.delete();
+    }
+
+    @Benchmark
+    public String upload() throws IOException, ServerError
+    {
+        return transfer.transfer(new StandInState());
+    }
+
+    /**
+     * Answers every operation with an empty result once the latency has
+     * passed, without reading the arguments.
+     */
+    private class StandInRawFileStore extends Ice.BlobjectAsync
+    {
+
+        @Override
+        public void ice_invoke_async(final Ice.AMD_Object_ice_invoke cb,
+                byte[] inParams, Ice.Current current)
+        {
+            final Ice.OutputStream out =
+                    Ice.Util.createOutputStream(communicator);
+            out.startEncapsulation();
+            out.endEncapsulation();
+            final byte[] outParams = out.finished();
+            server.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    cb.ice_response(true, outParams);
+                }
+            }, latency, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    /**
+     * Transfer state which hands out the stand-in store and raises no
+     * events.
+     */
+    private class StandInState extends TransferState
+    {
+
+        StandInState() throws IOException, ServerError
+        {
+            super(file, 0, 1, null, null, null,
+                    CHECKSUMS.getProvider(ChecksumType.SHA1), buf);
+        }
+
+        @Override
+        public RawFileStorePrx getUploader(String mode)
+        {
+            return rawFileStore;
+        }
+
+        @Override
+        public void save()
+        {
+            // nothing is stored
+        }
+
+        @Override
+        public String getChecksum()
+        {
+            return getChecksumProvider().checksumAsString();
+        }
+
+        @Override
+        public void uploadStarted()
+        {
+        }
+
+        @Override
+        public void uploadBytes(long offset)
+        {
+        }
+
+        @Override
+        public void uploadComplete(long offset)
+        {
+        }
+
+        @Override
+        public void start()
+        {
+        }
+
+        @Override
+        public void stop()
+        {
+        }
+
+        @Override
+        public void stop(long uploadedBytes)
+        {
+        }
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ *------------------------------------------------------------------------------
+ *  Copyright (C) 2018 University of Dundee. All rights reserved.
+ *
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *------------------------------------------------------------------------------
+ */
+package ome.services.roi;
+
+import static omero.rtypes.rdouble;
+
+import java.awt.Dimension;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import ome.conditions.ApiUsageException;
+import ome.io.nio.PixelBuffer;
+import ome.model.core.Channel;
+import ome.model.core.Image;
+import ome.model.core.LogicalChannel;
+import ome.model.core.Pixels;
+import ome.model.roi.Ellipse;
+import ome.model.roi.Rectangle;
+import ome.model.roi.Roi;
+import ome.model.roi.Shape;
+import omero.api.RoiStats;
+import omero.api.ShapeStats;
+import omero.model.SmartEllipseI;
+import omero.model.SmartRectI;
+import omero.model.SmartShape;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures {@link GeomTool#getStats(List)} once the shapes are loaded,
+ * against reading every plane of every shape and visiting its points one
+ * by one as it used to. The pixels are generated on request by a stand-in
+ * {@link PixelData}, as whole planes or as tiles.
+ *
+ * Since there are no unit tests for {@link GeomTool} the setup also checks
+ * the statistics against that reference: for shapes with and without
+ * <code>theC</code>, <code>theZ</code> and <code>theT</code>, shapes
+ * which extend beyond the image and repeated ids, and that unknown ids are
+ * rejected.
+ *
+ * @since 5.5
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class GeomToolStatsBenchmark
+{
+
+    /** Number of shapes on the image. */
+    @Param({"10", "200"})
+    public int shapeCount;
+
+    /** If the image is read by tile rather than by plane. */
+    @Param({"false", "true"})
+    public boolean tiled;
+
+    private static final int SIZE_X = 1024, SIZE_Y = 1024;
+
+    private static final int SIZE_Z = 3, SIZE_C = 3, SIZE_T = 2;
+
+    private static final int TILE_SIZE = 256;
+
+    private final Map<Long, Shape> shapes = new HashMap<Long, Shape>();
+
+    /** The same geometry as {@link #shapes} for the reference. */
+    private final Map<Long, SmartShape> smartShapes =
+            new HashMap<Long, SmartShape>();
+
+    private final List<Long> shapeIds = new ArrayList<Long>();
+
+    private Pixels pixels;
+
+    private PixelData data;
+
+    private GeomTool tool;
+
+    /** The generated value of a pixel. */
+    private static int value(int x, int y, int z, int c, int t)
+    {
+        return (x * 7 + y * 13 + z * 31 + c * 101 + t * 57) % 4096;
+    }
+
+    /** The pixels of a region of a plane, as read from a buffer. */
+    private static ome.util.PixelData region(int z, int c, int t, int x0,
+            int y0, int w, int h)
+    {
+        ByteBuffer bytes = ByteBuffer.allocate(w * h * 2);
+        for (int y = y0; y < y0 + h; y++)
+        {
+            for (int x = x0; x < x0 + w; x++)
+            {
+                bytes.putShort((short) value(x, y, z, c, t));
+            }
+        }
+        bytes.rewind();
+        return new ome.util.PixelData("uint16", bytes);
+    }
+
+    /** Pixel data which generates the values of {@link #value}. */
+    private class StandInPixelData extends PixelData
+    {
+
+        StandInPixelData()
+        {
+            super(null, null);
+        }
+
+        @Override
+        public PixelBuffer getBuffer(long pix)
+        {
+            return (PixelBuffer) Proxy.newProxyInstance(
+                    PixelBuffer.class.getClassLoader(),
+                    new Class<?>[] { PixelBuffer.class },
+                    new InvocationHandler()
+                    {
+                        public Object invoke(Object proxy, Method method,
+                                Object[] args)
+                        {
+                            if ("getTileSize".equals(method.getName()))
+                            {
+                                return new Dimension(TILE_SIZE, TILE_SIZE);
+                            }
+                            if ("close".equals(method.getName()))
+                            {
+                                return null;
+                            }
+                            throw new UnsupportedOperationException(
+                                    method.getName());
+                        }
+                    });
+        }
+
+        @Override
+        public ome.util.PixelData getPlane(PixelBuffer buf, int z, int c,
+                int t)
+        {
+            return region(z, c, t, 0, 0, SIZE_X, SIZE_Y);
+        }
+
+        @Override
+        public ome.util.PixelData getTile(PixelBuffer buf, int z, int c,
+                int t, int x, int y, int w, int h)
+        {
+            return region(z, c, t, x, y, w, h);
+        }
+
+        @Override
+        public boolean requiresPixelsPyramid(Pixels pix)
+        {
+            return tiled;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        data = new StandInPixelData();
+        tool = new GeomTool(data, null, null);
+
+        pixels = new Pixels();
+        pixels.setId(1L);
+        pixels.setSizeX(SIZE_X);
+        pixels.setSizeY(SIZE_Y);
+        pixels.setSizeZ(SIZE_Z);
+        pixels.setSizeC(SIZE_C);
+        pixels.setSizeT(SIZE_T);
+        for (int c = 0; c < SIZE_C; c++)
+        {
+            LogicalChannel lc = new LogicalChannel();
+            lc.setId(100L + c);
+            Channel channel = new Channel();
+            channel.setId(10L + c);
+            channel.setLogicalChannel(lc);
+            pixels.addChannel(channel);
+        }
+        Image image = new Image();
+        image.setId(1L);
+        image.addPixels(pixels);
+
+        shapes.clear();
+        smartShapes.clear();
+        shapeIds.clear();
+        Random random = new Random(shapeCount);
+        for (int i = 0; i < shapeCount; i++)
+        {
+            long id = 1000L + i;
+            Roi roi = new Roi();
+            roi.setId(id);
+            roi.setImage(image);
+            // One shape in four extends beyond the image.
+            boolean outside = i % 4 == 0;
+            double x = outside ? random.nextInt(SIZE_X + 80) - 40
+                    : 40 + random.nextInt(SIZE_X - 80);
+            double y = outside ? random.nextInt(SIZE_Y + 80) - 40
+                    : 40 + random.nextInt(SIZE_Y - 80);
+            Shape shape;
+            SmartShape smart;
+            if (i % 2 == 0)
+            {
+                double w = 4 + random.nextInt(60);
+                double h = 4 + random.nextInt(60);
+                Rectangle rect = new Rectangle();
+                rect.setX(x - w / 2);
+                rect.setY(y - h / 2);
+                rect.setWidth(w);
+                rect.setHeight(h);
+                SmartRectI smartRect = new SmartRectI();
+                smartRect.setX(rdouble(x - w / 2));
+                smartRect.setY(rdouble(y - h / 2));
+                smartRect.setWidth(rdouble(w));
+                smartRect.setHeight(rdouble(h));
+                shape = rect;
+                smart = smartRect;
+            }
+            else
+            {
+                double rx = 2.5 + random.nextDouble() * 30;
+                double ry = 2.5 + random.nextDouble() * 30;
+                Ellipse ellipse = new Ellipse();
+                ellipse.setX(x);
+                ellipse.setY(y);
+                ellipse.setRadiusX(rx);
+                ellipse.setRadiusY(ry);
+                SmartEllipseI smartEllipse = new SmartEllipseI();
+                smartEllipse.setX(rdouble(x));
+                smartEllipse.setY(rdouble(y));
+                smartEllipse.setRadiusX(rdouble(rx));
+                smartEllipse.setRadiusY(rdouble(ry));
+                shape = ellipse;
+                smart = smartEllipse;
+            }
+            if (i % 3 == 1)
+            {
+                shape.setTheC(random.nextInt(SIZE_C));
+            }
+            if (i % 2 == 1)
+            {
+                shape.setTheZ(random.nextInt(SIZE_Z));
+            }
+            if (i % 5 < 2)
+            {
+                shape.setTheT(random.nextInt(SIZE_T));
+            }
+            shape.setId(id);
+            shape.setRoi(roi);
+            shapes.put(id, shape);
+            smartShapes.put(id, smart);
+            shapeIds.add(id);
+        }
+
+        check();
+    }
+
+    /**
+     * Compares the statistics with those of {@link #reference()} and checks
+     * the handling of repeated and unknown ids.
+     */
+    private void check()
+    {
+        List<Long> ids = new ArrayList<Long>(shapeIds);
+        ids.add(shapeIds.get(0));
+        RoiStats actual = tool.getStats(ids, shapes);
+        ShapeStats[] expected = reference(ids);
+        if (actual.perShape.length != ids.size())
+        {
+            throw new IllegalStateException("Expected " + ids.size()
+                    + " statistics, got " + actual.perShape.length);
+        }
+        for (int i = 0; i < ids.size(); i++)
+        {
+            ShapeStats a = actual.perShape[i];
+            ShapeStats e = expected[i];
+            String what = "shape " + ids.get(i);
+            if (a.shapeId != ids.get(i))
+            {
+                throw new IllegalStateException(what + " out of order");
+            }
+            if (!Arrays.equals(a.channelIds, e.channelIds))
+            {
+                throw new IllegalStateException(what + " has channels "
+                        + Arrays.toString(a.channelIds) + " instead of "
+                        + Arrays.toString(e.channelIds));
+            }
+            if (!Arrays.equals(a.pointsCount, e.pointsCount))
+            {
+                throw new IllegalStateException(what + " has point counts "
+                        + Arrays.toString(a.pointsCount) + " instead of "
+                        + Arrays.toString(e.pointsCount));
+            }
+            compare(what + " min", a.min, e.min);
+            compare(what + " max", a.max, e.max);
+            compare(what + " sum", a.sum, e.sum);
+            compare(what + " mean", a.mean, e.mean);
+            compare(what + " standard deviation", a.stdDev, e.stdDev);
+        }
+
+        try
+        {
+            tool.getStats(Arrays.asList(shapeIds.get(0), -1L), shapes);
+            throw new IllegalStateException("Unknown shape id accepted");
+        }
+        catch (ApiUsageException e)
+        {
+            // expected
+        }
+    }
+
+    private static void compare(String what, double[] actual,
+            double[] expected)
+    {
+        for (int w = 0; w < expected.length; w++)
+        {
+            double tolerance = 1e-9 * Math.max(1, Math.abs(expected[w]));
+            if (Math.abs(actual[w] - expected[w]) > tolerance)
+            {
+                throw new IllegalStateException(what + " is "
+                        + Arrays.toString(actual) + " instead of "
+                        + Arrays.toString(expected));
+            }
+        }
+    }
+
+    /**
+     * The statistics of each shape from its own reads of every plane it is
+     * on, visiting its points inside the image one by one.
+     */
+    private ShapeStats[] reference(List<Long> ids)
+    {
+        ShapeStats[] result = new ShapeStats[ids.size()];
+        for (int i = 0; i < ids.size(); i++)
+        {
+            Shape shape = shapes.get(ids.get(i));
+            Integer theC = shape.getTheC();
+            Integer theZ = shape.getTheZ();
+            Integer theT = shape.getTheT();
+            int channels = theC == null ? SIZE_C : 1;
+            ShapeStats stats = new ShapeStats();
+            stats.shapeId = ids.get(i);
+            stats.channelIds = new long[channels];
+            stats.min = new double[channels];
+            stats.max = new double[channels];
+            stats.sum = new double[channels];
+            stats.mean = new double[channels];
+            stats.stdDev = new double[channels];
+            stats.pointsCount = new long[channels];
+            Arrays.fill(stats.min, Double.MAX_VALUE);
+
+            final List<int[]> points = new ArrayList<int[]>();
+            smartShapes.get(ids.get(i)).areaPoints(
+                    new SmartShape.PointCallback()
+            {
+                public void handle(int x, int y)
+                {
+                    if (x >= 0 && x < SIZE_X && y >= 0 && y < SIZE_Y)
+                    {
+                        points.add(new int[] { x, y });
+                    }
+                }
+            });
+
+            for (int w = 0; w < channels; w++)
+            {
+                int c = theC == null ? w : theC;
+                stats.channelIds[w] = pixels.getChannel(c)
+                        .getLogicalChannel().getId();
+                double sumOfSquares = 0;
+                for (int t = 0; t < SIZE_T; t++)
+                {
+                    if (theT != null && theT != t)
+                    {
+                        continue;
+                    }
+                    for (int z = 0; z < SIZE_Z; z++)
+                    {
+                        if (theZ != null && theZ != z)
+                        {
+                            continue;
+                        }
+                        ome.util.PixelData pd = data.getPlane(null, z, c, t);
+                        for (int[] p : points)
+                        {
+                            double v = pd.getPixelValue(p[1] * SIZE_X + p[0]);
+                            stats.min[w] = Math.min(stats.min[w], v);
+                            stats.max[w] = Math.max(stats.max[w], v);
+                            stats.sum[w] += v;
+                            sumOfSquares += v * v;
+                            stats.pointsCount[w]++;
+                        }
+                    }
+                }
+                long n = stats.pointsCount[w];
+                if (n > 0)
+                {
+                    stats.mean[w] = stats.sum[w] / n;
+                }
+                if (n > 1)
+                {
+                    double sigmaSquare = (sumOfSquares
+                            - stats.sum[w] * stats.sum[w] / n) / (n - 1);
+                    if (sigmaSquare > 0)
+                    {
+                        stats.stdDev[w] = Math.sqrt(sigmaSquare);
+                    }
+                }
+            }
+            result[i] = stats;
+        }
+        return result;
+    }
+
+    @Benchmark
+    public RoiStats getStats()
+    {
+        return tool.getStats(shapeIds, shapes);
+    }
+
+    @Benchmark
+    public ShapeStats[] perShape()
+    {
+        return reference(shapeIds);
+    }
+}
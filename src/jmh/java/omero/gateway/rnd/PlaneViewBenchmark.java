@@ -0,0 +1,194 @@
+/*
+ *------------------------------------------------------------------------------
+ *  Copyright (C) 2018 University of Dundee. All rights reserved.
+ *
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *------------------------------------------------------------------------------
+ */
+package omero.gateway.rnd;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import omero.util.ReadOnlyByteArray;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares reading a plane through a {@link PlaneView}, as returned by
+ * {@link DataSink#getPlaneView(int, int, int)} and
+ * {@link DataSink#getTileView}, with the eager {@link Plane2D} path of
+ * {@link DataSink#getPlane(int, int, int)}. Both are built over the same
+ * bytes as {@link DataSink} would build them once the plane is fetched, so
+ * no server is needed. Each benchmark sums the values of the plane.
+ *
+ * @since 5.5
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PlaneViewBenchmark
+{
+
+    /** Width and height of the plane. */
+    @Param({"512", "2048"})
+    public int size;
+
+    /** Pixels type. */
+    @Param({"uint8", "uint16", "float"})
+    public String pixelsType;
+
+    private ReadOnlyByteArray data;
+
+    private int bytesPerPixel;
+
+    private BytesConverter strategy;
+
+    private double[] doubles;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        bytesPerPixel = DataSink.UINT_8.equals(pixelsType) ? 1
+                : DataSink.UINT_16.equals(pixelsType) ? 2 : 4;
+        byte[] bytes = new byte[size * size * bytesPerPixel];
+        Random random = new Random(size);
+        if (DataSink.FLOAT.equals(pixelsType))
+        {
+            // avoid NaN, which would fail the comparison below
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            for (int i = 0; i < size * size; i++)
+                buffer.putFloat(random.nextFloat() * 65535);
+        }
+        else
+        {
+            random.nextBytes(bytes);
+        }
+        data = new ReadOnlyByteArray(bytes, 0, bytes.length);
+        strategy = BytesConverter.getConverter(pixelsType);
+        doubles = new double[size * size];
+
+        // Both paths must decode the same values.
+        double[][] eager = plane().getPixelValues();
+        PlaneView view = view();
+        double[] bulk = view.getDoubles(null);
+        for (int y = 0; y < size; y++)
+            for (int x = 0; x < size; x++)
+                if (eager[x][y] != bulk[y * size + x]
+                        || eager[x][y] != view.getPixelValue(x, y))
+                    throw new IllegalStateException("Mismatch at ("
+                            + x + ", " + y + ") for " + pixelsType);
+    }
+
+    private Plane2D plane()
+    {
+        return new Plane2D(data, size, size, bytesPerPixel, strategy);
+    }
+
+    private PlaneView view()
+    {
+        return new PlaneView(data, size, size, pixelsType, bytesPerPixel);
+    }
+
+    /** {@link DataSink#getPlane} then {@link Plane2D#getPixelValues()}. */
+    @Benchmark
+    public double plane2DPixelValues()
+    {
+        double[][] values = plane().getPixelValues();
+        double sum = 0;
+        for (int x = 0; x < size; x++)
+            for (int y = 0; y < size; y++)
+                sum += values[x][y];
+        return sum;
+    }
+
+    /** {@link DataSink#getPlane} then {@link Plane2D#getPixelValue}. */
+    @Benchmark
+    public double plane2DPixelValue()
+    {
+        Plane2D plane = plane();
+        double sum = 0;
+        for (int y = 0; y < size; y++)
+            for (int x = 0; x < size; x++)
+                sum += plane.getPixelValue(x, y);
+        return sum;
+    }
+
+    /** {@link DataSink#getPlaneView} then {@link PlaneView#getPixelValue}. */
+    @Benchmark
+    public double planeViewPixelValue()
+    {
+        PlaneView view = view();
+        double sum = 0;
+        for (int y = 0; y < size; y++)
+            for (int x = 0; x < size; x++)
+                sum += view.getPixelValue(x, y);
+        return sum;
+    }
+
+    /**
+     * {@link DataSink#getPlaneView} then {@link PlaneView#getDoubles} into
+     * a reused array.
+     */
+    @Benchmark
+    public double planeViewDoubles()
+    {
+        double[] values = view().getDoubles(doubles);
+        double sum = 0;
+        for (int i = 0; i < size * size; i++)
+            sum += values[i];
+        return sum;
+    }
+
+    /**
+     * {@link DataSink#getPlaneView} then the typed bulk accessor for the
+     * pixels type.
+     */
+    @Benchmark
+    public double planeViewTyped()
+    {
+        PlaneView view = view();
+        double sum = 0;
+        if (DataSink.UINT_8.equals(pixelsType))
+        {
+            byte[] values = view.getBytes(null);
+            for (int i = 0; i < values.length; i++)
+                sum += values[i] & 0xFF;
+        }
+        else if (DataSink.UINT_16.equals(pixelsType))
+        {
+            short[] values = view.getShorts(null);
+            for (int i = 0; i < values.length; i++)
+                sum += values[i] & 0xFFFF;
+        }
+        else
+        {
+            float[] values = view.getFloats(null);
+            for (int i = 0; i < values.length; i++)
+                sum += values[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ *------------------------------------------------------------------------------
+ *  Copyright (C) 2018 University of Dundee. All rights reserved.
+ *
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *------------------------------------------------------------------------------
+ */
+package omero.model;
+
+import static omero.rtypes.rdouble;
+import static omero.rtypes.rstring;
+
+import java.awt.Shape;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures {@link SmartShape#areaSpans(SmartShape.SpanCallback)}, and so
+ * {@link SmartShape.Util#spansByScanline} for polygons, against testing
+ * every pixel of the bounding box with
+ * {@link SmartShape.Util#pointsByBoundingBox} as
+ * {@link SmartShape#areaPoints(SmartShape.PointCallback)} used to. The ROI
+ * sets are generated with a fixed seed on a 2048 by 2048 image:
+ * <ul>
+ * <li><code>cells</code>: segmentation outlines, polygons of 32 to 96
+ * vertices with radii of 8 to 40 pixels</li>
+ * <li><code>freehand</code>: hand drawn regions, concave polygons of 400
+ * vertices with radii of 150 to 600 pixels</li>
+ * <li><code>ellipses</code> and <code>rectangles</code>: 5 to 80 pixels
+ * across, one in three rotated by a transform</li>
+ * </ul>
+ * The setup checks that both paths count the same pixels, apart from
+ * pixels whose sample point lies on an edge.
+ *
+ * @since 5.5
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SmartShapeSpansBenchmark
+{
+
+    /** The set of ROIs to rasterize. */
+    @Param({"cells", "freehand", "ellipses", "rectangles"})
+    public String roiSet;
+
+    private static final int IMAGE_SIZE = 2048;
+
+    private final List<SmartShape> shapes = new ArrayList<SmartShape>();
+
+    /** Counts the pixels passed to it. */
+    private static final class Counter
+            implements SmartShape.SpanCallback, SmartShape.PointCallback
+    {
+
+        long pixels;
+
+        int rows;
+
+        public void handle(int y, int xStart, int xEnd)
+        {
+            pixels += xEnd - xStart;
+            rows++;
+        }
+
+        public void handle(int x, int y)
+        {
+            pixels++;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        Random random = new Random(roiSet.hashCode());
+        shapes.clear();
+        if ("cells".equals(roiSet))
+        {
+            for (int i = 0; i < 500; i++)
+            {
+                shapes.add(polygon(random, 32 + random.nextInt(65),
+                        8 + random.nextInt(33), 0.15));
+            }
+        }
+        else if ("freehand".equals(roiSet))
+        {
+            for (int i = 0; i < 10; i++)
+            {
+                shapes.add(polygon(random, 400, 150 + random.nextInt(451),
+                        0.4));
+            }
+        }
+        else if ("ellipses".equals(roiSet))
+        {
+            for (int i = 0; i < 500; i++)
+            {
+                SmartEllipseI ellipse = new SmartEllipseI();
+                double x = 80 + random.nextInt(IMAGE_SIZE - 160);
+                double y = 80 + random.nextInt(IMAGE_SIZE - 160);
+                ellipse.setX(rdouble(x));
+                ellipse.setY(rdouble(y));
+                ellipse.setRadiusX(rdouble(2.5 + random.nextDouble() * 37.5));
+                ellipse.setRadiusY(rdouble(2.5 + random.nextDouble() * 37.5));
+                if (i % 3 == 0)
+                {
+                    ellipse.setTransform(rotation(random, x, y));
+                }
+                shapes.add(ellipse);
+            }
+        }
+        else
+        {
+            for (int i = 0; i < 500; i++)
+            {
+                SmartRectI rect = new SmartRectI();
+                double x = 80 + random.nextInt(IMAGE_SIZE - 160);
+                double y = 80 + random.nextInt(IMAGE_SIZE - 160);
+                double w = 5 + random.nextDouble() * 75;
+                double h = 5 + random.nextDouble() * 75;
+                rect.setX(rdouble(x));
+                rect.setY(rdouble(y));
+                rect.setWidth(rdouble(w));
+                rect.setHeight(rdouble(h));
+                if (i % 3 == 0)
+                {
+                    rect.setTransform(rotation(random, x + w / 2, y + h / 2));
+                }
+                shapes.add(rect);
+            }
+        }
+
+        for (SmartShape shape : shapes)
+        {
+            Counter spans = new Counter();
+            shape.areaSpans(spans);
+            Counter points = new Counter();
+            boundingBox(shape, points);
+            if (Math.abs(spans.pixels - points.pixels) > 2 * spans.rows + 2)
+            {
+                throw new IllegalStateException(roiSet + ": " + spans.pixels
+                        + " pixels in spans but " + points.pixels
+                        + " in the bounding box for " + shape);
+            }
+        }
+    }
+
+    /**
+     * A closed polygon around a random centre whose radius varies by up to
+     * the given fraction from vertex to vertex.
+     */
+    private static SmartPolygonI polygon(Random random, int vertices,
+            double radius, double roughness)
+    {
+        double cx = radius + random.nextInt((int) (IMAGE_SIZE - 2 * radius));
+        double cy = radius + random.nextInt((int) (IMAGE_SIZE - 2 * radius));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < vertices; i++)
+        {
+            double angle = 2 * Math.PI * i / vertices;
+            double r = radius * (1 - roughness * random.nextDouble());
+            SmartShape.Util.appendSvgPoint(sb, cx + r * Math.cos(angle),
+                    cy + r * Math.sin(angle));
+        }
+        SmartPolygonI polygon = new SmartPolygonI();
+        polygon.setPoints(rstring(sb.toString().trim()));
+        return polygon;
+    }
+
+    /** A rotation by a random angle about the given point. */
+    private static AffineTransform rotation(Random random, double cx,
+            double cy)
+    {
+        double angle = random.nextDouble() * Math.PI;
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+        AffineTransform t = new AffineTransformI();
+        t.setA00(rdouble(cos));
+        t.setA01(rdouble(-sin));
+        t.setA02(rdouble(cx - cos * cx + sin * cy));
+        t.setA10(rdouble(sin));
+        t.setA11(rdouble(cos));
+        t.setA12(rdouble(cy - sin * cx - cos * cy));
+        return t;
+    }
+
+    /** The pixels as found before the spans were added. */
+    private static void boundingBox(SmartShape shape, Counter counter)
+    {
+        Shape s = shape.asAwtShape();
+        AffineTransform transform = ((omero.model.Shape) shape)
+                .getTransform();
+        if (transform != null)
+        {
+            s = SmartShape.Util.transformAwtShape(s, transform);
+        }
+        SmartShape.Util.pointsByBoundingBox(s, s.getBounds2D(), counter);
+    }
+
+    @Benchmark
+    public long areaSpans()
+    {
+        Counter counter = new Counter();
+        for (SmartShape shape : shapes)
+        {
+            shape.areaSpans(counter);
+        }
+        return counter.pixels;
+    }
+
+    @Benchmark
+    public long areaPoints()
+    {
+        Counter counter = new Counter();
+        for (SmartShape shape : shapes)
+        {
+            shape.areaPoints(counter);
+        }
+        return counter.pixels;
+    }
+
+    @Benchmark
+    public long pointsByBoundingBox()
+    {
+        Counter counter = new Counter();
+        for (SmartShape shape : shapes)
+        {
+            boundingBox(shape, counter);
+        }
+        return counter.pixels;
+    }
+}
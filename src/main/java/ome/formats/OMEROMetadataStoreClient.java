@@ -39,10 +39,12 @@ import static ome.formats.model.UnitsFactory.convertPressure;
 import static ome.formats.model.UnitsFactory.convertTemperature;
 import static ome.formats.model.UnitsFactory.convertTime;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -75,6 +77,7 @@ import ome.formats.model.ReferenceProcessor;
 import ome.formats.model.ShapeProcessor;
 import ome.formats.model.TargetProcessor;
 import ome.formats.model.WellProcessor;
+import ome.services.util.IceUtil;
 import ome.units.quantity.ElectricPotential;
 import ome.units.quantity.Frequency;
 import ome.units.quantity.Length;
@@ -234,8 +237,17 @@ public class OMEROMetadataStoreClient
     /** Logger for this class */
     private Logger log = LoggerFactory.getLogger(OMEROMetadataStoreClient.class);
 
+    /**
+     * Call context key for the sequence number of each batch sent to the
+     * {@link #delegate}, as read by the server's MetadataStoreI.
+     */
+    private static final String BATCH_SEQUENCE = "omero.batch_sequence";
+
     private MetadataStorePrx delegate;
 
+    /** Sequence number of the next batch sent to the {@link #delegate}. */
+    private long batchSequence = 0;
+
     /**
      * Begins empty to allow access to all groups. Once a target object
      * has been chosen, the id will be set to reflect the target.
@@ -246,6 +258,16 @@ public class OMEROMetadataStoreClient
     private Map<LSID, IObjectContainer> containerCache =
             new TreeMap<LSID, IObjectContainer>(new OMEXMLModelComparator());
 
+    /**
+     * Index of the class and index based entries of {@link #containerCache}
+     * which allows existing containers to be looked up without allocation.
+     */
+    private Map<ContainerKey, IObjectContainer> containerIndex =
+            new HashMap<ContainerKey, IObjectContainer>();
+
+    /** Reused to probe {@link #containerIndex}. */
+    private final ContainerKey containerProbe = new ContainerKey();
+
     /** Our LSID reference cache. */
     private Map<LSID, List<LSID>> referenceCache =
             new HashMap<LSID, List<LSID>>();
@@ -436,6 +458,7 @@ public class OMEROMetadataStoreClient
         iSettings = (IRenderingSettingsPrx) serviceFactory.getRenderingSettingsService().ice_context(callCtx);
         delegate = (MetadataStorePrx) MetadataStorePrxHelper.checkedCast(
                 serviceFactory.getByName(METADATASTORE.value)).ice_context(callCtx);
+        batchSequence = 0;
 
         // Client side services
         enumProvider = new IQueryEnumProvider(iQuery);
@@ -498,6 +521,29 @@ public class OMEROMetadataStoreClient
         return getDefaultInt("omero.batch_size", omero.constants.DEFAULTBATCHSIZE.value);
     }
 
+    /**
+     * @return user-configured "omero.batch_window", the number of batches
+     * {@link #saveToDB(FilesetJobLink)} may have in flight, or 1 if none is
+     * set in which case each batch is acknowledged before the next is sent.
+     */
+    public int getDefaultBatchWindow()
+    {
+        return Math.max(1, getDefaultInt("omero.batch_window", 1));
+    }
+
+    /**
+     * @return user-configured "omero.batch_bytes", the approximate payload
+     * size of the batches sent by {@link #saveToDB(FilesetJobLink)}, or 0 if
+     * none is set in which case batches are limited to
+     * {@link #getDefaultBatchSize()} entries. This is a fixed threshold on
+     * the estimated size of each batch; it is not adjusted from the
+     * acknowledgement times which are logged for tuning it.
+     */
+    public int getDefaultBatchBytes()
+    {
+        return getDefaultInt("omero.batch_bytes", 0);
+    }
+
     /**
      * @return user-configured "omero.block_size" or {@link omero.constants.DEFAULTBLOCKSIZE}
      * if none is set.
@@ -1180,6 +1226,7 @@ public class OMEROMetadataStoreClient
                     new HashMap<Class<? extends IObject>, Map<String, IObjectContainer>>();
             containerCache =
                     new TreeMap<LSID, IObjectContainer>(new OMEXMLModelComparator());
+            containerIndex = new HashMap<ContainerKey, IObjectContainer>();
             referenceCache = new HashMap<LSID, List<LSID>>();
             referenceCacheCheck = new HashMap<LSID, Set<LSID>>();
             referenceStringCache = null;
@@ -1762,7 +1809,10 @@ public class OMEROMetadataStoreClient
 
     /**
      * Updates the server side MetadataStore with a list of our objects and
-     * references and saves them into the database.
+     * references and saves them into the database. The objects and then the
+     * references are sent in batches of {@link #getDefaultBatchSize()}
+     * entries, or of {@link #getDefaultBatchBytes()} estimated bytes if set,
+     * with up to {@link #getDefaultBatchWindow()} batches in flight.
      * @param link the link to save to the database
      * @return List of Pixels after database commit.
      */
@@ -1803,51 +1853,52 @@ public class OMEROMetadataStoreClient
             }
 
             int maxBatchSize = getDefaultBatchSize();
-            int containerBatchCount = 0;
-            int containerPointer = 0;
+            long maxBatchBytes = getDefaultBatchBytes();
+            int window = getDefaultBatchWindow();
             log.info("Handling # of containers: {}", containerArray.length);
-            while (containerPointer < containerArray.length)
+            BatchPipeline containerBatches = new BatchPipeline(window);
+            Map<Class<?>, long[]> sizes = new HashMap<Class<?>, long[]>();
+            int containerPointer = 0;
+            long bytes = 0;
+            for (int i = 0; i < containerArray.length; i++)
             {
-                int nObjects = (int) Math.min(
-                        maxBatchSize, containerArray.length - containerPointer);
-
-                IObjectContainer[] batch = Arrays.copyOfRange(
-                        containerArray, containerPointer, containerPointer+nObjects);
-
-                delegate.updateObjects(batch);
-                containerPointer += nObjects;
-
-                containerBatchCount += 1;
-                if (containerBatchCount > 1)
+                bytes += estimateSize(containerArray[i], sizes);
+                if (i + 1 == containerArray.length
+                        || isBatchFull(i + 1 - containerPointer, bytes,
+                                maxBatchSize, maxBatchBytes))
                 {
-                    log.info("Starting containerBatch #{}", containerBatchCount);
+                    containerBatches.submit(Arrays.copyOfRange(
+                            containerArray, containerPointer, i + 1), bytes);
+                    containerPointer = i + 1;
+                    bytes = 0;
                 }
             }
+            // References can only be resolved once all objects are known.
+            containerBatches.drain("container");
 
-            int referenceBatchCount = 0;
-            int referencePointer = 0;
             String[] referenceKeys = referenceStringCache.keySet().toArray(
                     new String[referenceStringCache.size()]);
 
             log.info("Handling # of references: {}", referenceKeys.length);
-            while (referencePointer < referenceKeys.length) {
-
-                referenceBatchCount += 1;
-                if (referenceBatchCount > 1)
+            BatchPipeline referenceBatches = new BatchPipeline(window);
+            Map<String, String[]> referenceBatch = new HashMap<String, String[]>();
+            bytes = 0;
+            for (int i = 0; i < referenceKeys.length; i++)
+            {
+                String key = referenceKeys[i];
+                String[] values = referenceStringCache.get(key);
+                referenceBatch.put(key, values);
+                bytes += estimateSize(key, values);
+                if (i + 1 == referenceKeys.length
+                        || isBatchFull(referenceBatch.size(), bytes,
+                                maxBatchSize, maxBatchBytes))
                 {
-                    log.info("Starting referenceBatch #{}", referenceBatchCount);
-                }
-
-                Map<String, String[]> referenceBatch = new HashMap<String, String[]>();
-                int batchSize = (int) Math.min(
-                        maxBatchSize, referenceKeys.length - referencePointer);
-                for (int i=0; i<batchSize; i++) {
-                    String key = referenceKeys[referencePointer + i];
-                    referenceBatch.put(key, referenceStringCache.get(key));
+                    referenceBatches.submit(referenceBatch, bytes);
+                    referenceBatch = new HashMap<String, String[]>();
+                    bytes = 0;
                 }
-                delegate.updateReferences(referenceBatch);
-                referencePointer += batchSize;
             }
+            referenceBatches.drain("reference");
 
             Map<String, List<IObject>> rv = delegate.saveToDB(link);
             pixelsList = new OMEROMetadataStoreClientRoot((List) rv.get("Pixels"));
@@ -1869,6 +1920,218 @@ public class OMEROMetadataStoreClient
         }
     }
 
+    /**
+     * Containers whose source object size is measured rather than estimated
+     * from earlier measurements of the same class.
+     */
+    private static final int SIZE_SAMPLE_INTERVAL = 32;
+
+    /**
+     * Whether a batch has reached its maximum size, either in bytes if
+     * <code>maxBytes</code> is positive or else in entries.
+     */
+    private static boolean isBatchFull(int entries, long bytes, int maxEntries,
+            long maxBytes)
+    {
+        if (maxBytes > 0)
+        {
+            return bytes >= maxBytes;
+        }
+        return entries >= maxEntries;
+    }
+
+    /**
+     * Estimates the marshalled size of a container. The source objects of
+     * one in every {@link #SIZE_SAMPLE_INTERVAL} containers of each class are
+     * marshalled and the average used for the others.
+     * @param container the container to estimate
+     * @param sizes bytes marshalled, containers marshalled and containers
+     * seen by source object class
+     * @return the estimated size in bytes
+     */
+    private long estimateSize(IObjectContainer container,
+            Map<Class<?>, long[]> sizes)
+    {
+        long size = 0;
+        if (container.sourceObject != null)
+        {
+            Class<?> klass = container.sourceObject.getClass();
+            long[] sampled = sizes.get(klass);
+            if (sampled == null)
+            {
+                sampled = new long[3];
+                sizes.put(klass, sampled);
+            }
+            if (sampled[2]++ % SIZE_SAMPLE_INTERVAL == 0)
+            {
+                Ice.OutputStream os = IceUtil.createSafeOutputStream(
+                        delegate.ice_getCommunicator());
+                try
+                {
+                    os.writeObject(container.sourceObject);
+                    os.writePendingObjects();
+                    sampled[0] += os.finished().length;
+                    sampled[1]++;
+                }
+                finally
+                {
+                    os.destroy();
+                }
+            }
+            size += sampled[0] / sampled[1];
+        }
+        size += estimateSize(container.LSID);
+        if (container.indexes != null)
+        {
+            for (String index : container.indexes.keySet())
+            {
+                size += estimateSize(index) + 4;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Estimates the marshalled size of a reference entry.
+     */
+    private static long estimateSize(String key, String[] values)
+    {
+        long size = estimateSize(key) + 1;
+        if (values != null)
+        {
+            for (String value : values)
+            {
+                size += estimateSize(value);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Estimates the marshalled size of a string.
+     */
+    private static long estimateSize(String s)
+    {
+        return s == null ? 1 : s.length() + 1;
+    }
+
+    /**
+     * Sends batches of containers or references to the {@link #delegate}
+     * keeping up to a fixed number of them in flight, and logs how long each
+     * takes to be acknowledged so that "omero.batch_window" and
+     * "omero.batch_bytes" can be tuned.
+     */
+    private final class BatchPipeline
+    {
+        private final int window;
+
+        private final Deque<PendingBatch> pending = new ArrayDeque<PendingBatch>();
+
+        private final long start = System.nanoTime();
+
+        private int count = 0;
+
+        private long bytes = 0;
+
+        BatchPipeline(int window)
+        {
+            this.window = window;
+        }
+
+        void submit(IObjectContainer[] batch, long size) throws ServerError
+        {
+            awaitPending(window - 1);
+            pending.addLast(new PendingBatch(++count, batch.length, size,
+                    delegate.begin_updateObjects(batch, nextBatchContext()),
+                    true));
+            bytes += size;
+        }
+
+        void submit(Map<String, String[]> batch, long size) throws ServerError
+        {
+            awaitPending(window - 1);
+            pending.addLast(new PendingBatch(++count, batch.size(), size,
+                    delegate.begin_updateReferences(batch, nextBatchContext()),
+                    false));
+            bytes += size;
+        }
+
+        /**
+         * Waits for all batches to be acknowledged.
+         * @param kind what the batches contain, for logging
+         */
+        void drain(String kind) throws ServerError
+        {
+            awaitPending(0);
+            if (count > 0)
+            {
+                log.info("Sent {} {} batches (~{} bytes, window {}) in {} ms",
+                        count, kind, bytes, window,
+                        (System.nanoTime() - start) / 1000000);
+            }
+        }
+
+        /**
+         * The server may run batches that are in flight together in any
+         * order, so each carries its sequence number for the server to apply
+         * them in the order sent.
+         */
+        private Map<String, String> nextBatchContext()
+        {
+            Map<String, String> ctx =
+                new HashMap<String, String>(delegate.ice_getContext());
+            ctx.put(BATCH_SEQUENCE,
+                    Long.toString(batchSequence++));
+            return ctx;
+        }
+
+        private void awaitPending(int limit) throws ServerError
+        {
+            while (pending.size() > limit)
+            {
+                PendingBatch batch = pending.removeFirst();
+                if (batch.objects)
+                {
+                    delegate.end_updateObjects(batch.result);
+                }
+                else
+                {
+                    delegate.end_updateReferences(batch.result);
+                }
+                log.info("{} batch #{}: {} entries, ~{} bytes, {} ms",
+                        batch.objects ? "Container" : "Reference",
+                        batch.number, batch.entries, batch.bytes,
+                        (System.nanoTime() - batch.sent) / 1000000);
+            }
+        }
+    }
+
+    /** A batch sent by a {@link BatchPipeline} but not yet acknowledged. */
+    private static final class PendingBatch
+    {
+        final int number;
+
+        final int entries;
+
+        final long bytes;
+
+        final Ice.AsyncResult result;
+
+        final boolean objects;
+
+        final long sent = System.nanoTime();
+
+        PendingBatch(int number, int entries, long bytes,
+                Ice.AsyncResult result, boolean objects)
+        {
+            this.number = number;
+            this.entries = entries;
+            this.bytes = bytes;
+            this.result = result;
+            this.objects = objects;
+        }
+    }
+
     public List<InteractiveProcessorPrx> launchProcessing()
     {
         try {
@@ -2342,36 +2605,37 @@ public class OMEROMetadataStoreClient
     public IObjectContainer getIObjectContainer(Class<? extends IObject> klass,
                                                 LinkedHashMap<Index, Integer> indexes)
     {
-        // Transform an integer collection into an integer array without using
-        // wrapper objects.
-        Collection<Integer> indexValues = indexes.values();
-        int[] indexesArray = new int[indexValues.size()];
-        int i = 0;
-        for (Integer index : indexValues)
+        // Look up an existing container without creating any objects.
+        containerProbe.reset(klass, indexes.size());
+        for (Integer index : indexes.values())
         {
-            indexesArray[i] = index;
-            i++;
+            containerProbe.add(index);
         }
-
-        // Create a new LSID.
-        LSID lsid = new LSID(klass, indexesArray);
-
-        Map<String, Integer> asString = new HashMap<String, Integer>();
-        for (Entry<Index, Integer> v : indexes.entrySet())
+        IObjectContainer c = containerIndex.get(containerProbe);
+        if (c != null)
         {
-            asString.put(v.getKey().toString(), v.getValue());
+            return c;
         }
 
-        if (!containerCache.containsKey(lsid))
+        // Create a new LSID.
+        LSID lsid = new LSID(klass, containerProbe.toArray());
+        c = containerCache.get(lsid);
+        if (c == null)
         {
-            IObjectContainer c = new IObjectContainer();
+            Map<String, Integer> asString = new HashMap<String, Integer>();
+            for (Entry<Index, Integer> v : indexes.entrySet())
+            {
+                asString.put(v.getKey().toString(), v.getValue());
+            }
+
+            c = new IObjectContainer();
             c.indexes = asString;
             c.LSID = lsid.toString();
             c.sourceObject = getSourceObjectInstance(klass);
             containerCache.put(lsid, c);
         }
-
-        return containerCache.get(lsid);
+        containerIndex.put(containerProbe.copy(), c);
+        return c;
     }
 
     /* (non-Javadoc)
@@ -2381,6 +2645,17 @@ public class OMEROMetadataStoreClient
     public void removeIObjectContainer(LSID lsid)
     {
         containerCache.remove(lsid);
+        Class<? extends IObject> klass = lsid.getJavaClass();
+        if (klass != null)
+        {
+            int[] indexes = lsid.getIndexes();
+            containerProbe.reset(klass, indexes.length);
+            for (int index : indexes)
+            {
+                containerProbe.add(index);
+            }
+            containerIndex.remove(containerProbe);
+        }
     }
 
     /* (non-Javadoc)
@@ -9047,4 +9322,81 @@ public class OMEROMetadataStoreClient
         String msg = ignoreMessage("No annotators linked. ", method, args);
         log.warn(msg, args);
     }
+
+    /**
+     * Key of {@link #containerIndex}: the class of a container and its
+     * indexes in insertion order. Instances used for probing are mutable and
+     * must not be stored; store a {@link #copy()} instead.
+     */
+    private static final class ContainerKey
+    {
+        private Class<?> klass;
+
+        private int[] indexes = new int[8];
+
+        private int length;
+
+        private int hash;
+
+        void reset(Class<?> klass, int capacity)
+        {
+            this.klass = klass;
+            if (indexes.length < capacity)
+            {
+                indexes = new int[capacity];
+            }
+            length = 0;
+            hash = klass.hashCode();
+        }
+
+        void add(int index)
+        {
+            indexes[length++] = index;
+            hash = 31 * hash + index;
+        }
+
+        int[] toArray()
+        {
+            return Arrays.copyOf(indexes, length);
+        }
+
+        ContainerKey copy()
+        {
+            ContainerKey key = new ContainerKey();
+            key.klass = klass;
+            key.indexes = toArray();
+            key.length = length;
+            key.hash = hash;
+            return key;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof ContainerKey))
+            {
+                return false;
+            }
+            ContainerKey other = (ContainerKey) o;
+            if (klass != other.klass || length != other.length
+                    || hash != other.hash)
+            {
+                return false;
+            }
+            for (int i = 0; i < length; i++)
+            {
+                if (indexes[i] != other.indexes[i])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
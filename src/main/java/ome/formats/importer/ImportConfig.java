@@ -143,6 +143,18 @@ public class ImportConfig {
     public final BoolValue encryptedConnection;
     public final BoolValue autoClose;
 
+    /**
+     * Number of filesets which may be in flight at once, i.e. uploading or
+     * being processed server-side. Values above 1 let the upload of one
+     * fileset overlap with the server-side processing of previous ones.
+     */
+    public final IntValue parallelFileset;
+
+    /**
+     * Number of files of a single fileset which may be uploaded at once.
+     */
+    public final IntValue parallelUpload;
+
     public final AnnotationListValue annotations;
     public final DoubleArrayValue userPixels;
 
@@ -282,6 +294,8 @@ public class ImportConfig {
 
         encryptedConnection = new BoolValue("ecryptedConnection", this, true);
         autoClose = new BoolValue("autoClose", this, false);
+        parallelFileset = new IntValue("parallelFileset", this, 1);
+        parallelUpload = new IntValue("parallelUpload", this, 1);
 
         annotations = new AnnotationListValue(
                 "annotations", this, new ArrayList<Annotation>());
@@ -27,6 +27,18 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import loci.common.Location;
 import loci.formats.FormatException;
@@ -37,6 +49,7 @@ import ome.formats.importer.targets.ImportTarget;
 import ome.formats.importer.transfers.FileTransfer;
 import ome.formats.importer.transfers.TransferState;
 import ome.formats.importer.transfers.UploadFileTransfer;
+import ome.formats.importer.util.AggregateTimeEstimatorImpl;
 import ome.formats.importer.util.ErrorHandler;
 import ome.formats.importer.util.ProportionalTimeEstimatorImpl;
 import ome.formats.importer.util.TimeEstimator;
@@ -135,6 +148,11 @@ public class ImportLibrary implements IObservable
      */
     private final int minutesToWait;
 
+    /**
+     * Number of files of a fileset which are uploaded at once.
+     */
+    private volatile int parallelUpload = 1;
+
     /**
      * Adapter for use with any callbacks created by the library.
      */
@@ -222,19 +240,40 @@ public class ImportLibrary implements IObservable
         category = omero.client.getRouter(ic).getCategoryForClient();
     }
 
+    /**
+     * Set the number of files of a fileset which may be uploaded at once.
+     * Values less than 1 are treated as 1.
+     * @param parallelUpload the number of concurrent upload streams
+     */
+    public void setParallelUpload(int parallelUpload)
+    {
+        this.parallelUpload = Math.max(1, parallelUpload);
+    }
+
+    /**
+     * @return the number of concurrent upload streams
+     */
+    public int getParallelUpload()
+    {
+        return parallelUpload;
+    }
+
     //
     // Observable methods
     //
 
     public boolean addObserver(IObserver object)
     {
-        return observers.add(object);
+        synchronized (observers) {
+            return observers.add(object);
+        }
     }
 
     public boolean deleteObserver(IObserver object)
     {
-        return observers.remove(object);
-
+        synchronized (observers) {
+            return observers.remove(object);
+        }
     }
 
     /* (non-Javadoc)
@@ -242,8 +281,13 @@ public class ImportLibrary implements IObservable
      */
     public void notifyObservers(ImportEvent event)
     {
-        for (IObserver observer : observers) {
-            observer.update(this, event);
+        // Events may arrive from upload, callback and waiting threads.
+        // Observers are delivered one event at a time; the order of each
+        // fileset's events is kept by its ImportCallback.
+        synchronized (observers) {
+            for (IObserver observer : observers) {
+                observer.update(this, event);
+            }
         }
     }
 
@@ -253,6 +297,9 @@ public class ImportLibrary implements IObservable
 
     /**
      * Primary user method for importing a number of import candidates.
+     * If {@link ImportConfig#parallelFileset} is greater than one, the
+     * candidates are imported in a pipeline, see
+     * {@link #importCandidates(ImportConfig, List, int)}.
      * @param config The configuration information.
      * @param candidates Hosts information about the files to import.
      * @return if the import did not exit because of an error
@@ -261,42 +308,20 @@ public class ImportLibrary implements IObservable
     {
         List<ImportContainer> containers = candidates.getContainers();
         if (containers != null) {
+            final Integer parallel = config.parallelFileset.get();
+            if (parallel != null && parallel > 1 && containers.size() > 1) {
+                return importCandidates(config, containers, parallel);
+            }
             int numDone = 0;
             for (int index = 0; index < containers.size(); index++) {
                 ImportContainer ic = containers.get(index);
-                ImportTarget target = config.getTarget();
-                if (target != null) {
-                    try {
-                        IObject obj = target.load(store, ic);
-                        if (!(obj instanceof Annotation)) {
-                            ic.setTarget(obj);
-                        } else {
-                            // This is likely a "post-processing" annotation
-                            // so that we don't have to resolve the target
-                            // until later.
-                            ic.getCustomAnnotationList().add((Annotation) obj);
-                        }
-                    } catch (Exception e) {
-                        log.error("Could not load target: {}", target);
-                        throw new RuntimeException("Failed to load target", e);
-                    }
-                }
-                if (config.checksumAlgorithm.get() != null) {
-                    ic.setChecksumAlgorithm(config.checksumAlgorithm.get());
-                }
+                prepareContainer(config, ic);
 
                 try {
                     importImage(ic,index,numDone,containers.size());
                     numDone++;
                 } catch (Throwable t) {
-                    String message = "Error on import";
-                    if (t instanceof ServerError) {
-                        final ServerError se = (ServerError) t;
-                        if (StringUtils.isNotBlank(se.message)) {
-                            message += ": " + se.message;
-                        }
-                    }
-                    log.error(message, t);
+                    logImportError(t);
                     if (!config.contOnError.get()) {
                         log.info("Exiting on error");
                         return false;
@@ -309,6 +334,150 @@ public class ImportLibrary implements IObservable
         return true;
     }
 
+    /**
+     * Imports the given containers with at most {@code parallel} filesets in
+     * flight at once. Uploads still happen one fileset after another on the
+     * calling thread, so that the upload events for the containers are
+     * notified in order and the {@link OMEROMetadataStoreClient} is only
+     * used from a single thread. Once a fileset is uploaded, waiting on its
+     * server-side processing is handed to a pool of {@code parallel}
+     * threads, and the upload of the next fileset begins immediately.
+     *
+     * As with the serial import, the first error stops the import unless
+     * {@link ImportConfig#contOnError} is set. Filesets which are already
+     * being processed by the server are waited on before returning.
+     * @param config The configuration information.
+     * @param containers the containers to import, not null
+     * @param parallel the maximum number of filesets in flight
+     * @return if the import did not exit because of an error
+     */
+    protected boolean importCandidates(final ImportConfig config,
+            final List<ImportContainer> containers, final int parallel)
+    {
+        final int total = containers.size();
+        final boolean contOnError = config.contOnError.get();
+        final Semaphore inFlight = new Semaphore(parallel);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final AtomicInteger numDone = new AtomicInteger(0);
+        final ExecutorService waiters = Executors.newFixedThreadPool(
+                Math.min(parallel, total), new NamedThreadFactory("import-wait"));
+        log.info("Importing {} filesets with up to {} in flight",
+                total, parallel);
+        try {
+            for (int index = 0; index < total; index++) {
+                if (failed.get() && !contOnError) {
+                    break;
+                }
+                final ImportContainer ic = containers.get(index);
+                prepareContainer(config, ic);
+
+                try {
+                    inFlight.acquire();
+                } catch (InterruptedException ie) {
+                    log.warn("Interrupted while waiting to start import {}",
+                            index);
+                    Thread.currentThread().interrupt();
+                    failed.set(true);
+                    break;
+                }
+
+                final ImportCallback cb;
+                try {
+                    cb = startImport(ic, index, numDone.get(), total);
+                } catch (Throwable t) {
+                    inFlight.release();
+                    logImportError(t);
+                    failed.set(true);
+                    if (!contOnError) {
+                        log.info("Exiting on error");
+                        break;
+                    }
+                    log.info("Continuing after error");
+                    continue;
+                }
+
+                if (cb == null) {
+                    // Excluded fileset: nothing to wait on.
+                    inFlight.release();
+                    numDone.incrementAndGet();
+                    continue;
+                }
+
+                waiters.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            awaitImport(cb);
+                            numDone.incrementAndGet();
+                        } catch (Throwable t) {
+                            logImportError(t);
+                            failed.set(true);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+        } finally {
+            waiters.shutdown();
+            boolean interrupted = false;
+            while (!waiters.isTerminated()) {
+                try {
+                    waiters.awaitTermination(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        log.info("{} of {} filesets imported", numDone.get(), total);
+        return contOnError || !failed.get();
+    }
+
+    /**
+     * Resolves the configured {@link ImportTarget} for the container and
+     * applies the configured checksum algorithm.
+     * @param config The configuration information.
+     * @param ic the container about to be imported
+     */
+    private void prepareContainer(ImportConfig config, ImportContainer ic)
+    {
+        ImportTarget target = config.getTarget();
+        if (target != null) {
+            try {
+                IObject obj = target.load(store, ic);
+                if (!(obj instanceof Annotation)) {
+                    ic.setTarget(obj);
+                } else {
+                    // This is likely a "post-processing" annotation
+                    // so that we don't have to resolve the target
+                    // until later.
+                    ic.getCustomAnnotationList().add((Annotation) obj);
+                }
+            } catch (Exception e) {
+                log.error("Could not load target: {}", target);
+                throw new RuntimeException("Failed to load target", e);
+            }
+        }
+        if (config.checksumAlgorithm.get() != null) {
+            ic.setChecksumAlgorithm(config.checksumAlgorithm.get());
+        }
+    }
+
+    private void logImportError(Throwable t)
+    {
+        String message = "Error on import";
+        if (t instanceof ServerError) {
+            final ServerError se = (ServerError) t;
+            if (StringUtils.isNotBlank(se.message)) {
+                message += ": " + se.message;
+            }
+        }
+        log.error(message, t);
+    }
+
     /**
      * Delete files from the managed repository.
      * @param container The current import container containing usedFiles to be
@@ -390,26 +559,137 @@ public class ImportLibrary implements IObservable
     public List<String> uploadFilesToRepository(
             final String[] srcFiles, final ImportProcessPrx proc)
     {
-        final byte[] buf = new byte[store.getDefaultBlockSize()];
-        final int fileTotal = srcFiles.length;
-        final List<String> checksums = new ArrayList<String>(fileTotal);
-        // TODO Fix with proper code instead of 10000L
-        final TimeEstimator estimator = new ProportionalTimeEstimatorImpl(10000L);
+        long totalSize = 0;
+        for (final String srcFile : srcFiles) {
+            totalSize += new File(Location.getMappedId(srcFile)).length();
+        }
+        final List<String> checksums = new ArrayList<String>(srcFiles.length);
 
         log.debug("Used files created:");
-        for (int i = 0; i < fileTotal; i++) {
-            try {
+        try {
+            uploadFiles(proc, srcFiles, createEstimator(totalSize), checksums);
+        } catch (ServerError e) {
+            log.error("Server error uploading file.", e);
+        } catch (IOException e) {
+            log.error("I/O error uploading file.", e);
+        }
+        return checksums;
+    }
+
+    /**
+     * Upload all of the given files to the server, using up to
+     * {@link #getParallelUpload()} concurrent streams. Each stream has its
+     * own buffer and {@link ChecksumProvider}.
+     * @param proc the server import process to use for the upload
+     * @param srcFiles the files to upload
+     * @param estimator a time-to-completion estimator which must be
+     * thread-safe if more than one stream is used, see
+     * {@link #createEstimator(long)}
+     * @param checksums filled with the client-side checksum of each file in
+     * the order of {@code srcFiles}. On failure, contains the checksums of
+     * the files before the first file which failed to upload.
+     * @throws ServerError if a file failed to upload
+     * @throws IOException if a file could not be read
+     */
+    protected void uploadFiles(final ImportProcessPrx proc,
+            final String[] srcFiles, final TimeEstimator estimator,
+            final List<String> checksums) throws ServerError, IOException
+    {
+        final int streams = Math.min(parallelUpload, srcFiles.length);
+        if (streams <= 1) {
+            final byte[] buf = new byte[store.getDefaultBlockSize()];
+            for (int i = 0; i < srcFiles.length; i++) {
                 checksums.add(uploadFile(proc, srcFiles, i,
                         checksumProviderFactory, estimator, buf));
-            } catch (ServerError e) {
-                log.error("Server error uploading file.", e);
-                break;
-            } catch (IOException e) {
-                log.error("I/O error uploading file.", e);
-                break;
             }
+            return;
+        }
+
+        final String[] results = new String[srcFiles.length];
+        final AtomicInteger nextFile = new AtomicInteger(0);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final int blockSize = store.getDefaultBlockSize();
+        final ExecutorService pool = Executors.newFixedThreadPool(streams,
+                new NamedThreadFactory("import-upload"));
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>(streams);
+        log.debug("Uploading {} files over {} streams", srcFiles.length, streams);
+        try {
+            for (int s = 0; s < streams; s++) {
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        final byte[] buf = new byte[blockSize];
+                        int i;
+                        while (!failed.get()
+                                && (i = nextFile.getAndIncrement()) < srcFiles.length) {
+                            try {
+                                results[i] = uploadFile(proc, srcFiles, i,
+                                        checksumProviderFactory, estimator, buf);
+                            } catch (Exception e) {
+                                failed.set(true);
+                                throw e;
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            Throwable firstFailure = null;
+            boolean interrupted = false;
+            for (final Future<Void> future : futures) {
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (InterruptedException ie) {
+                        interrupted = true;
+                        failed.set(true);
+                    } catch (ExecutionException ee) {
+                        if (firstFailure == null) {
+                            firstFailure = ee.getCause();
+                        }
+                        break;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            for (final String checksum : results) {
+                if (checksum == null) {
+                    break;
+                }
+                checksums.add(checksum);
+            }
+            if (firstFailure instanceof ServerError) {
+                throw (ServerError) firstFailure;
+            } else if (firstFailure instanceof IOException) {
+                throw (IOException) firstFailure;
+            } else if (firstFailure instanceof RuntimeException) {
+                throw (RuntimeException) firstFailure;
+            } else if (firstFailure != null) {
+                throw new RuntimeException("Unexpected exception thrown!",
+                        firstFailure);
+            } else if (checksums.size() < srcFiles.length) {
+                throw new RuntimeException("Upload interrupted");
+            }
+        } finally {
+            pool.shutdownNow();
         }
-        return checksums;
+    }
+
+    /**
+     * Create a {@link TimeEstimator} suitable for the number of concurrent
+     * upload streams in use.
+     * @param totalSize the total size in bytes of the files to upload
+     * @return a new estimator
+     */
+    protected TimeEstimator createEstimator(long totalSize)
+    {
+        if (parallelUpload > 1) {
+            return new AggregateTimeEstimatorImpl(totalSize);
+        }
+        return new ProportionalTimeEstimatorImpl(totalSize);
     }
 
     public String uploadFile(final ImportProcessPrx proc,
@@ -484,6 +764,29 @@ public class ImportLibrary implements IObservable
     public List<Pixels> importImage(final ImportContainer container, int index,
                                     int numDone, int total)
             throws FormatException, IOException, Throwable
+    {
+        final ImportCallback cb = startImport(container, index, numDone, total);
+        if (cb == null) {
+            return Collections.emptyList();
+        }
+        return awaitImport(cb);
+    }
+
+    /**
+     * Uploads the files of an import and starts its server-side processing
+     * without waiting for that processing to complete.
+     * @param container The import container which houses all the configuration
+     * values and target for the import.
+     * @param index Index of the import in a set.
+     * @param numDone Number of imports completed in a set.
+     * @param total Total number of imports in a set.
+     * @return the callback which is to be passed to
+     * {@link #awaitImport(ImportCallback)}, or null if the import was excluded
+     * @throws Throwable If there is an error during upload.
+     * @see #importImage(ImportContainer, int, int, int)
+     */
+    public ImportCallback startImport(final ImportContainer container,
+            int index, int numDone, int total) throws Throwable
     {
         HandlePrx handle;
         for (FileExclusion exclusion : exclusions) {
@@ -493,7 +796,7 @@ public class ImportLibrary implements IObservable
                 notifyObservers(new ImportEvent.FILESET_EXCLUSION(
                 container.getFile().getAbsolutePath(), 0,
                 container.getUsedFiles().length));
-                return Collections.emptyList();
+                return null;
             }
         }
         final IObject target = container.getTarget();
@@ -506,18 +809,14 @@ public class ImportLibrary implements IObservable
         final ImportProcessPrx proc = createImport(container);
         final String[] srcFiles = container.getUsedFiles();
         final List<String> checksums = new ArrayList<String>();
-        final byte[] buf = new byte[store.getDefaultBlockSize()];
-        final TimeEstimator estimator = new ProportionalTimeEstimatorImpl(
+        final TimeEstimator estimator = createEstimator(
                 container.getUsedFilesTotalSize());
         Map<Integer, String> failingChecksums = new HashMap<Integer, String>();
 
         notifyObservers(new ImportEvent.FILESET_UPLOAD_START(
                 null, index, srcFiles.length, null, null, null));
 
-        for (int i = 0; i < srcFiles.length; i++) {
-            checksums.add(uploadFile(proc, srcFiles, i, checksumProviderFactory,
-                    estimator, buf));
-        }
+        uploadFiles(proc, srcFiles, estimator, checksums);
 
         try {
             handle = proc.verifyUpload(checksums);
@@ -540,15 +839,30 @@ public class ImportLibrary implements IObservable
 
         // At this point the import is running, check handle for number of
         // steps.
-        ImportCallback cb = null;
         try {
-            cb = createCallback(proc, handle, container);
+            return createCallback(proc, handle, container);
+        } catch (Throwable t) {
+            handle.close();
+            throw t;
+        }
+    }
 
+    /**
+     * Waits on the server-side processing of an import begun by
+     * {@link #startImport(ImportContainer, int, int, int)} according to the
+     * minutes to wait passed on construction. The callback is closed
+     * before returning.
+     * @param cb the callback returned on starting the import, not null
+     * @return List of Pixels that have been imported.
+     * @throws Throwable If the import failed or timed out.
+     */
+    public List<Pixels> awaitImport(ImportCallback cb) throws Throwable
+    {
+        try {
             if (minutesToWait == 0) {
                 log.info("Disconnecting from import process...");
                 cb.close(false);
                 cb = null;
-                handle = null;
                 return Collections.emptyList(); // EARLY EXIT
             }
 
@@ -570,8 +884,6 @@ public class ImportLibrary implements IObservable
         } finally {
             if (cb != null) {
                 cb.close(true); // Allow cb to close handle
-            } else if (handle != null) {
-                handle.close();
             }
         }
     }
@@ -581,6 +893,14 @@ public class ImportLibrary implements IObservable
         return new ImportCallback(proc, handle, container);
     }
 
+    /**
+     * Waits on the server-side processing of an import and notifies its
+     * events in order whichever threads the server's calls arrive on:
+     * {@link ImportEvent.IMPORT_STARTED} first, then the steps in order, then
+     * the end of the import. The lock in {@link #notifyObservers(ImportEvent)}
+     * only keeps events from overlapping, not the events of each fileset in
+     * order.
+     */
     @SuppressWarnings("serial")
     public class ImportCallback extends CmdCallbackI {
 
@@ -595,15 +915,27 @@ public class ImportLibrary implements IObservable
          */
         volatile ImportResponse importResponse = null;
 
+        /**
+         * Step events which arrived before those of earlier steps, by step.
+         * Guarded by this callback, as is {@link #stepsNotified}.
+         */
+        private final SortedMap<Integer, ImportEvent> earlySteps =
+                new TreeMap<Integer, ImportEvent>();
+
+        /**
+         * The last step whose event has been notified.
+         */
+        private int stepsNotified = 0;
+
         public ImportCallback(ImportProcessPrx proc, HandlePrx handle,
                 ImportContainer container) throws ServerError {
                 super(oa, category, handle);
                 this.container = container;
                 this.logFileId = loadLogFile();
-                initializationDone();
                 notifyObservers(new ImportEvent.IMPORT_STARTED(
                         0, this.container,
                         null, null, 0, null, 0, 0, logFileId));
+                initializationDone();
         }
 
         protected Long loadLogFile() throws ServerError {
@@ -632,26 +964,53 @@ public class ImportLibrary implements IObservable
 
         @Override
         public void step(int step, int total, Ice.Current current) {
+            waitOnInitialization(); // IMPORT_STARTED comes first
+            final ImportEvent event;
             if (step == 1) {
-                notifyObservers(new ImportEvent.METADATA_IMPORTED(
+                event = new ImportEvent.METADATA_IMPORTED(
                         0, container,
-                        null, null, 0, null, step, total, logFileId));
+                        null, null, 0, null, step, total, logFileId);
             } else if (step == 2) {
-                notifyObservers(new ImportEvent.PIXELDATA_PROCESSED(
+                event = new ImportEvent.PIXELDATA_PROCESSED(
                         0, container,
-                        null, null, 0, null, step, total, logFileId));
+                        null, null, 0, null, step, total, logFileId);
             } else if (step == 3) {
-                notifyObservers(new ImportEvent.THUMBNAILS_GENERATED(
+                event = new ImportEvent.THUMBNAILS_GENERATED(
                         0, container,
-                        null, null, 0, null, step, total, logFileId));
+                        null, null, 0, null, step, total, logFileId);
             } else if (step == 4) {
-                notifyObservers(new ImportEvent.METADATA_PROCESSED(
+                event = new ImportEvent.METADATA_PROCESSED(
                         0, container,
-                        null, null, 0, null, step, total, logFileId));
+                        null, null, 0, null, step, total, logFileId);
             } else if (step == 5) {
-                notifyObservers(new ImportEvent.OBJECTS_RETURNED(
+                event = new ImportEvent.OBJECTS_RETURNED(
                         0, container,
-                        null, null, 0, null, step, total, logFileId));
+                        null, null, 0, null, step, total, logFileId);
+            } else {
+                return; // EARLY EXIT
+            }
+            synchronized (this) {
+                if (step > stepsNotified) {
+                    earlySteps.put(step, event);
+                    notifySteps(false);
+                }
+            }
+        }
+
+        /**
+         * Notifies the step events which are next in order, or all of them
+         * once the import has finished in case the calls for some steps
+         * never arrived. Must hold the lock on this callback.
+         * @param finished if the import has finished
+         */
+        private void notifySteps(boolean finished) {
+            while (!earlySteps.isEmpty()) {
+                final int step = earlySteps.firstKey();
+                if (!finished && step != stepsNotified + 1) {
+                    break;
+                }
+                notifyObservers(earlySteps.remove(step));
+                stepsNotified = step;
             }
         }
 
@@ -663,6 +1022,19 @@ public class ImportLibrary implements IObservable
         public void onFinished(Response rsp, Status status, Current c)
         {
             waitOnInitialization(); // Need non-null container
+            synchronized (this) {
+                notifySteps(true);
+                notifyFinished(rsp);
+            }
+            onFinishedDone();
+        }
+
+        /**
+         * Notifies the end of the import, after all of its step events.
+         * Must hold the lock on this callback.
+         * @param rsp the final response of the import
+         */
+        private void notifyFinished(Response rsp) {
             ImportResponse rv = null;
             final ImportRequest req = (ImportRequest) handle.getRequest();
             final Fileset fs = req.activity.getParent();
@@ -695,7 +1067,6 @@ public class ImportLibrary implements IObservable
                         container.getFile().getAbsolutePath(), rt,
                         container.getUsedFiles(), container.getReader()));
             }
-            onFinishedDone();
         }
 
         /**
@@ -756,6 +1127,28 @@ public class ImportLibrary implements IObservable
         }
     }
 
+    /**
+     * Creates daemon threads named after the given prefix so that the
+     * library's worker threads are recognizable in thread dumps.
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        private final String prefix;
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
     public void clear()
     {
         try {
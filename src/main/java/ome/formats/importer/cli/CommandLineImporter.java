@@ -173,6 +173,7 @@ public class CommandLineImporter {
 
             library = new ImportLibrary(store, reader,
                     transfer, exclusions, minutesToWait);
+            library.setParallelUpload(config.parallelUpload.get());
         }
 
         Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -463,6 +464,13 @@ public class CommandLineImporter {
             + "    --no-upgrade-check\t\tDisable upgrade check for each import\n"
             + "  e.g. $ bin/omero import -- --no-upgrade-check foo.tiff\n"
             + "       $ ./importer-cli --no-upgrade-check bar.tiff\n\n"
+            + "    --parallel-fileset=ARG\tNumber of filesets in flight at once (default: 1)\n"
+            + "                            \tUploads overlap with server-side processing of earlier filesets.\n"
+            + "  e.g. $ bin/omero import -- --parallel-fileset=4 plate_directory/\n"
+            + "       $ ./importer-cli --parallel-fileset=4 plate_directory/\n\n"
+            + "    --parallel-upload=ARG\tNumber of files of a fileset uploaded at once (default: 1)\n"
+            + "  e.g. $ bin/omero import -- --parallel-upload=8 companion.ome\n"
+            + "       $ ./importer-cli --parallel-upload=8 companion.ome\n\n"
             + "\n"
             + "  Feedback:\n"
             + "  ---------\n\n"
@@ -611,6 +619,11 @@ public class CommandLineImporter {
         LongOpt encryptedConnection =
                 new LongOpt("encrypted", LongOpt.REQUIRED_ARGUMENT, null, 26);
 
+        LongOpt parallelFileset =
+                new LongOpt("parallel-fileset", LongOpt.REQUIRED_ARGUMENT, null, 27);
+        LongOpt parallelUpload =
+                new LongOpt("parallel-upload", LongOpt.REQUIRED_ARGUMENT, null, 28);
+
         // DEPRECATED OPTIONS
         LongOpt minutesWaitDeprecated =
                 new LongOpt("minutes_wait", LongOpt.REQUIRED_ARGUMENT, null, 86);
@@ -649,6 +662,7 @@ public class CommandLineImporter {
                                 exclude, target, noStatsInfo,
                                 noUpgradeCheck, qaBaseURL,
                                 outputFormat, encryptedConnection,
+                                parallelFileset, parallelUpload,
                                 plateName, plateName2,
                                 plateDescription, plateDescription2,
                                 noThumbnailsDeprecated,
@@ -813,6 +827,20 @@ public class CommandLineImporter {
                 config.encryptedConnection.set(Boolean.valueOf(encryptedArg));
                 break;
             }
+            case 27: {
+                String parallelArg = g.getOptarg();
+                log.info("Setting parallel fileset count: {}", parallelArg);
+                config.parallelFileset.set(
+                        parsePositive("parallel-fileset", parallelArg));
+                break;
+            }
+            case 28: {
+                String parallelArg = g.getOptarg();
+                log.info("Setting parallel upload count: {}", parallelArg);
+                config.parallelUpload.set(
+                        parsePositive("parallel-upload", parallelArg));
+                break;
+            }
             // ADVANCED END ---------------------------------------------------
             // DEPRECATED OPTIONS
             case 90:
@@ -991,6 +1019,28 @@ public class CommandLineImporter {
         map.put(key, true);
     }
 
+    /**
+     * Parse the argument of an option which must be a positive integer and
+     * return the usage if it is not
+     * @param option name of the option, for the error message
+     * @param arg argument given to the option
+     * @return the value of the argument, at least 1
+     */
+    private static int parsePositive(String option, String arg) {
+        int value = 0;
+        try {
+            value = Integer.parseInt(arg);
+        } catch (NumberFormatException nfe) {
+            // Rejected below.
+        }
+        if (value < 1) {
+            log.error("--{} must be a whole number of at least 1: {}",
+                    option, arg);
+            usage(); // exits
+        }
+        return value;
+    }
+
     /**
      * Reads a list of paths from stdin.
      * @return the paths
@@ -22,6 +22,9 @@ package ome.formats.importer.transfers;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 
 import ome.util.checksum.ChecksumProvider;
@@ -37,17 +40,63 @@ import org.apache.commons.lang.ArrayUtils;
  * and then {@link RawFileStorePrx#write(byte[], long, int) writing} to the
  * server. <em>Not thread safe</em>
  *
+ * Writes are pipelined: up to {@link #getWindow()} asynchronous
+ * {@link RawFileStorePrx#begin_write(byte[], long, int)} calls may be
+ * outstanding at once, so that reading from disk and checksumming the next
+ * block overlaps with the network round-trip of the previous ones. Since
+ * Ice marshals the arguments before {@code begin_write} returns, the
+ * buffer can be refilled immediately; the window bounds the data queued
+ * for sending and awaiting acknowledgement. The default window of 1 gives
+ * the original synchronous behavior.
+ *
+ * The short final block of a file is written from a reused buffer of the
+ * next power of two in size, with the block's length, so that no array is
+ * allocated per file and at most as many bytes again are sent.
+ *
  * @since 5.0
  */
 public class UploadFileTransfer extends AbstractFileTransfer {
 
+    /**
+     * Number of writes which may be in flight if none is specified.
+     */
+    public static final int DEFAULT_WINDOW = 1;
+
+    private final int window;
+
+    /**
+     * Buffers for the short final blocks, indexed by the base-two logarithm
+     * of their length. Reused across files.
+     */
+    private final byte[][] tailBuffers = new byte[Integer.SIZE][];
+
+    public UploadFileTransfer() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window the maximum number of unacknowledged writes per file.
+     * Values less than 1 are treated as 1.
+     */
+    public UploadFileTransfer(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * @return the maximum number of unacknowledged writes per file
+     */
+    public int getWindow() {
+        return window;
+    }
+
     public String transfer(TransferState state) throws IOException, ServerError {
 
         final RawFileStorePrx rawFileStore = start(state);
         final File file = state.getFile();
         final byte[] buf = state.getBuffer();
         final ChecksumProvider cp = state.getChecksumProvider();
-        
+        final Deque<PendingWrite> pending = new ArrayDeque<PendingWrite>(window);
+
         FileInputStream stream = null;
 
         try {
@@ -56,38 +105,126 @@ public class UploadFileTransfer extends AbstractFileTransfer {
             long offset = 0;
 
             state.uploadStarted();
-      
+
             // "touch" the file otherwise zero-length files
             rawFileStore.write(ArrayUtils.EMPTY_BYTE_ARRAY, offset, 0);
             state.stop();
             state.uploadBytes(offset);
-    
+
             while (true) {
                 state.start();
-                rlen = stream.read(buf);
+                rlen = fill(stream, buf);
                 if (rlen == -1) {
                     break;
                 }
                 cp.putBytes(buf, 0, rlen);
                 final byte[] bufferToWrite;
                 if (rlen < buf.length) {
-                    bufferToWrite = new byte[rlen];
+                    // Only the final block of a file can be short.
+                    bufferToWrite = tailBuffer(rlen);
                     System.arraycopy(buf, 0, bufferToWrite, 0, rlen);
                 } else {
                     bufferToWrite = buf;
                 }
-                rawFileStore.write(bufferToWrite, offset, rlen);
+                PendingWrite acknowledged = null;
+                if (pending.size() >= window) {
+                    acknowledged = pending.removeFirst();
+                    acknowledged.complete(rawFileStore);
+                }
+                pending.addLast(new PendingWrite(
+                        rawFileStore.begin_write(bufferToWrite, offset, rlen),
+                        offset + rlen, rlen));
                 offset += rlen;
-                state.stop(rlen);
-                state.uploadBytes(offset);
+                if (acknowledged == null) {
+                    state.stop(0);
+                } else {
+                    state.stop(acknowledged.length);
+                    state.uploadBytes(acknowledged.end);
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                state.start();
+                final PendingWrite write = pending.removeFirst();
+                write.complete(rawFileStore);
+                state.stop(write.length);
+                state.uploadBytes(write.end);
             }
 
             return finish(state, offset);
         } finally {
+            // Wait on anything still outstanding after a failure so that
+            // the service is not closed underneath its own writes.
+            while (!pending.isEmpty()) {
+                try {
+                    pending.removeFirst().complete(rawFileStore);
+                } catch (Exception e) {
+                    log.debug("error in outstanding write", e);
+                }
+            }
             cleanupUpload(rawFileStore, stream);
         }
     }
 
+    /**
+     * Get a reused buffer for a short final block. Since the block is
+     * marshalled before the write returns, the buffer may be reused
+     * for the next file.
+     * @param length the length of the block
+     * @return a buffer of at least the given length and less than twice it
+     */
+    private byte[] tailBuffer(int length) {
+        final int index = Integer.SIZE - Integer.numberOfLeadingZeros(length - 1);
+        if (tailBuffers[index] == null) {
+            tailBuffers[index] = new byte[1 << index];
+        }
+        return tailBuffers[index];
+    }
+
+    /**
+     * Read from the stream until the buffer is full or the end of the
+     * stream is reached so that short reads do not produce short blocks.
+     * @return the number of bytes read or -1 at the end of the stream
+     */
+    private static int fill(InputStream stream, byte[] buf) throws IOException {
+        int total = 0;
+        while (total < buf.length) {
+            final int rlen = stream.read(buf, total, buf.length - total);
+            if (rlen == -1) {
+                break;
+            }
+            total += rlen;
+        }
+        return total == 0 && buf.length > 0 ? -1 : total;
+    }
+
+    /**
+     * A write which has been sent but not necessarily acknowledged.
+     */
+    private static class PendingWrite {
+
+        final Ice.AsyncResult result;
+
+        /** offset just past the last byte of this write */
+        final long end;
+
+        final int length;
+
+        PendingWrite(Ice.AsyncResult result, long end, int length) {
+            this.result = result;
+            this.end = end;
+            this.length = length;
+        }
+
+        /**
+         * Wait for the server to acknowledge the write, rethrowing any
+         * exception which it raised.
+         */
+        void complete(RawFileStorePrx rawFileStore) throws ServerError {
+            rawFileStore.end_write(result);
+        }
+    }
+
     /**
      * Since the {@link RawFileStorePrx} instances are cleaned up after each
      * transfer, there's no need to cleanup per {@link File}.
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.formats.importer.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe {@link TimeEstimator} for use when several files are being
+ * uploaded at once. Rather than summing the time spent in each
+ * {@link #start()}/{@link #stop(long)} window, which would count overlapping
+ * windows several times, the throughput is measured as the total number of
+ * bytes transmitted by all streams over the wall-clock time since the first
+ * call to {@link #start()}.
+ *
+ * @since 5.5
+ */
+public class AggregateTimeEstimatorImpl implements TimeEstimator {
+
+    private static final long NOT_STARTED = Long.MIN_VALUE;
+
+    private final AtomicLong startTime = new AtomicLong(NOT_STARTED);
+
+    private final AtomicLong totalBytes = new AtomicLong(0);
+
+    private final AtomicLong bytesLeft;
+
+    private volatile long timeLeft = 0;
+
+    /**
+     * @param imageContainerSize
+     *            The total size in bytes of the data container for which upload
+     *            time is being estimated.
+     */
+    public AggregateTimeEstimatorImpl(long imageContainerSize) {
+        this.bytesLeft = new AtomicLong(imageContainerSize);
+    }
+
+    /**
+     * Starts the clock on the first call; later calls have no effect.
+     * @see TimeEstimator#start()
+     */
+    public void start() {
+        startTime.compareAndSet(NOT_STARTED, System.nanoTime());
+    }
+
+    /**
+     * @see TimeEstimator#stop()
+     */
+    public void stop() {
+        // Elapsed time is measured from the first start.
+    }
+
+    /**
+     * @see TimeEstimator#stop(long)
+     */
+    public void stop(long uploadedBytes) {
+        final long total = totalBytes.addAndGet(uploadedBytes);
+        final long left = bytesLeft.addAndGet(-uploadedBytes);
+        final long started = startTime.get();
+        if (started == NOT_STARTED) {
+            return;
+        }
+        final long elapsedMillis = (System.nanoTime() - started) / 1000000L;
+        if (elapsedMillis > 0 && total > 0) {
+            final double averageBpms = total / (double) elapsedMillis;
+            timeLeft = (long) Math.ceil(Math.max(left, 0) / averageBpms);
+        }
+    }
+
+    /**
+     * @see TimeEstimator#getUploadTimeLeft()
+     */
+    public long getUploadTimeLeft() {
+        return timeLeft;
+    }
+
+    /**
+     * @return the number of bytes reported by all streams so far
+     */
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+}
@@ -6,7 +6,9 @@
 package ome.services.blitz.fire;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import ome.security.NodeProvider;
@@ -20,7 +22,9 @@ import ome.services.util.Executor;
 import ome.system.Principal;
 import ome.util.SqlAction;
 import omero.grid.ClusterNodePrx;
+import omero.cmd.RequestScheduler;
 import omero.grid.ClusterNodePrxHelper;
+import omero.grid.NodeLoad;
 import omero.grid._ClusterNodeDisp;
 
 import org.slf4j.Logger;
@@ -47,6 +51,11 @@ public class Ring extends _ClusterNodeDisp implements Redirector.Context {
 
     private final static Logger log = LoggerFactory.getLogger(Ring.class);
 
+    /**
+     * Timeout in milliseconds for asking another node for its load.
+     */
+    private final static int LOAD_TIMEOUT = 2000;
+
     /**
      * UUID for this cluster node. Used to uniquely identify the session manager
      * in this blitz instance. Most likely used in common with internal server
@@ -78,6 +87,17 @@ public class Ring extends _ClusterNodeDisp implements Redirector.Context {
      */
     private/* final */String directProxy;
 
+    /**
+     * Source of the session count reported by {@link #getLoad(Current)}.
+     */
+    private/* final */SessionManagerI sessionManager;
+
+    /**
+     * Source of the request counts reported by {@link #getLoad(Current)}.
+     * May be null.
+     */
+    private RequestScheduler requestScheduler;
+
     public Ring(String uuid, Executor executor) {
         this(uuid, executor, new NullRedirector(), null, new NodeProviderInMemory(uuid));
     }
@@ -100,6 +120,22 @@ public class Ring extends _ClusterNodeDisp implements Redirector.Context {
         this.registry = registry;
     }
 
+    /**
+     * Sets the {@link SessionManagerI} whose sessions are counted as this
+     * node's load. This is currently done in {@link BlitzConfiguration}
+     */
+    public void setSessionManager(SessionManagerI sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
+    /**
+     * Sets the {@link RequestScheduler} whose requests are counted as this
+     * node's load.
+     */
+    public void setRequestScheduler(RequestScheduler requestScheduler) {
+        this.requestScheduler = requestScheduler;
+    }
+
     // Redirector.Context API
     // =========================================================================
 
@@ -128,6 +164,48 @@ public class Ring extends _ClusterNodeDisp implements Redirector.Context {
         return this.communicator;
     }
 
+    /**
+     * Asks each node registered in the cluster for its current load. The
+     * nodes are asked at once so that this waits no longer than the slowest
+     * of them. Nodes which do not answer are omitted.
+     */
+    public Map<String, NodeLoad> getNodeLoads() {
+        Map<String, NodeLoad> loads = new HashMap<String, NodeLoad>();
+        loads.put(uuid, getLoad(null));
+        ClusterNodePrx[] nodes = registry == null ? null : registry
+                .lookupClusterNodes();
+        if (nodes != null) {
+            ClusterNodePrx[] asked = new ClusterNodePrx[nodes.length];
+            Ice.AsyncResult[] answers = new Ice.AsyncResult[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                if (nodes[i] == null) {
+                    continue;
+                }
+                try {
+                    asked[i] = ClusterNodePrxHelper.uncheckedCast(
+                            nodes[i].ice_timeout(LOAD_TIMEOUT));
+                    answers[i] = asked[i].begin_getLoad();
+                } catch (Exception e) {
+                    log.debug("No load from node " + nodes[i], e);
+                }
+            }
+            for (int i = 0; i < nodes.length; i++) {
+                if (answers[i] == null) {
+                    continue;
+                }
+                try {
+                    NodeLoad load = asked[i].end_getLoad(answers[i]);
+                    if (!uuid.equals(load.uuid)) {
+                        loads.put(load.uuid, load);
+                    }
+                } catch (Exception e) {
+                    log.debug("No load from node " + nodes[i], e);
+                }
+            }
+        }
+        return loads;
+    }
+
     // Configuration and cluster usage
     // =========================================================================
 
@@ -257,6 +335,26 @@ public class Ring extends _ClusterNodeDisp implements Redirector.Context {
         redirector.handleRingShutdown(this, downUuid);
     }
 
+    /**
+     * Reports the sessions held by this instance, the requests waiting for
+     * and running in the {@link RequestScheduler}, and the heap in use.
+     */
+    public NodeLoad getLoad(Current __current) {
+        long queued = 0, running = 0;
+        if (requestScheduler != null) {
+            for (RequestScheduler.Priority priority : RequestScheduler.Priority
+                    .values()) {
+                queued += requestScheduler.getQueueDepth(priority);
+            }
+            running = requestScheduler.getRunning();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return new NodeLoad(this.uuid,
+                sessionManager == null ? 0 : sessionManager.getSessionCount(),
+                queued, running, runtime.totalMemory() - runtime.freeMemory(),
+                runtime.maxMemory());
+    }
+
     // Local usage
     // =========================================================================
 
@@ -45,6 +45,7 @@ import omero.ApiUsageException;
 import omero.WrappedCreateSessionException;
 import omero.api.ClientCallbackPrxHelper;
 import omero.api._ServiceFactoryTie;
+import omero.cmd.RequestScheduler;
 import omero.cmd.SessionI;
 import omero.constants.EVENT;
 import omero.constants.GROUP;
@@ -94,6 +95,11 @@ public final class SessionManagerI extends Glacier2._SessionManagerDisp
 
     protected final int servantsPerSession;
 
+    /**
+     * Set on each new session. May be null.
+     */
+    protected RequestScheduler requestScheduler;
+
     /**
      * An internal mapping to all {@link ServiceFactoryI} instances for a given
      * session since there is no method on {@link Ice.ObjectAdapter} to retrieve
@@ -115,6 +121,10 @@ public final class SessionManagerI extends Glacier2._SessionManagerDisp
         this.servantsPerSession = servantsPerSession;
     }
 
+    public void setRequestScheduler(RequestScheduler requestScheduler) {
+        this.requestScheduler = requestScheduler;
+    }
+
     public void setApplicationContext(ApplicationContext applicationContext)
             throws BeansException {
         this.context = (OmeroContext) applicationContext;
@@ -122,6 +132,13 @@ public final class SessionManagerI extends Glacier2._SessionManagerDisp
         loaded.set(true);
     }
 
+    /**
+     * The number of sessions which have servants on this instance.
+     */
+    public long getSessionCount() {
+        return sessionToHolder.size();
+    }
+
     public Glacier2.SessionPrx create(String userId,
             Glacier2.SessionControlPrx control, Ice.Current current)
             throws CannotCreateSessionException {
@@ -199,6 +216,7 @@ public final class SessionManagerI extends Glacier2._SessionManagerDisp
                     current, holder, control, context, sessionManager, executor,
                     sp, CPTORS, topicManager, registry, ring.uuid);
 
+            session.setRequestScheduler(requestScheduler);
             Ice.Identity id = session.sessionId();
             holder.addClientId(session.clientId);
 
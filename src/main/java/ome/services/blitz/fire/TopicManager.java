@@ -7,7 +7,18 @@
 
 package ome.services.blitz.fire;
 
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import omero.ApiUsageException;
 import omero.InternalException;
@@ -17,6 +28,8 @@ import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationEvent;
 import org.springframework.context.ApplicationListener;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import IceStorm.AlreadySubscribed;
 import IceStorm.BadQoS;
 import IceStorm.NoSuchTopic;
@@ -60,56 +73,225 @@ public interface TopicManager extends ApplicationListener {
 
         private final static Logger log = LoggerFactory.getLogger(Impl.class);
 
+        /** Default maximum number of messages waiting to be published. */
+        public final static int DEFAULT_QUEUE_SIZE = 10000;
+
+        /** Default maximum number of messages published per batch. */
+        public final static int DEFAULT_BATCH_SIZE = 100;
+
         private final Ice.Communicator communicator;
 
+        private final BlockingQueue<TopicMessage> queue;
+
+        private final int batchSize;
+
+        private final ExecutorService thread = Executors
+                .newSingleThreadExecutor(new ThreadFactoryBuilder()
+                        .setNameFormat("topic-publisher").setDaemon(true)
+                        .build());
+
+        /**
+         * Publisher proxies by topic name. Only used from {@link #thread}.
+         */
+        private final Map<String, Ice.ObjectPrx> publishers = new HashMap<String, Ice.ObjectPrx>();
+
+        /**
+         * Methods by proxy class, method name and arity. Only used from
+         * {@link #thread}.
+         */
+        private final Map<List<Object>, Method> invokers = new HashMap<List<Object>, Method>();
+
+        private final AtomicLong published = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong maxDepth = new AtomicLong();
+
+        /**
+         * Uses the <code>omero.topics.queue_size</code> and
+         * <code>omero.topics.batch_size</code> properties of the communicator
+         * if set.
+         */
         public Impl(Ice.Communicator communicator) {
+            this(communicator, communicator.getProperties()
+                    .getPropertyAsIntWithDefault("omero.topics.queue_size",
+                            DEFAULT_QUEUE_SIZE), communicator.getProperties()
+                    .getPropertyAsIntWithDefault("omero.topics.batch_size",
+                            DEFAULT_BATCH_SIZE));
+        }
+
+        /**
+         * @param queueSize
+         *            how many messages may wait to be published before further
+         *            messages are dropped
+         * @param batchSize
+         *            how many waiting messages to publish together
+         */
+        public Impl(Ice.Communicator communicator, int queueSize, int batchSize) {
             this.communicator = communicator;
+            this.queue = new ArrayBlockingQueue<TopicMessage>(Math.max(1, queueSize));
+            this.batchSize = Math.max(1, batchSize);
+            thread.execute(new Runnable() {
+                public void run() {
+                    publishLoop();
+                }
+            });
         }
 
+        /**
+         * Queues the message for publishing by a background thread so that
+         * the publishing thread never waits on IceStorm. If too many messages
+         * are already waiting then the message is dropped.
+         */
         public void onApplicationEvent(ApplicationEvent event) {
             if (event instanceof TopicMessage) {
-
                 TopicMessage msg = (TopicMessage) event;
-                try {
+                if (queue.offer(msg)) {
+                    final int depth = queue.size();
+                    long max;
+                    while (depth > (max = maxDepth.get())) {
+                        if (maxDepth.compareAndSet(max, depth)) {
+                            break;
+                        }
+                    }
+                } else {
+                    final long drops = dropped.incrementAndGet();
+                    if (drops % 1000 == 1) {
+                        log.warn(String.format(
+                                "Topic queue full, dropped message for %s "
+                                        + "(%d dropped in total)", msg.topic,
+                                drops));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Stops publishing messages. Any still waiting are discarded.
+         */
+        public void close() {
+            thread.shutdownNow();
+            log.info("Stopped topic publishing: " + getMetrics());
+        }
+
+        /**
+         * @return how many messages are waiting to be published
+         */
+        public int getQueueDepth() {
+            return queue.size();
+        }
+
+        /**
+         * @return a summary of the publishing counters
+         */
+        public String getMetrics() {
+            return String.format(
+                    "published=%d failed=%d dropped=%d queued=%d (max=%d)",
+                    published.get(), failed.get(), dropped.get(),
+                    queue.size(), maxDepth.get());
+        }
+
+        public long getPublishedCount() {
+            return published.get();
+        }
 
-                    IceStorm.TopicManagerPrx topicManager = managerOrNull();
-                    if (topicManager == null) {
-                        log.warn("No topic manager");
+        public long getDroppedCount() {
+            return dropped.get();
+        }
+
+        public long getFailedCount() {
+            return failed.get();
+        }
+
+        private void publishLoop() {
+            final List<TopicMessage> batch = new ArrayList<TopicMessage>(batchSize);
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    break;
+                }
+                queue.drainTo(batch, batchSize - 1);
+                for (TopicMessage msg : batch) {
+                    try {
+                        publish(msg);
+                    } catch (Ice.CommunicatorDestroyedException cde) {
                         return; // EARLY EXIT
+                    } catch (RuntimeException e) {
+                        failed.incrementAndGet();
+                        log.error("Error publishing to topic:" + msg.topic, e);
                     }
+                }
+                batch.clear();
+            }
+        }
 
-                    Ice.ObjectPrx obj = publisherOrNull(msg.topic);
-                    msg.base.__copyFrom(obj);
-                    Method m = null;
-                    for (Method check : msg.base.getClass().getMethods()) {
-                        if (check.getName().equals(msg.method)) {
-                            if (check.getParameterTypes().length == msg.args.length) {
-                                if (m != null) {
-                                    String err = String
-                                            .format(
-                                                    "More than one method named "
-                                                            + "\"%s\" with %s arguments",
-                                                    msg.method, msg.args);
-                                    log.error(err);
-                                } else {
-                                    m = check;
-                                }
-                            }
-                        }
-                    }
-                    if (m == null) {
-                        log.error(String.format("No method named \"%s\" "
-                                + "with %s arguments", msg.method, msg.args));
-                    } else {
-                        m.invoke(msg.base, msg.args);
-                    }
-                } catch (Ice.NoEndpointException nee) {
+        private void publish(TopicMessage msg) {
+            Ice.ObjectPrx obj = publishers.get(msg.topic);
+            if (obj == null) {
+                obj = publisherOrNull(msg.topic);
+                if (obj == null) {
+                    failed.incrementAndGet();
+                    log.warn("No topic manager");
+                    return; // EARLY EXIT
+                }
+                publishers.put(msg.topic, obj);
+            }
+            msg.base.__copyFrom(obj);
+            Method m = invokerOrNull(msg.base.getClass(), msg.method,
+                    msg.args.length);
+            if (m == null) {
+                failed.incrementAndGet();
+                log.error(String.format("No method named \"%s\" "
+                        + "with %s arguments", msg.method, msg.args.length));
+                return; // EARLY EXIT
+            }
+            try {
+                m.invoke(msg.base, msg.args);
+                published.incrementAndGet();
+            } catch (InvocationTargetException ite) {
+                failed.incrementAndGet();
+                final Throwable cause = ite.getCause();
+                if (cause instanceof Ice.CommunicatorDestroyedException) {
+                    throw (Ice.CommunicatorDestroyedException) cause;
+                } else if (cause instanceof Ice.NoEndpointException) {
                     // Most likely caused during testing.
                     log.debug("Ice.NoEndpointException");
-                } catch (Exception e) {
-                    log.error("Error publishing to topic:" + msg.topic, e);
+                } else {
+                    log.error("Error publishing to topic:" + msg.topic, cause);
                 }
+                if (cause instanceof Ice.LocalException) {
+                    // Look the publisher up afresh in case IceStorm moved.
+                    publishers.remove(msg.topic);
+                }
+            } catch (IllegalAccessException iae) {
+                failed.incrementAndGet();
+                log.error("Error publishing to topic:" + msg.topic, iae);
+            }
+        }
+
+        private Method invokerOrNull(Class<?> type, String method, int arity) {
+            final List<Object> key = Arrays.<Object> asList(type, method, arity);
+            Method m = invokers.get(key);
+            if (m != null) {
+                return m;
+            }
+            for (Method check : type.getMethods()) {
+                if (check.getName().equals(method)) {
+                    if (check.getParameterTypes().length == arity) {
+                        if (m != null) {
+                            String err = String.format("More than one method named "
+                                    + "\"%s\" with %s arguments", method, arity);
+                            log.error(err);
+                        } else {
+                            m = check;
+                        }
+                    }
+                }
+            }
+            if (m != null) {
+                invokers.put(key, m);
             }
+            return m;
         }
 
         public void register(String topicName, Ice.ObjectPrx prx, boolean strict)
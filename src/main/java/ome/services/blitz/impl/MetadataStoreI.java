@@ -13,6 +13,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 import ome.api.IQuery;
@@ -31,6 +32,7 @@ import ome.services.blitz.util.BlitzOnly;
 import ome.services.blitz.util.ServiceFactoryAware;
 import ome.services.roi.PopulateRoiJob;
 import ome.services.throttling.Adapter;
+import ome.services.throttling.Task;
 import ome.services.util.Executor;
 import ome.system.OmeroContext;
 import ome.system.ServiceFactory;
@@ -71,6 +73,26 @@ public class MetadataStoreI extends AbstractCloseableAmdServant implements
 
     private final static Logger log = LoggerFactory.getLogger(MetadataStoreI.class);
 
+    /**
+     * Call context key for the sequence number, counting from zero, which
+     * clients with several batches in flight set on each updateObjects and
+     * updateReferences call so that the batches are applied in the order
+     * sent whichever order they are dispatched in.
+     */
+    public final static String BATCH_SEQUENCE = "omero.batch_sequence";
+
+    /**
+     * Batches which arrived before their turn, by sequence number. Guarded by
+     * itself, as is {@link #nextBatch}.
+     */
+    private final Map<Long, SequencedBatch> parkedBatches =
+            new HashMap<Long, SequencedBatch>();
+
+    /**
+     * Sequence number of the next batch to apply.
+     */
+    private long nextBatch = 0;
+
     protected final Set<Long> savedPlates = new HashSet<Long>();
 
     protected final Set<Long> savedImagesNotInPlates = new HashSet<Long>();
@@ -219,47 +241,171 @@ public class MetadataStoreI extends AbstractCloseableAmdServant implements
                 }));
     }
 
-    public void updateObjects_async(AMD_MetadataStore_updateObjects __cb,
-            final IObjectContainer[] objects, Current __current)
+    public void updateObjects_async(final AMD_MetadataStore_updateObjects __cb,
+            final IObjectContainer[] objects, final Current __current)
             throws ServerError {
+        final Long sequence = batchSequence(__current);
         final IceMapper mapper = new IceMapper(IceMapper.VOID);
-        runnableCall(__current, new Adapter(__cb, __current, mapper,
-                this.sf.executor, this.sf.principal, new Executor.SimpleWork(
+        runInSequence(sequence, __cb, __current, new Adapter(__cb, __current,
+                mapper, sf.executor, sf.principal, new Executor.SimpleWork(
                         this, "updateObjects") {
                     @Transactional(readOnly = true)
                     public Object doWork(Session session, ServiceFactory sf) {
-                        for (IObjectContainer o : objects) {
-                            IObject sourceObject;
-                            try {
-                                sourceObject = (IObject) mapper
-                                        .reverse(o.sourceObject);
-                            } catch (Exception e) {
-                                // TODO: This is **WRONG**; exception handling
-                                // here is messed up.
-                                throw new RuntimeException(e);
+                        synchronized (store) {
+                            for (IObjectContainer o : objects) {
+                                IObject sourceObject;
+                                try {
+                                    sourceObject = (IObject) mapper
+                                            .reverse(o.sourceObject);
+                                } catch (Exception e) {
+                                    // TODO: This is **WRONG**; exception handling
+                                    // here is messed up.
+                                    throw new RuntimeException(e);
+                                }
+                                store.updateObject(o.LSID, sourceObject, o.indexes);
                             }
-                            store.updateObject(o.LSID, sourceObject, o.indexes);
                         }
                         return null;
                     }
                 }));
     }
 
-    public void updateReferences_async(AMD_MetadataStore_updateReferences __cb,
-            final Map<String, String[]> references, Current __current)
+    public void updateReferences_async(final AMD_MetadataStore_updateReferences __cb,
+            final Map<String, String[]> references, final Current __current)
             throws ServerError {
+        final Long sequence = batchSequence(__current);
         final IceMapper mapper = new IceMapper(IceMapper.VOID);
-        runnableCall(__current, new Adapter(__cb, __current, mapper,
-                this.sf.executor, this.sf.principal, new Executor.SimpleWork(
+        runInSequence(sequence, __cb, __current, new Adapter(__cb, __current,
+                mapper, sf.executor, sf.principal, new Executor.SimpleWork(
                         this, "updateReferences") {
                     @Transactional(readOnly = true)
                     public Object doWork(Session session, ServiceFactory sf) {
-                        store.updateReferences(references);
+                        synchronized (store) {
+                            store.updateReferences(references);
+                        }
                         return null;
                     }
                 }));
     }
 
+    /**
+     * @return the {@link #BATCH_SEQUENCE} of the call, or null if none is set
+     */
+    private Long batchSequence(Current current) throws ServerError {
+        String value = current.ctx == null ? null : current.ctx
+                .get(BATCH_SEQUENCE);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(value);
+        } catch (NumberFormatException nfe) {
+            throw new omero.ApiUsageException(null, null,
+                    "Bad batch sequence number: " + value);
+        }
+    }
+
+    /**
+     * Submits the batch now if it is next in sequence or has no sequence
+     * number, otherwise parks it without holding any thread until
+     * {@link #batchDone()} reaches it.
+     */
+    private void runInSequence(Long sequence, Object __cb, Current __current,
+            Adapter batch) throws ServerError {
+        if (sequence == null) {
+            runnableCall(__current, batch);
+            return; // EARLY EXIT
+        }
+        final SequencedBatch sequenced =
+                new SequencedBatch(__cb, __current, batch);
+        synchronized (parkedBatches) {
+            if (sequence < nextBatch || parkedBatches.containsKey(sequence)) {
+                throw new omero.ApiUsageException(null, null,
+                        "Batch already received: " + sequence);
+            } else if (sequence > nextBatch) {
+                parkedBatches.put(sequence, sequenced);
+                return; // EARLY EXIT
+            }
+        }
+        sequenced.submit();
+    }
+
+    /**
+     * Called once a sequenced batch has ended; submits the next batch if it
+     * has already arrived.
+     */
+    private void batchDone() {
+        SequencedBatch next;
+        synchronized (parkedBatches) {
+            nextBatch++;
+            next = parkedBatches.remove(nextBatch);
+        }
+        if (next != null) {
+            next.submit();
+        }
+    }
+
+    /**
+     * A batch with a sequence number which calls {@link #batchDone()}
+     * exactly once however it ends: once it has run, when the throttling
+     * strategy rejects or cancels it via {@link #exception}, or when
+     * submitting it fails outright, in which case the client is answered
+     * here. Otherwise a failed batch would stall all the batches after it.
+     */
+    private class SequencedBatch extends Task {
+
+        private final Adapter batch;
+
+        private final AtomicBoolean done = new AtomicBoolean(false);
+
+        SequencedBatch(Object __cb, Current __current, Adapter batch) {
+            super(__cb, __current, true);
+            this.batch = batch;
+        }
+
+        void submit() {
+            try {
+                runnableCall(current, this);
+            } catch (RuntimeException rt) {
+                log.error("Failed to submit batch", rt);
+                try {
+                    omero.InternalException ie = new omero.InternalException();
+                    IceMapper.fillServerError(ie, rt);
+                    ie.message = "Failed to submit batch: " + rt;
+                    exception.invoke(cb, ie);
+                } catch (Exception e) {
+                    log.error("Failed to answer batch", e);
+                } finally {
+                    finish();
+                }
+            }
+        }
+
+        @Override
+        public void run(OmeroContext ctx) {
+            try {
+                batch.run(ctx);
+            } finally {
+                finish();
+            }
+        }
+
+        @Override
+        protected void exception(Throwable ex, OmeroContext ctx) {
+            try {
+                super.exception(ex, ctx);
+            } finally {
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (done.compareAndSet(false, true)) {
+                batchDone();
+            }
+        }
+    }
+
     /**
      * Called after some number of Passes the {@link #savedPlates} to a
      * background processor for further work. This happens on
@@ -6,18 +6,15 @@
 package ome.services.blitz.impl;
 
 import java.awt.Color;
-import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import javax.imageio.ImageIO;
 
@@ -57,6 +54,7 @@ import omero.model.OriginalFileI;
 import omero.model.Roi;
 import omero.model.Shape;
 import omero.util.IceMapper;
+import omero.util.LabelMasks;
 
 import org.apache.commons.collections.MultiMap;
 import org.apache.commons.collections.map.MultiValueMap;
@@ -397,69 +395,32 @@ public class RoiI extends AbstractAmdServant implements _IRoiOperations,
 
     class MaskClass
     {
-    	Set<Point> points;
-    	int colour;
-    	Point min, max;
-    	int width;
-		int height;
+    	/** The pixels of the mask as runs within their bounding box. */
+    	final LabelMasks.Label label;
 	 
-    	MaskClass(int value)
+    	MaskClass(LabelMasks.Label label)
     	{
-    		points = new HashSet<Point>();
-    		colour = value;
+    		this.label = label;
     	}
     	
     	public Color getColour()
     	{
-    		return new Color(colour);
+    		return new Color(label.getValue());
     	}
     	
     	
     	public byte[] asBytes() throws IOException
     	{
-    	   		
-    		byte[] data = new byte[(int) Math.ceil((double)width*(double)height/8.0)];
-    		int offset = 0;
-    		for(int y = min.y ; y < max.y + 1 ; y++)
-    		{
-    			for(int x = min.x ; x < max.x + 1 ; x++)
-    			{
-    				if(points.contains(new Point(x,y)))
-    					setBit(data, offset, 1);
-    				else
-    					setBit(data, offset, 0);
-    				offset++;
-    			}
-    		}
-    		return data;
-    	}
-    	
-    	public void add(Point p)
-    	{
-    		if(points.size()==0)
-    		{
-    			min = new Point(p);
-    			max = new Point(p);
-    		}
-    		else
-    		{
-    			min.x = Math.min(p.x, min.x);
-    			min.y = Math.min(p.y, min.y);
-    			max.x = Math.max(p.x, max.x);
-    			max.y = Math.max(p.y, max.y);
-    		}
-   			width = max.x-min.x+1;
-			height = max.y-min.y+1;
-    		points.add(p);
+    		return label.toBitMask().getBytes();
     	}
     	
     	public ome.model.roi.Mask asMaskI(int z, int t) throws IOException
     	{
     		ome.model.roi.Mask mask = new ome.model.roi.Mask();
-    		mask.setX((double)min.x);
-    		mask.setY((double)min.y);
-    		mask.setWidth((double)width);
-    		mask.setHeight((double)height);
+    		mask.setX((double)label.getX());
+    		mask.setY((double)label.getY());
+    		mask.setWidth((double)label.getWidth());
+    		mask.setHeight((double)label.getHeight());
     		mask.setLocked(true);
     		mask.setTheT(t);
     		mask.setTheZ(z);
@@ -468,36 +429,6 @@ public class RoiI extends AbstractAmdServant implements _IRoiOperations,
     		mask.setBytes(theseBytes);
     		return mask;
     	}
-    	
-    	/** 
-    	 * Set the bit value in a byte array at position bit to be the value
-    	 * value.
-    	 * @param data See above.
-    	 * @param bit See above.
-    	 * @param val See above.
-    	 */
-    	private void setBit(byte[] data, int bit, int val) 
-    	{
-    		int bytePosition = bit/8;
-    		int bitPosition = 7-bit%8;
-    		data[bytePosition] = (byte) ((byte)(data[bytePosition]&
-    									(~(byte)(0x1<<bitPosition)))|
-    									(byte)(val<<bitPosition));
-    	}
-
-    	/** 
-    	 * Set the bit value in a byte array at position bit to be the value
-    	 * value.
-    	 * @param data See above.
-    	 * @param bit See above.
-    	 * @param val See above.
-    	 */
-    	private byte getBit(byte[] data, int bit) 
-    	{
-    		int bytePosition = bit/8;
-    		int bitPosition = 7-bit%8;
-    		return (byte) ((byte)(data[bytePosition] & (0x1<<bitPosition))!=0 ? (byte)1 : (byte)0);
-    	}
 
     }
     
@@ -538,29 +469,12 @@ public class RoiI extends AbstractAmdServant implements _IRoiOperations,
 				{
 					image = (ome.model.core.Image) o;
 					BufferedImage inputImage = ImageIO.read(s);
-					Map<Integer, MaskClass> map = new HashMap<Integer, MaskClass>();
+					LabelMasks labels = LabelMasks.of(inputImage,
+							Color.black.getRGB());
 					MaskClass mask;
-					int value;
-					for (int x = 0; x < inputImage.getWidth(); x++)
-						for (int y = 0; y < inputImage.getHeight(); y++)
-						{
-							value = inputImage.getRGB(x, y);
-							if(value==Color.black.getRGB())
-								continue;
-							if (!map.containsKey(value))
-							{
-								mask = new MaskClass(value);
-								map.put(value, mask);
-							}
-							else
-								mask = map.get(value);
-							mask.add(new Point(x, y));
-						}
-					Iterator<Integer> maskIterator = map.keySet().iterator();
-					while (maskIterator.hasNext())
+					for (LabelMasks.Label label : labels.getLabels().values())
 					{
-						int colour = maskIterator.next();
-						mask = map.get(colour);
+						mask = new MaskClass(label);
 						roi = new ome.model.roi.Roi();
 						roi.setImage(image);
 						ome.model.roi.Mask  toSaveMask = mask.asMaskI(z, t);
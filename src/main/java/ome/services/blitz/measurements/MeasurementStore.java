@@ -8,7 +8,10 @@
 package ome.services.blitz.measurements;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -28,6 +31,12 @@ import org.slf4j.LoggerFactory;
 /**
  * Parser API implementation for storing result measurements from SPW companion
  * files as ROIs and OMERO.tables.
+ *
+ * Rows and ROIs are written incrementally: once {@link #getBatchSize()} rows
+ * have been added they are flushed along with all pending ROIs, each batch of
+ * ROIs being saved in its own call and each batch of rows being sent with
+ * its own {@link TablePrx#addData(omero.grid.Column[])}, so that memory use
+ * does not grow with the total number of rows.
  * 
  * @since Beta4.1
  */
@@ -37,16 +46,29 @@ public class MeasurementStore implements OmeroMeasurementStore {
 
     private final static Logger log = LoggerFactory.getLogger(MeasurementStore.class);
 
+    /**
+     * Default number of rows, respectively objects, written at once.
+     */
+    public final static int DEFAULT_BATCH_SIZE = 1000;
+
     // Final
 
     private final Map<String, IObject> lsidMap = new HashMap<String, IObject>();
 
+    /** Objects which have not been saved yet, by lsid. */
+    private final Map<String, IObject> unsaved = new LinkedHashMap<String, IObject>();
+
+    /** Rows which have not been sent to the table yet. */
+    private final List<Object[]> rows = new ArrayList<Object[]>();
+
     private final List<Long> roiIds = new ArrayList<Long>();
 
     private final LocalUpdate update;
 
     private final TablePrx table;
 
+    private final int batchSize;
+
     // Mutable
 
     private Map<String, Object> metadata;
@@ -59,14 +81,32 @@ public class MeasurementStore implements OmeroMeasurementStore {
 
     private SmartColumns cols;
 
-    private Object[][] rows;
-
     private boolean initialized = false;
 
     public MeasurementStore(LocalUpdate update, TablePrx table)
             throws ServerError {
+        this(update, table, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param update used to save the ROIs
+     * @param table the table to which rows are added
+     * @param batchSize the number of rows, respectively objects, written at
+     *        once
+     */
+    public MeasurementStore(LocalUpdate update, TablePrx table, int batchSize)
+            throws ServerError {
+        if (batchSize < 1) {
+            throw new ApiUsageException(null, null,
+                    "Batch size must be positive: " + batchSize);
+        }
         this.table = table;
         this.update = update;
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
     }
 
     // LOCI API
@@ -102,24 +142,49 @@ public class MeasurementStore implements OmeroMeasurementStore {
         if (lsid != null) {
             if (obj == null) {
                 lsidMap.remove(lsid);
+                unsaved.remove(lsid);
             } else {
-                lsidMap.put(lsid, obj);
+                put(lsid, obj);
             }
         }
     }
 
     public void addObjects(Map<String, IObject> map) {
         if (map != null) {
-            lsidMap.putAll(map);
+            for (Map.Entry<String, IObject> entry : map.entrySet()) {
+                addObject(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Registers an object, queueing it to be saved if it has no id yet.
+     */
+    private void put(String lsid, IObject obj) {
+        lsidMap.put(lsid, obj);
+        if (obj.getId() == null) {
+            unsaved.put(lsid, obj);
+        } else {
+            unsaved.remove(lsid);
         }
     }
 
+    /**
+     * Queues rows to be added to the table. Rows may be added in several
+     * chunks; once {@link #getBatchSize()} rows are queued they are written
+     * out together with all pending ROIs, so any ROI referenced by a row must
+     * have been added before the row.
+     */
     public void addRows(Object[][] rows) throws ServerError {
+        if (!initialized) {
+            throw new ApiUsageException(null, null, "Not initialized");
+        }
         if (rows != null) {
-            throw new ApiUsageException(null, null,
-                    "Call save before adding more data");
+            Collections.addAll(this.rows, rows);
+            if (this.rows.size() >= batchSize) {
+                flush();
+            }
         }
-        this.rows = rows;
     }
 
     public void addCircle(String roiLsid, double x, double y, double r)
@@ -145,7 +210,7 @@ public class MeasurementStore implements OmeroMeasurementStore {
                     "No image set; cannot create Roi");
         }
         roi.setImage(image);
-        lsidMap.put(lsid, roi);
+        put(lsid, roi);
     }
 
     /*
@@ -159,28 +224,47 @@ public class MeasurementStore implements OmeroMeasurementStore {
             throw new ApiUsageException(null, null, "Not initialized");
         }
 
+        flush();
+    }
+
+    /**
+     * Saves all pending objects and then sends all pending rows to the table,
+     * both in batches of {@link #getBatchSize()}.
+     */
+    private void flush() throws ServerError {
+
         //
         // First save the rois, so that if it fails, no changes will be
         // made to the table
         //
-        List<IObject> unsaved = new ArrayList<IObject>();
-        for (Map.Entry<String, IObject> entry : lsidMap.entrySet()) {
-            unsaved.add(entry.getValue());
-        }
-        if (unsaved.size() > 0) {
-            IObject[] objs = unsaved.toArray(new IObject[unsaved.size()]);
+        while (!unsaved.isEmpty()) {
+            List<IObject> batch = new ArrayList<IObject>(
+                    Math.min(batchSize, unsaved.size()));
+            Iterator<IObject> it = unsaved.values().iterator();
+            while (it.hasNext() && batch.size() < batchSize) {
+                batch.add(it.next());
+                it.remove();
+            }
+            IObject[] objs = batch.toArray(new IObject[batch.size()]);
             List<Long> ids = update.saveAndReturnIds(objs);
             for (int i = 0; i < ids.size(); i++) {
-                unsaved.get(i).setId(ids.get(i));
-                unsaved.get(i).unload();
+                batch.get(i).setId(ids.get(i));
+                batch.get(i).unload();
                 roiIds.add(ids.get(i));
             }
         }
 
         // Now fill the columns with data, and send to the table instance
-        cols.fill(rows);
-        table.addData(cols.asArray());
-        rows = null;
+        for (int from = 0; from < rows.size(); from += batchSize) {
+            int to = Math.min(from + batchSize, rows.size());
+            List<Object[]> batch = rows.subList(from, to);
+            cols.fill(batch.toArray(new Object[batch.size()][]));
+            table.addData(cols.asArray());
+        }
+        if (rows.size() > 0) {
+            log.debug("Added {} rows", rows.size());
+        }
+        rows.clear();
 
     }
 
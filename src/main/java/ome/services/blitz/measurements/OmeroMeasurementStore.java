@@ -28,8 +28,10 @@ public interface OmeroMeasurementStore {
 
     /**
      * Adds an array of rows (Object[]) to the store. These rows might be
-     * indexed by an LSID which correlates to an added ROI. For each call to
-     * {@link #addRows(Object[][])} a call to {@link #save()} must be made. This
+     * indexed by an LSID which correlates to an added ROI. Rows may be added
+     * in several chunks and implementations may write them out before
+     * {@link #save()} is called, so ROIs must be added before the rows which
+     * reference them. {@link #save()} writes out any remaining rows. This
      * allows a single measurement store to be filled with the values from
      * multiple measurement files. To differentiate between the various files,
      * include a File lsid column during the initialization phase.
@@ -5,12 +5,14 @@
 
 package ome.services.blitz.redirect;
 
+import java.util.Map;
 import java.util.Set;
 
 import ome.model.meta.Node;
 import ome.services.blitz.fire.Ring;
 import ome.services.blitz.fire.SessionManagerI;
 import ome.system.Principal;
+import omero.grid.NodeLoad;
 import Glacier2.CannotCreateSessionException;
 import Glacier2.SessionPrx;
 
@@ -59,6 +61,12 @@ public interface Redirector {
          * filtering out the inactive ones.
          */
         Set<String> getManagerList(boolean activeOnly);
+
+        /**
+         * Return the current load of each reachable node in the cluster,
+         * including this one, by node UUID.
+         */
+        Map<String, NodeLoad> getNodeLoads();
     }
 
     /**
@@ -5,25 +5,90 @@
 
 package ome.services.blitz.redirect;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 import ome.model.meta.Node;
 import ome.services.util.Executor;
+import omero.grid.NodeLoad;
 import Glacier2.CannotCreateSessionException;
 import Glacier2.SessionPrx;
 
 /**
- * Planned implementation (NYI): will use the "Node.scale" column to randomly
- * choose a target.
- * 
+ * Places each new session on the least loaded healthy node of the cluster,
+ * as reported by {@link Context#getNodeLoads()}. The loads are refreshed
+ * periodically rather than on every session creation, by one session
+ * creation at a time while the others use the previous loads, and each
+ * placement is counted against the chosen node until the next refresh so
+ * that a burst of sessions is spread out. Sessions which already exist on
+ * another node are still joined there, and new sessions stay on this node
+ * unless another is clearly less loaded.
+ *
  * @since Beta-4.0-RC2
  */
 public class ScaleRedirector extends AbstractRedirector {
 
+    /**
+     * How long in milliseconds the node loads are used before being fetched
+     * again.
+     */
+    private final long refreshMs;
+
+    /**
+     * The fraction of its maximum heap above which a node is not given new
+     * sessions.
+     */
+    private final double maxHeapFraction;
+
+    /**
+     * By how much this node's load must exceed another's for a new session to
+     * be placed there instead.
+     */
+    private final long stickiness;
+
+    /**
+     * Node loads by UUID, only of active nodes. Guarded by this.
+     */
+    private Map<String, NodeLoad> loads = new HashMap<String, NodeLoad>();
+
+    /**
+     * When {@link #loads} was fetched. Guarded by this.
+     */
+    private long loadsTime = 0;
+
+    /**
+     * If the loads are being fetched. Guarded by this.
+     */
+    private boolean refreshing = false;
+
+    /**
+     * Incremented when the loads are invalidated, so that loads fetched
+     * before then are discarded. Guarded by this.
+     */
+    private long generation = 0;
+
     public ScaleRedirector(Executor ex) {
+        this(ex, 5000, 0.9, 2);
+    }
+
+    /**
+     * @param refreshMs
+     *            how long in milliseconds to use node loads before fetching
+     *            them again
+     * @param maxHeapFraction
+     *            the fraction of its maximum heap above which a node is not
+     *            given new sessions
+     * @param stickiness
+     *            by how much this node's load must exceed another's for a new
+     *            session to be placed there instead
+     */
+    public ScaleRedirector(Executor ex, long refreshMs, double maxHeapFraction,
+            long stickiness) {
         super(ex);
+        this.refreshMs = refreshMs;
+        this.maxHeapFraction = maxHeapFraction;
+        this.stickiness = stickiness;
     }
 
     public SessionPrx getProxyOrNull(Context ctx, String userId,
@@ -32,27 +97,19 @@ public class ScaleRedirector extends AbstractRedirector {
 
         // First, give the abstract class a chance to handle common cases
         SessionPrx prx = super.getProxyOrNull(ctx, userId, control, current);
-        if (prx != null) {
+        if (prx != null || alreadyRouted(current)) {
             return prx; // EARLY EXIT
         }
 
         String proxyString = null;
-        double IMPOSSIBLE = 314159.0;
-        if (Math.random() > IMPOSSIBLE) {
-            Set<String> values = ctx.getManagerList(true);
-            if (values != null) {
-                values.remove(ctx.uuid());
-                int size = values.size();
-                if (size != 0) {
-                    double rnd = Math.floor(size * Math.random());
-                    int idx = (int) Math.round(rnd);
-                    List<String> v = new ArrayList<String>(values);
-                    String uuid = (String) v.get(idx);
-                    proxyString = findProxy(ctx, uuid);
-                    log
-                            .info(String.format("Load balancing to %s",
-                                    proxyString));
-                }
+        String target = chooseNode(ctx);
+        if (target != null && !target.equals(ctx.uuid())) {
+            proxyString = findProxy(ctx, target);
+            if (proxyString == null || proxyString.length() == 0) {
+                log.warn("No proxy found for manager: " + target);
+                proxyString = null;
+            } else {
+                log.info(String.format("Load balancing to %s", proxyString));
             }
         }
 
@@ -61,20 +118,141 @@ public class ScaleRedirector extends AbstractRedirector {
     }
 
     /**
-     * Does nothing since all redirects are chosen during
-     * {@link #getProxyOrNull(Context, String, Glacier2.SessionControlPrx, Ice.Current)}
+     * Chooses the node for a new session and counts the session against it.
+     * If the loads are due to be refreshed and no other session creation is
+     * already refreshing them, they are fetched first, but not while holding
+     * the lock.
+     *
+     * @return the UUID of the chosen node, or null if no load is known
+     */
+    protected String chooseNode(Context ctx) {
+        final long fetchGeneration;
+        synchronized (this) {
+            if (refreshing
+                    || System.currentTimeMillis() - loadsTime <= refreshMs) {
+                return chooseCached(ctx);
+            }
+            refreshing = true;
+            fetchGeneration = generation;
+        }
+        Map<String, NodeLoad> fresh = null;
+        try {
+            fresh = fetchLoads(ctx);
+        } finally {
+            synchronized (this) {
+                refreshing = false;
+                if (fresh != null && fetchGeneration == generation) {
+                    loads = fresh;
+                    loadsTime = System.currentTimeMillis();
+                }
+            }
+        }
+        synchronized (this) {
+            return chooseCached(ctx);
+        }
+    }
+
+    /**
+     * Chooses the node for a new session from the cached loads and counts
+     * the session against it. The caller must hold the lock on this.
+     */
+    private String chooseCached(Context ctx) {
+        String chosen = chooseNode(ctx.uuid(), loads);
+        if (chosen != null) {
+            loads.get(chosen).activeSessions++;
+        }
+        return chosen;
+    }
+
+    /**
+     * Fetches the loads of the active nodes.
+     */
+    private Map<String, NodeLoad> fetchLoads(Context ctx) {
+        Map<String, NodeLoad> fresh = ctx.getNodeLoads();
+        Set<String> active = ctx.getManagerList(true);
+        if (active != null) {
+            NodeLoad local = fresh.get(ctx.uuid());
+            fresh.keySet().retainAll(active);
+            if (local != null) {
+                fresh.put(ctx.uuid(), local);
+            }
+        }
+        if (log.isDebugEnabled()) {
+            for (NodeLoad load : fresh.values()) {
+                log.debug(String.format("Node %s: sessions=%d "
+                        + "queued=%d running=%d heap=%d/%d", load.uuid,
+                        load.activeSessions, load.queuedRequests,
+                        load.runningRequests, load.heapUsed, load.heapMax));
+            }
+        }
+        return fresh;
+    }
+
+    /**
+     * Chooses the least loaded healthy node, preferring the local node unless
+     * it is unhealthy or more than {@link #stickiness} busier.
+     *
+     * @param localUuid
+     *            the UUID of this node
+     * @param loads
+     *            the loads of the candidate nodes by UUID
+     * @return the UUID of the chosen node, or null if the local node's load is
+     *         unknown
+     */
+    protected String chooseNode(String localUuid, Map<String, NodeLoad> loads) {
+        NodeLoad local = loads.get(localUuid);
+        if (local == null) {
+            return null;
+        }
+        NodeLoad best = null;
+        for (NodeLoad load : loads.values()) {
+            if (isHealthy(load) && (best == null || score(load) < score(best))) {
+                best = load;
+            }
+        }
+        if (best == null || best == local) {
+            return localUuid;
+        }
+        if (isHealthy(local) && score(local) <= score(best) + stickiness) {
+            return localUuid;
+        }
+        return best.uuid;
+    }
+
+    /**
+     * A node is healthy if its heap is not nearly exhausted.
      */
-    public void chooseNextRedirect(Context context, Set<String> nodeUuids) {
+    protected boolean isHealthy(NodeLoad load) {
+        return load.heapMax <= 0
+                || load.heapUsed <= maxHeapFraction * load.heapMax;
+    }
 
+    /**
+     * A node's load counts its sessions and its requests, waiting requests
+     * twice since they indicate that the node is already saturated.
+     */
+    protected long score(NodeLoad load) {
+        return load.activeSessions + load.runningRequests + 2
+                * load.queuedRequests;
     }
 
     /**
-     * Nothing needs to be done on shutdown, since the Ring implementation will
-     * properly disable the {@link Node} table queried during the next call to
-     * {@link #getProxyOrNull(Context, String, Glacier2.SessionControlPrx, Ice.Current)}
+     * Fetches the node loads afresh on the next session creation.
      */
-    public void handleRingShutdown(Context context, String uuid) {
+    public synchronized void chooseNextRedirect(Context context,
+            Set<String> nodeUuids) {
+        loadsTime = 0;
+        generation++;
+    }
 
+    /**
+     * Stops placing sessions on the {@link Node} which is shutting down. The
+     * Ring implementation will properly disable the {@link Node} table
+     * queried when the loads are next fetched.
+     */
+    public synchronized void handleRingShutdown(Context context, String uuid) {
+        loads.remove(uuid);
+        generation++;
     }
 
-}
\ No newline at end of file
+}
@@ -7,12 +7,18 @@
 package ome.services.blitz.repo;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import loci.formats.FormatException;
+import loci.formats.FormatTools;
 import loci.formats.ImageReader;
 import ome.io.bioformats.BfPixelsWrapper;
 import ome.io.nio.RomioPixelBuffer;
+import omero.ApiUsageException;
 import omero.ServerError;
 import omero.api.AMD_PyramidService_getResolutionDescriptions;
 import omero.api.AMD_PyramidService_getResolutionLevel;
@@ -59,8 +65,11 @@ import omero.api.AMD_StatefulServiceInterface_activate;
 import omero.api.AMD_StatefulServiceInterface_close;
 import omero.api.AMD_StatefulServiceInterface_getCurrentEventContext;
 import omero.api.AMD_StatefulServiceInterface_passivate;
+import omero.api.ResolutionDescription;
 import omero.api._RawPixelsStoreDisp;
 import omero.romio.PlaneDef;
+import omero.romio.RegionDef;
+import omero.romio.XY;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -75,10 +84,31 @@ public class BfPixelsStoreI extends _RawPixelsStoreDisp {
 
     private final static Logger log = LoggerFactory.getLogger(BfPixelsStoreI.class);
 
+    /** Default number of bins of {@link #getHistogram_async}. */
+    private final static int DEFAULT_BIN_COUNT = 256;
+
+    /**
+     * How many times more bins than requested a histogram of a wide pixel
+     * type is first counted into.
+     */
+    private final static int FINE_BINS_PER_BIN = 64;
+
+    /** Maximum number of pixels read at once when scanning a plane. */
+    private final static int MAX_SCAN_PIXELS = 1024 * 1024;
+
     private final BfPixelsWrapper reader;
 
+    private final ImageReader bfReader;
+
+    /**
+     * Channel minima and maxima found by {@link #findMinMax(int)}. Guarded,
+     * as is the resolution of {@link #bfReader}, by {@link #reader}.
+     */
+    private final Map<Integer, double[]> minMax = new HashMap<Integer, double[]>();
+
     public BfPixelsStoreI(String path, ImageReader bfReader) throws IOException, FormatException {
         reader = new BfPixelsWrapper(path, bfReader);
+        this.bfReader = bfReader;
     }
 
     public void calculateMessageDigest_async(
@@ -346,14 +376,347 @@ public class BfPixelsStoreI extends _RawPixelsStoreDisp {
         throw new UnsupportedOperationException("Cannot write to repository");
     }
     
+    /**
+     * Computes the histograms over the plane in a single pass, reading it a
+     * tile at a time. If <code>globalRange</code> is set the bins span the
+     * range found by {@link #findMinMax_async}, which is estimated from the
+     * middle plane, so values beyond it are counted in the end bins.
+     * Otherwise the bins span the plane's own range, so the values are counted
+     * exactly for pixel types of up to 16 bits and into
+     * {@link #FINE_BINS_PER_BIN} times as many finer bins for wider types.
+     */
     public void getHistogram_async(AMD_RawPixelsStore_getHistogram __cb,
             int[] channels, int binCount, boolean globalRange, PlaneDef plane, Current __current) throws ServerError {
-        throw new UnsupportedOperationException("NYI");
+        try {
+            if (binCount <= 0) {
+                binCount = DEFAULT_BIN_COUNT;
+            }
+            int z = 0, t = 0;
+            int x = 0, y = 0, w = reader.getSizeX(), h = reader.getSizeY();
+            if (plane != null) {
+                if (plane.slice != XY.value) {
+                    throw new ApiUsageException(null, null,
+                            "Only XY planes are supported: " + plane.slice);
+                }
+                z = plane.z;
+                t = plane.t;
+                RegionDef region = plane.region;
+                if (region != null && region.width > 0 && region.height > 0) {
+                    x = region.x;
+                    y = region.y;
+                    w = region.width;
+                    h = region.height;
+                }
+            }
+            Map<Integer, int[]> histograms = new HashMap<Integer, int[]>();
+            synchronized (reader) {
+                for (int c : channels) {
+                    final int[] bins = new int[binCount];
+                    if (globalRange) {
+                        final double[] range = findMinMax(c);
+                        final double min = range[0];
+                        final double binWidth = (range[1] - min) / binCount;
+                        scan(z, c, t, x, y, w, h, new PixelScan() {
+                            void pixel(double value) {
+                                count(bins, min, binWidth, value, 1);
+                            }
+                        });
+                    } else {
+                        final int type = bfReader.getPixelType();
+                        final PlaneHistogram counts = FormatTools.getBytesPerPixel(type) <= 2
+                                ? new ExactHistogram(type) : new FineHistogram(binCount * FINE_BINS_PER_BIN);
+                        scan(z, c, t, x, y, w, h, counts);
+                        counts.fill(bins);
+                    }
+                    histograms.put(c, bins);
+                }
+            }
+            __cb.ice_response(histograms);
+        } catch (Exception e) {
+            __cb.ice_exception(e);
+        }
     }
 
+    /**
+     * Finds the minimum and maximum of each channel in its middle plane at
+     * full resolution, reading a tile at a time, as the statistics of
+     * imported pixels are estimated. The result is kept for the lifetime of
+     * the servant since the file is read-only.
+     */
     public void findMinMax_async(AMD_RawPixelsStore_findMinMax __cb,
             int[] channels, Current __current) throws ServerError {
-        throw new UnsupportedOperationException("NYI");
+        try {
+            Map<Integer, double[]> rv = new HashMap<Integer, double[]>();
+            synchronized (reader) {
+                for (int c : channels) {
+                    rv.put(c, findMinMax(c).clone());
+                }
+            }
+            __cb.ice_response(rv);
+        } catch (Exception e) {
+            __cb.ice_exception(e);
+        }
+    }
+
+    /**
+     * Returns the minimum and maximum of a channel, scanning its middle plane
+     * at full resolution the first time. The caller must hold the lock on
+     * {@link #reader}.
+     */
+    private double[] findMinMax(int c) throws IOException {
+        double[] range = minMax.get(c);
+        if (range != null) {
+            return range;
+        }
+        int resolution = bfReader.getResolution();
+        try {
+            bfReader.setResolution(0);
+            range = planeRange(reader.getSizeZ() / 2, c, reader.getSizeT() / 2,
+                    0, 0, reader.getSizeX(), reader.getSizeY());
+        } finally {
+            bfReader.setResolution(resolution);
+        }
+        minMax.put(c, range);
+        return range;
+    }
+
+    /**
+     * Returns the minimum and maximum of a region of a plane at the current
+     * resolution. The caller must hold the lock on {@link #reader}.
+     */
+    private double[] planeRange(int z, int c, int t, int x, int y, int w, int h)
+            throws IOException {
+        final double[] found = { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+        scan(z, c, t, x, y, w, h, new PixelScan() {
+            void pixel(double value) {
+                if (value < found[0]) {
+                    found[0] = value;
+                }
+                if (value > found[1]) {
+                    found[1] = value;
+                }
+            }
+        });
+        if (found[0] > found[1]) {
+            found[0] = found[1] = 0; // No pixels
+        }
+        return found;
+    }
+
+    /** Receives the pixel values of a region in {@link #scan}. */
+    private static abstract class PixelScan {
+        abstract void pixel(double value);
+    }
+
+    /**
+     * Counts a value into the bin that spans it, or into the nearer end bin
+     * if it is out of range.
+     * @param bins the bins, spanning from <code>min</code> in steps of
+     *        <code>binWidth</code>
+     * @param min the lower bound of the first bin
+     * @param binWidth the width of each bin, zero if all values are to be
+     *        counted in the first bin
+     * @param value the value to count
+     * @param count how many times to count the value
+     */
+    private static void count(int[] bins, double min, double binWidth, double value, int count) {
+        int bin = binWidth > 0 ? (int) Math.floor((value - min) / binWidth) : 0;
+        bins[Math.max(0, Math.min(bin, bins.length - 1))] += count;
+    }
+
+    /**
+     * Counts the pixel values of a region in {@link #scan} so that they can
+     * then be binned over their own range without reading them again.
+     */
+    private static abstract class PlaneHistogram extends PixelScan {
+        /** Counts the scanned values into bins spanning their range. */
+        abstract void fill(int[] bins);
+    }
+
+    /** Counts each value of a pixel type of up to 16 bits exactly. */
+    private static class ExactHistogram extends PlaneHistogram {
+
+        private final int offset;
+
+        private final int[] counts;
+
+        ExactHistogram(int type) {
+            int bits = 8 * FormatTools.getBytesPerPixel(type);
+            offset = FormatTools.isSigned(type) ? 1 << (bits - 1) : 0;
+            counts = new int[1 << bits];
+        }
+
+        void pixel(double value) {
+            counts[(int) value + offset]++;
+        }
+
+        void fill(int[] bins) {
+            int first = 0;
+            while (first < counts.length && counts[first] == 0) {
+                first++;
+            }
+            if (first == counts.length) {
+                return; // No pixels
+            }
+            int last = counts.length - 1;
+            while (counts[last] == 0) {
+                last--;
+            }
+            double min = first - offset;
+            double binWidth = (double) (last - first) / bins.length;
+            for (int i = first; i <= last; i++) {
+                if (counts[i] > 0) {
+                    count(bins, min, binWidth, i - offset, counts[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the values of a wider pixel type into fine bins whose range is
+     * doubled, merging neighbouring bins, whenever a value falls outside it.
+     * Each fine bin is then counted at its center clamped to the values'
+     * range, so values within a fine bin's width of a bin boundary may be
+     * counted in the neighbouring bin. Values that are not finite are not
+     * counted.
+     */
+    private static class FineHistogram extends PlaneHistogram {
+
+        private final int[] counts;
+
+        private double min = Double.POSITIVE_INFINITY;
+
+        private double max = Double.NEGATIVE_INFINITY;
+
+        /** The lower bound of the first fine bin. */
+        private double lower;
+
+        /** The width of each fine bin, zero until two values differ. */
+        private double fineWidth;
+
+        FineHistogram(int fineBinCount) {
+            counts = new int[fineBinCount];
+        }
+
+        void pixel(double value) {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                return;
+            }
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+            if (fineWidth == 0) {
+                if (counts[0] == 0 || value == lower) {
+                    lower = value;
+                    counts[0]++;
+                    return;
+                }
+                /* the first differing value sets a range that both fit in */
+                double seen = lower;
+                int seenCount = counts[0];
+                counts[0] = 0;
+                lower = Math.min(seen, value);
+                fineWidth = 2 * Math.abs(value - seen) / counts.length;
+                counts[fineBin(seen)] += seenCount;
+            }
+            while (value < lower) {
+                /* extend downwards: the old bins become the upper half */
+                int half = counts.length / 2;
+                for (int i = counts.length - 1; i >= half; i--) {
+                    counts[i] = counts[2 * (i - half)] + counts[2 * (i - half) + 1];
+                }
+                for (int i = 0; i < half; i++) {
+                    counts[i] = 0;
+                }
+                lower -= fineWidth * counts.length;
+                fineWidth *= 2;
+            }
+            while (value >= lower + fineWidth * counts.length) {
+                /* extend upwards: the old bins become the lower half */
+                int half = counts.length / 2;
+                for (int i = 0; i < half; i++) {
+                    counts[i] = counts[2 * i] + counts[2 * i + 1];
+                }
+                for (int i = half; i < counts.length; i++) {
+                    counts[i] = 0;
+                }
+                fineWidth *= 2;
+            }
+            counts[fineBin(value)]++;
+        }
+
+        /** Finds the fine bin of a value within the range. */
+        private int fineBin(double value) {
+            return Math.min((int) ((value - lower) / fineWidth), counts.length - 1);
+        }
+
+        void fill(int[] bins) {
+            if (min > max) {
+                return; // No pixels
+            }
+            double binWidth = (max - min) / bins.length;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    double center = lower + (i + 0.5) * fineWidth;
+                    count(bins, min, binWidth, Math.max(min, Math.min(max, center)), counts[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes every pixel of a region of a plane at the current resolution to
+     * <code>scan</code>, reading strips of at most {@link #MAX_SCAN_PIXELS}
+     * pixels into a single buffer so that the plane is never held in memory.
+     */
+    private void scan(int z, int c, int t, int x, int y, int w, int h,
+            PixelScan scan) throws IOException {
+        int type = bfReader.getPixelType();
+        int bpp = FormatTools.getBytesPerPixel(type);
+        int rows = Math.max(1, Math.min(h, MAX_SCAN_PIXELS / Math.max(1, w)));
+        byte[] buf = new byte[w * rows * bpp];
+        ByteBuffer bb = ByteBuffer.wrap(buf).order(bfReader.isLittleEndian()
+                ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        for (int y0 = y; y0 < y + h; y0 += rows) {
+            int n = Math.min(rows, y + h - y0);
+            byte[] strip = n == rows ? buf : new byte[w * n * bpp];
+            if (strip != buf) {
+                bb = ByteBuffer.wrap(strip).order(bb.order());
+            }
+            reader.getTile(z, c, t, x, y0, w, n, strip);
+            int pixels = w * n;
+            for (int i = 0; i < pixels; i++) {
+                scan.pixel(value(bb, type, i));
+            }
+        }
+    }
+
+    /** Decodes a pixel of the given Bio-Formats pixel type. */
+    private static double value(ByteBuffer bb, int type, int i) {
+        switch (type) {
+            case FormatTools.INT8:
+                return bb.get(i);
+            case FormatTools.UINT8:
+            case FormatTools.BIT:
+                return bb.get(i) & 0xff;
+            case FormatTools.INT16:
+                return bb.getShort(i * 2);
+            case FormatTools.UINT16:
+                return bb.getShort(i * 2) & 0xffff;
+            case FormatTools.INT32:
+                return bb.getInt(i * 4);
+            case FormatTools.UINT32:
+                return bb.getInt(i * 4) & 0xffffffffL;
+            case FormatTools.FLOAT:
+                return bb.getFloat(i * 4);
+            case FormatTools.DOUBLE:
+                return bb.getDouble(i * 8);
+            default:
+                throw new IllegalArgumentException("Unknown pixel type: " + type);
+        }
     }
     
     public void activate_async(AMD_StatefulServiceInterface_activate __cb,
@@ -388,14 +751,36 @@ public class BfPixelsStoreI extends _RawPixelsStoreDisp {
             AMD_PyramidService_getResolutionLevels __cb, Current __current)
             throws ServerError
     {
-        throw new UnsupportedOperationException("NYI");
+        try {
+            __cb.ice_response(bfReader.getResolutionCount());
+        } catch (Exception e) {
+            __cb.ice_exception(e);
+        }
     }
 
     public void getResolutionDescriptions_async(
             AMD_PyramidService_getResolutionDescriptions __cb, Current __current)
             throws ServerError
     {
-        throw new UnsupportedOperationException("NYI");
+        try {
+            ResolutionDescription[] rv;
+            synchronized (reader) {
+                int resolution = bfReader.getResolution();
+                rv = new ResolutionDescription[bfReader.getResolutionCount()];
+                try {
+                    for (int i = 0; i < rv.length; i++) {
+                        bfReader.setResolution(i);
+                        rv[i] = new ResolutionDescription(
+                                bfReader.getSizeX(), bfReader.getSizeY());
+                    }
+                } finally {
+                    bfReader.setResolution(resolution);
+                }
+            }
+            __cb.ice_response(rv);
+        } catch (Exception e) {
+            __cb.ice_exception(e);
+        }
     }
 
     /* (non-Javadoc)
@@ -404,7 +789,12 @@ public class BfPixelsStoreI extends _RawPixelsStoreDisp {
     public void getTileSize_async(AMD_PyramidService_getTileSize __cb,
             Current __current) throws ServerError
     {
-        throw new UnsupportedOperationException("NYI");
+        try {
+            __cb.ice_response(new int[] { bfReader.getOptimalTileWidth(),
+                    bfReader.getOptimalTileHeight() });
+        } catch (Exception e) {
+            __cb.ice_exception(e);
+        }
     }
 
     /* (non-Javadoc)
@@ -423,7 +813,20 @@ public class BfPixelsStoreI extends _RawPixelsStoreDisp {
             AMD_PyramidService_setResolutionLevel __cb, int resolutionLevel,
             Current __current) throws ServerError
     {
-        throw new UnsupportedOperationException("NYI");
+        try {
+            // Level 0 is the smallest resolution as in the PixelBuffers.
+            int count = bfReader.getResolutionCount();
+            if (resolutionLevel < 0 || resolutionLevel >= count) {
+                throw new ApiUsageException(null, null,
+                        "Resolution level out of range: " + resolutionLevel);
+            }
+            synchronized (reader) {
+                bfReader.setResolution(count - resolutionLevel - 1);
+            }
+            __cb.ice_response();
+        } catch (Exception e) {
+            __cb.ice_exception(e);
+        }
     }
 
     /* (non-Javadoc)
@@ -433,7 +836,15 @@ public class BfPixelsStoreI extends _RawPixelsStoreDisp {
             AMD_PyramidService_getResolutionLevel __cb, Current __current)
             throws ServerError
     {
-        throw new UnsupportedOperationException("NYI");
+        try {
+            int level;
+            synchronized (reader) {
+                level = bfReader.getResolutionCount() - bfReader.getResolution() - 1;
+            }
+            __cb.ice_response(level);
+        } catch (Exception e) {
+            __cb.ice_exception(e);
+        }
     }
 
     /* (non-Javadoc)
@@ -443,7 +854,17 @@ public class BfPixelsStoreI extends _RawPixelsStoreDisp {
             int t, int x, int y, int w, int h, Current __current)
             throws ServerError
     {
-        throw new UnsupportedOperationException("NYI");
+        try {
+            byte[] tile = new byte[RomioPixelBuffer.safeLongToInteger(
+                    (long) w * h * reader.getByteWidth())];
+            synchronized (reader) {
+                reader.getTile(z, c, t, x, y, w, h, tile);
+            }
+            reader.swapIfRequired(tile);
+            __cb.ice_response(tile);
+        } catch (Exception e) {
+            __cb.ice_exception(e);
+        }
     }
 
     /* (non-Javadoc)
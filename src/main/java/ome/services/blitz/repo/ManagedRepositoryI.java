@@ -33,8 +33,10 @@ import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -47,11 +49,14 @@ import ome.formats.importer.ImportConfig;
 import ome.formats.importer.ImportContainer;
 import ome.model.core.OriginalFile;
 import ome.model.meta.Experimenter;
+import ome.services.blitz.impl.ServiceFactoryI;
 import ome.services.blitz.repo.path.ClientFilePathTransformer;
+import ome.services.blitz.repo.path.DirectoryOccupancy;
 import ome.services.blitz.repo.path.FilePathRestrictionInstance;
 import ome.services.blitz.repo.path.FsFile;
 import ome.services.blitz.repo.path.MakeNextDirectory;
 import ome.services.blitz.util.ChecksumAlgorithmMapper;
+import ome.services.blitz.util.FindServiceFactoryMessage;
 import ome.system.Roles;
 import ome.system.ServiceFactory;
 import ome.util.SqlAction;
@@ -62,6 +67,8 @@ import ome.util.checksum.ChecksumType;
 import omero.ResourceError;
 import omero.ServerError;
 import omero.ValidationException;
+import omero.cmd.ChunkableRequest;
+import omero.cmd.HandlePrx;
 import omero.grid.ImportLocation;
 import omero.grid.ImportProcessPrx;
 import omero.grid.ImportSettings;
@@ -153,6 +160,14 @@ public class ManagedRepositoryI extends PublicRepositoryI
 
     private final Set<String> managedRepoUuids;
 
+    /* counts directory entries for %subdirs% expansion, adjusted by makeCheckedDirs */
+    private final DirectoryOccupancy directoryOccupancy = new DirectoryOccupancy(60000, 10000);
+
+    /* for verifyChecksumsInBackground */
+    private int checksumThreads = 4;
+    private int checksumMaxThreads = 16;
+    private int checksumBufferSize = 1 << 20;
+
     /**
      * Creates a {@link ProcessContainer} internally that will not be managed
      * by background threads. Used primarily during testing.
@@ -199,6 +214,30 @@ public class ManagedRepositoryI extends PublicRepositoryI
         return new _ManagedRepositoryTie(this);
     }
 
+    /**
+     * @param checksumThreads how many files a background checksum
+     * verification hashes concurrently unless the request specifies
+     */
+    public void setChecksumThreads(int checksumThreads) {
+        this.checksumThreads = checksumThreads;
+    }
+
+    /**
+     * @param checksumMaxThreads the most files a background checksum
+     * verification hashes concurrently whatever the request specifies
+     */
+    public void setChecksumMaxThreads(int checksumMaxThreads) {
+        this.checksumMaxThreads = checksumMaxThreads;
+    }
+
+    /**
+     * @param checksumBufferSize the size of the buffer with which a
+     * background checksum verification reads each file
+     */
+    public void setChecksumBufferSize(int checksumBufferSize) {
+        this.checksumBufferSize = checksumBufferSize;
+    }
+
     @Override
     public void initialize(FileMaker fileMaker, Long id, String repoUuid) throws ValidationException {
         super.initialize(fileMaker, id, repoUuid);
@@ -369,6 +408,27 @@ public class ManagedRepositoryI extends PublicRepositoryI
         return mismatchFiles;
     }
 
+    public HandlePrx verifyChecksumsInBackground(List<Long> ids, long startAfter, int threads, Current __current)
+            throws ServerError {
+        /* commit each batch of files separately unless the caller chose otherwise */
+        final Current adjustedCurr = makeAdjustedCurrent(__current);
+        adjustedCurr.ctx = new HashMap<String, String>(__current.ctx);
+        if (!adjustedCurr.ctx.containsKey(ChunkableRequest.CHUNK_SIZE_KEY)) {
+            adjustedCurr.ctx.put(ChunkableRequest.CHUNK_SIZE_KEY, Integer.toString(VerifyChecksumsRequestI.BATCH_SIZE));
+        }
+        final VerifyChecksumsRequestI request = new VerifyChecksumsRequestI(this,
+                checksumThreads, checksumMaxThreads, checksumBufferSize);
+        request.repoUuid = getRepoUuid();
+        request.fileIds = ids == null ? new ArrayList<Long>() : new ArrayList<Long>(ids);
+        request.startAfter = startAfter;
+        request.threads = threads;
+
+        final FindServiceFactoryMessage msg = new FindServiceFactoryMessage(this, adjustedCurr);
+        publishMessage(msg);
+        final ServiceFactoryI sf = msg.getServiceFactory();
+        return submitRequest(sf, request, adjustedCurr).ret;
+    }
+
     public List<Long> setChecksumAlgorithm(ChecksumAlgorithm toHasherWrapped, List<Long> ids, Current __current)
             throws ServerError {
         /* set up an invocation context in which the group may be adjusted freely */
@@ -430,6 +490,22 @@ public class ManagedRepositoryI extends PublicRepositoryI
     // HELPERS
     //
 
+    /**
+     * @param file an original file in this repository
+     * @return the file on the server's file-system
+     */
+    File getServerFile(OriginalFile file) {
+        return serverPaths.getServerFileFromFsFile(new FsFile(file.getPath() + file.getName()));
+    }
+
+    /**
+     * @param hasher a checksum algorithm
+     * @return a new checksum provider for the algorithm
+     */
+    ChecksumProvider getChecksumProvider(ome.model.enums.ChecksumAlgorithm hasher) {
+        return checksumProviderFactory.getProvider(ChecksumAlgorithmMapper.getChecksumType(hasher));
+    }
+
     /**
      * Creating the process will register itself in an appropriate
      * container (i.e. a SessionI or similar) for the current
@@ -1005,11 +1081,10 @@ public class ManagedRepositoryI extends PublicRepositoryI
          */
         private int directoryContentsCount(String path) {
             final File directory = serverPaths.getServerFileFromFsFile(new FsFile(path));
-            if (directory.exists()) {
-                if (directory.isDirectory()) {
-                    return directory.list().length;
-                }
-            } else {
+            final int count = directoryOccupancy.count(directory);
+            if (count >= 0) {
+                return count;
+            } else if (!directory.exists()) {
                 final File parent = directory.getParentFile();
                 if (parent != null && parent.exists() && parent.isDirectory()) {
                     return 0;
@@ -1452,8 +1527,24 @@ public class ManagedRepositoryI extends PublicRepositoryI
             pathsToFix.add(checked);
         }
 
+        /* note which directories are new, and their parents' modification times, so that the parents' counted entries may
+         * be adjusted if nothing else modified them meanwhile */
+        final Map<File, Long> newDirectories = new LinkedHashMap<File, Long>();
+        for (final CheckedPath checked : paths) {
+            if (!checked.exists()) {
+                final File newDirectory = serverPaths.getServerFileFromFsFile(checked.fsFile);
+                newDirectories.put(newDirectory, newDirectory.getParentFile().lastModified());
+            }
+        }
+
         super.makeCheckedDirs(paths, parents, s, sf, sql, effectiveEventContext);
 
+        for (final Map.Entry<File, Long> newDirectory : newDirectories.entrySet()) {
+            if (newDirectory.getKey().isDirectory()) {
+                directoryOccupancy.added(newDirectory.getKey().getParentFile(), newDirectory.getValue());
+            }
+        }
+
         /* ensure that root segment of the template path is wholly root-owned */
         if (!pathsForRoot.isEmpty()) {
             final Experimenter rootUser = sf.getQueryService().find(Experimenter.class, rootId);
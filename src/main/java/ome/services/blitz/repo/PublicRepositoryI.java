@@ -268,6 +268,12 @@ public class PublicRepositoryI implements _RepositoryOperations, ApplicationCont
         return repositoryDao.treeList(repoUuid, checked, __current);
     }
 
+    public RMap treeListLimited(String path, int depth, int limit, Current __current)
+            throws ServerError {
+        final CheckedPath checked = checkPath(path, null, __current);
+        return repositoryDao.treeList(repoUuid, checked, depth, limit, __current);
+    }
+
 
     /**
      * Register an OriginalFile using its path
@@ -76,6 +76,24 @@ public interface RepositoryDao {
     RMap treeList(String repoUuid, CheckedPath checked, Current __current)
             throws ServerError;
 
+    /**
+     * As {@link #treeList(String, CheckedPath, Current)} but stops listing
+     * directory contents below the given depth or beyond the given number
+     * of files. Directories whose contents are not listed are marked as
+     * truncated.
+     *
+     * @param repoUuid
+     * @param checked
+     * @param depth how many levels of directory contents to list,
+     *      or not positive for all levels
+     * @param limit how many files to list, or not positive for no limit
+     * @param __current
+     * @return
+     * @throws ServerError
+     */
+    RMap treeList(String repoUuid, CheckedPath checked, int depth, int limit,
+            Current __current) throws ServerError;
+
     /**
      * Checks that the given {@link CheckedPath} objects exist (via
      * {@link #findRepoFile(String, CheckedPath, String, Ice.Current)})
@@ -1,13 +1,17 @@
 package ome.services.blitz.repo;
 
 import java.sql.Timestamp;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import ome.api.IQuery;
@@ -35,7 +39,6 @@ import ome.system.ServiceFactory;
 import ome.util.SqlAction;
 import ome.util.SqlAction.DeleteLog;
 import omero.RMap;
-import omero.RType;
 import omero.SecurityViolation;
 import omero.ServerError;
 import omero.ValidationException;
@@ -100,6 +103,20 @@ public class RepositoryDaoImpl implements RepositoryDao {
     private static final String LOAD_ORIGINAL_FILE =
     "select f from OriginalFile as f left outer join fetch f.hasher where ";
 
+    /* SQL to count the separators in a file's path, so the directory level of its entry */
+    private static final String PATH_LEVEL =
+            "(LENGTH(path) - LENGTH(REPLACE(path, '" + FsFile.separatorChar + "', '')))";
+
+    /* SQL to list the files of a repository below a directory, level by level then by path then name */
+    private static final String LIST_DESCENDANTS =
+            "SELECT id, path, name, mimetype, size FROM originalfile " +
+            "WHERE repo = :repo AND path LIKE :prefix ESCAPE '!' AND " + PATH_LEVEL + " <= :maxLevel " +
+            "ORDER BY " + PATH_LEVEL + ", path, name";
+
+    /* query to find which of the given files the user may read */
+    private static final String FILTER_READABLE =
+            "SELECT id FROM OriginalFile WHERE id IN (:ids)";
+
     /* query to load a user's institution */
     private static final String LOAD_USER_INSTITUTION =
             "SELECT institution FROM " + Experimenter.class.getName() + " WHERE id = :id";
@@ -223,94 +240,181 @@ public class RepositoryDaoImpl implements RepositoryDao {
 
     public RMap treeList(final String repoUuid, final CheckedPath checked,
             Current current) throws ServerError {
+        return treeList(repoUuid, checked, 0, 0, current);
+    }
+
+    public RMap treeList(final String repoUuid, final CheckedPath checked,
+            final int depth, final int limit, Current current) throws ServerError {
 
         final RMap map = omero.rtypes.rmap();
         executor.execute(current.ctx, currentUser(current),
                 new Executor.SimpleWork(this,
-                "treeList", repoUuid, checked) {
+                "treeList", repoUuid, checked, depth, limit) {
 
             @Transactional(readOnly = true)
             public Object doWork(Session session, ServiceFactory sf) {
-                _treeList(map, repoUuid, checked, sf, getSqlAction());
+                _treeList(map, repoUuid, checked, depth, limit, session, sf, getSqlAction());
                 return null;
             }
         });
 
         return map;
     }
+
     /**
-     * Recursive descent for {@link PublicDirectoryI#treeList(String, Current)}.
-     * This should only really be called on directories, but if it's accidentally
-     * called on a non-directory, then we will treat it specially.
+     * Listing for {@link PublicRepositoryI#treeList(String, Current)}.
+     * The files of the repository below the given path, down to the given
+     * depth, are fetched with one query level by level and no more than the
+     * limit of them, then filtered by readability in batches, and the tree
+     * is assembled in memory breadth-first. This should only really be called
+     * on directories, but if it's accidentally called on a non-directory, then
+     * only that file is listed.
      *
-     * @param rv The {@link RMap} which should be filled for a given level.
-     * @param path
-     * @param __current
-     * @throws ServerError
+     * @param rv The {@link RMap} which should be filled for the top level.
+     * @param depth how many levels of directory contents to list,
+     *      or not positive for all levels
+     * @param limit how many files to list below the top level,
+     *      or not positive for no limit
      */
     private void _treeList(RMap rv, String repoUuid, CheckedPath checked,
-            ServiceFactory sf, SqlAction sql) {
+            int depth, int limit, Session session, ServiceFactory sf, SqlAction sql) {
 
         final ome.model.core.OriginalFile file
             = findRepoFile(sf, sql, repoUuid, checked, null);
 
         if (file == null) {
-            if (rv.getValue().size() == 0) {
-                // This is likely the top-level search, and therefore
-                // we can just exit.
-                log.debug("No file found in _treeList: " + checked);
-            } else {
-                // In this case, we've been given data that's now
-                // missing from the DB in the same transaction.
-                // Shouldn't happen.
-                log.warn("No file found in _treeList: " + checked);
-            }
+            log.debug("No file found in _treeList: " + checked);
             return; // EARLY EXIT.
         }
 
-        final String name = file.getName();
-        final String mime = file.getMimetype();
-        final Long size = file.getSize();
-        final Long id = file.getId();
+        final RMap top = treeListEntry(file.getId(), file.getMimetype(), file.getSize());
+        rv.put(file.getName(), top);
 
-        final RMap subRv = omero.rtypes.rmap();
-        final Map<String, RType> subVal = subRv.getValue();
-        rv.put(name, subRv);
-        subVal.put("id", omero.rtypes.rlong(id));
-        subVal.put("mimetype", omero.rtypes.rstring(mime));
-        if (size != null) {
-            subVal.put("size", omero.rtypes.rlong(size));
+        if (!PublicRepositoryI.DIRECTORY_MIMETYPE.equals(file.getMimetype())) {
+            return; // EARLY EXIT.
         }
 
-        if (file.getMimetype() != null && // FIXME: should be set!
-                PublicRepositoryI.DIRECTORY_MIMETYPE.equals(file.getMimetype())) {
+        /* fetch the files below the directory level by level, one more than the limit
+         * so as to know if the listing is cut short */
+        final String dirname = checked.getDirname();
+        final int topLevel = pathLevel(dirname);
+        final org.hibernate.Query query = session.createSQLQuery(LIST_DESCENDANTS)
+                .setParameter("repo", repoUuid)
+                .setParameter("prefix", escapeLike(dirname) + '%')
+                .setParameter("maxLevel", depth > 0 ? topLevel + depth - 1 : Integer.MAX_VALUE);
+        if (limit > 0) {
+            query.setMaxResults(limit + 1);
+        }
+        @SuppressWarnings("unchecked")
+        final List<Object[]> descendants = query.list();
+
+        /* the directories whose files may not all have been fetched are the last fetched and
+         * any not fetched at its level or below */
+        final boolean cut = limit > 0 && descendants.size() > limit;
+        final String cutDirectory = cut ? (String) descendants.get(descendants.size() - 1)[1] : null;
+        final int cutLevel = cut ? pathLevel(cutDirectory) - topLevel + 1 : Integer.MAX_VALUE;
+        final Set<String> fetchedDirectories = new HashSet<String>();
+        final List<Long> ids = new ArrayList<Long>(descendants.size());
+        for (final Object[] descendant : descendants) {
+            fetchedDirectories.add((String) descendant[1]);
+            ids.add(((Number) descendant[0]).longValue());
+        }
 
-            // Now we recurse
-            List<ome.model.core.OriginalFile> subFiles
-                = getOriginalFiles(sf, sql, repoUuid, checked);
-            final RMap subFilesRv = omero.rtypes.rmap();
+        /* group the readable files below the directory by their path */
+        final Set<Long> readable = new HashSet<Long>(ids.size());
+        for (final List<Long> idsBatch : Iterables.partition(ids, BATCH_SIZE)) {
+            for (final Object[] row : sf.getQueryService().projection(FILTER_READABLE,
+                    new Parameters().addIds(idsBatch))) {
+                readable.add((Long) row[0]);
+            }
+        }
+        final ListMultimap<String, Object[]> byDirectory = ArrayListMultimap.create();
+        for (final Object[] descendant : descendants) {
+            if (readable.contains(((Number) descendant[0]).longValue())) {
+                byDirectory.put((String) descendant[1], descendant);
+            }
+        }
 
-            for (ome.model.core.OriginalFile subFile : subFiles) {
-                CheckedPath child = null;
-                try {
-                    child = checked.child(subFile.getName());
-                    if (child == null) {
-                        // This should never happen.
-                        throw new omero.ValidationException(null, null, "null child!");
-                    }
-                } catch (omero.ValidationException ve) {
-                    // This can only really happen if the database has very odd
-                    // information stored. Issuing a warning and then throwing
-                    // an exception.
-                    log.warn(String.format("Validation exception on %s.child(%s)",
-                            checked, subFile.getName()), ve);
-                    throw new ome.conditions.ValidationException(ve.getMessage());
+        /* list each directory's files whole, or mark it as truncated;
+         * directories that the user cannot read are not in byDirectory
+         * so neither are their contents listed */
+        final Deque<TreeListLevel> pending = new ArrayDeque<TreeListLevel>();
+        pending.add(new TreeListLevel(top, dirname, 1));
+        int listed = 0;
+        while (!pending.isEmpty()) {
+            final TreeListLevel level = pending.remove();
+            final List<Object[]> files = byDirectory.get(level.dirname);
+            final boolean incomplete = level.depth > cutLevel || (level.depth == cutLevel
+                    && (level.dirname.equals(cutDirectory) || !fetchedDirectories.contains(level.dirname)));
+            if ((depth > 0 && level.depth > depth) || incomplete || (limit > 0 && listed + files.size() > limit)) {
+                level.rv.put("truncated", omero.rtypes.rbool(true));
+                continue;
+            }
+            final RMap subFilesRv = omero.rtypes.rmap();
+            for (final Object[] subFile : files) {
+                final String name = (String) subFile[2];
+                final String mime = (String) subFile[3];
+                final Number size = (Number) subFile[4];
+                final RMap subRv = treeListEntry(((Number) subFile[0]).longValue(), mime,
+                        size == null ? null : size.longValue());
+                subFilesRv.put(name, subRv);
+                if (PublicRepositoryI.DIRECTORY_MIMETYPE.equals(mime)) {
+                    pending.add(new TreeListLevel(subRv, level.dirname + name + FsFile.separatorChar,
+                            level.depth + 1));
                 }
+            }
+            listed += files.size();
+            level.rv.put("files", subFilesRv);
+        }
+    }
 
-                _treeList(subFilesRv, repoUuid, child, sf, sql);
+    /**
+     * A directory whose contents are yet to be listed by
+     * {@link #_treeList(RMap, String, CheckedPath, int, int, Session, ServiceFactory, SqlAction)}.
+     */
+    private static class TreeListLevel {
+        final RMap rv;
+        final String dirname;
+        final int depth;
+
+        TreeListLevel(RMap rv, String dirname, int depth) {
+            this.rv = rv;
+            this.dirname = dirname;
+            this.depth = depth;
+        }
+    }
+
+    private static RMap treeListEntry(Long id, String mime, Long size) {
+        final RMap rv = omero.rtypes.rmap();
+        rv.put("id", omero.rtypes.rlong(id));
+        rv.put("mimetype", omero.rtypes.rstring(mime));
+        if (size != null) {
+            rv.put("size", omero.rtypes.rlong(size));
+        }
+        return rv;
+    }
+
+    /**
+     * @param path a path
+     * @return how many separators the path has, as counted by {@link #PATH_LEVEL}
+     */
+    private static int pathLevel(String path) {
+        int level = 0;
+        for (int index = 0; index < path.length(); index++) {
+            if (path.charAt(index) == FsFile.separatorChar) {
+                level++;
             }
-            subVal.put("files", subFilesRv);
         }
+        return level;
+    }
+
+    /**
+     * @param text some text
+     * @return the text with the characters that are special in a LIKE
+     *      pattern escaped with {@code !}
+     */
+    private static String escapeLike(String text) {
+        return text.replace("!", "!!").replace("%", "!%").replace("_", "!_");
     }
 
     public void createOrFixUserDir(final String repoUuid,
@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2018 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.blitz.repo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ome.model.core.OriginalFile;
+import ome.model.internal.Details;
+import ome.services.graphs.GraphException;
+import ome.services.graphs.GraphPolicy;
+import ome.services.graphs.GraphTraversal;
+import ome.services.util.ReadOnlyStatus;
+import ome.util.checksum.ChecksumProvider;
+import omero.cmd.ChunkableRequest;
+import omero.cmd.ERR;
+import omero.cmd.HandleI.Cancel;
+import omero.cmd.Helper;
+import omero.cmd.Response;
+import omero.cmd.graphs.PlannedWrites;
+import omero.grid.VerifyChecksumsRequest;
+import omero.grid.VerifyChecksumsResponse;
+
+/**
+ * Verifies the checksums of original files of a {@link ManagedRepositoryI}
+ * in the background. The steps find which of the files are in the
+ * repository and, as a {@link ChunkableRequest}, plan to verify them in
+ * batches each of which is then loaded with a single query in a transaction
+ * of its own and hashed on a pool of threads, reading each file with a
+ * large buffer. Progress and the file to resume after are published in the
+ * parameters of the status after every batch.
+ *
+ * @since 5.5
+ * @see ManagedRepositoryI#verifyChecksumsInBackground(List, long, int, Ice.Current)
+ */
+public class VerifyChecksumsRequestI extends VerifyChecksumsRequest
+        implements ChunkableRequest, ReadOnlyStatus.IsAware {
+
+    private static final long serialVersionUID = 4217306938725518812L;
+
+    private static final Logger log = LoggerFactory.getLogger(VerifyChecksumsRequestI.class);
+
+    /** The number of files loaded and checked per transaction. */
+    public static final int BATCH_SIZE = 256;
+
+    /** The number of IDs filtered by repository per query. */
+    private static final int FILTER_BATCH_SIZE = 1000;
+
+    private static final String LOAD_FILES =
+            "FROM OriginalFile o LEFT OUTER JOIN FETCH o.hasher WHERE o.id IN (:ids)";
+
+    private static final Comparator<OriginalFile> ID_ORDER = new Comparator<OriginalFile>() {
+        @Override
+        public int compare(OriginalFile a, OriginalFile b) {
+            return a.getId().compareTo(b.getId());
+        }
+    };
+
+    private final transient ManagedRepositoryI repo;
+
+    private final transient int defaultThreads;
+
+    private final transient int maxThreads;
+
+    private final transient int bufferSize;
+
+    private final VerifyChecksumsResponse rsp = new VerifyChecksumsResponse();
+
+    private transient Helper helper;
+
+    private transient PlannedWrites plannedWrites;
+
+    private transient List<List<Long>> batches;
+
+    private transient int poolSize;
+
+    /**
+     * @param repo the repository holding the files
+     * @param defaultThreads the number of files to hash concurrently if
+     *        {@link #threads} is not positive
+     * @param maxThreads the most files to hash concurrently whatever
+     *        {@link #threads} is set to
+     * @param bufferSize the size of the buffer used to read each file
+     */
+    public VerifyChecksumsRequestI(ManagedRepositoryI repo, int defaultThreads,
+            int maxThreads, int bufferSize) {
+        this.repo = repo;
+        this.defaultThreads = Math.max(1, defaultThreads);
+        this.maxThreads = Math.max(this.defaultThreads, maxThreads);
+        this.bufferSize = bufferSize;
+    }
+
+    //
+    // IRequest methods
+    //
+
+    @Override
+    public Map<String, String> getCallContext() {
+        final Map<String, String> all = new HashMap<String, String>();
+        all.put(omero.constants.GROUP.value, "-1");
+        return all;
+    }
+
+    @Override
+    public boolean deferWrites(PlannedWrites writes) {
+        plannedWrites = writes;
+        return true;
+    }
+
+    @Override
+    public void init(Helper helper) {
+        this.helper = helper;
+        rsp.mismatchedFiles = new ArrayList<Long>();
+        rsp.unreadableFiles = new ArrayList<Long>();
+        rsp.checkpoint = startAfter;
+        poolSize = threads > 0 ? Math.min(threads, maxThreads) : defaultThreads;
+        /* in ascending order so that every file up to a checkpoint is checked */
+        final List<Long> ids = fileIds == null ? Collections.<Long>emptyList()
+                : new ArrayList<Long>(new TreeSet<Long>(fileIds));
+        batches = Lists.partition(ids, FILTER_BATCH_SIZE);
+        helper.setSteps(Math.max(1, batches.size()));
+        publishProgress();
+    }
+
+    @Override
+    public Object step(int step) throws Cancel {
+        helper.assertStep(step);
+        if (batches.isEmpty()) {
+            return null;
+        }
+        final SortedSet<Long> ids = new TreeSet<Long>();
+        for (final Long id : helper.getSql().filterFileIdsByRepo(repoUuid, batches.get(step))) {
+            if (id > startAfter) {
+                ids.add(id);
+            }
+        }
+        try {
+            for (final List<Long> batch : Iterables.partition(ids, BATCH_SIZE)) {
+                if (plannedWrites == null) {
+                    /* the caller opted out of chunking so verify within the request's transaction */
+                    new Verifier(helper.getSession()).processInstances(OriginalFile.class.getName(), batch);
+                } else {
+                    plannedWrites.deferring(new Verifier(null)).processInstances(OriginalFile.class.getName(), batch);
+                }
+            }
+        } catch (GraphException e) {
+            throw helper.cancel(new ERR(), e, "verify-fail", "lastFile", Long.toString(rsp.checkpoint));
+        }
+        return null;
+    }
+
+    @Override
+    public void applyWrites(PlannedWrites writes, int from, int to, Session session) throws GraphException {
+        writes.apply(from, to, new Verifier(session));
+    }
+
+    @Override
+    public void finish() {
+        if (plannedWrites == null) {
+            log.info("Verified checksums of {} files in {} on {} threads",
+                    rsp.verifiedFiles, repoUuid, poolSize);
+        } else {
+            log.info("Verifying checksums of files in {} in {} batches on {} threads",
+                    repoUuid, plannedWrites.size(), poolSize);
+        }
+    }
+
+    @Override
+    public void buildResponse(int step, Object object) {
+        helper.assertResponse(step);
+        if (helper.isLast(step)) {
+            helper.setResponseIfNull(rsp);
+        }
+    }
+
+    @Override
+    public Response getResponse() {
+        return helper.getResponse();
+    }
+
+    @Override
+    public boolean isReadOnly(ReadOnlyStatus readOnly) {
+        return true;
+    }
+
+    //
+    // Helpers
+    //
+
+    /**
+     * Reports the progress so far through the parameters of the status,
+     * replacing the map so that readers never see it half updated.
+     */
+    private void publishProgress() {
+        final Map<String, String> progress = new HashMap<String, String>();
+        progress.put("lastFile", Long.toString(rsp.checkpoint));
+        progress.put("verified", Long.toString(rsp.verifiedFiles));
+        progress.put("bytes", Long.toString(rsp.verifiedBytes));
+        progress.put("mismatched", Integer.toString(rsp.mismatchedFiles.size()));
+        progress.put("unreadable", Integer.toString(rsp.unreadableFiles.size()));
+        helper.getStatus().parameters = progress;
+    }
+
+    /**
+     * Verifies the checksums of a batch of original files.
+     * @param session the Hibernate session with which to load the files
+     * @param ids the IDs of the files, in ascending order
+     * @throws InterruptedException if interrupted while waiting for a file to be hashed
+     */
+    private void verify(Session session, List<Long> ids) throws InterruptedException {
+        @SuppressWarnings("unchecked")
+        final List<OriginalFile> files = session.createQuery(LOAD_FILES).setParameterList("ids", ids).list();
+        Collections.sort(files, ID_ORDER);
+
+        /* the files were found in the repository without regard to permissions */
+        final Set<Long> unloaded = new HashSet<Long>(ids);
+        for (final OriginalFile file : files) {
+            unloaded.remove(file.getId());
+        }
+        for (final Long id : new TreeSet<Long>(unloaded)) {
+            log.warn("Cannot load original file #{} to verify its checksum", id);
+            rsp.unreadableFiles.add(id);
+        }
+
+        /* resolve the files on this thread, hash them on the pool */
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.min(poolSize, Math.max(1, files.size())),
+                new ThreadFactoryBuilder().setNameFormat("verify-checksums-%d").setDaemon(true).build());
+        try {
+            final List<Long> checked = new ArrayList<Long>(files.size());
+            final List<Future<Long>> results = new ArrayList<Future<Long>>(files.size());
+            for (final OriginalFile file : files) {
+                if (file.getHasher() == null || file.getHash() == null) {
+                    continue;
+                }
+                final File path = repo.getServerFile(file);
+                final ChecksumProvider provider = repo.getChecksumProvider(file.getHasher());
+                final String expected = file.getHash();
+                checked.add(file.getId());
+                results.add(pool.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException {
+                        final long bytes = hash(path, provider);
+                        /* a negative count marks a mismatch */
+                        return provider.checksumAsString().equalsIgnoreCase(expected) ? bytes : -1 - bytes;
+                    }
+                }));
+            }
+
+            for (int i = 0; i < results.size(); i++) {
+                final long id = checked.get(i);
+                try {
+                    long bytes = results.get(i).get();
+                    if (bytes < 0) {
+                        rsp.mismatchedFiles.add(id);
+                        bytes = -1 - bytes;
+                    }
+                    rsp.verifiedFiles++;
+                    rsp.verifiedBytes += bytes;
+                } catch (ExecutionException e) {
+                    log.warn("Cannot read original file #{}", id, e.getCause());
+                    rsp.unreadableFiles.add(id);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        /* the loaded files are not needed again so need not stay in the session */
+        session.clear();
+        rsp.checkpoint = ids.get(ids.size() - 1);
+        publishProgress();
+    }
+
+    /**
+     * Feeds the whole file to the checksum provider.
+     * @return the number of bytes read
+     */
+    private long hash(File file, ChecksumProvider provider) throws IOException {
+        final byte[] buffer = new byte[(int) Math.max(1, Math.min(bufferSize, file.length()))];
+        long total = 0;
+        final InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                provider.putBytes(buffer, 0, read);
+                total += read;
+            }
+        } finally {
+            in.close();
+        }
+        return total;
+    }
+
+    /**
+     * Verifies the batches of original files as they are planned or made as writes.
+     */
+    private final class Verifier implements GraphTraversal.Processor {
+
+        private final Session session;
+
+        /**
+         * @param session the Hibernate session with which to load the files,
+         *        may be {@code null} if the verifications are only planned
+         */
+        Verifier(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public void nullProperties(String className, String propertyName, Collection<Long> ids) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void deleteInstances(String className, Collection<Long> ids) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void processInstances(String className, Collection<Long> ids) throws GraphException {
+            try {
+                verify(session, new ArrayList<Long>(ids));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GraphException("interrupted while verifying checksums after original file #" + rsp.checkpoint);
+            }
+        }
+
+        @Override
+        public Set<GraphPolicy.Ability> getRequiredPermissions() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public void assertMayProcess(String className, long id, Details details) {
+        }
+    }
+}
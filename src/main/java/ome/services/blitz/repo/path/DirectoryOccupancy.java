@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.blitz.repo.path;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Counts the entries of server directories for the expansion of repository template paths without listing the directories
+ * every time. A count is remembered along with the modification time of its directory and is used only while the directory's
+ * modification time is unchanged, so a directory is listed again only after it is modified by some other means than
+ * {@link #added(File, long)}. Counts are also forgotten after a while in case a modification went unnoticed, for instance through
+ * the limited resolution of modification times.
+ *
+ * @since 5.5
+ */
+public class DirectoryOccupancy {
+
+    /**
+     * The number of entries of a directory as of its given modification time.
+     */
+    private static class Occupancy {
+        private long modified;
+        private int count;
+
+        Occupancy(long modified, int count) {
+            this.modified = modified;
+            this.count = count;
+        }
+    }
+
+    private final Cache<File, Occupancy> occupancies;
+
+    /**
+     * Construct a new directory occupancy index.
+     * @param expiryMillis for how long a count may be used, in milliseconds
+     * @param maximumSize for how many directories to remember counts
+     */
+    public DirectoryOccupancy(long expiryMillis, long maximumSize) {
+        occupancies = CacheBuilder.newBuilder()
+                .expireAfterWrite(expiryMillis, TimeUnit.MILLISECONDS)
+                .maximumSize(maximumSize)
+                .build();
+    }
+
+    /**
+     * Count the entries in the given directory, listing it only if it may have changed since it was last listed.
+     * @param directory a server directory
+     * @return the number of entries in the directory, or {@code -1} if it is not a readable directory
+     */
+    public int count(File directory) {
+        /* note the modification time before listing so that a concurrent change causes a later listing */
+        final long modified = directory.lastModified();
+        final Occupancy occupancy = occupancies.getIfPresent(directory);
+        if (occupancy != null && modified != 0) {
+            synchronized (occupancy) {
+                if (occupancy.modified == modified) {
+                    return occupancy.count;
+                }
+            }
+        }
+        final String[] entries = directory.list();
+        if (entries == null) {
+            occupancies.invalidate(directory);
+            return -1;
+        }
+        occupancies.put(directory, new Occupancy(modified, entries.length));
+        return entries.length;
+    }
+
+    /**
+     * Note that an entry has been added to the given directory. If the directory's entries are counted as of its modification
+     * time from before the entry was added then the count is adjusted instead of the directory having to be listed again.
+     * Otherwise the directory may also have been modified by other means so its count is forgotten.
+     * @param directory a server directory
+     * @param modifiedBefore the directory's modification time from before the entry was added
+     */
+    public void added(File directory, long modifiedBefore) {
+        final Occupancy occupancy = occupancies.getIfPresent(directory);
+        if (occupancy != null) {
+            synchronized (occupancy) {
+                if (modifiedBefore != 0 && occupancy.modified == modifiedBefore) {
+                    occupancy.count++;
+                    occupancy.modified = directory.lastModified();
+                    return;
+                }
+            }
+            occupancies.invalidate(directory);
+        }
+    }
+}
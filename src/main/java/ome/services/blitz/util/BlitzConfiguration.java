@@ -118,6 +118,7 @@ public class BlitzConfiguration {
             blitzManager = createAndRegisterManager(sessionManager,
                     securitySystem, executor);
             blitzVerifier = createAndRegisterVerifier(sessionManager, sessionProvider, executor);
+            blitzRing.setSessionManager(blitzManager);
             managerDirectProxy = blitzAdapter.createDirectProxy(managerId());
 
             blitzAdapter.activate();
@@ -283,6 +284,10 @@ public class BlitzConfiguration {
             blitzRing.destroy();
         }
 
+        if (topicManager instanceof TopicManager.Impl) {
+            ((TopicManager.Impl) topicManager).close();
+        }
+
         logger.debug(String.format("Destroying Ice.Communicator (%s)",
                 communicator));
         logger.info("Shutting down Ice.Communicator");
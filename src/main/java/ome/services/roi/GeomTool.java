@@ -9,15 +9,20 @@ import static omero.rtypes.rdouble;
 import static omero.rtypes.rint;
 import static omero.rtypes.rlong;
 
+import java.awt.Dimension;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import ome.conditions.ApiUsageException;
@@ -237,111 +242,148 @@ public class GeomTool {
         return sp;
     }
 
+    /**
+     * Maximum number of shape ids bound to a single query by
+     * {@link #getStats(List)}.
+     */
+    private static final int MAX_IDS = 1000;
+
+    /**
+     * Calculates the statistics of the given shapes over all the planes they
+     * are attached to. The shapes are loaded in as few queries as possible,
+     * each shape is rasterized once and each plane is read only once for all
+     * the shapes on it. Points outside of the image are ignored.
+     *
+     * @param shapeIds the ids of the shapes, may contain duplicates
+     * @return the statistics in the order of the given ids
+     */
     public RoiStats getStats(List<Long> shapeIds) {
 
         if (shapeIds == null) {
             return null; // EARLY EXIT
         }
 
+        if (shapeIds.isEmpty()) {
+            final RoiStats rs = new RoiStats();
+            rs.perShape = new ShapeStats[0];
+            return rs; // EARLY EXIT
+        }
+
         final Session session = factory.getSession();
+        final List<Long> idList =
+                new ArrayList<Long>(new LinkedHashSet<Long>(shapeIds));
+        final Map<Long, ome.model.roi.Shape> shapes =
+                new HashMap<Long, ome.model.roi.Shape>();
+        for (int from = 0; from < idList.size(); from += MAX_IDS) {
+            final List<Long> chunk = idList.subList(from,
+                    Math.min(from + MAX_IDS, idList.size()));
+            final List<?> results = session.createQuery(
+                    "select distinct s from Shape s "
+                            + "join fetch s.roi r join fetch r.image i "
+                            + "join fetch i.pixels p join fetch p.channels c "
+                            + "join fetch c.logicalChannel lc "
+                            + "where s.id in (:ids)")
+                    .setParameterList("ids", chunk).list();
+            for (Object result : results) {
+                final ome.model.roi.Shape shape = (ome.model.roi.Shape) result;
+                shapes.put(shape.getId(), shape);
+            }
+        }
+        return getStats(shapeIds, shapes);
+    }
+
+    /**
+     * Calculates the statistics of the given shapes once they are loaded,
+     * with their ROI, image, pixels, channels and logical channels.
+     *
+     * @param shapeIds the ids of the shapes, not empty, may contain
+     *                 duplicates
+     * @param shapes the loaded shapes by id
+     * @return the statistics in the order of the given ids
+     * @throws ApiUsageException if any of the ids was not loaded
+     */
+    RoiStats getStats(List<Long> shapeIds,
+            Map<Long, ome.model.roi.Shape> shapes) {
+
         final RoiStats rs = new RoiStats();
         rs.perShape = new ShapeStats[shapeIds.size()];
+        final Set<Long> uniqueIds = new LinkedHashSet<Long>(shapeIds);
+        if (!shapes.keySet().containsAll(uniqueIds)) {
+            throw new ApiUsageException("Given shape id(s) invalid");
+        }
 
-        for (int i = 0; i < shapeIds.size(); i++) {
-
-            final long shapeId = shapeIds.get(i);
-
-            final ome.model.roi.Shape shape = (ome.model.roi.Shape) session
-                    .createQuery(
-                            "select s from Shape s "
-                                    + "join fetch s.roi r join fetch r.image i "
-                                    + "join fetch i.pixels p join fetch p.channels c "
-                                    + "join fetch c.logicalChannel lc "
-                                    + "where s.id = :id").setParameter("id",
-                            shapeId).uniqueResult();
-            final SmartShape smartShape = (SmartShape) new ShapeMapper()
-                    .map(shape);
-
-            final ome.model.roi.Roi roi = shape.getRoi();
-            final ome.model.core.Image img = roi.getImage();
-            final ome.model.core.Pixels pix = img.getPrimaryPixels();
-
-            final long roiId = roi.getId();
-            final long imgId = img.getId();
-            final long pixId = pix.getId();
-
-            final int maxZ = pix.getSizeZ();
-            final int maxT = pix.getSizeT();
-
-            // We only take the values for the first Shape. If this call is
-            // being made with different shapes, then the user will know as
-            // much.
-            if (rs.combined == null) {
-                rs.roiId = roiId;
-                rs.imageId = imgId;
-                rs.pixelsId = pixId;
-
-                int ch = pix.sizeOfChannels();
-                rs.combined = makeStats(ch);
-                rs.combined.shapeId = -1;
-                rs.combined.channelIds = new long[ch];
-                for (int w = 0; w < ch; w++) {
-                    rs.combined.channelIds[w] = pix.getChannel(w)
-                            .getLogicalChannel().getId();
-                }
-            }
+        // Rasterize every shape once and queue it on each plane it covers,
+        // grouped by pixels so that a buffer is only opened once. Each
+        // plane's queue shares the shape's target for the channel.
+        final Map<Long, ShapeStats> statsById = new HashMap<Long, ShapeStats>();
+        final Map<Long, double[]> sumsOfSquares = new HashMap<Long, double[]>();
+        final Map<Long, Pixels> pixelsById = new LinkedHashMap<Long, Pixels>();
+        final Map<Long, Map<Long, List<PlaneTarget>>> planesByPixels =
+                new HashMap<Long, Map<Long, List<PlaneTarget>>>();
+        for (Long shapeId : uniqueIds) {
+            final ome.model.roi.Shape shape = shapes.get(shapeId);
+            final Pixels pix = shape.getRoi().getImage().getPrimaryPixels();
             final ShapeStats stats = makeStats(pix, shape);
             stats.shapeId = shape.getId();
+            statsById.put(shapeId, stats);
 
-            final int ch = stats.channelIds.length;
-            final double[] sumOfSquares = new double[ch];
+            final int sizeZ = pix.getSizeZ();
+            final int sizeC = pix.getSizeC();
+            final int sizeT = pix.getSizeT();
+            final ShapeSpans spans = ShapeSpans.of(
+                    (SmartShape) new ShapeMapper().map(shape),
+                    pix.getSizeX(), pix.getSizeY());
+            final double[] sumOfSquares = new double[stats.channelIds.length];
+            sumsOfSquares.put(shapeId, sumOfSquares);
 
             final Integer theZ = shape.getTheZ(); // May be null
+            final Integer theC = shape.getTheC(); // May be null
             final Integer theT = shape.getTheT(); // May be null
 
             final int startZ = (theZ == null) ? 0 : theZ.intValue();
             final int startT = (theT == null) ? 0 : theT.intValue();
 
-            final int endZ = (theZ == null) ? (maxZ - 1) : theZ.intValue();
-            final int endT = (theT == null) ? (maxT - 1) : theT.intValue();
-
-            final PixelBuffer buf = data.getBuffer(pixId);
-            try {
-                SmartShape.PointCallback cb = new SmartShape.PointCallback() {
-
-                    public void handle(int x, int y) {
-
-                        for (int w = 0; w < ch; w++) {
-
-                            for (int z = startZ; z <= endZ; z++) {
-                                for (int t = startT; t <= endT; t++) {
-
-                                    // WHAT TO DO ABOUT THE CHANNELS IN AGGREGATION?
-                                    stats.pointsCount[w]++;
-                                    double value = data.get(buf, x, y, z, w, t);
-                                    stats.min[w] = Math.min(value, stats.min[w]);
-                                    stats.max[w] = Math.max(value, stats.max[w]);
-                                    stats.sum[w] += value;
-                                    sumOfSquares[w] += value * value;
-
-                                }
-                            }
+            final int endZ = (theZ == null) ? (sizeZ - 1) : theZ.intValue();
+            final int endT = (theT == null) ? (sizeT - 1) : theT.intValue();
 
+            Map<Long, List<PlaneTarget>> planes = planesByPixels.get(pix.getId());
+            if (planes == null) {
+                planes = new TreeMap<Long, List<PlaneTarget>>();
+                planesByPixels.put(pix.getId(), planes);
+                pixelsById.put(pix.getId(), pix);
+            }
+            if (spans.count == 0) {
+                continue;
+            }
+            for (int w = 0; w < stats.channelIds.length; w++) {
+                final int c = (theC == null) ? w : theC.intValue();
+                final PlaneTarget target =
+                        new PlaneTarget(spans, stats, sumOfSquares, w);
+                for (int t = startT; t <= endT; t++) {
+                    for (int z = startZ; z <= endZ; z++) {
+                        final long plane = ((long) t * sizeC + c) * sizeZ + z;
+                        List<PlaneTarget> targets = planes.get(plane);
+                        if (targets == null) {
+                            targets = new ArrayList<PlaneTarget>();
+                            planes.put(plane, targets);
                         }
+                        targets.add(target);
                     }
-                };
-
-                smartShape.areaPoints(cb);
-            } finally {
-                try {
-                    buf.close();
-                } catch (IOException e) {
-                    log.error("Error closing " + buf, e);
                 }
             }
+        }
 
-            for (int w = 0; w < ch; w++) {
+        for (Pixels pix : pixelsById.values()) {
+            accumulate(pix, planesByPixels.get(pix.getId()));
+        }
 
+        for (Long shapeId : uniqueIds) {
+            final ShapeStats stats = statsById.get(shapeId);
+            final double[] sumOfSquares = sumsOfSquares.get(shapeId);
+            for (int w = 0; w < stats.channelIds.length; w++) {
+                if (stats.pointsCount[w] == 0) {
+                    continue;
+                }
                 stats.mean[w] = stats.sum[w] / stats.pointsCount[w];
                 if (stats.pointsCount[w] > 1) {
                     double sigmaSquare = (sumOfSquares[w] - stats.sum[w]
@@ -352,14 +394,116 @@ public class GeomTool {
                     }
                 }
             }
+        }
+
+        for (int i = 0; i < shapeIds.size(); i++) {
+            rs.perShape[i] = statsById.get(shapeIds.get(i));
+        }
 
-            rs.perShape[i] = stats;
+        // We only take the values for the first Shape. If this call is
+        // being made with different shapes, then the user will know as
+        // much.
+        final ome.model.roi.Shape first = shapes.get(shapeIds.get(0));
+        final ome.model.roi.Roi roi = first.getRoi();
+        final ome.model.core.Image img = roi.getImage();
+        final Pixels pix = img.getPrimaryPixels();
+        rs.roiId = roi.getId();
+        rs.imageId = img.getId();
+        rs.pixelsId = pix.getId();
+
+        int ch = pix.sizeOfChannels();
+        rs.combined = makeStats(ch);
+        rs.combined.shapeId = -1;
+        rs.combined.channelIds = new long[ch];
+        for (int w = 0; w < ch; w++) {
+            rs.combined.channelIds[w] = pix.getChannel(w)
+                    .getLogicalChannel().getId();
         }
 
         return rs;
 
     }
 
+    /**
+     * Adds the values of the queued planes of the given pixels to the
+     * statistics of their shapes. Each plane is read once unless the image
+     * is tiled, in which case each tile of the plane that any of its shapes
+     * covers is read once.
+     */
+    private void accumulate(Pixels pix, Map<Long, List<PlaneTarget>> planes) {
+        if (planes.isEmpty()) {
+            return;
+        }
+        final int sizeX = pix.getSizeX();
+        final int sizeY = pix.getSizeY();
+        final int sizeZ = pix.getSizeZ();
+        final int sizeC = pix.getSizeC();
+        final boolean tiled = data.requiresPixelsPyramid(pix);
+        final PixelBuffer buf = data.getBuffer(pix.getId());
+        try {
+            final Dimension tileSize = tiled ? buf.getTileSize() : null;
+            for (Map.Entry<Long, List<PlaneTarget>> plane : planes.entrySet()) {
+                final long index = plane.getKey();
+                final int z = (int) (index % sizeZ);
+                final int c = (int) (index / sizeZ % sizeC);
+                final int t = (int) (index / sizeZ / sizeC);
+                final List<PlaneTarget> targets = plane.getValue();
+                if (!tiled) {
+                    final ome.util.PixelData pd = data.getPlane(buf, z, c, t);
+                    try {
+                        for (PlaneTarget target : targets) {
+                            target.add(pd, 0, 0, sizeX, sizeY);
+                        }
+                    } finally {
+                        pd.dispose();
+                    }
+                    continue;
+                }
+                int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+                int maxX = -1, maxY = -1;
+                for (PlaneTarget target : targets) {
+                    minX = Math.min(minX, target.spans.minX);
+                    minY = Math.min(minY, target.spans.minY);
+                    maxX = Math.max(maxX, target.spans.maxX);
+                    maxY = Math.max(maxY, target.spans.maxY);
+                }
+                final int tileW = tileSize == null ? sizeX : tileSize.width;
+                final int tileH = tileSize == null ? sizeY : tileSize.height;
+                final List<PlaneTarget> onTile = new ArrayList<PlaneTarget>();
+                for (int y = minY / tileH * tileH; y <= maxY; y += tileH) {
+                    final int h = Math.min(tileH, sizeY - y);
+                    for (int x = minX / tileW * tileW; x <= maxX; x += tileW) {
+                        final int w = Math.min(tileW, sizeX - x);
+                        onTile.clear();
+                        for (PlaneTarget target : targets) {
+                            if (target.overlaps(x, y, w, h)) {
+                                onTile.add(target);
+                            }
+                        }
+                        if (onTile.isEmpty()) {
+                            continue;
+                        }
+                        final ome.util.PixelData pd =
+                                data.getTile(buf, z, c, t, x, y, w, h);
+                        try {
+                            for (PlaneTarget target : onTile) {
+                                target.add(pd, x, y, w, h);
+                            }
+                        } finally {
+                            pd.dispose();
+                        }
+                    }
+                }
+            }
+        } finally {
+            try {
+                buf.close();
+            } catch (IOException e) {
+                log.error("Error closing " + buf, e);
+            }
+        }
+    }
+
     public ShapeStats [] getStatsRestricted(
             List<Long> shapeIds, 
             int zForUnattached, int tForUnattached,
@@ -562,6 +706,87 @@ public class GeomTool {
         return ss;
     }
 
+    /**
+     * A shape's channel, queued on the planes it covers by
+     * {@link #getStats(List)}.
+     */
+    private static class PlaneTarget {
+
+        final ShapeSpans spans;
+
+        final ShapeStats stats;
+
+        final double[] sumOfSquares;
+
+        /** the index of the channel in {@link #stats} */
+        final int w;
+
+        PlaneTarget(ShapeSpans spans, ShapeStats stats, double[] sumOfSquares,
+                int w) {
+            this.spans = spans;
+            this.stats = stats;
+            this.sumOfSquares = sumOfSquares;
+            this.w = w;
+        }
+
+        /**
+         * @return if the bounding box of the spans overlaps the given region
+         */
+        boolean overlaps(int x0, int y0, int width, int height) {
+            return spans.minX < x0 + width && spans.maxX >= x0
+                    && spans.minY < y0 + height && spans.maxY >= y0;
+        }
+
+        /**
+         * Adds the values under the spans from pixel data of the region
+         * whose first value is at (x0, y0) and which is of the given width
+         * and height. Only the part of the spans inside the region is added.
+         */
+        void add(ome.util.PixelData pd, int x0, int y0, int width,
+                int height) {
+            double min = stats.min[w];
+            double max = stats.max[w];
+            double sum = 0;
+            double sumSq = 0;
+            long count = 0;
+            final int xEnd = x0 + width;
+            final int yEnd = y0 + height;
+            for (int i = 0; i < spans.count; i++) {
+                final int y = spans.y[i];
+                if (y < y0) {
+                    continue;
+                }
+                if (y >= yEnd) {
+                    break; // spans are in order of row
+                }
+                final int from = Math.max(spans.x0[i], x0);
+                final int to = Math.min(spans.x1[i], xEnd);
+                if (from >= to) {
+                    continue;
+                }
+                count += to - from;
+                final int offset = (y - y0) * width - x0;
+                final int end = offset + to;
+                for (int o = offset + from; o < end; o++) {
+                    final double value = pd.getPixelValue(o);
+                    if (value < min) {
+                        min = value;
+                    }
+                    if (value > max) {
+                        max = value;
+                    }
+                    sum += value;
+                    sumSq += value * value;
+                }
+            }
+            stats.min[w] = min;
+            stats.max[w] = max;
+            stats.sum[w] += sum;
+            sumOfSquares[w] += sumSq;
+            stats.pointsCount[w] += count;
+        }
+    }
+
     private static class ShapeMapper extends IceMapper {
 
         boolean called = false;
@@ -83,6 +83,33 @@ public class PixelData {
         }
     }
 
+    /**
+     * Returns the {@link ome.util.PixelData} for a tile given its z, c and t,
+     * its origin and its size as well as a {@link PixelBuffer}
+     *
+     * @param buf the {@link PixelBuffer}
+     * @param z the Z
+     * @param c the C
+     * @param t the T
+     * @param x the X of the top left corner of the tile
+     * @param y the Y of the top left corner of the tile
+     * @param w the width of the tile
+     * @param h the height of the tile
+     * @return the ome.util.PixelData for the tile
+     */
+    public ome.util.PixelData getTile(PixelBuffer buf, int z, int c, int t,
+            int x, int y, int w, int h) {
+        try {
+            return buf.getTile(z, c, t, x, y, w, h);
+        } catch (IOException e) {
+            throw new ResourceError("IOException: " + e);
+        } catch (DimensionsOutOfBoundsException e) {
+            throw new ApiUsageException("DimensionsOutOfBounds: " + e);
+        } catch (IndexOutOfBoundsException iobe) {
+            throw new ValidationException("IndexOutOfBounds: " + iobe);
+        }
+    }
+
     /**
      * Returns whether a pyramid should be used for the given {@link Pixels}.
      * This usually implies that this is a "Big image" and therefore will
@@ -0,0 +1,134 @@
+/*
+ *   Copyright 2018 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.roi;
+
+import java.util.Arrays;
+
+import omero.model.SmartShape;
+
+/**
+ * The area of a shape as horizontal runs of pixels, clipped to an image and
+ * ordered by row then column. Each span covers the pixels
+ * <code>x0[i] &lt;= x &lt; x1[i]</code> of row <code>y[i]</code>.
+ * @since 5.5
+ */
+class ShapeSpans {
+
+    /** The number of spans. */
+    final int count;
+
+    /** The row of each span. */
+    final int[] y;
+
+    /** The first column of each span. */
+    final int[] x0;
+
+    /** The column after the last of each span. */
+    final int[] x1;
+
+    /** The bounding box of the spans, empty if there are none. */
+    final int minX, minY, maxX, maxY;
+
+    private ShapeSpans(int count, int[] y, int[] x0, int[] x1) {
+        this.count = count;
+        this.y = y;
+        this.x0 = x0;
+        this.x1 = x1;
+        int minX = Integer.MAX_VALUE, maxX = -1;
+        for (int i = 0; i < count; i++) {
+            minX = Math.min(minX, x0[i]);
+            maxX = Math.max(maxX, x1[i] - 1);
+        }
+        this.minX = count == 0 ? 0 : minX;
+        this.maxX = count == 0 ? -1 : maxX;
+        this.minY = count == 0 ? 0 : y[0];
+        this.maxY = count == 0 ? -1 : y[count - 1];
+    }
+
+    /**
+     * Collects the spans of the shape, clipped to
+     * <code>[0, sizeX) x [0, sizeY)</code>. Overlapping and adjacent spans
+     * of a row are merged; shapes which do not pass their spans in order
+     * are sorted first.
+     */
+    static ShapeSpans of(SmartShape shape, final int sizeX, final int sizeY) {
+        final Builder builder = new Builder();
+        shape.areaSpans(new SmartShape.SpanCallback() {
+            public void handle(int y, int xStart, int xEnd) {
+                if (y < 0 || y >= sizeY) {
+                    return;
+                }
+                builder.add(y, Math.max(xStart, 0), Math.min(xEnd, sizeX));
+            }
+        });
+        if (builder.ordered) {
+            return new ShapeSpans(builder.count, builder.y, builder.x0,
+                    builder.x1);
+        }
+
+        // Lines and the like: sort their pixels and merge them again
+        long[] points = new long[(int) builder.area];
+        int n = 0;
+        for (int i = 0; i < builder.count; i++) {
+            for (int x = builder.x0[i]; x < builder.x1[i]; x++) {
+                points[n++] = ((long) builder.y[i] << 32) | x;
+            }
+        }
+        Arrays.sort(points, 0, n);
+        Builder sorted = new Builder();
+        for (int i = 0; i < n; i++) {
+            int x = (int) points[i];
+            sorted.add((int) (points[i] >>> 32), x, x + 1);
+        }
+        return new ShapeSpans(sorted.count, sorted.y, sorted.x0, sorted.x1);
+    }
+
+    /**
+     * Accumulates spans, merging each with the previous one where they
+     * overlap or touch.
+     */
+    private static class Builder {
+
+        int[] y = new int[16], x0 = new int[16], x1 = new int[16];
+
+        int count;
+
+        long area;
+
+        /** Whether the spans were added top to bottom, left to right. */
+        boolean ordered = true;
+
+        void add(int row, int start, int end) {
+            if (start >= end) {
+                return;
+            }
+            area += end - start;
+            if (count > 0) {
+                int last = count - 1;
+                if (y[last] == row && start <= x1[last] && end >= x0[last]) {
+                    if (start < x0[last]) {
+                        ordered = false;
+                    }
+                    x0[last] = Math.min(x0[last], start);
+                    x1[last] = Math.max(x1[last], end);
+                    return;
+                }
+                if (row < y[last] || (row == y[last] && start < x0[last])) {
+                    ordered = false;
+                }
+            }
+            if (count == y.length) {
+                y = Arrays.copyOf(y, count * 2);
+                x0 = Arrays.copyOf(x0, count * 2);
+                x1 = Arrays.copyOf(x1, count * 2);
+            }
+            y[count] = row;
+            x0[count] = start;
+            x1[count] = end;
+            count++;
+        }
+    }
+}
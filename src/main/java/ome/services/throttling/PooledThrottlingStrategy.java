@@ -0,0 +1,161 @@
+/*
+ *   Copyright 2018 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.throttling;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import ome.api.ServiceInterface;
+import ome.security.basic.CurrentDetails;
+import ome.services.blitz.util.IceMethodInvoker;
+import ome.system.OmeroContext;
+import omero.util.IceMapper;
+
+import org.springframework.beans.BeansException;
+import org.springframework.context.ApplicationContext;
+
+import Ice.Current;
+
+/**
+ * Throttling implementation which hands each invocation to a fixed pool of
+ * {@link Slot} workers via a {@link Queue}, so that the Ice dispatch thread
+ * returns immediately and at most {@link #getSlots()} invocations run at
+ * any given time. Pending invocations are served round-robin per session and
+ * may be rejected when the queue is full.
+ */
+public class PooledThrottlingStrategy extends AbstractThrottlingStrategy {
+
+    private final CurrentDetails cd;
+
+    private final int slots;
+
+    private final int maxDepth;
+
+    private final int maxDepthPerSession;
+
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    private volatile Queue queue;
+
+    /**
+     * @param cd if not null, will have the call context of each invocation
+     *        set while it runs
+     * @param slots number of worker threads
+     * @param maxDepth maximum number of queued invocations; non-positive for
+     *        no limit
+     * @param maxDepthPerSession maximum number of queued invocations for any
+     *        one session; non-positive for no limit
+     */
+    public PooledThrottlingStrategy(CurrentDetails cd, int slots, int maxDepth,
+            int maxDepthPerSession) {
+        if (slots < 1) {
+            throw new IllegalArgumentException("At least one slot required: " + slots);
+        }
+        this.cd = cd;
+        this.slots = slots;
+        this.maxDepth = maxDepth;
+        this.maxDepthPerSession = maxDepthPerSession;
+    }
+
+    /**
+     * Starts the slots immediately rather than waiting on
+     * {@link #setApplicationContext(ApplicationContext)}.
+     */
+    PooledThrottlingStrategy(OmeroContext ctx, CurrentDetails cd, int slots,
+            int maxDepth, int maxDepthPerSession) {
+        this(cd, slots, maxDepth, maxDepthPerSession);
+        this.ctx = ctx;
+        start();
+    }
+
+    @Override
+    public void setApplicationContext(ApplicationContext applicationContext)
+            throws BeansException {
+        super.setApplicationContext(applicationContext);
+        start();
+    }
+
+    private synchronized void start() {
+        if (queue != null) {
+            return;
+        }
+        final Queue q = new Queue(ctx, maxDepth, maxDepthPerSession);
+        for (int i = 0; i < slots; i++) {
+            final Thread t = new Thread(new Slot(q, ctx, cd),
+                    getClass().getSimpleName() + "-Slot-" + i);
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        queue = q;
+        log.info("Started {} slots (max queue depth: {}, per session: {})",
+                slots, maxDepth, maxDepthPerSession);
+    }
+
+    /**
+     * Cancels all pending invocations and stops the slots. Invocations which
+     * are already running are allowed to complete.
+     */
+    public synchronized void destroy() {
+        if (queue != null) {
+            log.info("Stopping slots: {}", queue.getMetrics());
+            queue.destroy();
+        }
+        threads.clear();
+    }
+
+    private Queue queue() {
+        final Queue q = queue;
+        if (q == null) {
+            throw new IllegalStateException("Throttling strategy not started");
+        }
+        return q;
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    /**
+     * @return the number of invocations waiting for a slot
+     */
+    public int getQueueDepth() {
+        return queue().size();
+    }
+
+    /**
+     * @return queue-wait and execution-time metrics for all invocations
+     */
+    public ThrottlingMetrics getMetrics() {
+        return queue().getMetrics();
+    }
+
+    public void callInvokerOnRawArgs(ServiceInterface service,
+            IceMethodInvoker invoker, Object __cb, Ice.Current __current,
+            Object... args) {
+        IceMapper mapper = new IceMapper();
+        queue().put(new Callback(service, invoker, mapper, __cb, __current,
+                args));
+    }
+
+    public void callInvokerWithMappedArgs(ServiceInterface service,
+            IceMethodInvoker invoker, IceMapper mapper, Object __cb,
+            Current __current, Object... args) {
+        queue().put(new Callback(service, invoker, mapper, __cb, __current,
+                args));
+    }
+
+    public <R> void safeRunnableCall(Current __current, Object __cb,
+            boolean isVoid, Callable<R> callable) {
+        queue().put(new Callback2<R>(__current, __cb, isVoid, callable));
+    }
+
+    public void runnableCall(Current __current, Task runnable) {
+        queue().put(runnable);
+    }
+
+}
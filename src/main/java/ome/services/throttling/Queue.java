@@ -4,16 +4,28 @@
  */
 package ome.services.throttling;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+import ome.conditions.OverUsageException;
 import ome.system.OmeroContext;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-/** * Manages AMD-based method dispatches from blitz. * */
+/**
+ * Manages AMD-based method dispatches from blitz. {@link Task tasks} are
+ * queued per session (the category of the servant identity) and
+ * {@link #take() taken} round-robin across sessions so that one session with
+ * many outstanding calls cannot starve the others. The total queue depth and
+ * the depth per session can be bounded, in which case further tasks are
+ * rejected with an {@link OverUsageException}.
+ */
 public class Queue {
 
     private final static Logger log = LoggerFactory.getLogger(Queue.class);
@@ -21,50 +33,200 @@ public class Queue {
     static class CancelledException extends Exception {
     }
 
+    private static class Entry {
+        final Task task;
+        final long enqueued = System.nanoTime();
+        Entry(Task task) {
+            this.task = task;
+        }
+    }
+
     private final OmeroContext ctx;
-    private final BlockingQueue<Callback> q = new LinkedBlockingQueue<Callback>();
-    private final AtomicBoolean done = new AtomicBoolean();
+
+    private final int maxDepth;
+
+    private final int maxDepthPerSession;
+
+    private final ThrottlingMetrics metrics = new ThrottlingMetrics();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    /** Pending tasks per session, guarded by {@link #lock}. */
+    private final Map<String, ArrayDeque<Entry>> pending = new HashMap<String, ArrayDeque<Entry>>();
+
+    /** Sessions with pending tasks in service order, guarded by {@link #lock}. */
+    private final ArrayDeque<String> rotation = new ArrayDeque<String>();
+
+    private int size = 0;
+
+    private boolean done = false;
 
     public Queue(OmeroContext ctx) {
-        done.set(false);
+        this(ctx, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param ctx context used for mapping exceptions to the callbacks
+     * @param maxDepth maximum number of queued tasks; non-positive for no limit
+     * @param maxDepthPerSession maximum number of queued tasks for any one
+     *        session; non-positive for no limit
+     */
+    public Queue(OmeroContext ctx, int maxDepth, int maxDepthPerSession) {
         this.ctx = ctx;
+        this.maxDepth = maxDepth > 0 ? maxDepth : Integer.MAX_VALUE;
+        this.maxDepthPerSession = maxDepthPerSession > 0 ? maxDepthPerSession
+                : Integer.MAX_VALUE;
     }
 
-    public void put(Callback callback) {
-        boolean cont = !done.get();
-        if (cont) {
-            while (true) {
+    public void put(Task task) {
+        final String key = sessionKey(task.current);
+        boolean cancelled = false;
+        String rejection = null;
+        lock.lock();
+        try {
+            if (done) {
+                cancelled = true;
+            } else if (size >= maxDepth) {
+                rejection = "Server busy: " + size + " calls queued";
+            } else {
+                ArrayDeque<Entry> queue = pending.get(key);
+                if (queue == null) {
+                    queue = new ArrayDeque<Entry>();
+                    pending.put(key, queue);
+                    rotation.addLast(key);
+                }
+                if (queue.size() >= maxDepthPerSession) {
+                    rejection = "Too many calls queued for session: "
+                            + queue.size();
+                } else {
+                    queue.addLast(new Entry(task));
+                    size++;
+                    notEmpty.signal();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (cancelled) {
+            cancel(task);
+        } else if (rejection != null) {
+            metrics.rejected();
+            log.warn(rejection);
+            final OverUsageException oue = new OverUsageException(rejection);
+            if (task.cb == null) {
+                throw oue;
+            }
+            task.exception(oue, ctx);
+        }
+    }
+
+    /**
+     * Blocks until a task is available, returning the oldest task of the
+     * next session in turn. A thread which is interrupted while waiting
+     * continues to wait unless the queue is destroyed, so that interrupts
+     * cannot leave the queue without consumers while tasks are pending.
+     * @return the next task or null if the queue has been destroyed, in
+     *         which case the callbacks of the pending tasks have failed.
+     */
+    public Task take() {
+        final Entry entry;
+        lock.lock();
+        try {
+            while (size == 0 && !done) {
                 try {
-                    q.put(callback);
-                    break;
+                    notEmpty.await();
                 } catch (InterruptedException e) {
-                    log.warn("Queue interrupted during put");
+                    log.warn("Queue interrupted during take, continuing");
                 }
             }
-        } else {
-            callback.exception(new CancelledException(), ctx);
+            if (done) {
+                return null;
+            }
+            final String key = rotation.removeFirst();
+            final ArrayDeque<Entry> queue = pending.get(key);
+            entry = queue.removeFirst();
+            if (queue.isEmpty()) {
+                pending.remove(key);
+            } else {
+                rotation.addLast(key);
+            }
+            size--;
+        } finally {
+            lock.unlock();
         }
+        metrics.waited(System.nanoTime() - entry.enqueued);
+        return entry.task;
     }
 
-    public Callback take() {
-        Callback cb = null;
-        while (true) {
-            try {
-                cb = q.take();
-            } catch (InterruptedException e) {
-                log.warn("Queue interrupted during take");
-            }
-            break;
+    /**
+     * @return the number of tasks currently queued
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
         }
-        return cb;
+    }
+
+    /**
+     * @return the metrics for tasks passing through this queue
+     */
+    public ThrottlingMetrics getMetrics() {
+        return metrics;
     }
 
     public void destroy() {
-        boolean wasDone = done.getAndSet(true);
-        if (!wasDone) {
-            for (Callback cb : q) {
-                cb.exception(new CancelledException(), ctx);
+        final List<Entry> cancelled = new ArrayList<Entry>();
+        lock.lock();
+        try {
+            if (done) {
+                return;
+            }
+            done = true;
+            for (ArrayDeque<Entry> queue : pending.values()) {
+                cancelled.addAll(queue);
+            }
+            pending.clear();
+            rotation.clear();
+            size = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Entry entry : cancelled) {
+            cancel(entry.task);
+        }
+    }
+
+    private void cancel(Task task) {
+        if (task.cb != null) {
+            task.exception(new CancelledException(), ctx);
+        } else {
+            log.warn("Dropping cancelled task: {}", task);
+        }
+    }
+
+    /**
+     * Tasks are grouped by the session which their servant belongs to, i.e.
+     * the category of the servant's identity.
+     */
+    static String sessionKey(Ice.Current current) {
+        if (current != null) {
+            if (current.id != null && current.id.category != null) {
+                return current.id.category;
+            }
+            if (current.ctx != null) {
+                final String session = current.ctx.get("omero.session");
+                if (session != null) {
+                    return session;
+                }
             }
         }
+        return "";
     }
 }
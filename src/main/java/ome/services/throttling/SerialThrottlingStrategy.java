@@ -7,53 +7,22 @@
 
 package ome.services.throttling;
 
-import java.util.concurrent.Callable;
-
-import ome.api.ServiceInterface;
-import ome.services.blitz.util.IceMethodInvoker;
+import ome.security.basic.CurrentDetails;
 import ome.system.OmeroContext;
-import omero.util.IceMapper;
-import Ice.Current;
 
 /**
  * Throttling implementation which only allows a single invocation to be run at
  * any given time.
  * 
  */
-public class SerialThrottlingStrategy extends AbstractThrottlingStrategy {
-
-    private final Slot slot;
-
-    private final Queue queue;
+public class SerialThrottlingStrategy extends PooledThrottlingStrategy {
 
     public SerialThrottlingStrategy(OmeroContext ctx) {
-        queue = new Queue(ctx);
-        slot = new Slot(queue);
-    }
-
-    public void callInvokerOnRawArgs(ServiceInterface service,
-            IceMethodInvoker invoker, Object __cb, Ice.Current __current,
-            Object... args) {
-        IceMapper mapper = new IceMapper();
-        Callback cb = new Callback(service, invoker, mapper, __cb, __current,
-                args);
-        queue.put(cb);
-    }
-
-    public void callInvokerWithMappedArgs(ServiceInterface service,
-            IceMethodInvoker invoker, IceMapper mapper, Object __cb,
-            Current __current, Object... args) {
-        Callback cb = new Callback(service, invoker, mapper, __cb, __current,
-                args);
-        queue.put(cb);
-    }
-
-    public void runnableCall(Current __current, Task runnable) {
-        throw new UnsupportedOperationException();
+        this(ctx, null);
     }
 
-    public <R> void safeRunnableCall(Current __current, Object __cb, boolean isVoid, Callable<R> callable) {
-        throw new UnsupportedOperationException();
+    public SerialThrottlingStrategy(OmeroContext ctx, CurrentDetails cd) {
+        super(ctx, cd, 1, 0, 0);
     }
 
 }
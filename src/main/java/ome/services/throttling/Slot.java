@@ -7,20 +7,64 @@
 
 package ome.services.throttling;
 
+import ome.security.basic.CurrentDetails;
+import ome.system.OmeroContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
- * Worker which consumes from the {@link Queue}.
- * 
+ * Worker which consumes from the {@link Queue}. Each task is run with the
+ * call context of its {@link Ice.Current} set on the {@link CurrentDetails},
+ * as the calling thread would have for {@link InThreadThrottlingStrategy}.
+ * The slot exits only once the queue is {@link Queue#destroy() destroyed},
+ * not when interrupted.
  */
 public class Slot implements Runnable {
 
+    private final static Logger log = LoggerFactory.getLogger(Slot.class);
+
     private final Queue q;
 
+    private final OmeroContext ctx;
+
+    private final CurrentDetails cd;
+
     public Slot(Queue q) {
+        this(q, null, null);
+    }
+
+    /**
+     * @param q the queue to consume from
+     * @param ctx context passed to each task, may be null
+     * @param cd if not null, will have the call context set for each task
+     */
+    public Slot(Queue q, OmeroContext ctx, CurrentDetails cd) {
         this.q = q;
+        this.ctx = ctx;
+        this.cd = cd;
     }
 
     public void run() {
-        Callback cb = q.take();
-        throw new UnsupportedOperationException();
+        Task task;
+        while ((task = q.take()) != null) {
+            final long start = System.nanoTime();
+            try {
+                if (cd != null && task.current != null) {
+                    cd.setContext(task.current.ctx);
+                }
+                task.run(ctx);
+            } catch (Throwable t) {
+                log.error("Exception during task execution: " + task, t);
+            } finally {
+                if (cd != null) {
+                    cd.setContext(null);
+                }
+                if (Thread.interrupted()) {
+                    log.debug("Cleared interrupt left by task: {}", task);
+                }
+                q.getMetrics().executed(System.nanoTime() - start);
+            }
+        }
     }
 }
@@ -0,0 +1,90 @@
+/*
+ *   Copyright 2018 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.throttling;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the time {@link Task tasks} spend waiting in a {@link Queue}
+ * and executing in a {@link Slot}. All times are in nanoseconds.
+ */
+public class ThrottlingMetrics {
+
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong waitTotal = new AtomicLong();
+    private final AtomicLong waitMax = new AtomicLong();
+
+    private final AtomicLong execCount = new AtomicLong();
+    private final AtomicLong execTotal = new AtomicLong();
+    private final AtomicLong execMax = new AtomicLong();
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    void waited(long nanos) {
+        waitCount.incrementAndGet();
+        waitTotal.addAndGet(nanos);
+        max(waitMax, nanos);
+    }
+
+    void executed(long nanos) {
+        execCount.incrementAndGet();
+        execTotal.addAndGet(nanos);
+        max(execMax, nanos);
+    }
+
+    void rejected() {
+        rejections.incrementAndGet();
+    }
+
+    private static void max(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    public long getWaitTotalNanos() {
+        return waitTotal.get();
+    }
+
+    public long getWaitMaxNanos() {
+        return waitMax.get();
+    }
+
+    public long getExecutionCount() {
+        return execCount.get();
+    }
+
+    public long getExecutionTotalNanos() {
+        return execTotal.get();
+    }
+
+    public long getExecutionMaxNanos() {
+        return execMax.get();
+    }
+
+    public long getRejectionCount() {
+        return rejections.get();
+    }
+
+    @Override
+    public String toString() {
+        final long waits = waitCount.get();
+        final long execs = execCount.get();
+        return String.format(
+                "waits=%d (avg=%dms, max=%dms) executions=%d (avg=%dms, max=%dms) rejections=%d",
+                waits, waits == 0 ? 0 : waitTotal.get() / waits / 1000000L,
+                waitMax.get() / 1000000L,
+                execs, execs == 0 ? 0 : execTotal.get() / execs / 1000000L,
+                execMax.get() / 1000000L, rejections.get());
+    }
+}
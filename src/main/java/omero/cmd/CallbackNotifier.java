@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.cmd;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Delivers the notifications of {@link HandleI} instances to their clients' {@link CmdCallbackPrx} proxies on a thread of
+ * its own so that running requests never wait on the network. Notifications are coalesced: while a handle is waiting for
+ * delivery, further notifications for it are dropped because the delivery reports the handle's state as of when it is made.
+ * @since 5.5
+ */
+public class CallbackNotifier {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CallbackNotifier.class);
+
+    /** The default number of progress notifications per request. */
+    public static final int DEFAULT_GRANULARITY = 10;
+
+    private final int granularity;
+
+    private final int timeoutMs;
+
+    private final ExecutorService thread = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("cmd-callback-notifier").setDaemon(true).build());
+
+    /**
+     * Construct a new callback notifier.
+     * @param granularity the number of progress notifications to send over the course of a request
+     * @param timeoutMs for how long a client may leave a notification unaccepted before its callback is removed, in milliseconds
+     */
+    public CallbackNotifier(int granularity, int timeoutMs) {
+        this.granularity = Math.max(1, granularity);
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * @return the number of progress notifications to send over the course of a request
+     */
+    public int getGranularity() {
+        return granularity;
+    }
+
+    /**
+     * @return for how long a client may leave a notification unaccepted before its callback is removed, in milliseconds
+     */
+    public int getTimeout() {
+        return timeoutMs;
+    }
+
+    /**
+     * Arrange for the given handle's callbacks to be notified of its current state. Does not block.
+     * @param handle the handle whose callbacks are to be notified
+     * @param scheduled the handle's flag for if a delivery is already pending
+     */
+    void schedule(final HandleI handle, final AtomicBoolean scheduled) {
+        if (!scheduled.compareAndSet(false, true)) {
+            /* the pending delivery will include this notification */
+            return;
+        }
+        try {
+            thread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    scheduled.set(false);
+                    try {
+                        handle.deliverCallbacks();
+                    } catch (RuntimeException e) {
+                        LOGGER.warn("failed to notify callbacks", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            scheduled.set(false);
+            LOGGER.debug("not notifying callbacks during shutdown");
+        }
+    }
+
+    /**
+     * Stop delivering notifications.
+     */
+    public void close() {
+        thread.shutdownNow();
+    }
+}
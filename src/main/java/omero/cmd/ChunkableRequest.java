@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.cmd;
+
+import org.hibernate.Session;
+
+import ome.services.graphs.GraphException;
+import omero.cmd.graphs.PlannedWrites;
+
+/**
+ * Requests whose writes may be made in a sequence of bounded transactions instead of in the one transaction that plans
+ * them. {@link HandleI} does so only if the call context with which the request is submitted sets
+ * {@link #CHUNK_SIZE_KEY}. The request's steps are run once to plan its writes, then the planned writes are committed a
+ * batch at a time and, finally, the response is built from the results of the steps. The plan and how much of it is
+ * committed are persisted so, if a later batch fails or the request is cancelled, the request may be submitted again
+ * with {@link #CHUNK_RESUME_KEY} set to the {@code plan} parameter of the {@link Status} or of the {@link ERR} to make
+ * the remaining writes without planning them again.
+ * @since 5.5
+ */
+public interface ChunkableRequest extends IRequest {
+
+    /** The call context key for the maximum number of model objects to write per transaction. */
+    String CHUNK_SIZE_KEY = "omero.cmd.chunk_size";
+
+    /** The call context key for the identifier of the plan of an earlier submission of the same request to resume. */
+    String CHUNK_RESUME_KEY = "omero.cmd.chunk_resume";
+
+    /**
+     * Have this request's steps plan its writes instead of making them. Called before {@link #init(Helper)}.
+     * @param writes the plan to which to add the writes
+     * @return if the writes will be planned, otherwise the request is to be run in a single transaction as usual
+     */
+    boolean deferWrites(PlannedWrites writes);
+
+    /**
+     * Make some of the writes planned by this request, or by an earlier submission of the same request, in the current
+     * transaction. Called after {@link #init(Helper)}.
+     * @param writes the planned writes
+     * @param from the index of the first write to make
+     * @param to the index after the last write to make
+     * @param session the Hibernate session of the current transaction
+     * @throws GraphException if a write could not be made
+     */
+    void applyWrites(PlannedWrites writes, int from, int to, Session session) throws GraphException;
+}
@@ -5,10 +5,13 @@
 
 package omero.cmd;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -20,6 +23,7 @@ import ome.system.ServiceFactory;
 import ome.util.SqlAction;
 import omero.LockTimeout;
 import omero.ServerError;
+import omero.cmd.graphs.PlannedWrites;
 
 import org.hibernate.Session;
 import org.perf4j.StopWatch;
@@ -129,6 +133,29 @@ public class HandleI implements _HandleOperations, IHandle,
 
     private/* final */Helper helper;
 
+    /**
+     * Delivers notifications to the callbacks. If {@code null} then
+     * {@link #notifyCallbacks()} delivers them itself.
+     */
+    private CallbackNotifier notifier;
+
+    /**
+     * Where the planned writes of {@link ChunkableRequest}s are persisted,
+     * may be {@code null} if they are not to be resumable.
+     */
+    private File planDirectory;
+
+    /**
+     * If {@link #notifier} has yet to deliver a notification.
+     */
+    private final AtomicBoolean notificationScheduled = new AtomicBoolean();
+
+    /**
+     * The last notification to each callback that was not yet sent when
+     * {@link #deliverCallbacks()} returned.
+     */
+    private final Map<String, Delivery> deliveries = mapMaker.makeMap();
+
     //
     // INTIALIZATION
     //
@@ -151,6 +178,18 @@ public class HandleI implements _HandleOperations, IHandle,
         this.state.set(State.CREATED);
     }
 
+    public void setCallbackNotifier(CallbackNotifier notifier) {
+        this.notifier = notifier;
+    }
+
+    /**
+     * @param planDirectory the directory in which to persist the planned
+     *        writes of {@link ChunkableRequest}s so that they may be resumed
+     */
+    public void setPlanDirectory(File planDirectory) {
+        this.planDirectory = planDirectory;
+    }
+
     public void setSession(SessionI session) throws ServerError {
         this.sess = session;
         this.principal = sess.getPrincipal();
@@ -182,6 +221,7 @@ public class HandleI implements _HandleOperations, IHandle,
         helper.info("Remove callback: %s", key);
         cb = CmdCallbackPrxHelper.checkedCast(cb.ice_oneway());
         callbacks.remove(key);
+        deliveries.remove(key);
     }
 
     /**
@@ -189,13 +229,70 @@ public class HandleI implements _HandleOperations, IHandle,
      * position in the state diagram. If that is anything other than
      * {@code CANCELLED} or {@code FINISHED} then
      * {@link CmdCallbackPrx#step(int, int)} is called.
+     *
+     * The notifications are delivered asynchronously by the
+     * {@link CallbackNotifier} so this method does not wait for clients.
      */
     public void notifyCallbacks() {
+        if (notifier == null) {
+            deliverCallbacks();
+        } else {
+            notifier.schedule(this, notificationScheduled);
+        }
+    }
+
+    /**
+     * Sends the notifications of {@link #notifyCallbacks()} as oneway
+     * asynchronous invocations. A progress notification is not sent to a
+     * client that has yet to accept the previous one; instead, the handle is
+     * notified again once the client catches up. A client that accepts
+     * nothing for longer than the notifier's timeout has its callback removed.
+     */
+    void deliverCallbacks() {
         final State state = this.state.get();
         final boolean finished = state.equals(State.FINISHED);
         final boolean cancelled = state.equals(State.CANCELLED);
-        for (final CmdCallbackPrx prx : callbacks.values()) {
+        final long now = System.currentTimeMillis();
+        for (final Map.Entry<String, CmdCallbackPrx> callback : callbacks.entrySet()) {
+            final String key = callback.getKey();
+            final CmdCallbackPrx prx = callback.getValue();
+            final Delivery previous = deliveries.get(key);
+            if (previous != null && !previous.result.isSent()) {
+                if (notifier != null && now - previous.started > notifier.getTimeout()) {
+                    helper.warn("Removing callback %s: no notification accepted for %s ms",
+                            key, now - previous.started);
+                    callbacks.remove(key);
+                    deliveries.remove(key);
+                    continue;
+                } else if (!(finished || cancelled)) {
+                    previous.isSuperseded = true;
+                    if (previous.result.isSent()) {
+                        /* sent meanwhile so may have missed the flag */
+                        notifyCallbacks();
+                    }
+                    continue;
+                }
+            }
             try {
+                final Ice.AsyncResult result;
+                final Ice.Callback onSent = new Ice.Callback() {
+                    @Override
+                    public void completed(Ice.AsyncResult r) {
+                        try {
+                            r.throwLocalException();
+                        } catch (Ice.LocalException e) {
+                            sess.handleCallbackException(e);
+                        }
+                    }
+
+                    @Override
+                    public void sent(Ice.AsyncResult r) {
+                        final Delivery delivery = deliveries.get(key);
+                        if (delivery != null && delivery.result == r && delivery.isSuperseded) {
+                            notifyCallbacks();
+                        }
+                    }
+                };
                 Response rsp = this.rsp.get();
                 if (finished || cancelled) {
                     if (cancelled) {
@@ -203,11 +300,14 @@ public class HandleI implements _HandleOperations, IHandle,
                     } else {
                         helper.info("notify finished: %s/%s", rsp, status);
                     }
-                    prx.finished(rsp, status);
+                    result = prx.begin_finished(rsp, status, onSent);
                 } else {
                     int step = currentStep.get();
                     helper.info("notify step %s of %s", step, status.steps);
-                    prx.step(step, status.steps);
+                    result = prx.begin_step(step, status.steps, onSent);
+                }
+                if (!result.isSent()) {
+                    deliveries.put(key, new Delivery(result, now));
                 }
             } catch (Exception e) {
                 sess.handleCallbackException(e);
@@ -364,8 +464,14 @@ public class HandleI implements _HandleOperations, IHandle,
         }
 
         StopWatch sw = new Slf4JStopWatch();
+        PlannedWrites plan = null;
         try {
             Map<String, String> merged = mergeContexts();
+            plan = getPlannedWrites();
+            if (plan != null) {
+                runPlanned(merged, plan);
+                return;
+            }
             final List<Object> rv;
             if (req instanceof ReadOnlyStatus.IsAware && ((ReadOnlyStatus.IsAware) req).isReadOnly(readOnly)) {
                 rv = (List<Object>) executor.execute(merged, principal,
@@ -402,12 +508,154 @@ public class HandleI implements _HandleOperations, IHandle,
             // getResponse will be called regardless of return/exception state
             // and therefore any cleanup can happen there as soon as the response
             // is non-null.
-            rsp.set(req.getResponse());
+            final Response response = plan == null ? req.getResponse() : helper.getResponse();
+            if (plan != null && plan.getStepResults() != null && response instanceof ERR) {
+                final ERR err = (ERR) response;
+                if (err.parameters == null) {
+                    err.parameters = new HashMap<String, String>();
+                }
+                err.parameters.put("plan", plan.getId());
+                err.parameters.put("checkpoint", Integer.toString(plan.getCommitted()));
+            }
+            rsp.set(response);
             sw.stop("omero.request.tx");
             notifyCallbacks();
         }
     }
 
+    /**
+     * Prepares for the writes of the request to be planned then committed
+     * in batches if it is a {@link ChunkableRequest} and the caller opted
+     * in by setting {@link ChunkableRequest#CHUNK_SIZE_KEY}. If the caller
+     * set {@link ChunkableRequest#CHUNK_RESUME_KEY} then the plan of an
+     * earlier submission is loaded instead.
+     *
+     * @return the plan, or {@code null} if the request is to be run in a
+     *         single transaction
+     * @throws IOException if the plan to resume could not be loaded
+     */
+    private PlannedWrites getPlannedWrites() throws IOException {
+        if (!(req instanceof ChunkableRequest) || callContext == null) {
+            return null;
+        }
+        if (callContext.containsKey(ChunkableRequest.CHUNK_RESUME_KEY)) {
+            if (planDirectory == null) {
+                throw new IllegalStateException("plans are not kept");
+            }
+            final PlannedWrites plan = PlannedWrites.load(planDirectory,
+                    callContext.get(ChunkableRequest.CHUNK_RESUME_KEY));
+            helper.info("Resuming plan %s from write %s of %s",
+                    plan.getId(), plan.getCommitted(), plan.size());
+            return plan;
+        }
+        if (!callContext.containsKey(ChunkableRequest.CHUNK_SIZE_KEY)) {
+            return null;
+        }
+        final int batchSize = Integer.parseInt(callContext.get(ChunkableRequest.CHUNK_SIZE_KEY));
+        if (batchSize < 1) {
+            return null;
+        }
+        final PlannedWrites plan = new PlannedWrites(batchSize);
+        return ((ChunkableRequest) req).deferWrites(plan) ? plan : null;
+    }
+
+    /**
+     * Runs the steps of the request in one transaction to plan its writes,
+     * unless they were planned by an earlier submission, then commits the
+     * planned writes a bounded batch at a time so that no transaction nor
+     * Hibernate session holds the whole operation. The plan and how many
+     * of its writes are committed are persisted so that the request may be
+     * resumed. The response is built only once all the writes are committed.
+     *
+     * @param merged the call context
+     * @param plan the writes of the request, planned or to be planned
+     * @throws IOException if the progress of the plan could not be persisted
+     */
+    @SuppressWarnings("unchecked")
+    private void runPlanned(Map<String, String> merged, final PlannedWrites plan) throws IOException {
+        final ChunkableRequest chunkable = (ChunkableRequest) req;
+        final String description = Ice.Util.identityToString(id) + " plan " + plan.getId();
+        final List<Object> rv;
+        if (plan.getStepResults() == null) {
+            rv = (List<Object>) executor.execute(merged, principal,
+                    new RunSteps(this, "plan (rw)", description) {
+                @Transactional(readOnly = false)
+                public List<Object> doWork(Session session, ServiceFactory sf) {
+                    final List<Object> stepResults = innerWork(session, sf);
+                    plan.setPlanner(helper.getEventContext().getCurrentUserId(), req.getClass(), stepResults);
+                    return stepResults;
+                }
+            });
+            state.compareAndSet(State.FINISHED, State.READY);
+            if (planDirectory != null) {
+                plan.save(planDirectory);
+            }
+            helper.info("Planned %s writes", plan.size());
+        } else {
+            rv = (List<Object>) executor.execute(merged, principal,
+                    new Executor.SimpleWork(this, "resume (ro)", description) {
+                @Transactional(readOnly = true)
+                public List<Object> doWork(Session session, ServiceFactory sf) {
+                    helper = new Helper((Request) req, status, getSqlAction(), session, sf);
+                    if (!plan.isPlannedBy(helper.getEventContext().getCurrentUserId(), req.getClass())) {
+                        final Exception e = new IllegalArgumentException("plan " + plan.getId() + " is not of this request");
+                        throw helper.cancel(new ERR(), e, "bad-plan");
+                    }
+                    req.init(helper);
+                    return plan.getStepResults();
+                }
+            });
+        }
+
+        publishCheckpoint(plan);
+        while (plan.getCommitted() < plan.size()) {
+            final int from = plan.getCommitted();
+            final int to = plan.nextBatchEnd(from);
+            executor.execute(merged, principal,
+                    new Executor.SimpleWork(this, "write (rw)", description, from, to) {
+                @Transactional(readOnly = false)
+                public Object doWork(Session session, ServiceFactory sf) {
+                    try {
+                        if (!state.compareAndSet(State.READY, State.RUNNING)) {
+                            throw helper.cancel(new ERR(), null, "not-ready");
+                        }
+                        chunkable.applyWrites(plan, from, to, session);
+                        return null;
+                    } catch (Cancel c) {
+                        state.set(State.CANCELLED);
+                        throw c; // Exception intended to rollback transaction
+                    } catch (Throwable t) {
+                        throw helper.cancel(new ERR(), t, "write-fail", "write", Integer.toString(from));
+                    } finally {
+                        state.compareAndSet(State.RUNNING, State.READY);
+                    }
+                }
+            });
+            plan.checkpoint(planDirectory, to);
+            publishCheckpoint(plan);
+            notifyCallbacks();
+        }
+
+        for (int step = 0; step < status.steps; step++) {
+            req.buildResponse(step, rv.get(step));
+        }
+        state.set(State.FINISHED);
+        plan.remove(planDirectory);
+    }
+
+    /**
+     * Publishes in the status how many of the planned writes of the request
+     * are committed, alongside any progress that the request publishes.
+     */
+    private void publishCheckpoint(PlannedWrites plan) {
+        final Map<String, String> progress = status.parameters == null
+                ? new HashMap<String, String>() : new HashMap<String, String>(status.parameters);
+        progress.put("plan", plan.getId());
+        progress.put("checkpoint", Integer.toString(plan.getCommitted()));
+        progress.put("writes", Integer.toString(plan.size()));
+        status.parameters = progress;
+    }
+
     private Map<String, String> mergeContexts() {
 
         final Map<String, String> merged = new HashMap<String, String>();
@@ -463,7 +711,8 @@ public class HandleI implements _HandleOperations, IHandle,
                 // background thread, or via the heartbeat mechanism. For
                 // the moment, though we'll notify callbacks per decile.
 
-                int numOfCallbacks = 10; // TODO: configurable
+                int numOfCallbacks = notifier == null
+                        ? CallbackNotifier.DEFAULT_GRANULARITY : notifier.getGranularity();
                 int mod = 1;
 
                 // status.steps == 0 can't happen
@@ -492,6 +741,26 @@ public class HandleI implements _HandleOperations, IHandle,
 
     }
 
+    /**
+     * A notification that was not yet sent to a callback.
+     */
+    private static final class Delivery {
+
+        private final Ice.AsyncResult result;
+
+        private final long started;
+
+        /**
+         * If a later notification was not sent because this one was pending.
+         */
+        private volatile boolean isSuperseded;
+
+        private Delivery(Ice.AsyncResult result, long started) {
+            this.result = result;
+            this.started = started;
+        }
+    }
+
     /**
      * Base class for the workers of {@link HandleI#run()} that run the steps of a request.
      * Perhaps could be refactored away in Java 8.
@@ -38,6 +38,7 @@ import omero.cmd.graphs.Chown2I;
 import omero.cmd.graphs.Delete2I;
 import omero.cmd.graphs.DiskUsage2I;
 import omero.cmd.graphs.DiskUsageI;
+import omero.cmd.graphs.DiskUsageLedger;
 import omero.cmd.graphs.DuplicateI;
 import omero.cmd.graphs.FindChildrenI;
 import omero.cmd.graphs.FindParentsI;
@@ -76,6 +77,8 @@ public class RequestObjectFactoryRegistry extends
     
     private final GraphRequestFactory graphRequestFactory;
 
+    private DiskUsageLedger diskUsageLedger;
+
     private/* final */OmeroContext ctx;
 
     public RequestObjectFactoryRegistry(ExtendedMetadata em,
@@ -101,6 +104,13 @@ public class RequestObjectFactoryRegistry extends
         this.graphRequestFactory = graphRequestFactory;
     }
 
+    /**
+     * @param diskUsageLedger the ledger from which {@link DiskUsage2I} may report the disk usage of whole groups
+     */
+    public void setDiskUsageLedger(DiskUsageLedger diskUsageLedger) {
+        this.diskUsageLedger = diskUsageLedger;
+    }
+
     public void setApplicationContext(ApplicationContext ctx)
             throws BeansException {
         this.ctx = (OmeroContext) ctx;
@@ -221,6 +231,7 @@ public class RequestObjectFactoryRegistry extends
                         final DiskUsage2I request = graphRequestFactory.getRequest(DiskUsage2I.class);
                         request.setPixelsService(pixelsService);
                         request.setThumbnailService(thumbnailService);
+                        request.setDiskUsageLedger(diskUsageLedger);
                         return request;
                     }
                 });
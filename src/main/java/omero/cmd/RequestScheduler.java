@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.cmd;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ome.services.util.Executor;
+
+/**
+ * Schedules the requests submitted through {@link SessionI} onto the {@link Executor} so that cheap interactive requests
+ * need not wait behind long-running bulk requests. Each request has a {@link Priority} derived from its type, which the
+ * call context may lower through {@link #PRIORITY_KEY}. The classes share the running slots by weighted fair queueing and
+ * some slots are reserved for interactive requests. Within a class, users take turns and no user may have more than a
+ * given number of requests running at once. Without limits on the running requests, as by default, requests run as soon as
+ * they are submitted and are only counted.
+ * @since 5.5
+ */
+public class RequestScheduler {
+
+    /**
+     * The priority classes of requests.
+     */
+    public enum Priority {
+        /** quick requests on whose response a user is likely waiting */
+        INTERACTIVE,
+        /** requests not otherwise classified */
+        NORMAL,
+        /** long-running requests that affect many objects */
+        BULK;
+    }
+
+    /** The call context key for lowering the priority of a request, set to the name of a {@link Priority}. */
+    public static final String PRIORITY_KEY = "omero.cmd.priority";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestScheduler.class);
+
+    /**
+     * A request that has been submitted but not yet run.
+     */
+    private static final class Pending {
+        private final Object user;
+        private final Priority priority;
+        private final Map<String, String> callContext;
+        private final Callable<?> work;
+        private final long submitted = System.nanoTime();
+
+        private Pending(Object user, Priority priority, Map<String, String> callContext, Callable<?> work) {
+            this.user = user;
+            this.priority = priority;
+            this.callContext = callContext;
+            this.work = work;
+        }
+    }
+
+    /**
+     * The pending requests of one priority class. Not thread-safe.
+     */
+    private static final class ClassQueue {
+        private final double stride;
+        /* in order of whose turn it is */
+        private final Map<Object, Deque<Pending>> byUser = new LinkedHashMap<Object, Deque<Pending>>();
+        private int depth = 0;
+        private double pass = 0;
+
+        private ClassQueue(int weight) {
+            this.stride = 1.0 / Math.max(1, weight);
+        }
+    }
+
+    /**
+     * Statistics of how long the requests of a priority class waited to run. All times are in nanoseconds.
+     */
+    public static final class Metrics {
+        private final AtomicLong waitCount = new AtomicLong();
+        private final AtomicLong waitTotal = new AtomicLong();
+        private final AtomicLong waitMax = new AtomicLong();
+
+        private void waited(long nanos) {
+            waitCount.incrementAndGet();
+            waitTotal.addAndGet(nanos);
+            long current;
+            while (nanos > (current = waitMax.get())) {
+                if (waitMax.compareAndSet(current, nanos)) {
+                    break;
+                }
+            }
+        }
+
+        public long getWaitCount() {
+            return waitCount.get();
+        }
+
+        public long getWaitTotalNanos() {
+            return waitTotal.get();
+        }
+
+        public long getWaitMaxNanos() {
+            return waitMax.get();
+        }
+
+        @Override
+        public String toString() {
+            final long waits = waitCount.get();
+            return String.format("waits=%d (avg=%dms, max=%dms)",
+                    waits, waits == 0 ? 0 : waitTotal.get() / waits / 1000000L, waitMax.get() / 1000000L);
+        }
+    }
+
+    private final Executor executor;
+    private final int maxRunning;
+    private final int reservedInteractive;
+    private final int maxRunningPerUser;
+    private final Map<String, Priority> priorities = new HashMap<String, Priority>();
+    private final Map<Priority, Metrics> metrics = new EnumMap<Priority, Metrics>(Priority.class);
+
+    /* all the fields below are guarded by this */
+
+    private final Map<Priority, ClassQueue> queues = new EnumMap<Priority, ClassQueue>(Priority.class);
+    private final Map<Object, Integer> runningByUser = new HashMap<Object, Integer>();
+    private int running = 0;
+    private int runningInteractive = 0;
+    private double virtualTime = 0;
+
+    /**
+     * Construct a new request scheduler.
+     * @param executor the executor on which to run the requests
+     * @param maxRunning the maximum number of requests to run at once, non-positive for no limit
+     * @param reservedInteractive how many of those may be used only by {@link Priority#INTERACTIVE} requests, ignored if
+     * there is no limit
+     * @param maxRunningPerUser the maximum number of requests to run at once for any one user, non-positive for no limit
+     * @param weights the share of the running slots for each priority class, by the name of the class
+     * @param requestPriorities the name of the priority class for each type of request, by the simple name of the request's
+     * class; other requests are {@link Priority#NORMAL}
+     */
+    public RequestScheduler(Executor executor, int maxRunning, int reservedInteractive, int maxRunningPerUser,
+            Map<String, Integer> weights, Map<String, String> requestPriorities) {
+        this.executor = executor;
+        if (maxRunning < 1) {
+            this.maxRunning = Integer.MAX_VALUE;
+            this.reservedInteractive = 0;
+        } else {
+            this.maxRunning = maxRunning;
+            this.reservedInteractive = Math.max(0, Math.min(reservedInteractive, maxRunning - 1));
+        }
+        this.maxRunningPerUser = maxRunningPerUser;
+        for (final Priority priority : Priority.values()) {
+            final Integer weight = weights.get(priority.name());
+            queues.put(priority, new ClassQueue(weight == null ? 1 : weight));
+            metrics.put(priority, new Metrics());
+        }
+        for (final Map.Entry<String, String> requestPriority : requestPriorities.entrySet()) {
+            priorities.put(requestPriority.getKey(), Priority.valueOf(requestPriority.getValue()));
+        }
+    }
+
+    /**
+     * Determine the priority of a request.
+     * @param request a request
+     * @param callContext the call context with which the request was submitted, may be {@code null}
+     * @return the request's priority
+     */
+    public Priority getPriority(IRequest request, Map<String, String> callContext) {
+        Priority priority = priorities.get(request.getClass().getSimpleName());
+        if (priority == null) {
+            priority = Priority.NORMAL;
+        }
+        if (callContext != null && callContext.containsKey(PRIORITY_KEY)) {
+            try {
+                final Priority requested = Priority.valueOf(callContext.get(PRIORITY_KEY));
+                if (requested.compareTo(priority) > 0) {
+                    /* may only lower priority */
+                    priority = requested;
+                }
+            } catch (IllegalArgumentException e) {
+                LOGGER.debug("ignoring unknown priority " + callContext.get(PRIORITY_KEY));
+            }
+        }
+        return priority;
+    }
+
+    /**
+     * Submit a request to run once a slot is available for it.
+     * @param user the user who submitted the request
+     * @param request the request
+     * @param callContext the call context for running the request
+     * @param work the work that runs the request
+     */
+    public void submit(Object user, IRequest request, Map<String, String> callContext, Callable<?> work) {
+        final Pending pending = new Pending(user, getPriority(request, callContext), callContext, work);
+        synchronized (this) {
+            final ClassQueue queue = queues.get(pending.priority);
+            if (queue.depth == 0) {
+                /* a class that was idle does not get to catch up */
+                queue.pass = Math.max(queue.pass, virtualTime);
+            }
+            Deque<Pending> userQueue = queue.byUser.get(user);
+            if (userQueue == null) {
+                userQueue = new ArrayDeque<Pending>();
+                queue.byUser.put(user, userQueue);
+            }
+            userQueue.add(pending);
+            queue.depth++;
+        }
+        dispatch();
+    }
+
+    /**
+     * Run as many pending requests as there are slots available for.
+     */
+    private void dispatch() {
+        final List<Pending> toRun = new ArrayList<Pending>();
+        synchronized (this) {
+            Pending pending;
+            while (running < maxRunning && (pending = next()) != null) {
+                running++;
+                if (pending.priority == Priority.INTERACTIVE) {
+                    runningInteractive++;
+                }
+                final Integer userRunning = runningByUser.get(pending.user);
+                runningByUser.put(pending.user, userRunning == null ? 1 : userRunning + 1);
+                toRun.add(pending);
+            }
+        }
+        for (final Pending pending : toRun) {
+            final long waited = System.nanoTime() - pending.submitted;
+            metrics.get(pending.priority).waited(waited);
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(String.format("running %s request after %dms", pending.priority, waited / 1000000L));
+            }
+            try {
+                executor.submit(pending.callContext, new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        try {
+                            return pending.work.call();
+                        } finally {
+                            finished(pending);
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                LOGGER.error("failed to submit request", e);
+                finished(pending);
+            }
+        }
+    }
+
+    /**
+     * Take the next request to run, by weighted fair queueing among the priority classes.
+     * @return the next request, or {@code null} if none may yet run
+     */
+    private Pending next() {
+        ClassQueue chosenQueue = null;
+        Object chosenUser = null;
+        for (final Map.Entry<Priority, ClassQueue> entry : queues.entrySet()) {
+            final Priority priority = entry.getKey();
+            final ClassQueue queue = entry.getValue();
+            if (queue.depth == 0 || (chosenQueue != null && queue.pass >= chosenQueue.pass)) {
+                continue;
+            }
+            if (priority != Priority.INTERACTIVE && running - runningInteractive >= maxRunning - reservedInteractive) {
+                continue;
+            }
+            final Object user = nextUser(queue);
+            if (user != null) {
+                chosenQueue = queue;
+                chosenUser = user;
+            }
+        }
+        if (chosenQueue == null) {
+            return null;
+        }
+        /* the user goes to the back of the line */
+        final Deque<Pending> userQueue = chosenQueue.byUser.remove(chosenUser);
+        final Pending pending = userQueue.poll();
+        if (!userQueue.isEmpty()) {
+            chosenQueue.byUser.put(chosenUser, userQueue);
+        }
+        chosenQueue.depth--;
+        virtualTime = chosenQueue.pass;
+        chosenQueue.pass += chosenQueue.stride;
+        return pending;
+    }
+
+    /**
+     * @param queue the queue of a priority class
+     * @return the first user in the queue who may run another request, or {@code null} if there is none
+     */
+    private Object nextUser(ClassQueue queue) {
+        final Iterator<Object> users = queue.byUser.keySet().iterator();
+        while (users.hasNext()) {
+            final Object user = users.next();
+            final Integer userRunning = runningByUser.get(user);
+            if (maxRunningPerUser < 1 || userRunning == null || userRunning < maxRunningPerUser) {
+                return user;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Note that a request has finished running and run any that were waiting for its slot.
+     * @param pending the request that finished
+     */
+    private void finished(Pending pending) {
+        synchronized (this) {
+            running--;
+            if (pending.priority == Priority.INTERACTIVE) {
+                runningInteractive--;
+            }
+            final int userRunning = runningByUser.get(pending.user) - 1;
+            if (userRunning == 0) {
+                runningByUser.remove(pending.user);
+            } else {
+                runningByUser.put(pending.user, userRunning);
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * @param priority a priority class
+     * @return how many requests of that class are waiting to run
+     */
+    public synchronized int getQueueDepth(Priority priority) {
+        return queues.get(priority).depth;
+    }
+
+    /**
+     * @return how many requests are running
+     */
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * @param priority a priority class
+     * @return statistics of how long requests of that class waited to run
+     */
+    public Metrics getMetrics(Priority priority) {
+        return metrics.get(priority);
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder("running=").append(running);
+        for (final Priority priority : Priority.values()) {
+            sb.append(' ').append(priority).append("=[queued=").append(queues.get(priority).depth);
+            sb.append(", ").append(metrics.get(priority)).append(']');
+        }
+        return sb.toString();
+    }
+}
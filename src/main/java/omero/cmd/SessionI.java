@@ -8,6 +8,7 @@ package omero.cmd;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -101,6 +102,12 @@ public class SessionI implements _SessionOperations {
     /** Token in the form of a UUID for securing method invocations. */
     public final String token;
 
+    /**
+     * Orders the requests submitted via {@link #submit_async}. If null, the
+     * requests are passed straight to the {@link #executor}.
+     */
+    protected RequestScheduler requestScheduler;
+
     public SessionI(boolean reusedSession, Ice.Current current,
             ServantHolder holder, Glacier2.SessionControlPrx control,
             OmeroContext context, SessionManager sessionManager,
@@ -138,6 +145,10 @@ public class SessionI implements _SessionOperations {
         return this.principal;
     }
 
+    public void setRequestScheduler(RequestScheduler requestScheduler) {
+        this.requestScheduler = requestScheduler;
+    }
+
     public Executor getExecutor() {
         return this.executor;
     }
@@ -200,7 +211,7 @@ public class SessionI implements _SessionOperations {
             // Init
             try {
                 handle.initialize(id, (IRequest) req, current.ctx);
-                executor.submit(current.ctx, Executors.callable(handle));
+                submitRequest(handle, (IRequest) req, current.ctx);
                 __cb.ice_response(prx);
             } catch (Throwable e) {
                 log.error("Exception on startup; removing handle " + id, e);
@@ -219,6 +230,26 @@ public class SessionI implements _SessionOperations {
         }
     }
 
+    /**
+     * Run the request of an initialized handle, through the
+     * {@link #requestScheduler} if one is set.
+     */
+    private void submitRequest(IHandle handle, IRequest req,
+            Map<String, String> ctx) {
+        if (requestScheduler == null) {
+            executor.submit(ctx, Executors.callable(handle));
+            return;
+        }
+        Object user;
+        try {
+            user = sessionManager.getEventContext(principal).getCurrentUserId();
+        } catch (RuntimeException e) {
+            log.debug("Cannot determine user for scheduling " + req, e);
+            user = principal.getName();
+        }
+        requestScheduler.submit(user, req, ctx, Executors.callable(handle));
+    }
+
     // ~ Glacier2 API
     // =========================================================================
 
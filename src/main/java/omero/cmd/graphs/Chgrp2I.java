@@ -28,6 +28,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
@@ -54,6 +55,7 @@ import ome.services.util.ReadOnlyStatus;
 import ome.system.EventContext;
 import ome.system.Login;
 import ome.system.Roles;
+import omero.cmd.ChunkableRequest;
 import omero.cmd.Chgrp2;
 import omero.cmd.Chgrp2Response;
 import omero.cmd.HandleI.Cancel;
@@ -67,7 +69,8 @@ import omero.cmd.Response;
  * @author m.t.b.carroll@dundee.ac.uk
  * @since 5.1.0
  */
-public class Chgrp2I extends Chgrp2 implements IRequest, ReadOnlyStatus.IsAware, WrappableRequest<Chgrp2> {
+public class Chgrp2I extends Chgrp2 implements IRequest, ReadOnlyStatus.IsAware, WrappableRequest<Chgrp2>,
+        ChunkableRequest {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Chgrp2I.class);
 
@@ -93,6 +96,8 @@ public class Chgrp2I extends Chgrp2 implements IRequest, ReadOnlyStatus.IsAware,
     private GraphTraversal.PlanExecutor unlinker;
     private GraphTraversal.PlanExecutor processor;
 
+    private PlannedWrites plannedWrites = null;
+
     private int targetObjectCount = 0;
     private int deletedObjectCount = 0;
     private int movedObjectCount = 0;
@@ -168,8 +173,10 @@ public class Chgrp2I extends Chgrp2 implements IRequest, ReadOnlyStatus.IsAware,
 
         graphPolicy.registerPredicate(new GroupPredicate(securityRoles));
 
+        final GraphTraversal.Processor internalProcessor = new InternalProcessor(helper.getSession(), requiredAbilities);
         graphTraversal = graphHelper.prepareGraphTraversal(childOptions, requiredAbilities, graphPolicy, graphPolicyAdjusters,
-                aclVoter, graphPathBean, unnullable, new InternalProcessor(requiredAbilities), dryRun);
+                aclVoter, graphPathBean, unnullable,
+                plannedWrites == null ? internalProcessor : plannedWrites.deferring(internalProcessor), dryRun);
 
         if (isChgrpPrivilege) {
             graphTraversal.setOwnsAll();
@@ -296,6 +303,21 @@ public class Chgrp2I extends Chgrp2 implements IRequest, ReadOnlyStatus.IsAware,
         return dryRun;
     }
 
+    @Override
+    public boolean deferWrites(PlannedWrites writes) {
+        if (dryRun) {
+            return false;
+        }
+        plannedWrites = writes;
+        return true;
+    }
+
+    @Override
+    public void applyWrites(PlannedWrites writes, int from, int to, Session session) throws GraphException {
+        /* permissions were checked when the writes were planned */
+        writes.apply(from, to, new InternalProcessor(session, Collections.<GraphPolicy.Ability>emptySet()));
+    }
+
     /**
      * A <q>chgrp</q> processor that updates model objects' group.
      * @author m.t.b.carroll@dundee.ac.uk
@@ -309,19 +331,21 @@ public class Chgrp2I extends Chgrp2 implements IRequest, ReadOnlyStatus.IsAware,
 
         private final Set<GraphPolicy.Ability> requiredAbilities;
 
-        public InternalProcessor(Set<GraphPolicy.Ability> requiredAbilities) {
-            super(helper.getSession());
+        public InternalProcessor(Session session, Set<GraphPolicy.Ability> requiredAbilities) {
+            super(session);
             this.requiredAbilities = requiredAbilities;
         }
 
         @Override
         public void deleteInstances(String className, Collection<Long> ids) throws GraphException {
+            graphHelper.publishDiskUsageChange(applicationContext, className, ids);
             super.deleteInstances(className, ids);
             graphHelper.publishEventLog(applicationContext, "DELETE", className, ids);
         }
 
         @Override
         public void processInstances(String className, Collection<Long> ids) throws GraphException {
+            graphHelper.publishDiskUsageChange(applicationContext, className, ids, groupId);
             final String update = "UPDATE " + className + " SET details.group = :group WHERE id IN (:ids)";
             final int count =
                     session.createQuery(update).setParameter("group", group).setParameterList("ids", ids).executeUpdate();
@@ -336,6 +336,7 @@ public class Chmod2I extends Chmod2 implements IRequest, ReadOnlyStatus.IsAware,
 
         @Override
         public void deleteInstances(String className, Collection<Long> ids) throws GraphException {
+            graphHelper.publishDiskUsageChange(applicationContext, className, ids);
             super.deleteInstances(className, ids);
             graphHelper.publishEventLog(applicationContext, "DELETE", className, ids);
         }
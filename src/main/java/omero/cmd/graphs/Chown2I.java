@@ -32,6 +32,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 
 import org.apache.commons.collections.CollectionUtils;
+import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
@@ -71,6 +72,7 @@ import ome.system.EventContext;
 import ome.system.Login;
 import ome.system.Roles;
 import omero.ServerError;
+import omero.cmd.ChunkableRequest;
 import omero.cmd.Chown2;
 import omero.cmd.Chown2Response;
 import omero.cmd.HandleI.Cancel;
@@ -84,7 +86,8 @@ import omero.cmd.Response;
  * @author m.t.b.carroll@dundee.ac.uk
  * @since 5.1.0
  */
-public class Chown2I extends Chown2 implements IRequest, ReadOnlyStatus.IsAware, WrappableRequest<Chown2> {
+public class Chown2I extends Chown2 implements IRequest, ReadOnlyStatus.IsAware, WrappableRequest<Chown2>,
+        ChunkableRequest {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Chown2I.class);
 
@@ -112,6 +115,8 @@ public class Chown2I extends Chown2 implements IRequest, ReadOnlyStatus.IsAware,
     private GraphTraversal.PlanExecutor unlinker;
     private GraphTraversal.PlanExecutor processor;
 
+    private PlannedWrites plannedWrites = null;
+
     private int targetObjectCount = 0;
     private int deletedObjectCount = 0;
     private int givenObjectCount = 0;
@@ -200,8 +205,10 @@ public class Chown2I extends Chown2 implements IRequest, ReadOnlyStatus.IsAware,
         graphPolicy.registerPredicate(new GroupPredicate(securityRoles));
         graphPolicy.registerPredicate(new PermissionsPredicate());
 
+        final GraphTraversal.Processor internalProcessor = new InternalProcessor(helper.getSession(), requiredAbilities);
         graphTraversal = graphHelper.prepareGraphTraversal(childOptions, REQUIRED_ABILITIES, graphPolicy, graphPolicyAdjusters,
-                aclVoter, graphPathBean, unnullable, new InternalProcessor(requiredAbilities), dryRun);
+                aclVoter, graphPathBean, unnullable,
+                plannedWrites == null ? internalProcessor : plannedWrites.deferring(internalProcessor), dryRun);
 
         if (isChownPrivilege) {
             graphTraversal.setOwnsAll();
@@ -420,6 +427,21 @@ public class Chown2I extends Chown2 implements IRequest, ReadOnlyStatus.IsAware,
         return dryRun;
     }
 
+    @Override
+    public boolean deferWrites(PlannedWrites writes) {
+        if (dryRun) {
+            return false;
+        }
+        plannedWrites = writes;
+        return true;
+    }
+
+    @Override
+    public void applyWrites(PlannedWrites writes, int from, int to, Session session) throws GraphException {
+        /* permissions were checked when the writes were planned */
+        writes.apply(from, to, new InternalProcessor(session, Collections.<GraphPolicy.Ability>emptySet()));
+    }
+
     /**
      * Notes links that are to be given. Intended for use in {@link HashSet}s.
      * @author m.t.b.carroll@dundee.ac.uk
@@ -482,19 +504,21 @@ public class Chown2I extends Chown2 implements IRequest, ReadOnlyStatus.IsAware,
 
         private final Set<LinkDetails> linksToChown = new HashSet<LinkDetails>();
 
-        public InternalProcessor(Set<GraphPolicy.Ability> requiredAbilities) {
-            super(helper.getSession());
+        public InternalProcessor(Session session, Set<GraphPolicy.Ability> requiredAbilities) {
+            super(session);
             this.requiredAbilities = requiredAbilities;
         }
 
         @Override
         public void deleteInstances(String className, Collection<Long> ids) throws GraphException {
+            graphHelper.publishDiskUsageChange(applicationContext, className, ids);
             super.deleteInstances(className, ids);
             graphHelper.publishEventLog(applicationContext, "DELETE", className, ids);
         }
 
         @Override
         public void processInstances(String className, Collection<Long> ids) throws GraphException {
+            graphHelper.publishDiskUsageChange(applicationContext, className, ids);
             final String update = "UPDATE " + className + " SET details.owner = :user WHERE id IN (:ids)";
             final int count =
                     session.createQuery(update).setParameter("user", userTo).setParameterList("ids", ids).executeUpdate();
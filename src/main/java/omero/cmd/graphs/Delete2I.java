@@ -27,6 +27,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
@@ -47,6 +48,7 @@ import ome.services.graphs.GraphTraversal;
 import ome.services.util.ReadOnlyStatus;
 import ome.system.Login;
 import ome.system.Roles;
+import omero.cmd.ChunkableRequest;
 import omero.cmd.Delete2;
 import omero.cmd.Delete2Response;
 import omero.cmd.HandleI.Cancel;
@@ -60,7 +62,8 @@ import omero.cmd.Response;
  * @author m.t.b.carroll@dundee.ac.uk
  * @since 5.1.0
  */
-public class Delete2I extends Delete2 implements IRequest, ReadOnlyStatus.IsAware, WrappableRequest<Delete2> {
+public class Delete2I extends Delete2 implements IRequest, ReadOnlyStatus.IsAware, WrappableRequest<Delete2>,
+        ChunkableRequest {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Delete2I.class);
 
@@ -84,6 +87,8 @@ public class Delete2I extends Delete2 implements IRequest, ReadOnlyStatus.IsAwar
     private GraphTraversal.PlanExecutor unlinker;
     private GraphTraversal.PlanExecutor processor;
 
+    private PlannedWrites plannedWrites = null;
+
     private int targetObjectCount = 0;
     private int deletedObjectCount = 0;
 
@@ -133,8 +138,10 @@ public class Delete2I extends Delete2 implements IRequest, ReadOnlyStatus.IsAwar
 
         graphPolicy = IgnoreTypePolicy.getIgnoreTypePolicy(graphPolicy, graphHelper.getClassesFromNames(typesToIgnore));
 
+        final GraphTraversal.Processor internalProcessor = new InternalProcessor(helper.getSession());
         graphTraversal = graphHelper.prepareGraphTraversal(childOptions, REQUIRED_ABILITIES, graphPolicy, graphPolicyAdjusters,
-                aclVoter, graphPathBean, unnullable, new InternalProcessor(), dryRun);
+                aclVoter, graphPathBean, unnullable,
+                plannedWrites == null ? internalProcessor : plannedWrites.deferring(internalProcessor), dryRun);
 
         graphPolicyAdjusters = null;
     }
@@ -256,6 +263,20 @@ public class Delete2I extends Delete2 implements IRequest, ReadOnlyStatus.IsAwar
         return dryRun;
     }
 
+    @Override
+    public boolean deferWrites(PlannedWrites writes) {
+        if (dryRun) {
+            return false;
+        }
+        plannedWrites = writes;
+        return true;
+    }
+
+    @Override
+    public void applyWrites(PlannedWrites writes, int from, int to, Session session) throws GraphException {
+        writes.apply(from, to, new InternalProcessor(session));
+    }
+
     /**
      * A <q>delete</q> processor that deletes model objects.
      * @author m.t.b.carroll@dundee.ac.uk
@@ -263,12 +284,13 @@ public class Delete2I extends Delete2 implements IRequest, ReadOnlyStatus.IsAwar
      */
     private final class InternalProcessor extends BaseGraphTraversalProcessor {
 
-        public InternalProcessor() {
-            super(helper.getSession());
+        public InternalProcessor(Session session) {
+            super(session);
         }
 
         @Override
         public void deleteInstances(String className, Collection<Long> ids) throws GraphException {
+            graphHelper.publishDiskUsageChange(applicationContext, className, ids);
             super.deleteInstances(className, ids);
             graphHelper.publishEventLog(applicationContext, "DELETE", className, ids);
         }
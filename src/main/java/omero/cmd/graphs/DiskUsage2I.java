@@ -22,7 +22,9 @@ package omero.cmd.graphs;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -41,6 +43,7 @@ import ome.io.bioformats.BfPyramidPixelBuffer;
 import ome.io.nio.PixelsService;
 import ome.io.nio.ThumbnailService;
 import ome.model.IObject;
+import ome.model.meta.ExperimenterGroup;
 import ome.parameters.Parameters;
 import ome.security.ACLVoter;
 import ome.security.basic.LightAdminPrivileges;
@@ -82,6 +85,7 @@ public class DiskUsage2I extends DiskUsage2 implements IRequest, ReadOnlyStatus.
     private final GraphPolicy graphPolicy;
     private PixelsService pixelsService;
     private ThumbnailService thumbnailService;
+    private DiskUsageLedger diskUsageLedger;
 
     private Helper helper;
     private GraphHelper graphHelper;
@@ -130,6 +134,14 @@ public class DiskUsage2I extends DiskUsage2 implements IRequest, ReadOnlyStatus.
         this.thumbnailService = thumbnailService;
     }
 
+    /**
+     * Provided by {@link omero.cmd.RequestObjectFactoryRegistry}.
+     * @param diskUsageLedger the ledger of the disk usage of groups, may be {@code null}
+     */
+    public void setDiskUsageLedger(DiskUsageLedger diskUsageLedger) {
+        this.diskUsageLedger = diskUsageLedger;
+    }
+
     /* CMD REQUEST FRAMEWORK */
 
     @Override
@@ -147,6 +159,18 @@ public class DiskUsage2I extends DiskUsage2 implements IRequest, ReadOnlyStatus.
         }
 
         this.helper = helper;
+        if (diskUsageLedger != null && helper.getEventContext().isCurrentUserAdmin()) {
+            final Collection<Long> groupIds = getTargetGroupIds();
+            if (groupIds != null) {
+                final DiskUsage2Response response = diskUsageLedger.getUsage(groupIds);
+                if (response != null) {
+                    /* no need to traverse the model graph */
+                    helper.setSteps(1);
+                    helper.setResponseIfNull(response);
+                    return;
+                }
+            }
+        }
         helper.setSteps(5);
         this.graphHelper = new GraphHelper(helper, graphPathBean);
 
@@ -154,9 +178,38 @@ public class DiskUsage2I extends DiskUsage2 implements IRequest, ReadOnlyStatus.
                 graphPolicy, new InternalProcessor());
     }
 
+    /**
+     * @return the IDs of the groups targeted by this request if it targets only whole groups, otherwise {@code null}
+     */
+    private Collection<Long> getTargetGroupIds() {
+        final String groupClass = ExperimenterGroup.class.getSimpleName();
+        final boolean isTargetObjectsGroups = targetObjects == null ||
+                targetObjects.keySet().equals(Collections.singleton(groupClass));
+        final boolean isTargetClassesGroups = targetClasses == null ||
+                targetClasses.equals(Collections.singletonList(groupClass));
+        if (!(isTargetObjectsGroups && isTargetClassesGroups) || (targetObjects == null && targetClasses == null)) {
+            return null;
+        }
+        final Set<Long> groupIds = new HashSet<Long>();
+        if (targetObjects != null) {
+            groupIds.addAll(targetObjects.get(groupClass));
+        }
+        if (targetClasses != null) {
+            final IQuery queryService = helper.getServiceFactory().getQueryService();
+            for (final Object[] resultRow : queryService.projection("SELECT id FROM ExperimenterGroup", null)) {
+                groupIds.add((Long) resultRow[0]);
+            }
+        }
+        return groupIds;
+    }
+
     @Override
     public Object step(int step) throws Cancel {
         helper.assertStep(step);
+        if (graphTraversal == null) {
+            /* the response came from the disk usage ledger */
+            return null;
+        }
         try {
             switch (step) {
             case 0:
@@ -229,6 +282,7 @@ public class DiskUsage2I extends DiskUsage2 implements IRequest, ReadOnlyStatus.
 
     @Override
     public void finish() {
+        /* does not replace any response from the disk usage ledger */
         helper.setResponseIfNull(usage.getDiskUsageResponse());
     }
 
@@ -386,7 +440,7 @@ public class DiskUsage2I extends DiskUsage2 implements IRequest, ReadOnlyStatus.
      * @param path a file path
      * @return the file's size, or {@code 0} if the file does not exist
      */
-    private static long getFileSize(String path) {
+    static long getFileSize(String path) {
         final File file = new File(path);
         return file.exists() ? file.length() : 0;
     }
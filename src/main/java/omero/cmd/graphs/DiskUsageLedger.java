@@ -0,0 +1,996 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.cmd.graphs;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import ome.api.IQuery;
+import ome.io.bioformats.BfPyramidPixelBuffer;
+import ome.io.nio.PixelsService;
+import ome.io.nio.ThumbnailService;
+import ome.parameters.Parameters;
+import ome.parameters.QueryParameter;
+import ome.services.util.Executor;
+import ome.system.Login;
+import ome.system.Principal;
+import ome.system.ServiceFactory;
+import omero.api.LongPair;
+import omero.cmd.DiskUsage2Response;
+import omero.cmd.Helper;
+import omero.cmd.Response;
+import omero.cmd.Status;
+
+/**
+ * Keeps the disk usage of each group so that {@link DiskUsage2I} need not traverse the model graph to report on whole groups.
+ * The usage of a group is first calculated by running {@link DiskUsage2I} for it in the background. It is then adjusted from
+ * the event log as files, pixels and thumbnails are created, and as the files, pixels and thumbnails that were created since
+ * are updated or deleted or, for files, gain referers. The files of new pixels and thumbnails are sized again as they are
+ * written. Changes that cannot be applied incrementally, like deletions of older objects, updates of older original files or
+ * moving objects between groups, instead mark the affected groups as stale until they are next reconciled by
+ * {@link #reconcile()}. Such changes are noted from the event log, which all the nodes of a cluster share, and also from
+ * the {@link StaleGroupsMessage}s published on this node before the change is made.
+ * <p>
+ * Event log entries are not committed in the order of their IDs, so the entries of a trailing window of event time are
+ * scanned again by each update and those not yet processed are processed then. Likewise, a reconciliation notes which of the
+ * window's entries its calculation includes so that the others may be replayed onto its result. Changes from transactions
+ * longer than the window, and to files such as pyramids that are written without an accompanying database change, are not
+ * reflected until the next reconciliation, so {@link #reconcileAll()} should be run periodically.
+ * @since 5.5
+ */
+public class DiskUsageLedger implements ApplicationListener<DiskUsageLedger.StaleGroupsMessage> {
+
+    /**
+     * Notes that the disk usage of the given groups is about to change in a way that the ledger cannot follow.
+     * Published by the graph requests before they delete or move objects.
+     */
+    public static class StaleGroupsMessage extends ApplicationEvent {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Set<Long> groupIds;
+
+        /**
+         * Construct a new message.
+         * @param source the publisher of the message
+         * @param groupIds the IDs of the groups whose disk usage is changing
+         */
+        public StaleGroupsMessage(Object source, Collection<Long> groupIds) {
+            super(source);
+            this.groupIds = ImmutableSet.copyOf(groupIds);
+        }
+
+        /**
+         * @return the IDs of the groups whose disk usage is changing
+         */
+        public Set<Long> getGroupIds() {
+            return groupIds;
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DiskUsageLedger.class);
+
+    private static final ImmutableMap<String, String> ALL_GROUPS_CONTEXT = ImmutableMap.of(Login.OMERO_GROUP, "-1");
+
+    /* how many event log entries to process per transaction */
+    private static final int EVENT_BATCH_SIZE = 10000;
+
+    /* how many recently created objects to follow, beyond which the oldest are treated as any other */
+    private static final int MAX_RECENT = 100000;
+
+    /* for the classes that refer to original files, the referring property and to which class the usage is attributed */
+    private static final Map<String, String> FILE_PROPERTIES = ImmutableMap.<String, String>builder()
+            .put("FileAnnotation", "file").put("FilesetEntry", "originalFile").put("JobOriginalFileLink", "child")
+            .put("PixelsOriginalFileMap", "parent").put("Roi", "source").build();
+    private static final Map<String, String> ATTRIBUTIONS = ImmutableMap.<String, String>of(
+            "JobOriginalFileLink", "Job", "PixelsOriginalFileMap", "Pixels");
+
+    /** the simple names of the classes whose changes may affect disk usage */
+    public static final Set<String> TRACKED_CLASSES = ImmutableSet.<String>builder()
+            .add("OriginalFile", "Pixels", "Thumbnail").addAll(FILE_PROPERTIES.keySet()).build();
+
+    private static final List<String> TRACKED_ENTITY_TYPES = ImmutableSet.<String>builder()
+            .add(ome.model.core.OriginalFile.class.getName(), ome.model.core.Pixels.class.getName(),
+                    ome.model.display.Thumbnail.class.getName(), ome.model.annotations.FileAnnotation.class.getName(),
+                    ome.model.fs.FilesetEntry.class.getName(), ome.model.jobs.JobOriginalFileLink.class.getName(),
+                    ome.model.core.PixelsOriginalFileMap.class.getName(), ome.model.roi.Roi.class.getName())
+            .build().asList();
+
+    private final Executor executor;
+    private final Principal principal;
+    private final GraphRequestFactory graphRequestFactory;
+    private final PixelsService pixelsService;
+    private final ThumbnailService thumbnailService;
+
+    /* the groups noted by messages, not yet marked stale */
+    private final Set<Long> staleGroupsPending = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    /* held throughout reconciliation, which may take a long time so does not hold the lock on this */
+    private final Object reconcileLock = new Object();
+
+    /* copies of the totals of the current groups, replaced whenever they may have changed so that queries need not lock */
+    private volatile Map<Long, Totals> currentTotals = Collections.emptyMap();
+
+    /* for how long in milliseconds event log entries may remain uncommitted and still be processed */
+    private long windowMillis = 60 * 60 * 1000;
+
+    /* all the fields below are guarded by this */
+
+    /* the disk usage of each reconciled group */
+    private final Map<Long, Totals> totalsByGroup = new HashMap<Long, Totals>();
+    /* the reconciled groups whose totals are not to be trusted */
+    private final Set<Long> staleGroups = new HashSet<Long>();
+    /* the original files created since their group was reconciled, oldest first */
+    private final Map<Long, RecentFile> recentFiles = new LinkedHashMap<Long, RecentFile>();
+    /* the pixels and thumbnails created since their group was reconciled, by class and ID, oldest first */
+    private final Map<Map.Entry<String, Long>, RecentBinary> recentBinaries =
+            new LinkedHashMap<Map.Entry<String, Long>, RecentBinary>();
+    /* the event times of the processed event log entries that may be scanned again, by ID */
+    private final Map<Long, Long> processedEventLogs = new HashMap<Long, Long>();
+    /* the highest ID of the event log entries processed so far */
+    private Long lastEventLogId = null;
+    /* while a reconciliation calculates a group's disk usage, the IDs of the event log entries processed meanwhile */
+    private Set<Long> processedDuringCalculation = null;
+    /* while event log entries are replayed onto a reconciled group, the ID of that group */
+    private Long replayGroupId = null;
+
+    /**
+     * Construct a new disk usage ledger.
+     * @param executor the executor for background work
+     * @param principal the principal as whom to perform background work, must be an administrator
+     * @param graphRequestFactory the factory for the {@link DiskUsage2I} requests used in reconciliation
+     * @param pixelsService the pixels service
+     * @param thumbnailService the thumbnail service
+     */
+    public DiskUsageLedger(Executor executor, Principal principal, GraphRequestFactory graphRequestFactory,
+            PixelsService pixelsService, ThumbnailService thumbnailService) {
+        this.executor = executor;
+        this.principal = principal;
+        this.graphRequestFactory = graphRequestFactory;
+        this.pixelsService = pixelsService;
+        this.thumbnailService = thumbnailService;
+    }
+
+    /**
+     * Set for how long event log entries may remain uncommitted and still be processed. Changes from transactions that take
+     * longer are reflected only once the affected groups are next reconciled.
+     * @param windowMillis the window of event time in milliseconds that each update scans again, must be positive
+     */
+    public synchronized void setWindowMillis(long windowMillis) {
+        if (windowMillis < 1) {
+            throw new IllegalArgumentException("window must be positive: " + windowMillis);
+        }
+        this.windowMillis = windowMillis;
+    }
+
+    /* DISK USAGE TOTALS */
+
+    /**
+     * The disk usage of a group, as in {@link DiskUsage2Response}. Not thread-safe.
+     */
+    private static class Totals {
+        /* file count and size by type by owner-group */
+        private final Map<LongPair, Map<String, long[]>> byTypeByWho = new HashMap<LongPair, Map<String, long[]>>();
+        /* file count and size by owner-group */
+        private final Map<LongPair, long[]> totalByWho = new HashMap<LongPair, long[]>();
+
+        /**
+         * Adjust the totals by a file.
+         * @param owner the ID of the file's owner
+         * @param group the ID of the file's group
+         * @param types the types to which the file is attributed
+         * @param size the size of the file, ignored unless positive
+         * @param sign {@code 1} to add the file, {@code -1} to remove it
+         */
+        void add(long owner, long group, Collection<String> types, long size, int sign) {
+            if (size <= 0) {
+                return;
+            }
+            final LongPair ownership = new LongPair(owner, group);
+            Map<String, long[]> byType = byTypeByWho.get(ownership);
+            if (byType == null) {
+                byType = new HashMap<String, long[]>();
+                byTypeByWho.put(ownership, byType);
+            }
+            for (final String type : types) {
+                long[] countAndSize = byType.get(type);
+                if (countAndSize == null) {
+                    countAndSize = new long[2];
+                    byType.put(type, countAndSize);
+                }
+                countAndSize[0] += sign;
+                countAndSize[1] += sign * size;
+            }
+            long[] total = totalByWho.get(ownership);
+            if (total == null) {
+                total = new long[2];
+                totalByWho.put(ownership, total);
+            }
+            total[0] += sign;
+            total[1] += sign * size;
+        }
+
+        /**
+         * @return a copy of these totals
+         */
+        Totals copy() {
+            final Totals copy = new Totals();
+            for (final Map.Entry<LongPair, Map<String, long[]>> byType : byTypeByWho.entrySet()) {
+                final Map<String, long[]> byTypeCopy = new HashMap<String, long[]>();
+                for (final Map.Entry<String, long[]> countAndSize : byType.getValue().entrySet()) {
+                    byTypeCopy.put(countAndSize.getKey(), countAndSize.getValue().clone());
+                }
+                copy.byTypeByWho.put(byType.getKey(), byTypeCopy);
+            }
+            for (final Map.Entry<LongPair, long[]> total : totalByWho.entrySet()) {
+                copy.totalByWho.put(total.getKey(), total.getValue().clone());
+            }
+            return copy;
+        }
+
+        /**
+         * Construct totals from a disk usage response.
+         * @param response a response from {@link DiskUsage2I}
+         * @return the totals
+         */
+        static Totals of(DiskUsage2Response response) {
+            final Totals totals = new Totals();
+            for (final Map.Entry<LongPair, Map<String, Integer>> countByType : response.fileCountByReferer.entrySet()) {
+                final Map<String, Long> sizeByType = response.bytesUsedByReferer.get(countByType.getKey());
+                final Map<String, long[]> byType = new HashMap<String, long[]>();
+                for (final Map.Entry<String, Integer> count : countByType.getValue().entrySet()) {
+                    byType.put(count.getKey(), new long[] {count.getValue(), sizeByType.get(count.getKey())});
+                }
+                totals.byTypeByWho.put(countByType.getKey(), byType);
+            }
+            for (final Map.Entry<LongPair, Integer> count : response.totalFileCount.entrySet()) {
+                final long size = response.totalBytesUsed.get(count.getKey());
+                totals.totalByWho.put(count.getKey(), new long[] {count.getValue(), size});
+            }
+            return totals;
+        }
+
+        /**
+         * Add these totals to a disk usage response.
+         * @param response the response to which to add, its maps must be non-null
+         */
+        void addTo(DiskUsage2Response response) {
+            for (final Map.Entry<LongPair, Map<String, long[]>> byType : byTypeByWho.entrySet()) {
+                final LongPair ownership = byType.getKey();
+                Map<String, Integer> countByType = response.fileCountByReferer.get(ownership);
+                Map<String, Long> sizeByType = response.bytesUsedByReferer.get(ownership);
+                if (countByType == null) {
+                    countByType = new HashMap<String, Integer>();
+                    sizeByType = new HashMap<String, Long>();
+                    response.fileCountByReferer.put(ownership, countByType);
+                    response.bytesUsedByReferer.put(ownership, sizeByType);
+                }
+                for (final Map.Entry<String, long[]> countAndSize : byType.getValue().entrySet()) {
+                    final long count = countAndSize.getValue()[0];
+                    if (count > 0) {
+                        final String type = countAndSize.getKey();
+                        final Integer oldCount = countByType.get(type);
+                        final Long oldSize = sizeByType.get(type);
+                        countByType.put(type, (int) count + (oldCount == null ? 0 : oldCount));
+                        sizeByType.put(type, countAndSize.getValue()[1] + (oldSize == null ? 0 : oldSize));
+                    }
+                }
+                if (countByType.isEmpty()) {
+                    response.fileCountByReferer.remove(ownership);
+                    response.bytesUsedByReferer.remove(ownership);
+                }
+            }
+            for (final Map.Entry<LongPair, long[]> total : totalByWho.entrySet()) {
+                final long count = total.getValue()[0];
+                if (count > 0) {
+                    final LongPair ownership = total.getKey();
+                    final Integer oldCount = response.totalFileCount.get(ownership);
+                    final Long oldSize = response.totalBytesUsed.get(ownership);
+                    response.totalFileCount.put(ownership, (int) count + (oldCount == null ? 0 : oldCount));
+                    response.totalBytesUsed.put(ownership, total.getValue()[1] + (oldSize == null ? 0 : oldSize));
+                }
+            }
+        }
+    }
+
+    /**
+     * An original file created since its group was last reconciled, whose contribution to the totals can thus be adjusted.
+     */
+    private static class RecentFile {
+        private final long noted = System.currentTimeMillis();
+        private long owner;
+        private long group;
+        private long size;
+        private final Set<String> types = new HashSet<String>();
+
+        /**
+         * @return the types to which the file's disk usage is attributed
+         */
+        Set<String> getTypes() {
+            return types.isEmpty() ? Collections.singleton("OriginalFile") : types;
+        }
+    }
+
+    /**
+     * Pixels or a thumbnail created since its group was last reconciled, whose files are sized again as they are written.
+     */
+    private static class RecentBinary {
+        private final long noted = System.currentTimeMillis();
+        private final long owner;
+        private final long group;
+        /* the sizes of the files as they are counted in the totals */
+        private long[] sizes;
+
+        RecentBinary(long owner, long group, long[] sizes) {
+            this.owner = owner;
+            this.group = group;
+            this.sizes = sizes;
+        }
+    }
+
+    /* QUERYING */
+
+    /**
+     * Get the disk usage of the given groups, if it is known.
+     * @param groupIds the IDs of some groups
+     * @return the disk usage of the groups, or {@code null} if the ledger does not have it
+     */
+    public DiskUsage2Response getUsage(Collection<Long> groupIds) {
+        /* does not wait for updates or reconciliation */
+        final Map<Long, Totals> totals = currentTotals;
+        for (final Long groupId : groupIds) {
+            if (!totals.containsKey(groupId) || staleGroupsPending.contains(groupId)) {
+                return null;
+            }
+        }
+        final DiskUsage2Response response = new DiskUsage2Response(new HashMap<LongPair, Map<String, Integer>>(),
+                new HashMap<LongPair, Map<String, Long>>(), new HashMap<LongPair, Integer>(), new HashMap<LongPair, Long>());
+        for (final Long groupId : ImmutableSet.copyOf(groupIds)) {
+            totals.get(groupId).addTo(response);
+        }
+        return response;
+    }
+
+    @Override
+    public void onApplicationEvent(StaleGroupsMessage message) {
+        /* do not make the publisher wait for the lock */
+        staleGroupsPending.addAll(message.getGroupIds());
+    }
+
+    /**
+     * Mark as stale the groups noted by messages since this method was last called.
+     * They are still noted as pending until the totals are next published.
+     * @return the groups that were marked stale
+     */
+    private Set<Long> markStalePending() {
+        final Set<Long> groupIds = ImmutableSet.copyOf(staleGroupsPending);
+        for (final Long groupId : groupIds) {
+            markStale(groupId);
+        }
+        return groupIds;
+    }
+
+    /**
+     * Replace {@link #currentTotals} with copies of the totals of the groups that are now current.
+     */
+    private void publishTotals() {
+        final Map<Long, Totals> totals = new HashMap<Long, Totals>();
+        for (final Map.Entry<Long, Totals> groupTotals : totalsByGroup.entrySet()) {
+            if (!staleGroups.contains(groupTotals.getKey())) {
+                totals.put(groupTotals.getKey(), groupTotals.getValue().copy());
+            }
+        }
+        currentTotals = Collections.unmodifiableMap(totals);
+    }
+
+    /* INCREMENTAL UPDATES */
+
+    /**
+     * Apply the changes recorded in the event log since the last update and size again the files of new pixels and
+     * thumbnails. Called periodically.
+     */
+    public synchronized void update() {
+        final Set<Long> staleGroupsMarked = markStalePending();
+        try {
+            processEventLogs();
+            resizeRecentBinaries();
+            forgetOldRecent();
+        } finally {
+            publishTotals();
+            staleGroupsPending.removeAll(staleGroupsMarked);
+        }
+    }
+
+    /**
+     * @return the start of the window of event time within which event log entries are scanned again
+     */
+    private Timestamp getWindowStart() {
+        return new Timestamp(System.currentTimeMillis() - windowMillis);
+    }
+
+    /**
+     * Process the event log entries that are newer than {@link #lastEventLogId} or in the window of event time and that are
+     * not yet processed.
+     */
+    private void processEventLogs() {
+        final Timestamp windowStart = getWindowStart();
+        if (processedDuringCalculation == null) {
+            /* once a reconciliation need not know what was processed, forget the entries that will not be scanned again */
+            final Iterator<Long> timeIterator = processedEventLogs.values().iterator();
+            while (timeIterator.hasNext()) {
+                if (timeIterator.next() < windowStart.getTime()) {
+                    timeIterator.remove();
+                }
+            }
+        }
+        Long afterId = -1L;
+        while (afterId != null) {
+            final Long fromId = afterId;
+            afterId = (Long) executor.execute(ALL_GROUPS_CONTEXT, principal,
+                    new Executor.SimpleWork(this, "processEventLogs", fromId) {
+                @Override
+                @Transactional(readOnly = true)
+                public Long doWork(Session session, ServiceFactory sf) {
+                    return processEventLogs(sf.getQueryService(), fromId, windowStart);
+                }
+            });
+        }
+    }
+
+    /**
+     * Process the next batch of event log entries.
+     * @param queryService the query service
+     * @param afterId the ID after which to look for entries
+     * @param windowStart the start of the window of event time within which entries are scanned again
+     * @return the ID of the last entry of the batch if there may be more entries to process, otherwise {@code null}
+     */
+    private Long processEventLogs(IQuery queryService, long afterId, Timestamp windowStart) {
+        if (lastEventLogId == null) {
+            /* start from now */
+            final Object[] result = queryService.projection("SELECT MAX(id) FROM EventLog", null).get(0);
+            lastEventLogId = result[0] == null ? 0 : (Long) result[0];
+            return null;
+        }
+        final Parameters parameters = new Parameters().addLong("after", afterId).addLong("last", lastEventLogId)
+                .add(new QueryParameter("since", Timestamp.class, windowStart))
+                .addList("types", TRACKED_ENTITY_TYPES).page(0, EVENT_BATCH_SIZE);
+        final String hql = "SELECT log.id, log.action, log.entityType, log.entityId, event.experimenterGroup.id, event.time " +
+                "FROM EventLog AS log JOIN log.event AS event " +
+                "WHERE log.id > :after AND (log.id > :last OR event.time >= :since) AND log.entityType IN (:types) " +
+                "ORDER BY log.id";
+        final List<Object[]> results = queryService.projection(hql, parameters);
+        final List<Object[]> newResults = new ArrayList<Object[]>(results.size());
+        for (final Object[] result : results) {
+            final Long id = (Long) result[0];
+            if (!processedEventLogs.containsKey(id)) {
+                newResults.add(result);
+                processedEventLogs.put(id, ((Timestamp) result[5]).getTime());
+                if (processedDuringCalculation != null) {
+                    processedDuringCalculation.add(id);
+                }
+                if (id > lastEventLogId) {
+                    lastEventLogId = id;
+                }
+            }
+        }
+        processEventLogResults(queryService, newResults);
+        return results.size() == EVENT_BATCH_SIZE ? (Long) results.get(results.size() - 1)[0] : null;
+    }
+
+    /**
+     * Replay the given event log entries.
+     * @param queryService the query service
+     * @param ids the IDs of the entries to replay
+     */
+    private void replayEventLogs(IQuery queryService, List<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        final String hql = "SELECT log.id, log.action, log.entityType, log.entityId, event.experimenterGroup.id " +
+                "FROM EventLog AS log JOIN log.event AS event WHERE log.id IN (:ids) ORDER BY log.id";
+        processEventLogResults(queryService, queryService.projection(hql, new Parameters().addIds(ids)));
+    }
+
+    /**
+     * Process event log entries.
+     * @param queryService the query service
+     * @param results the ID, action, entity type, entity ID and event group ID of each entry, in order of ID
+     */
+    private void processEventLogResults(IQuery queryService, List<Object[]> results) {
+        /* note new original files first so that their referers created in the same transaction can find them */
+        final List<Object[]> otherResults = new ArrayList<Object[]>(results.size());
+        for (final Object[] result : results) {
+            if ("INSERT".equals(result[1]) && ome.model.core.OriginalFile.class.getName().equals(result[2])) {
+                insertFile(queryService, (Long) result[3]);
+            } else {
+                otherResults.add(result);
+            }
+        }
+        for (final Object[] result : otherResults) {
+            final String action = (String) result[1];
+            final String className = ((String) result[2]).substring(((String) result[2]).lastIndexOf('.') + 1);
+            final Long id = (Long) result[3];
+            final Long eventGroupId = (Long) result[4];
+            processEventLog(queryService, action, className, id, eventGroupId);
+        }
+    }
+
+    /**
+     * Process an event log entry.
+     * @param queryService the query service
+     * @param action the action of the entry
+     * @param className the simple name of the class of the object
+     * @param id the ID of the object
+     * @param eventGroupId the ID of the group of the event, may be {@code null}
+     */
+    private void processEventLog(IQuery queryService, String action, String className, Long id, Long eventGroupId) {
+        final boolean isInsert = "INSERT".equals(action);
+        final boolean isDelete = "DELETE".equals(action);
+        if ("OriginalFile".equals(className)) {
+            final RecentFile file = getRecentFile(id);
+            if (file != null) {
+                getTotals(file.group).add(file.owner, file.group, file.getTypes(), file.size, -1);
+                if (isDelete) {
+                    recentFiles.remove(id);
+                    return;
+                }
+                final Object[] ownershipAndSize = getOwnershipAndSize(queryService, className, id);
+                if (ownershipAndSize == null) {
+                    recentFiles.remove(id);
+                } else {
+                    setOwnershipAndSize(file, ownershipAndSize);
+                    getTotals(file.group).add(file.owner, file.group, file.getTypes(), file.size, 1);
+                }
+                return;
+            }
+        } else if (FILE_PROPERTIES.containsKey(className) && isInsert) {
+            final String hql = "SELECT " + FILE_PROPERTIES.get(className) + ".id FROM " + className + " WHERE id = :id";
+            final List<Object[]> results = queryService.projection(hql, new Parameters().addId(id));
+            if (results.isEmpty() || results.get(0)[0] == null) {
+                return;
+            }
+            final Long fileId = (Long) results.get(0)[0];
+            final RecentFile file = getRecentFile(fileId);
+            if (file != null) {
+                final String type = ATTRIBUTIONS.containsKey(className) ? ATTRIBUTIONS.get(className) : className;
+                getTotals(file.group).add(file.owner, file.group, file.getTypes(), file.size, -1);
+                file.types.add(type);
+                getTotals(file.group).add(file.owner, file.group, file.getTypes(), file.size, 1);
+                return;
+            }
+            markStale(getGroup(queryService, "OriginalFile", fileId));
+            return;
+        } else if ("Pixels".equals(className) || "Thumbnail".equals(className)) {
+            final Map.Entry<String, Long> key = Maps.immutableEntry(className, id);
+            if (isInsert) {
+                /* a replayed insertion replaces any sizes that the reconciled totals do not include */
+                recentBinaries.remove(key);
+                final Object[] ownership = getOwnershipAndSize(queryService, className, id);
+                if (ownership != null && isCurrent((Long) ownership[1])) {
+                    final RecentBinary binary = new RecentBinary((Long) ownership[0], (Long) ownership[1],
+                            getFileSizes(className, id));
+                    addBinary(className, binary, 1);
+                    recentBinaries.put(key, binary);
+                }
+                return;
+            }
+            final RecentBinary binary = recentBinaries.get(key);
+            if (binary != null && isReplaying(binary.group)) {
+                if (isDelete) {
+                    addBinary(className, binary, -1);
+                    recentBinaries.remove(key);
+                } else {
+                    resizeBinary(className, id, binary);
+                }
+                return;
+            } else if (!isDelete) {
+                /* older pixels and thumbnails are not sized again until their group is next reconciled */
+                return;
+            }
+        }
+        /* cannot follow the change incrementally */
+        if (isDelete) {
+            if (eventGroupId == null || eventGroupId < 0) {
+                /* nothing is left from which to tell the object's group */
+                for (final Long groupId : ImmutableSet.copyOf(totalsByGroup.keySet())) {
+                    markStale(groupId);
+                }
+            } else {
+                markStale(eventGroupId);
+            }
+        } else {
+            if (eventGroupId != null && eventGroupId >= 0) {
+                markStale(eventGroupId);
+            }
+            markStale(getGroup(queryService, className, id));
+        }
+    }
+
+    /**
+     * Note a new original file.
+     * @param queryService the query service
+     * @param id the ID of the original file
+     */
+    private void insertFile(IQuery queryService, Long id) {
+        final Object[] ownershipAndSize = getOwnershipAndSize(queryService, "OriginalFile", id);
+        if (ownershipAndSize == null) {
+            return;
+        }
+        final RecentFile file = new RecentFile();
+        setOwnershipAndSize(file, ownershipAndSize);
+        if (isCurrent(file.group)) {
+            recentFiles.put(id, file);
+            getTotals(file.group).add(file.owner, file.group, file.getTypes(), file.size, 1);
+        }
+    }
+
+    /**
+     * Adjust the totals by the files of pixels or a thumbnail.
+     * @param className {@code Pixels} or {@code Thumbnail}
+     * @param binary the pixels or thumbnail
+     * @param sign {@code 1} to add the files, {@code -1} to remove them
+     */
+    private void addBinary(String className, RecentBinary binary, int sign) {
+        final Set<String> types = Collections.singleton(className);
+        for (final long size : binary.sizes) {
+            getTotals(binary.group).add(binary.owner, binary.group, types, size, sign);
+        }
+    }
+
+    /**
+     * Size again the files of pixels or a thumbnail and adjust the totals if they changed.
+     * @param className {@code Pixels} or {@code Thumbnail}
+     * @param id the ID of the pixels or thumbnail
+     * @param binary the pixels or thumbnail
+     */
+    private void resizeBinary(String className, long id, RecentBinary binary) {
+        final long[] sizes = getFileSizes(className, id);
+        if (!Arrays.equals(sizes, binary.sizes)) {
+            addBinary(className, binary, -1);
+            binary.sizes = sizes;
+            addBinary(className, binary, 1);
+        }
+    }
+
+    /**
+     * Size again the files of the new pixels and thumbnails, as they may be written after the objects are created.
+     */
+    private void resizeRecentBinaries() {
+        for (final Map.Entry<Map.Entry<String, Long>, RecentBinary> binary : recentBinaries.entrySet()) {
+            resizeBinary(binary.getKey().getKey(), binary.getKey().getValue(), binary.getValue());
+        }
+    }
+
+    /**
+     * Stop following the objects that were created before the window of event time or that are beyond the most to follow.
+     * Their contribution to the totals is kept but later changes to them are treated as changes to any older object.
+     */
+    private void forgetOldRecent() {
+        final long windowStart = System.currentTimeMillis() - windowMillis;
+        final Iterator<RecentFile> fileIterator = recentFiles.values().iterator();
+        while (fileIterator.hasNext()) {
+            if (fileIterator.next().noted < windowStart || recentFiles.size() > MAX_RECENT) {
+                fileIterator.remove();
+            } else {
+                break;
+            }
+        }
+        final Iterator<RecentBinary> binaryIterator = recentBinaries.values().iterator();
+        while (binaryIterator.hasNext()) {
+            if (binaryIterator.next().noted < windowStart || recentBinaries.size() > MAX_RECENT) {
+                binaryIterator.remove();
+            } else {
+                break;
+            }
+        }
+    }
+
+    private static void setOwnershipAndSize(RecentFile file, Object[] ownershipAndSize) {
+        file.owner = (Long) ownershipAndSize[0];
+        file.group = (Long) ownershipAndSize[1];
+        file.size = ownershipAndSize[2] instanceof Long ? (Long) ownershipAndSize[2] : 0;
+    }
+
+    /**
+     * @param queryService the query service
+     * @param className the simple name of a class
+     * @param id the ID of an object of that class
+     * @return the owner ID, group ID and, for an original file, the size of the object, or {@code null} if it does not exist
+     */
+    private static Object[] getOwnershipAndSize(IQuery queryService, String className, Long id) {
+        final String size = "OriginalFile".equals(className) ? "size" : "NULL";
+        final String hql = "SELECT details.owner.id, details.group.id, " + size + " FROM " + className + " WHERE id = :id";
+        final List<Object[]> results = queryService.projection(hql, new Parameters().addId(id));
+        return results.isEmpty() ? null : results.get(0);
+    }
+
+    /**
+     * @param queryService the query service
+     * @param className the simple name of a class
+     * @param id the ID of an object of that class
+     * @return the group ID of the object, or {@code null} if it does not exist
+     */
+    private static Long getGroup(IQuery queryService, String className, Long id) {
+        final String hql = "SELECT details.group.id FROM " + className + " WHERE id = :id";
+        final List<Object[]> results = queryService.projection(hql, new Parameters().addId(id));
+        return results.isEmpty() ? null : (Long) results.get(0)[0];
+    }
+
+    /**
+     * @param className {@code Pixels} or {@code Thumbnail}
+     * @param id the ID of an object of that class
+     * @return the sizes of the object's files on the repository file-system
+     */
+    private long[] getFileSizes(String className, long id) {
+        if ("Pixels".equals(className)) {
+            final String pixelsPath = pixelsService.getPixelsPath(id);
+            return new long[] {
+                    DiskUsage2I.getFileSize(pixelsPath),
+                    DiskUsage2I.getFileSize(pixelsPath + PixelsService.PYRAMID_SUFFIX),
+                    DiskUsage2I.getFileSize(pixelsPath + PixelsService.PYRAMID_SUFFIX + BfPyramidPixelBuffer.PYR_LOCK_EXT)};
+        } else {
+            return new long[] {DiskUsage2I.getFileSize(thumbnailService.getThumbnailPath(id))};
+        }
+    }
+
+    /**
+     * @param groupId the ID of a group
+     * @return if the group's totals are being kept up to date
+     */
+    private boolean isCurrent(long groupId) {
+        return isReplaying(groupId) && totalsByGroup.containsKey(groupId) && !staleGroups.contains(groupId);
+    }
+
+    /**
+     * @param groupId the ID of a group
+     * @return if event log entries are to be applied to the group: while they are replayed onto a reconciled group,
+     * only to that group
+     */
+    private boolean isReplaying(long groupId) {
+        return replayGroupId == null || replayGroupId == groupId;
+    }
+
+    /**
+     * @param id the ID of an original file
+     * @return the original file if it was created since its group was reconciled and event log entries are to be
+     * applied to its group, otherwise {@code null}
+     */
+    private RecentFile getRecentFile(long id) {
+        final RecentFile file = recentFiles.get(id);
+        return file == null || !isReplaying(file.group) ? null : file;
+    }
+
+    private Totals getTotals(long groupId) {
+        Totals totals = totalsByGroup.get(groupId);
+        if (totals == null) {
+            /* not yet reconciled, so do not bother adjusting it */
+            totals = new Totals();
+        }
+        return totals;
+    }
+
+    private void markStale(Long groupId) {
+        if (groupId != null && isReplaying(groupId)) {
+            staleGroups.add(groupId);
+        }
+    }
+
+    /* RECONCILIATION */
+
+    /**
+     * Recalculate the disk usage of all groups. Called periodically to catch changes that the ledger cannot follow.
+     */
+    public void reconcileAll() {
+        synchronized (reconcileLock) {
+            synchronized (this) {
+                staleGroups.addAll(totalsByGroup.keySet());
+                publishTotals();
+            }
+            reconcile();
+        }
+    }
+
+    /**
+     * Recalculate the disk usage of the groups that are stale or not yet known. Called periodically.
+     */
+    public void reconcile() {
+        synchronized (reconcileLock) {
+            @SuppressWarnings("unchecked")
+            final List<Long> groupIds = (List<Long>) executor.execute(ALL_GROUPS_CONTEXT, principal,
+                    new Executor.SimpleWork(this, "reconcile") {
+                @Override
+                @Transactional(readOnly = true)
+                public List<Long> doWork(Session session, ServiceFactory sf) {
+                    final List<Long> groupIds = new ArrayList<Long>();
+                    for (final Object[] result : sf.getQueryService().projection("SELECT id FROM ExperimenterGroup", null)) {
+                        groupIds.add((Long) result[0]);
+                    }
+                    return groupIds;
+                }
+            });
+            final List<Long> toReconcile = new ArrayList<Long>();
+            synchronized (this) {
+                update();
+                totalsByGroup.keySet().retainAll(groupIds);
+                staleGroups.retainAll(groupIds);
+                publishTotals();
+                for (final Long groupId : groupIds) {
+                    if (!isCurrent(groupId)) {
+                        toReconcile.add(groupId);
+                    }
+                }
+            }
+            for (final Long groupId : toReconcile) {
+                reconcile(groupId);
+            }
+        }
+    }
+
+    /**
+     * Recalculate the disk usage of the given group. The event log entries processed during the calculation that its
+     * snapshot of the database does not include are then replayed onto the result.
+     * @param groupId the ID of a group
+     */
+    private void reconcile(long groupId) {
+        final long floorEventLogId;
+        synchronized (this) {
+            floorEventLogId = lastEventLogId == null ? 0 : lastEventLogId;
+            processedDuringCalculation = new HashSet<Long>();
+        }
+        /* do not hold the lock while traversing the model graph */
+        final Map.Entry<Set<Long>, DiskUsage2Response> calculated;
+        try {
+            calculated = calculateUsage(groupId, floorEventLogId, getWindowStart());
+        } catch (RuntimeException e) {
+            LOGGER.warn("failed to calculate disk usage of group " + groupId, e);
+            synchronized (this) {
+                processedDuringCalculation = null;
+            }
+            return;
+        }
+        synchronized (this) {
+            final Set<Long> processed = processedDuringCalculation;
+            try {
+                update();
+            } finally {
+                processedDuringCalculation = null;
+            }
+            if (calculated == null) {
+                return;
+            }
+            processed.removeAll(calculated.getKey());
+            final List<Long> toReplay = new ArrayList<Long>(processed);
+            totalsByGroup.put(groupId, Totals.of(calculated.getValue()));
+            staleGroups.remove(groupId);
+            final Iterator<RecentFile> fileIterator = recentFiles.values().iterator();
+            while (fileIterator.hasNext()) {
+                if (fileIterator.next().group == groupId) {
+                    fileIterator.remove();
+                }
+            }
+            /* the calculation sized the files of the group's new pixels and thumbnails as they were then */
+            for (final Map.Entry<Map.Entry<String, Long>, RecentBinary> binary : recentBinaries.entrySet()) {
+                if (binary.getValue().group == groupId) {
+                    binary.getValue().sizes = getFileSizes(binary.getKey().getKey(), binary.getKey().getValue());
+                }
+            }
+            /* apply to the group the entries that the calculation did not include */
+            Collections.sort(toReplay);
+            replayGroupId = groupId;
+            try {
+                for (final List<Long> idsBatch : Lists.partition(toReplay, EVENT_BATCH_SIZE)) {
+                    executor.execute(ALL_GROUPS_CONTEXT, principal,
+                            new Executor.SimpleWork(this, "replayEventLogs", groupId) {
+                        @Override
+                        @Transactional(readOnly = true)
+                        public Object doWork(Session session, ServiceFactory sf) {
+                            replayEventLogs(sf.getQueryService(), idsBatch);
+                            return null;
+                        }
+                    });
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("failed to replay event log onto disk usage of group " + groupId, e);
+                staleGroups.add(groupId);
+            } finally {
+                replayGroupId = null;
+                publishTotals();
+            }
+        }
+    }
+
+    /**
+     * Calculate the disk usage of a group by running {@link DiskUsage2I} in a transaction of its own. The transaction is
+     * repeatable-read so that its queries share one snapshot of the database, of which the event log entries that may yet be
+     * processed are noted.
+     * @param groupId the ID of a group
+     * @param floorEventLogId the highest ID of the event log entries processed before the calculation
+     * @param windowStart the start of the window of event time within which event log entries are scanned again
+     * @return the IDs of the event log entries in the snapshot that are newer than the floor or in the window, and the
+     * group's disk usage, or {@code null} if it could not be calculated
+     */
+    private Map.Entry<Set<Long>, DiskUsage2Response> calculateUsage(final long groupId, final long floorEventLogId,
+            final Timestamp windowStart) {
+        final DiskUsage2I request = graphRequestFactory.getRequest(DiskUsage2I.class);
+        request.setPixelsService(pixelsService);
+        request.setThumbnailService(thumbnailService);
+        request.targetObjects = ImmutableMap.<String, List<Long>>of("ExperimenterGroup", Collections.singletonList(groupId));
+        final Object[] includedAndResponse = (Object[]) executor.execute(ALL_GROUPS_CONTEXT, principal,
+                new Executor.SimpleWork(this, "calculateUsage", groupId) {
+            @Override
+            @Transactional(readOnly = true, isolation = Isolation.REPEATABLE_READ)
+            public Object[] doWork(Session session, ServiceFactory sf) {
+                final Parameters parameters = new Parameters().addLong("floor", floorEventLogId)
+                        .add(new QueryParameter("since", Timestamp.class, windowStart))
+                        .addList("types", TRACKED_ENTITY_TYPES);
+                final Set<Long> included = new HashSet<Long>();
+                for (final Object[] result : sf.getQueryService().projection(
+                        "SELECT log.id FROM EventLog AS log JOIN log.event AS event " +
+                        "WHERE (log.id > :floor OR event.time >= :since) AND log.entityType IN (:types)", parameters)) {
+                    included.add((Long) result[0]);
+                }
+                final Helper helper = new Helper(request, new Status(), getSqlAction(), session, sf);
+                request.init(helper);
+                final List<Object> results = new ArrayList<Object>();
+                for (int step = 0; step < helper.getSteps(); step++) {
+                    results.add(request.step(step));
+                }
+                request.finish();
+                for (int step = 0; step < results.size(); step++) {
+                    request.buildResponse(step, results.get(step));
+                }
+                return new Object[] {included, request.getResponse()};
+            }
+        });
+        final Response response = (Response) includedAndResponse[1];
+        if (response instanceof DiskUsage2Response) {
+            @SuppressWarnings("unchecked")
+            final Set<Long> included = (Set<Long>) includedAndResponse[0];
+            return Maps.immutableEntry(included, (DiskUsage2Response) response);
+        } else {
+            LOGGER.warn("failed to calculate disk usage of group " + groupId + ": " + response);
+            return null;
+        }
+    }
+}
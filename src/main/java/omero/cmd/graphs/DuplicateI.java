@@ -19,9 +19,15 @@
 
 package omero.cmd.graphs;
 
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -85,6 +91,9 @@ public class DuplicateI extends Duplicate implements IRequest, ReadOnlyStatus.Is
     /* all bulk operations are batched; this size should be suitable for IN (:ids) for HQL */
     private static final int BATCH_SIZE = 256;
 
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
     private static enum Inclusion {
         /* the object is to be duplicated */
         DUPLICATE,
@@ -118,6 +127,13 @@ public class DuplicateI extends Duplicate implements IRequest, ReadOnlyStatus.Is
     private final Multimap<IObject, PropertyUpdate> propertiesToUpdate = ArrayListMultimap.create();
     private final SetMultimap<IObject, IObject> blockedBy = HashMultimap.create();
 
+    /* compiled once per model object class or property then used for every object */
+    private final Map<Class<? extends IObject>, List<SimplePropertyCopier>> simplePropertyCopiers =
+            new HashMap<Class<? extends IObject>, List<SimplePropertyCopier>>();
+    private final Map<Entry<String, String>, InaccessibleProperty> inaccessibleProperties =
+            new HashMap<Entry<String, String>, InaccessibleProperty>();
+    private final Map<String, Boolean> isIgnoredClass = new HashMap<String, Boolean>();
+
     /**
      * Construct a new <q>duplicate</q> request; called from {@link GraphRequestFactory#getRequest(Class)}.
      * @param aclVoter ACL voter for permissions checking
@@ -313,6 +329,92 @@ public class DuplicateI extends Duplicate implements IRequest, ReadOnlyStatus.Is
         }
     }
 
+    /**
+     * Copies a simple property value from original model objects to their duplicates.
+     * @author m.t.b.carroll@dundee.ac.uk
+     * @since 5.5
+     */
+    private static class SimplePropertyCopier {
+        private final String property;
+        private final MethodHandle getter, setter;
+
+        /**
+         * Create a copier for a specific model object property.
+         * @param property the name of the property
+         * @param getter the property's getter adapted to {@link #GETTER_TYPE}, or {@code null} to use {@link PropertyUtils}
+         * @param setter the property's setter adapted to {@link #SETTER_TYPE}, or {@code null} to use {@link PropertyUtils}
+         */
+        SimplePropertyCopier(String property, MethodHandle getter, MethodHandle setter) {
+            this.property = property;
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        /**
+         * Copy the property value from the original to the duplicate, creating new instances of collections.
+         * @param original the original model object
+         * @param duplicate the duplicate model object
+         * @throws ReflectiveOperationException if the property value could not be copied
+         */
+        void copy(IObject original, IObject duplicate) throws ReflectiveOperationException {
+            if (getter == null || setter == null) {
+                final Object value = PropertyUtils.getProperty(original, property);
+                final Object duplicateValue = GraphUtil.copyComplexValue(Functions.constant(null), value);
+                PropertyUtils.setProperty(duplicate, property, duplicateValue);
+                return;
+            }
+            try {
+                final Object value = (Object) getter.invokeExact((Object) original);
+                final Object duplicateValue = GraphUtil.copyComplexValue(Functions.constant(null), value);
+                setter.invokeExact((Object) duplicate, duplicateValue);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new InvocationTargetException(t);
+            }
+        }
+    }
+
+    /**
+     * Get the copiers for the accessible simple properties of the given model object class, compiling them if necessary.
+     * @param modelClass a model object class
+     * @return the copiers for that class' simple properties
+     */
+    private List<SimplePropertyCopier> getSimplePropertyCopiers(Class<? extends IObject> modelClass) {
+        List<SimplePropertyCopier> copiers = simplePropertyCopiers.get(modelClass);
+        if (copiers == null) {
+            final Map<String, PropertyDescriptor> descriptors = new HashMap<String, PropertyDescriptor>();
+            for (final PropertyDescriptor descriptor : PropertyUtils.getPropertyDescriptors(modelClass)) {
+                descriptors.put(descriptor.getName(), descriptor);
+            }
+            final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            copiers = new ArrayList<SimplePropertyCopier>();
+            for (final String superclassName : graphPathBean.getSuperclassesOfReflexive(modelClass.getName())) {
+                /* process property values that do not relate to edges in the model object graph */
+                for (final String property : graphPathBean.getSimpleProperties(superclassName)) {
+                    /* ignore inaccessible properties */
+                    if (!graphPathBean.isPropertyAccessible(superclassName, property)) {
+                        continue;
+                    }
+                    /* nested properties have no descriptor so are left to PropertyUtils */
+                    final PropertyDescriptor descriptor = descriptors.get(property);
+                    MethodHandle getter = null, setter = null;
+                    if (descriptor != null && descriptor.getReadMethod() != null && descriptor.getWriteMethod() != null) {
+                        try {
+                            getter = lookup.unreflect(descriptor.getReadMethod()).asType(GETTER_TYPE);
+                            setter = lookup.unreflect(descriptor.getWriteMethod()).asType(SETTER_TYPE);
+                        } catch (IllegalAccessException e) {
+                            getter = setter = null;
+                        }
+                    }
+                    copiers.add(new SimplePropertyCopier(property, getter, setter));
+                }
+            }
+            simplePropertyCopiers.put(modelClass, copiers);
+        }
+        return copiers;
+    }
+
     /**
      * Copy simple property values to the duplicate model object.
      * @throws GraphException if duplication failed
@@ -321,29 +423,157 @@ public class DuplicateI extends Duplicate implements IRequest, ReadOnlyStatus.Is
         for (final Entry<IObject, IObject> originalAndDuplicate : originalsToDuplicates.entrySet()) {
             final IObject original = originalAndDuplicate.getKey();
             final IObject duplicate = originalAndDuplicate.getValue();
-            final String originalClass = Hibernate.getClass(original).getName();
+            final Class<? extends IObject> originalClass = Hibernate.getClass(original).asSubclass(IObject.class);
             if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("copying properties from " + originalClass + ":" + original.getId());
+                LOGGER.debug("copying properties from " + originalClass.getName() + ":" + original.getId());
             }
             try {
-                /* process property values for a given object that is duplicated */
-                for (final String superclassName : graphPathBean.getSuperclassesOfReflexive(originalClass)) {
-                    /* process property values that do not relate to edges in the model object graph */
-                    for (final String property : graphPathBean.getSimpleProperties(superclassName)) {
-                        /* ignore inaccessible properties */
-                        if (!graphPathBean.isPropertyAccessible(superclassName, property)) {
-                            continue;
+                /* copy original property values to duplicate */
+                for (final SimplePropertyCopier copier : getSimplePropertyCopiers(originalClass)) {
+                    copier.copy(original, duplicate);
+                }
+            } catch (NestedNullException | ReflectiveOperationException e) {
+                throw new GraphException("failed to duplicate " + originalClass.getName() + ':' + original.getId());
+            }
+        }
+    }
+
+    /**
+     * The accessors for a model object property that is accessible only via {@code iterate} and {@code add} methods.
+     * @author m.t.b.carroll@dundee.ac.uk
+     * @since 5.5
+     */
+    private static class InaccessibleProperty {
+        final Method reader, writer;
+        final boolean isOrdered;
+
+        /**
+         * @param reader the {@code iterate} method for the property
+         * @param writer the {@code add} method for the property
+         * @param isOrdered if the property value is a collection whose order must be preserved on duplication
+         */
+        InaccessibleProperty(Method reader, Method writer, boolean isOrdered) {
+            this.reader = reader;
+            this.writer = writer;
+            this.isOrdered = isOrdered;
+        }
+    }
+
+    /**
+     * Get the accessors for a property that is not directly accessible, finding them if necessary.
+     * @param linkerClassName the class that has the property
+     * @param linkedClassName the class of the property's values
+     * @param property the name of the property
+     * @return the accessors, or {@code null} if the property has none
+     * @throws ClassNotFoundException if either class could not be loaded
+     */
+    private InaccessibleProperty getInaccessibleProperty(String linkerClassName, String linkedClassName, String property)
+            throws ClassNotFoundException {
+        final Entry<String, String> classProperty = Maps.immutableEntry(linkerClassName, property);
+        if (inaccessibleProperties.containsKey(classProperty)) {
+            return inaccessibleProperties.get(classProperty);
+        }
+        /* this could be a one-to-many property with direct accessors protected */
+        final Class<? extends IObject> linkerClass = Class.forName(linkerClassName).asSubclass(IObject.class);
+        final Class<? extends IObject> linkedClass = Class.forName(linkedClassName).asSubclass(IObject.class);
+        InaccessibleProperty accessors;
+        try {
+            final Method reader = linkerClass.getMethod("iterate" + StringUtils.capitalize(property));
+            final Method writer = linkerClass.getMethod("add" + linkedClass.getSimpleName(), linkedClass);
+            boolean isOrdered;
+            try {
+                linkerClass.getMethod("getPrimary" + linkedClass.getSimpleName());
+                isOrdered = true;
+            } catch (NoSuchMethodException | SecurityException e) {
+                isOrdered = false;
+            }
+            accessors = new InaccessibleProperty(reader, writer, isOrdered);
+        } catch (NoSuchMethodException | SecurityException e) {
+            /* no luck, so ignore this property */
+            accessors = null;
+        }
+        inaccessibleProperties.put(classProperty, accessors);
+        return accessors;
+    }
+
+    /**
+     * Check if model objects of the given class are to be ignored.
+     * @param className the name of a model object class
+     * @return if objects of exactly that class are to be ignored
+     * @throws ClassNotFoundException if the class could not be loaded
+     */
+    private boolean isIgnored(String className) throws ClassNotFoundException {
+        Boolean isIgnored = isIgnoredClass.get(className);
+        if (isIgnored == null) {
+            isIgnored = classifier.getClass(Class.forName(className).asSubclass(IObject.class)) == Inclusion.IGNORE;
+            isIgnoredClass.put(className, isIgnored);
+        }
+        return isIgnored;
+    }
+
+    /**
+     * Check if any model objects of the given class or its subclasses may be ignored.
+     * @param className the name of a model object class
+     * @return if objects of that class or of any of its subclasses are to be ignored
+     * @throws ClassNotFoundException if a class could not be loaded
+     */
+    private boolean isAnyIgnored(String className) throws ClassNotFoundException {
+        if (isIgnored(className)) {
+            return true;
+        }
+        for (final String subclassName : graphPathBean.getSubclassesOf(className)) {
+            if (isIgnored(subclassName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find which of the objects to which the originals link are to be ignored.
+     * Each property is queried for all the originals of a class together, and only if it may link to ignored objects.
+     * @return the IDs of the linked objects to ignore by the ID of the original, for each class and property that may link to
+     * ignored objects
+     * @throws ClassNotFoundException if a class could not be loaded
+     */
+    private Map<Entry<String, String>, SetMultimap<Long, Long>> getLinkedIdsToIgnore() throws ClassNotFoundException {
+        final SetMultimap<String, Long> originalIdsByClass = HashMultimap.create();
+        for (final IObject original : originalsToDuplicates.keySet()) {
+            originalIdsByClass.put(Hibernate.getClass(original).getName(), original.getId());
+        }
+        final Session session = helper.getSession();
+        final Map<Entry<String, String>, SetMultimap<Long, Long>> linkedIdsToIgnore =
+                new HashMap<Entry<String, String>, SetMultimap<Long, Long>>();
+        for (final Entry<String, Collection<Long>> originalClassIds : originalIdsByClass.asMap().entrySet()) {
+            for (final String superclassName : graphPathBean.getSuperclassesOfReflexive(originalClassIds.getKey())) {
+                for (final Entry<String, String> forwardLink : graphPathBean.getLinkedTo(superclassName)) {
+                    final String linkedClassName = forwardLink.getKey();
+                    final String property = forwardLink.getValue();
+                    if (property.startsWith("details.") || !isAnyIgnored(linkedClassName)) {
+                        continue;
+                    }
+                    final Entry<String, String> classProperty = Maps.immutableEntry(superclassName, property);
+                    SetMultimap<Long, Long> ignoredLinks = linkedIdsToIgnore.get(classProperty);
+                    if (ignoredLinks == null) {
+                        ignoredLinks = HashMultimap.create();
+                        linkedIdsToIgnore.put(classProperty, ignoredLinks);
+                    }
+                    /* query only the IDs and classes so that the linked objects need not be loaded */
+                    final String linkQuery = "SELECT linker.id, linked.id, linked.class FROM " + superclassName +
+                            " AS linker JOIN linker." + property + " AS linked WHERE linker.id IN (:ids)";
+                    for (final List<Long> idsBatch : Iterables.partition(originalClassIds.getValue(), BATCH_SIZE)) {
+                        @SuppressWarnings("unchecked")
+                        final List<Object[]> results = session.createQuery(linkQuery).setParameterList("ids", idsBatch).list();
+                        for (final Object[] result : results) {
+                            if (isIgnored((String) result[2])) {
+                                ignoredLinks.put((Long) result[0], (Long) result[1]);
+                            }
                         }
-                        /* copy original property value to duplicate, creating new instances of collections */
-                        final Object value = PropertyUtils.getProperty(original, property);
-                        final Object duplicateValue = GraphUtil.copyComplexValue(Functions.constant(null), value);
-                        PropertyUtils.setProperty(duplicate, property, duplicateValue);
                     }
                 }
-            } catch (NestedNullException | ReflectiveOperationException e) {
-                throw new GraphException("failed to duplicate " + originalClass + ':' + original.getId());
             }
         }
+        return linkedIdsToIgnore;
     }
 
     /**
@@ -369,6 +599,13 @@ public class DuplicateI extends Duplicate implements IRequest, ReadOnlyStatus.Is
                 }
             }
         };
+        /* note which of the objects to which the originals link should be ignored */
+        final Map<Entry<String, String>, SetMultimap<Long, Long>> linkedIdsToIgnore;
+        try {
+            linkedIdsToIgnore = getLinkedIdsToIgnore();
+        } catch (ClassNotFoundException e) {
+            throw new GraphException("failed to duplicate: " + e.getMessage());
+        }
         /* note how to copy property values into duplicates and link with other model objects */
         for (final Entry<IObject, IObject> originalAndDuplicate : originalsToDuplicates.entrySet()) {
             final IObject original = originalAndDuplicate.getKey();
@@ -390,15 +627,10 @@ public class DuplicateI extends Duplicate implements IRequest, ReadOnlyStatus.Is
                             continue;
                         }
                         /* note which of the objects to which the original links should be ignored */
-                        final Set<Long> linkedToIdsToIgnore = new HashSet<Long>();
-                        for (final Entry<String, Collection<Long>> linkedToClassIds :
-                            graphTraversal.getLinkeds(superclassName, property, original.getId()).asMap().entrySet()) {
-                            final String linkedToClass = linkedToClassIds.getKey();
-                            final Collection<Long> linkedToIds = linkedToClassIds.getValue();
-                            if (classifier.getClass(Class.forName(linkedToClass).asSubclass(IObject.class)) == Inclusion.IGNORE) {
-                                linkedToIdsToIgnore.addAll(linkedToIds);
-                            }
-                        }
+                        final SetMultimap<Long, Long> ignoredLinks =
+                                linkedIdsToIgnore.get(Maps.immutableEntry(superclassName, property));
+                        final Set<Long> linkedToIdsToIgnore =
+                                ignoredLinks == null ? Collections.<Long>emptySet() : ignoredLinks.get(original.getId());
                         /* check for another accessor for inaccessible properties */
                         Object value;
                         if (graphPathBean.isPropertyAccessible(superclassName, property)) {
@@ -436,24 +668,14 @@ public class DuplicateI extends Duplicate implements IRequest, ReadOnlyStatus.Is
                                 propertiesToUpdate.put(duplicate, new PropertyUpdateAccessible(duplicate, property, value));
                             }
                         } else {
-                            /* this could be a one-to-many property with direct accessors protected */
-                            final Class<? extends IObject> linkerClass = Class.forName(superclassName).asSubclass(IObject.class);
-                            final Class<? extends IObject> linkedClass = Class.forName(linkedClassName).asSubclass(IObject.class);
-                            final Method reader, writer;
-                            try {
-                                reader = linkerClass.getMethod("iterate" + StringUtils.capitalize(property));
-                                writer = linkerClass.getMethod("add" + linkedClass.getSimpleName(), linkedClass);
-                            } catch (NoSuchMethodException | SecurityException e) {
-                                /* no luck, so ignore this property */
+                            final InaccessibleProperty accessors =
+                                    getInaccessibleProperty(superclassName, linkedClassName, property);
+                            if (accessors == null) {
                                 continue;
                             }
-                            boolean isOrdered;
-                            try {
-                                linkerClass.getMethod("getPrimary" + linkedClass.getSimpleName());
-                                isOrdered = true;
-                            } catch (NoSuchMethodException | SecurityException e) {
-                                isOrdered = false;
-                            }
+                            final Method reader = accessors.reader;
+                            final Method writer = accessors.writer;
+                            final boolean isOrdered = accessors.isOrdered;
                             value = reader.invoke(original);
                             /* note how to copy the linking from the original's property over to the duplicate's */
                             propertiesToUpdate.put(duplicate,
@@ -616,7 +838,7 @@ public class DuplicateI extends Duplicate implements IRequest, ReadOnlyStatus.Is
                             graphTraversal.getLinkers(linkingClass, property, original.getId()).asMap().entrySet()) {
                             final String linkedFromClass = linkedFromClassIds.getKey();
                             final Collection<Long> linkedFromIds = linkedFromClassIds.getValue();
-                            if (classifier.getClass(Class.forName(linkedFromClass).asSubclass(IObject.class)) == Inclusion.IGNORE) {
+                            if (isIgnored(linkedFromClass)) {
                                 /* these linkers are to be ignored */
                                 continue;
                             }
@@ -38,6 +38,7 @@ import com.google.common.collect.SetMultimap;
 import ome.conditions.InternalException;
 import ome.model.IObject;
 import ome.model.enums.AdminPrivilege;
+import ome.parameters.Parameters;
 import ome.security.ACLVoter;
 import ome.services.graphs.GraphPathBean;
 import ome.services.graphs.GraphPolicy;
@@ -238,4 +239,32 @@ public class GraphHelper {
         }
         context.publishEvent(new EventLogMessage(this, action, actualClass, ImmutableList.copyOf(ids)));
     }
+
+    /**
+     * Before making database changes, note to the {@link DiskUsageLedger} which groups' disk usage they may change.
+     * @param context the context for publishing the application event
+     * @param className the class of objects that are to be changed
+     * @param ids the IDs of the objects that are to be changed
+     * @param otherGroupIds the IDs of any other groups whose disk usage may change
+     */
+    public void publishDiskUsageChange(ApplicationContext context, String className, Collection<Long> ids,
+            Long... otherGroupIds) {
+        className = className.substring(className.lastIndexOf('.') + 1);
+        if (!DiskUsageLedger.TRACKED_CLASSES.contains(className)) {
+            return;
+        }
+        final Set<Long> groupIds = new HashSet<Long>();
+        final String hql = "SELECT DISTINCT details.group.id FROM " + className + " WHERE id IN (:ids)";
+        for (final Object[] resultRow :
+            helper.getServiceFactory().getQueryService().projection(hql, new Parameters().addIds(ids))) {
+            if (resultRow != null && resultRow[0] instanceof Long) {
+                groupIds.add((Long) resultRow[0]);
+            }
+        }
+        if (groupIds.isEmpty()) {
+            return;
+        }
+        Collections.addAll(groupIds, otherGroupIds);
+        context.publishEvent(new DiskUsageLedger.StaleGroupsMessage(this, groupIds));
+    }
 }
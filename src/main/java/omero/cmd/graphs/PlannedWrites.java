@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.cmd.graphs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import ome.model.internal.Details;
+import ome.services.graphs.GraphException;
+import ome.services.graphs.GraphPolicy;
+import ome.services.graphs.GraphTraversal;
+
+/**
+ * The writes of a graph operation, as planned by a single traversal of the model object graph, so that they may be made
+ * in a sequence of bounded transactions instead of in the transaction that planned them. The writes are kept in the order
+ * in which the traversal made them. Once saved, the plan and how many of its writes are committed persist on disk so
+ * that a failed or cancelled request may be resumed without traversing the graph again.
+ * @since 5.5
+ */
+public class PlannedWrites implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The kinds of write that a {@link GraphTraversal.Processor} makes.
+     */
+    public enum Kind {
+        NULL_PROPERTIES,
+        DELETE_INSTANCES,
+        PROCESS_INSTANCES;
+    }
+
+    /**
+     * One write of a bounded number of model objects of the same class.
+     */
+    public static final class Write implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Kind kind;
+        private final String className;
+        private final String propertyName;
+        private final List<Long> ids;
+
+        private Write(Kind kind, String className, String propertyName, List<Long> ids) {
+            this.kind = kind;
+            this.className = className;
+            this.propertyName = propertyName;
+            this.ids = ids;
+        }
+
+        /**
+         * Make this write with the given processor.
+         * @param processor the processor that makes the write
+         * @throws GraphException if the processor could not make the write
+         */
+        private void applyTo(GraphTraversal.Processor processor) throws GraphException {
+            switch (kind) {
+            case NULL_PROPERTIES:
+                processor.nullProperties(className, propertyName, ids);
+                break;
+            case DELETE_INSTANCES:
+                processor.deleteInstances(className, ids);
+                break;
+            case PROCESS_INSTANCES:
+                processor.processInstances(className, ids);
+                break;
+            }
+        }
+    }
+
+    private static final String PLAN_SUFFIX = ".plan";
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    private final String id = UUID.randomUUID().toString();
+    private final int batchSize;
+    private final List<Write> writes = new ArrayList<Write>();
+
+    private long ownerId = -1;
+    private String requestType;
+    private List<Object> stepResults;
+
+    private transient int committed = 0;
+
+    /**
+     * Construct a new, empty plan.
+     * @param batchSize the maximum number of model objects to write per transaction, must be positive
+     */
+    public PlannedWrites(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batch size must be positive: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Wrap the processor of a graph traversal so that its writes are planned here instead of being made.
+     * Its checks are still made while the graph is traversed.
+     * @param processor the processor of the graph traversal
+     * @return a processor that plans the writes of the given processor
+     */
+    public GraphTraversal.Processor deferring(final GraphTraversal.Processor processor) {
+        return new GraphTraversal.Processor() {
+            @Override
+            public void nullProperties(String className, String propertyName, Collection<Long> ids) {
+                add(Kind.NULL_PROPERTIES, className, propertyName, ids);
+            }
+
+            @Override
+            public void deleteInstances(String className, Collection<Long> ids) {
+                add(Kind.DELETE_INSTANCES, className, null, ids);
+            }
+
+            @Override
+            public void processInstances(String className, Collection<Long> ids) {
+                add(Kind.PROCESS_INSTANCES, className, null, ids);
+            }
+
+            @Override
+            public Set<GraphPolicy.Ability> getRequiredPermissions() {
+                return processor.getRequiredPermissions();
+            }
+
+            @Override
+            public void assertMayProcess(String className, long id, Details details) throws GraphException {
+                processor.assertMayProcess(className, id, details);
+            }
+        };
+    }
+
+    /**
+     * Plan a write, split so that no write is of more than {@link #batchSize} model objects.
+     */
+    private void add(Kind kind, String className, String propertyName, Collection<Long> ids) {
+        final List<Long> allIds = new ArrayList<Long>(ids);
+        for (int index = 0; index < allIds.size(); index += batchSize) {
+            final List<Long> batchIds = new ArrayList<Long>(allIds.subList(index, Math.min(allIds.size(), index + batchSize)));
+            writes.add(new Write(kind, className, propertyName, batchIds));
+        }
+    }
+
+    /**
+     * @return the identifier of this plan, by which it may be loaded
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return how many writes are planned
+     */
+    public int size() {
+        return writes.size();
+    }
+
+    /**
+     * @return how many of the planned writes are committed
+     */
+    public int getCommitted() {
+        return committed;
+    }
+
+    /**
+     * Find which writes may be made together in a transaction.
+     * @param from the index of the first write to make
+     * @return the index after the last write to make, such that at least one write and no more than
+     * {@link #batchSize} model objects are written
+     */
+    public int nextBatchEnd(int from) {
+        int to = from;
+        int count = 0;
+        while (to < writes.size() && (to == from || count + writes.get(to).ids.size() <= batchSize)) {
+            count += writes.get(to).ids.size();
+            to++;
+        }
+        return to;
+    }
+
+    /**
+     * Make some of the planned writes, in order.
+     * @param from the index of the first write to make
+     * @param to the index after the last write to make
+     * @param processor the processor with which to make the writes
+     * @throws GraphException if the processor could not make a write
+     */
+    public void apply(int from, int to, GraphTraversal.Processor processor) throws GraphException {
+        for (final Write write : writes.subList(from, to)) {
+            write.applyTo(processor);
+        }
+    }
+
+    /**
+     * Note whose request planned these writes, so that only the same request may resume them.
+     * @param ownerId the ID of the user who submitted the request
+     * @param requestType the class of the request
+     * @param stepResults the results of the request's steps, from which its response is built once the writes are made
+     */
+    public void setPlanner(long ownerId, Class<?> requestType, List<Object> stepResults) {
+        this.ownerId = ownerId;
+        this.requestType = requestType.getName();
+        this.stepResults = stepResults;
+    }
+
+    /**
+     * @param ownerId the ID of a user
+     * @param requestType the class of a request
+     * @return if these writes were planned by a request of the given class submitted by the given user
+     */
+    public boolean isPlannedBy(long ownerId, Class<?> requestType) {
+        return this.ownerId == ownerId && requestType.getName().equals(this.requestType);
+    }
+
+    /**
+     * @return the results of the steps of the request that planned these writes
+     */
+    public List<Object> getStepResults() {
+        return stepResults;
+    }
+
+    /**
+     * Persist this plan in the given directory.
+     * @param directory the directory in which plans are kept
+     * @throws IOException if the plan could not be written
+     */
+    public void save(File directory) throws IOException {
+        directory.mkdirs();
+        final File file = new File(directory, id + PLAN_SUFFIX);
+        final ObjectOutputStream out =
+                new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeObject(this);
+        } finally {
+            out.close();
+        }
+        checkpoint(directory, committed);
+    }
+
+    /**
+     * Note how many of the planned writes are committed and, if this plan was saved, persist that.
+     * @param directory the directory in which plans are kept, may be {@code null}
+     * @param committed how many of the planned writes are committed
+     * @throws IOException if the checkpoint could not be written
+     */
+    public void checkpoint(File directory, int committed) throws IOException {
+        this.committed = committed;
+        if (directory == null) {
+            return;
+        }
+        final File file = new File(directory, id + CHECKPOINT_SUFFIX);
+        final File temporary = new File(directory, id + CHECKPOINT_SUFFIX + ".tmp");
+        Files.write(temporary.toPath(), Integer.toString(committed).getBytes(StandardCharsets.US_ASCII));
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Remove this plan from the given directory once all its writes are committed.
+     * @param directory the directory in which plans are kept, may be {@code null}
+     */
+    public void remove(File directory) {
+        if (directory == null) {
+            return;
+        }
+        new File(directory, id + PLAN_SUFFIX).delete();
+        new File(directory, id + CHECKPOINT_SUFFIX).delete();
+    }
+
+    /**
+     * Load a plan persisted by {@link #save(File)} along with how many of its writes are committed.
+     * @param directory the directory in which plans are kept
+     * @param id the identifier of the plan
+     * @return the plan
+     * @throws IOException if the plan could not be read
+     */
+    public static PlannedWrites load(File directory, String id) throws IOException {
+        /* parse the identifier so that it cannot name any other file */
+        final String planId = UUID.fromString(id).toString();
+        final File file = new File(directory, planId + PLAN_SUFFIX);
+        final ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        final PlannedWrites plan;
+        try {
+            plan = (PlannedWrites) in.readObject();
+        } catch (ClassNotFoundException cnfe) {
+            throw new IOException("could not read plan " + planId, cnfe);
+        } finally {
+            in.close();
+        }
+        final byte[] checkpoint = Files.readAllBytes(new File(directory, planId + CHECKPOINT_SUFFIX).toPath());
+        plan.committed = Integer.parseInt(new String(checkpoint, StandardCharsets.US_ASCII).trim());
+        return plan;
+    }
+}
@@ -171,6 +171,12 @@ public class Gateway implements AutoCloseable {
     /** Optional reference to a {@link CacheService} */
     private CacheService cacheService;
 
+    /**
+     * For how long in milliseconds the facilities may reuse their lookups,
+     * not at all if not positive
+     */
+    private volatile long lookupCacheExpiry = 0;
+
     /** The PropertyChangeSupport */
     private final PropertyChangeSupport pcs = new PropertyChangeSupport(this);
     
@@ -573,6 +579,35 @@ public class Gateway implements AutoCloseable {
         return cacheService;
     }
 
+    /**
+     * Lets the facilities keep the results of some lookups, such as
+     * {@link omero.gateway.facility.BrowseFacility#getImage(SecurityContext, long)},
+     * in the {@link CacheService} and return copies of them to later callers
+     * until they expire or a write is made through the
+     * {@link omero.gateway.facility.DataManagerFacility}. Writes made by other
+     * clients are not noticed until the lookups expire. Disabled by default;
+     * has no effect unless the Gateway was created with a
+     * {@link CacheService}.
+     * 
+     * @param expiry
+     *            For how long to keep lookups, not at all if not positive
+     * @param unit
+     *            The unit of <code>expiry</code>
+     */
+    public void setLookupCacheExpiry(long expiry, TimeUnit unit) {
+        this.lookupCacheExpiry = unit.toMillis(expiry);
+    }
+
+    /**
+     * Returns for how long the facilities may reuse their lookups
+     * 
+     * @return See above, in milliseconds, not positive if lookups are not
+     *         cached
+     */
+    public long getLookupCacheExpiry() {
+        return lookupCacheExpiry;
+    }
+
     // Public service access methods
 
     /**
@@ -0,0 +1,543 @@
+/*
+ *------------------------------------------------------------------------------
+ *  Copyright (C) 2018 University of Dundee. All rights reserved.
+ *
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *------------------------------------------------------------------------------
+ */
+package omero.gateway.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+/**
+ * Implementation of the {@link CacheService} backed by Guava caches.
+ * Each cache evicts the least recently used elements once its size is
+ * reached. If a {@link Weigher} is given, the size of a cache is the maximum
+ * total weight of its elements rather than their number. Elements may also
+ * expire a fixed time after they were last accessed.
+ *
+ * Caches of type {@link #PERSISTENCE_ON_DISK} keep evicted elements which are
+ * {@link Serializable} in a spill directory on disk and move them back into
+ * memory when they are next requested. Once the spilled elements of a cache
+ * exceed a given number of bytes, the oldest are dropped. The files are
+ * deleted when the cache is cleared or removed or the service shut down.
+ *
+ * @since 5.5
+ */
+public class CacheServiceImpl implements CacheService
+{
+
+    /** The logger. */
+    private static final Logger log = LoggerFactory.getLogger(CacheServiceImpl.class);
+
+    /** Used to generate the ids of the caches. */
+    private final AtomicInteger ids = new AtomicInteger(0);
+
+    /** The caches by id. */
+    private final ConcurrentMap<Integer, Region> regions =
+            new ConcurrentHashMap<Integer, Region>();
+
+    /** Time after last access at which elements expire, non-positive for never. */
+    private final long expireAfterAccessMillis;
+
+    /** Used to weigh elements, <code>null</code> to count elements. */
+    private final Weigher<Object, Object> weigher;
+
+    /** The parent directory of the spill directories. */
+    private final File spillRoot;
+
+    /** The maximum number of bytes spilled to disk by each cache. */
+    private final long maxSpillBytes;
+
+    /** The default maximum number of bytes spilled to disk by each cache. */
+    public static final long DEFAULT_MAX_SPILL_BYTES = 256L * 1024 * 1024;
+
+    /** Creates a new instance with no expiry which counts elements. */
+    public CacheServiceImpl()
+    {
+        this(0, TimeUnit.MILLISECONDS, null, null);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param expireAfterAccess Time after last access at which elements
+     *                          expire, non-positive for never.
+     * @param unit The unit of <code>expireAfterAccess</code>.
+     * @param weigher Used to weigh elements in which case the size of a cache
+     *                is its maximum total weight. Pass <code>null</code> to
+     *                count elements.
+     * @param spillRoot The directory in which to spill elements to disk,
+     *                  <code>null</code> for the temporary directory.
+     */
+    public CacheServiceImpl(long expireAfterAccess, TimeUnit unit,
+            Weigher<Object, Object> weigher, File spillRoot)
+    {
+        this(expireAfterAccess, unit, weigher, spillRoot,
+                DEFAULT_MAX_SPILL_BYTES);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param expireAfterAccess Time after last access at which elements
+     *                          expire, non-positive for never.
+     * @param unit The unit of <code>expireAfterAccess</code>.
+     * @param weigher Used to weigh elements in which case the size of a cache
+     *                is its maximum total weight. Pass <code>null</code> to
+     *                count elements.
+     * @param spillRoot The directory in which to spill elements to disk,
+     *                  <code>null</code> for the temporary directory.
+     * @param maxSpillBytes The maximum number of bytes spilled to disk by
+     *                      each cache, beyond which the oldest spilled
+     *                      elements are dropped.
+     */
+    public CacheServiceImpl(long expireAfterAccess, TimeUnit unit,
+            Weigher<Object, Object> weigher, File spillRoot,
+            long maxSpillBytes)
+    {
+        this.expireAfterAccessMillis = unit.toMillis(expireAfterAccess);
+        this.weigher = weigher;
+        this.spillRoot = spillRoot;
+        this.maxSpillBytes = maxSpillBytes;
+    }
+
+    /**
+     * Returns the statistics of the specified cache.
+     *
+     * @param cacheID The id of the cache.
+     * @return See above or <code>null</code> if there is no such cache.
+     */
+    public CacheStatistics getStatistics(int cacheID)
+    {
+        Region region = regions.get(cacheID);
+        if (region == null) return null;
+        return region.statistics();
+    }
+
+    /**
+     * Implemented as specified by the {@link CacheService} interface.
+     * @see CacheService#createCache()
+     */
+    public int createCache()
+    {
+        return createCache(DEFAULT, CACHE_SIZE);
+    }
+
+    /**
+     * Implemented as specified by the {@link CacheService} interface.
+     * @see CacheService#createCache(int)
+     */
+    public int createCache(int type)
+    {
+        return createCache(type, CACHE_SIZE);
+    }
+
+    /**
+     * Implemented as specified by the {@link CacheService} interface.
+     * @see CacheService#createCache(int, int)
+     */
+    public int createCache(int type, int size)
+    {
+        int id = ids.incrementAndGet();
+        regions.put(id, new Region(id, type, size));
+        return id;
+    }
+
+    /**
+     * Implemented as specified by the {@link CacheService} interface.
+     * @see CacheService#removeCache(int)
+     */
+    public void removeCache(int cacheID)
+    {
+        Region region = regions.remove(cacheID);
+        if (region != null) region.destroy();
+    }
+
+    /**
+     * Implemented as specified by the {@link CacheService} interface.
+     * @see CacheService#addElement(int, Object, Object)
+     */
+    public void addElement(int cacheID, Object key, Object element)
+    {
+        if (key == null || element == null) return;
+        Region region = regions.get(cacheID);
+        if (region != null) region.put(key, element);
+    }
+
+    /**
+     * Implemented as specified by the {@link CacheService} interface.
+     * @see CacheService#getElement(int, Object)
+     */
+    public Object getElement(int cacheID, Object key)
+    {
+        if (key == null) return null;
+        Region region = regions.get(cacheID);
+        if (region == null) return null;
+        return region.get(key);
+    }
+
+    /**
+     * Implemented as specified by the {@link CacheService} interface.
+     * @see CacheService#clearCache(int)
+     */
+    public void clearCache(int cacheID)
+    {
+        Region region = regions.get(cacheID);
+        if (region != null) region.clear();
+    }
+
+    /**
+     * Implemented as specified by the {@link CacheService} interface.
+     * Guava caches cannot be resized so the elements are moved to a new
+     * cache of the requested size.
+     * @see CacheService#setCacheEntries(int, int)
+     */
+    public void setCacheEntries(int cacheID, int entries)
+    {
+        Region region = regions.get(cacheID);
+        if (region != null) region.resize(entries);
+    }
+
+    /**
+     * Implemented as specified by the {@link CacheService} interface.
+     * @see CacheService#clearAllCaches()
+     */
+    public void clearAllCaches()
+    {
+        for (Region region : regions.values())
+            region.clear();
+    }
+
+    /**
+     * Implemented as specified by the {@link CacheService} interface.
+     * @see CacheService#shutDown()
+     */
+    public void shutDown()
+    {
+        for (Integer id : regions.keySet())
+            removeCache(id);
+    }
+
+    /** An element spilled to disk. */
+    private static class Spilled
+    {
+        final File file;
+        final long lastAccess;
+        final long length;
+
+        Spilled(File file, long lastAccess, long length)
+        {
+            this.file = file;
+            this.lastAccess = lastAccess;
+            this.length = length;
+        }
+    }
+
+    /** A single cache with its optional disk tier and counters. */
+    private class Region implements RemovalListener<Object, Object>
+    {
+
+        private final int id;
+
+        private final int type;
+
+        /**
+         * Held to read or write {@link #memory}, exclusively to replace it so
+         * that no element is put into a cache that is being replaced.
+         */
+        private final ReadWriteLock memoryLock = new ReentrantReadWriteLock();
+
+        private volatile Cache<Object, Object> memory;
+
+        /** The spilled elements, oldest first. Guarded by itself. */
+        private final Map<Object, Spilled> disk =
+                new LinkedHashMap<Object, Spilled>();
+
+        /** The bytes spilled to disk. Guarded by {@link #disk}. */
+        private long diskBytes;
+
+        private final AtomicLong evictions = new AtomicLong();
+
+        private final AtomicLong diskHits = new AtomicLong();
+
+        private final AtomicLong diskWrites = new AtomicLong();
+
+        /** Statistics of the caches replaced by {@link #resize(int)}. */
+        private volatile CacheStats previous = new CacheStats(0, 0, 0, 0, 0, 0);
+
+        private File spillDirectory;
+
+        Region(int id, int type, int size)
+        {
+            this.id = id;
+            this.type = type;
+            this.memory = build(size);
+        }
+
+        private Cache<Object, Object> build(int size)
+        {
+            CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                    .recordStats().removalListener(this);
+            if (weigher != null) {
+                builder.maximumWeight(Math.max(size, 0)).weigher(weigher);
+            } else {
+                builder.maximumSize(Math.max(size, 0));
+            }
+            if (expireAfterAccessMillis > 0) {
+                builder.expireAfterAccess(expireAfterAccessMillis,
+                        TimeUnit.MILLISECONDS);
+            }
+            return builder.build();
+        }
+
+        void put(Object key, Object element)
+        {
+            drop(key);
+            memoryLock.readLock().lock();
+            try {
+                memory.put(key, element);
+            } finally {
+                memoryLock.readLock().unlock();
+            }
+        }
+
+        Object get(Object key)
+        {
+            Object value = memory.getIfPresent(key);
+            if (value != null) return value;
+            Spilled spilled;
+            synchronized (disk) {
+                spilled = remove(key);
+            }
+            if (spilled == null) return null;
+            try {
+                if (expireAfterAccessMillis > 0 && System.currentTimeMillis()
+                        - spilled.lastAccess > expireAfterAccessMillis)
+                    return null;
+                value = read(spilled.file);
+                if (value != null) {
+                    diskHits.incrementAndGet();
+                    memoryLock.readLock().lock();
+                    try {
+                        memory.put(key, value);
+                    } finally {
+                        memoryLock.readLock().unlock();
+                    }
+                }
+                return value;
+            } finally {
+                spilled.file.delete();
+            }
+        }
+
+        void clear()
+        {
+            memoryLock.readLock().lock();
+            try {
+                memory.invalidateAll();
+            } finally {
+                memoryLock.readLock().unlock();
+            }
+            synchronized (disk) {
+                for (Spilled spilled : disk.values())
+                    spilled.file.delete();
+                disk.clear();
+                diskBytes = 0;
+            }
+        }
+
+        void resize(int size)
+        {
+            memoryLock.writeLock().lock();
+            try {
+                Cache<Object, Object> old = memory;
+                Cache<Object, Object> replacement = build(size);
+                replacement.putAll(old.asMap());
+                previous = previous.plus(old.stats());
+                memory = replacement;
+                old.asMap().clear();
+            } finally {
+                memoryLock.writeLock().unlock();
+            }
+        }
+
+        void destroy()
+        {
+            clear();
+            synchronized (this) {
+                if (spillDirectory != null) {
+                    spillDirectory.delete();
+                    spillDirectory = null;
+                }
+            }
+        }
+
+        CacheStatistics statistics()
+        {
+            CacheStats stats = previous.plus(memory.stats());
+            return new CacheStatistics(stats.hitCount() + diskHits.get(),
+                    stats.missCount() - diskHits.get(), evictions.get(),
+                    diskWrites.get(), diskHits.get(), memory.size(),
+                    diskSize());
+        }
+
+        /** Returns the number of elements spilled to disk. */
+        private int diskSize()
+        {
+            synchronized (disk) {
+                return disk.size();
+            }
+        }
+
+        /**
+         * Removes the element spilled to disk for the given key if any,
+         * without deleting its file. The caller must hold {@link #disk}.
+         */
+        private Spilled remove(Object key)
+        {
+            Spilled spilled = disk.remove(key);
+            if (spilled != null) diskBytes -= spilled.length;
+            return spilled;
+        }
+
+        /** Removes the element spilled to disk for the given key if any. */
+        private void drop(Object key)
+        {
+            Spilled spilled;
+            synchronized (disk) {
+                spilled = remove(key);
+            }
+            if (spilled != null) spilled.file.delete();
+        }
+
+        /**
+         * Notes an element spilled to disk then drops the oldest spilled
+         * elements until no more than {@link #maxSpillBytes} are spilled.
+         */
+        private void spilled(Object key, Spilled spilled)
+        {
+            synchronized (disk) {
+                Spilled previous = remove(key);
+                if (previous != null) previous.file.delete();
+                disk.put(key, spilled);
+                diskBytes += spilled.length;
+                Iterator<Spilled> oldest = disk.values().iterator();
+                while (diskBytes > maxSpillBytes && oldest.hasNext()) {
+                    Spilled dropped = oldest.next();
+                    oldest.remove();
+                    diskBytes -= dropped.length;
+                    dropped.file.delete();
+                }
+            }
+        }
+
+        @Override
+        public void onRemoval(RemovalNotification<Object, Object> n)
+        {
+            if (!n.wasEvicted()) return;
+            evictions.incrementAndGet();
+            // Only spill elements evicted for space, not expired ones.
+            if (n.getCause() != RemovalCause.SIZE
+                    || type != PERSISTENCE_ON_DISK || n.getKey() == null
+                    || !(n.getValue() instanceof Serializable)) return;
+            try {
+                File file = File.createTempFile("element", ".ser",
+                        spillDirectory());
+                write(file, n.getValue());
+                diskWrites.incrementAndGet();
+                spilled(n.getKey(), new Spilled(file,
+                        System.currentTimeMillis(), file.length()));
+            } catch (IOException e) {
+                log.warn("Cannot spill element of cache " + id + " to disk", e);
+            }
+        }
+
+        private synchronized File spillDirectory() throws IOException
+        {
+            if (spillDirectory == null) {
+                File dir = File.createTempFile("omero-cache-" + id + "-", "",
+                        spillRoot);
+                if (!dir.delete() || !dir.mkdirs())
+                    throw new IOException("Cannot create " + dir);
+                dir.deleteOnExit();
+                spillDirectory = dir;
+            }
+            return spillDirectory;
+        }
+
+        private void write(File file, Object value) throws IOException
+        {
+            ObjectOutputStream out = new ObjectOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                out.writeObject(value);
+            } finally {
+                out.close();
+            }
+        }
+
+        private Object read(File file)
+        {
+            ObjectInputStream in = null;
+            try {
+                in = new ObjectInputStream(
+                        new BufferedInputStream(new FileInputStream(file)));
+                return in.readObject();
+            } catch (Exception e) {
+                log.warn("Cannot read element of cache " + id + " from disk", e);
+                return null;
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *------------------------------------------------------------------------------
+ *  Copyright (C) 2018 University of Dundee. All rights reserved.
+ *
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *------------------------------------------------------------------------------
+ */
+package omero.gateway.cache;
+
+/**
+ * Snapshot of the usage of a cache created by {@link CacheServiceImpl}.
+ *
+ * @since 5.5
+ */
+public class CacheStatistics
+{
+
+    /** The number of requests which found an element. */
+    private final long hits;
+
+    /** The number of requests which found no element. */
+    private final long misses;
+
+    /** The number of elements evicted from memory. */
+    private final long evictions;
+
+    /** The number of elements written to disk. */
+    private final long diskWrites;
+
+    /** The number of requests which found an element on disk. */
+    private final long diskHits;
+
+    /** The number of elements in memory. */
+    private final long memorySize;
+
+    /** The number of elements on disk. */
+    private final long diskSize;
+
+    CacheStatistics(long hits, long misses, long evictions, long diskWrites,
+            long diskHits, long memorySize, long diskSize)
+    {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.diskWrites = diskWrites;
+        this.diskHits = diskHits;
+        this.memorySize = memorySize;
+        this.diskSize = diskSize;
+    }
+
+    /**
+     * Returns the number of requests which found an element, in memory or
+     * on disk.
+     *
+     * @return See above.
+     */
+    public long getHits() { return hits; }
+
+    /**
+     * Returns the number of requests which found no element.
+     *
+     * @return See above.
+     */
+    public long getMisses() { return misses; }
+
+    /**
+     * Returns the number of elements evicted from memory because of size or
+     * expiry.
+     *
+     * @return See above.
+     */
+    public long getEvictions() { return evictions; }
+
+    /**
+     * Returns the number of evicted elements written to disk.
+     *
+     * @return See above.
+     */
+    public long getDiskWrites() { return diskWrites; }
+
+    /**
+     * Returns the number of requests which found an element on disk.
+     *
+     * @return See above.
+     */
+    public long getDiskHits() { return diskHits; }
+
+    /**
+     * Returns the number of elements currently held in memory.
+     *
+     * @return See above.
+     */
+    public long getMemorySize() { return memorySize; }
+
+    /**
+     * Returns the number of elements currently held on disk.
+     *
+     * @return See above.
+     */
+    public long getDiskSize() { return diskSize; }
+
+    /**
+     * Returns the ratio of hits to requests, <code>1</code> if there have
+     * been no requests.
+     *
+     * @return See above.
+     */
+    public double getHitRate()
+    {
+        long requests = hits + misses;
+        return requests == 0 ? 1.0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CacheStatistics [hits=" + hits + ", misses=" + misses
+                + ", evictions=" + evictions + ", diskWrites=" + diskWrites
+                + ", diskHits=" + diskHits + ", memorySize=" + memorySize
+                + ", diskSize=" + diskSize + "]";
+    }
+}
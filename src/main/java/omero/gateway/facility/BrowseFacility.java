@@ -1056,7 +1056,10 @@ public class BrowseFacility extends Facility {
     }
 
     /**
-     * Loads a image
+     * Loads a image. If lookup caching is enabled on the {@link Gateway},
+     * a copy of an image loaded earlier may be returned until the cached
+     * lookup expires or a write is made through the
+     * {@link DataManagerFacility}.
      *
      * @param ctx
      *            The {@link SecurityContext}
@@ -1073,7 +1076,13 @@ public class BrowseFacility extends Facility {
         if (id < 0)
             return null;
 
-        return getImages(ctx, Collections.singleton(id)).iterator().next();
+        Image cached = getCached(ctx, "image", id);
+        if (cached != null)
+            return new ImageData(cached);
+        ImageData img = getImages(ctx, Collections.singleton(id)).iterator().next();
+        if (img != null)
+            cache(ctx, img.asImage(), "image", id);
+        return img;
     }
 
     /**
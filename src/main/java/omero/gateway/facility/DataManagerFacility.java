@@ -166,6 +166,7 @@ public class DataManagerFacility extends Facility {
             return null;
         
         try {
+            clearLookupCaches();
             Map<String, List<Long>> targetObjects = new HashMap<String, List<Long>>();
             targetObjects.put(PojoMapper.getGraphType(FolderData.class),
                     new ArrayList<Long>(Pojos.extractIds(folders)));
@@ -213,6 +214,7 @@ public class DataManagerFacility extends Facility {
             return null;
         
         try {
+            clearLookupCaches();
             final Delete2Builder request = Requests.delete();
             for (final IObject object : objects) {
                 request.target(object);
@@ -247,6 +249,7 @@ public class DataManagerFacility extends Facility {
             return null;
         
         try {
+            clearLookupCaches();
             IUpdatePrx service = gateway.getUpdateService(ctx);
             if (options == null)
                 return service.saveAndReturnObject(object);
@@ -302,6 +305,7 @@ public class DataManagerFacility extends Facility {
             return null;
         
         try {
+            clearLookupCaches();
             IUpdatePrx service = gateway.getUpdateService(ctx);
             IObject result = service.saveAndReturnObject(object);
             return result;
@@ -337,6 +341,7 @@ public class DataManagerFacility extends Facility {
             return null;
         
         try {
+            clearLookupCaches();
             IUpdatePrx service = gateway.getUpdateService(ctx, userName);
 
             if (options == null)
@@ -398,6 +403,7 @@ public class DataManagerFacility extends Facility {
             return null;
         
         try {
+            clearLookupCaches();
             IUpdatePrx service = gateway.getUpdateService(ctx, userName);
             IObject result = service.saveAndReturnObject(object);
             return result;
@@ -433,6 +439,7 @@ public class DataManagerFacility extends Facility {
             return Collections.emptyList();
         
         try {
+            clearLookupCaches();
             IUpdatePrx service = gateway.getUpdateService(ctx, userName);
             return service.saveAndReturnArray(objects);
         } catch (Throwable t) {
@@ -465,6 +472,7 @@ public class DataManagerFacility extends Facility {
             return null;
         
         try {
+            clearLookupCaches();
             IContainerPrx service = gateway.getPojosService(ctx);
             IObject r = service.updateDataObject(object, options);
             return browse.findIObject(ctx, r);
@@ -499,6 +507,7 @@ public class DataManagerFacility extends Facility {
             return Collections.emptyList();
         
         try {
+            clearLookupCaches();
             IContainerPrx service = gateway.getPojosService(ctx);
             List<IObject> l = service.updateDataObjects(objects, options);
             if (l == null)
@@ -23,7 +23,16 @@ package omero.gateway.facility;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 
@@ -34,6 +43,8 @@ import omero.ResourceError;
 import omero.SecurityViolation;
 import omero.SessionException;
 import omero.gateway.Gateway;
+import omero.gateway.SecurityContext;
+import omero.gateway.cache.CacheService;
 import omero.gateway.exception.ConnectionStatus;
 import omero.gateway.exception.DSAccessException;
 import omero.gateway.exception.DSOutOfServiceException;
@@ -71,7 +82,13 @@ public abstract class Facility {
 
     /** The PropertyChangeSupport */
     private final PropertyChangeSupport pcs = new PropertyChangeSupport(this);
-    
+
+    /** The number of lookups each facility keeps in the {@link CacheService} */
+    static final int LOOKUP_CACHE_SIZE = 1000;
+
+    /** The id of this facility's cache in the {@link CacheService} */
+    private int cacheID = -1;
+
     /**
      * Creates a new instance
      * 
@@ -193,6 +210,163 @@ public abstract class Facility {
         this.pcs.firePropertyChange(propertyName, oldValue, newValue);
     }
     
+    /**
+     * Returns the id of this facility's cache, creating it if necessary.
+     *
+     * @param service The {@link CacheService} of the {@link Gateway}
+     * @return See above
+     */
+    private synchronized int getCacheID(CacheService service) {
+        if (cacheID < 0)
+            cacheID = service.createCache(CacheService.IN_MEMORY,
+                    LOOKUP_CACHE_SIZE);
+        return cacheID;
+    }
+
+    /**
+     * Builds the key of a lookup from the group, user and sudo state of the
+     * {@link SecurityContext} and the arguments of the lookup, so that a
+     * lookup is only reused by the same user in the same group.
+     */
+    private static List<Object> cacheKey(SecurityContext ctx, Object[] key) {
+        List<Object> k = new ArrayList<Object>(key.length + 3);
+        if (ctx == null) {
+            k.add(null);
+            k.add(null);
+            k.add(null);
+        } else {
+            k.add(ctx.getGroupID());
+            k.add(ctx.getExperimenter());
+            k.add(ctx.isSudo());
+        }
+        k.addAll(Arrays.asList(key));
+        return k;
+    }
+
+    /**
+     * Returns the {@link CacheService} in which to keep lookups, if the
+     * {@link Gateway} has one and lookups are to be cached.
+     *
+     * @return See above or <code>null</code>
+     */
+    private CacheService getLookupCacheService() {
+        if (gateway.getLookupCacheExpiry() <= 0)
+            return null;
+        return gateway.getCacheService();
+    }
+
+    /**
+     * Returns a copy of the result of a lookup previously stored with
+     * {@link #cache(SecurityContext, Serializable, Object...)} unless it
+     * has expired. Only has an effect if the {@link Gateway} was created
+     * with a {@link CacheService} and lookup caching was enabled with
+     * {@link Gateway#setLookupCacheExpiry(long, java.util.concurrent.TimeUnit)}.
+     * 
+     * @param ctx
+     *            The {@link SecurityContext}
+     * @param key
+     *            The arguments identifying the lookup
+     * @return The cached result or <code>null</code>
+     */
+    @SuppressWarnings("unchecked")
+    <T extends Serializable> T getCached(SecurityContext ctx, Object... key) {
+        CacheService service = getLookupCacheService();
+        if (service == null)
+            return null;
+        Object element = service.getElement(getCacheID(service),
+                cacheKey(ctx, key));
+        if (!(element instanceof CachedLookup))
+            return null;
+        CachedLookup lookup = (CachedLookup) element;
+        if (System.currentTimeMillis() - lookup.stored > gateway
+                .getLookupCacheExpiry())
+            return null;
+        try {
+            ObjectInputStream in = new ObjectInputStream(
+                    new ByteArrayInputStream(lookup.value));
+            try {
+                return (T) in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            logError(this, "Cannot read cached lookup.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores a copy of the result of a lookup for retrieval by
+     * {@link #getCached(SecurityContext, Object...)}, so that callers may
+     * modify the results they are given. Only has an effect if the
+     * {@link Gateway} was created with a {@link CacheService} and lookup
+     * caching was enabled.
+     * 
+     * @param ctx
+     *            The {@link SecurityContext}
+     * @param value
+     *            The result of the lookup
+     * @param key
+     *            The arguments identifying the lookup
+     */
+    void cache(SecurityContext ctx, Serializable value, Object... key) {
+        CacheService service = getLookupCacheService();
+        if (service == null || value == null)
+            return;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            try {
+                out.writeObject(value);
+            } finally {
+                out.close();
+            }
+            service.addElement(getCacheID(service), cacheKey(ctx, key),
+                    new CachedLookup(bytes.toByteArray()));
+        } catch (IOException e) {
+            logError(this, "Cannot cache lookup.", e);
+        }
+    }
+
+    /**
+     * The serialized result of a lookup, from which each hit is read afresh
+     * so that no two callers share the same objects.
+     */
+    private static final class CachedLookup {
+
+        /** When the lookup was made. */
+        private final long stored = System.currentTimeMillis();
+
+        /** The serialized result. */
+        private final byte[] value;
+
+        private CachedLookup(byte[] value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Discards the lookups cached by this facility
+     */
+    public void clearCache() {
+        CacheService service = gateway.getCacheService();
+        if (service != null)
+            service.clearCache(getCacheID(service));
+    }
+
+    /**
+     * Discards the lookups cached by all the facilities of the
+     * {@link Gateway}, as their results may be changed by a write.
+     */
+    void clearLookupCaches() {
+        if (gateway.getCacheService() == null)
+            return;
+        for (Facility facility : cache.asMap().values()) {
+            if (facility.gateway == gateway)
+                facility.clearCache();
+        }
+    }
+
     /**
      * Helper method to simplify logging
      * 
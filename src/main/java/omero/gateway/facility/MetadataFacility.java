@@ -38,6 +38,7 @@ import omero.gateway.exception.DSAccessException;
 import omero.gateway.exception.DSOutOfServiceException;
 import omero.model.Channel;
 import omero.model.IObject;
+import omero.model.Image;
 import omero.model.Pixels;
 import omero.sys.ParametersI;
 import omero.gateway.model.AnnotationData;
@@ -92,9 +93,14 @@ public class MetadataFacility extends Facility {
             return null;
         }
 
+        Image cached = getCached(ctx, "acquisition", imageId);
+        if (cached != null)
+            return new ImageAcquisitionData(cached);
+
         ParametersI params = new ParametersI();
         params.acquisitionData();
         ImageData img = browse.getImage(ctx, imageId, params);
+        cache(ctx, img.asImage(), "acquisition", imageId);
         return new ImageAcquisitionData(img.asImage());
     }
 
@@ -120,6 +126,13 @@ public class MetadataFacility extends Facility {
             return result;
         }
 
+        ArrayList<Channel> cached = getCached(ctx, "channels", imageId);
+        if (cached != null) {
+            for (int i = 0; i < cached.size(); i++)
+                result.add(new ChannelData(i, cached.get(i)));
+            return result;
+        }
+
         try {
             ImageData img = browse.getImage(ctx, imageId);
 
@@ -129,6 +142,7 @@ public class MetadataFacility extends Facility {
             List<Channel> l = pixels.copyChannels();
             for (int i = 0; i < l.size(); i++)
                 result.add(new ChannelData(i, l.get(i)));
+            cache(ctx, new ArrayList<Channel>(l), "channels", imageId);
 
         } catch (Throwable t) {
             handleException(this, t, "Cannot load channel data.");
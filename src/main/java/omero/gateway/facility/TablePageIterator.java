@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package omero.gateway.facility;
+
+import java.util.NoSuchElementException;
+
+import omero.ServerError;
+import omero.gateway.exception.DSAccessException;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.gateway.model.TableDataColumn;
+import omero.gateway.model.TablePage;
+import omero.grid.Data;
+import omero.grid.TablePrx;
+import Ice.AsyncResult;
+
+/**
+ * Reads a range of rows of an OMERO.table as a sequence of {@link TablePage}s
+ * of a fixed size. The next page is requested from the server as soon as the
+ * current one is returned, so at most two pages are held in memory and
+ * transfer overlaps with processing. The table is kept open until the last
+ * page has been read or {@link #close()} is called.
+ *
+ * @see TablesFacility#getTablePages(omero.gateway.SecurityContext, long,
+ *      long, long, int, long...)
+ */
+public class TablePageIterator implements AutoCloseable {
+
+    /** Reference to the TablesFacility */
+    private final TablesFacility fac;
+
+    /** The open table, <code>null</code> once closed */
+    private TablePrx table;
+
+    /** The column definitions */
+    private final TableDataColumn[] header;
+
+    /** The indices of the columns to read */
+    private final long[] columns;
+
+    /** The number of rows per page */
+    private final int pageSize;
+
+    /** The end of the range to read (exclusive) */
+    private final long rowTo;
+
+    /** The start of the next page to request */
+    private long next;
+
+    /** The request for the next page, <code>null</code> if there is none */
+    private AsyncResult pending;
+
+    /** The start of the page requested by {@link #pending} */
+    private long pendingOffset;
+
+    /**
+     * Creates a new instance and requests the first page
+     *
+     * @param fac
+     *            Reference to the TablesFacility
+     * @param table
+     *            The open table, closed by this instance
+     * @param header
+     *            The column definitions
+     * @param columns
+     *            The indices of the columns to read
+     * @param rowFrom
+     *            The start of the range to read (inclusive)
+     * @param rowTo
+     *            The end of the range to read (exclusive)
+     * @param pageSize
+     *            The number of rows per page
+     */
+    TablePageIterator(TablesFacility fac, TablePrx table,
+            TableDataColumn[] header, long[] columns, long rowFrom,
+            long rowTo, int pageSize) {
+        this.fac = fac;
+        this.table = table;
+        this.header = header;
+        this.columns = columns;
+        this.next = rowFrom;
+        this.rowTo = rowTo;
+        this.pageSize = pageSize;
+        request();
+    }
+
+    /**
+     * Requests the next page, or closes the table if there is none
+     */
+    private void request() {
+        if (next < rowTo) {
+            long stop = Math.min(next + pageSize, rowTo);
+            pending = table.begin_read(columns, next, stop);
+            pendingOffset = next;
+            next = stop;
+        } else {
+            pending = null;
+            close();
+        }
+    }
+
+    /**
+     * Get the column definitions
+     *
+     * @return See above
+     */
+    public TableDataColumn[] getColumns() {
+        return header;
+    }
+
+    /**
+     * Returns <code>true</code> if there are more pages to read
+     *
+     * @return See above
+     */
+    public boolean hasNext() {
+        return pending != null;
+    }
+
+    /**
+     * Returns the next page and requests the one after it
+     *
+     * @return See above
+     * @throws DSOutOfServiceException
+     *             If the connection is broken, or not logged in
+     * @throws DSAccessException
+     *             If an error occurred while trying to retrieve data from OMERO
+     *             service.
+     */
+    public TablePage next() throws DSOutOfServiceException, DSAccessException {
+        if (pending == null)
+            throw new NoSuchElementException();
+        try {
+            Data data = table.end_read(pending);
+            long offset = pendingOffset;
+            request();
+            return new TablePage(header, data.columns, offset,
+                    data.rowNumbers.length);
+        } catch (Exception e) {
+            pending = null;
+            close();
+            fac.handleException(this, e, "Could not load table data");
+        }
+        return null;
+    }
+
+    /**
+     * Closes the table; further pages cannot be read
+     */
+    @Override
+    public void close() {
+        pending = null;
+        if (table != null) {
+            try {
+                table.close();
+            } catch (ServerError e) {
+                fac.logError(this, "Could not close table", e);
+            }
+            table = null;
+        }
+    }
+}
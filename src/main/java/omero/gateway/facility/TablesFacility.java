@@ -496,6 +496,97 @@ public class TablesFacility extends Facility {
         return null;
     }
 
+    /**
+     * Reads a range of rows of a table page by page. Each page keeps the
+     * values in primitive arrays, column by column, and the next page is
+     * fetched while the current one is processed, so that large tables can
+     * be processed in constant memory. The returned iterator must be closed
+     * if not all pages are read.
+     *
+     * @param ctx
+     *            The {@link SecurityContext}
+     * @param fileId
+     *            The id of the {@link OriginalFile} which stores the table
+     * @param rowFrom
+     *            The start row (inclusive)
+     * @param rowTo
+     *            The end row (inclusive) (can be <code>-1</code> in which case
+     *            all rows up to the end of the table will be read)
+     * @param pageSize
+     *            The number of rows per page (can be <code>0</code> in which
+     *            case {@link TablesFacility#DEFAULT_MAX_ROWS_TO_FETCH} is
+     *            used)
+     * @param columns
+     *            The columns to take into account (can be left unspecified, in
+     *            which case all columns will used)
+     * @return An iterator over the pages
+     * @throws DSOutOfServiceException
+     *             If the connection is broken, or not logged in
+     * @throws DSAccessException
+     *             If an error occurred while trying to retrieve data from OMERO
+     *             service.
+     */
+    public TablePageIterator getTablePages(SecurityContext ctx, long fileId,
+            long rowFrom, long rowTo, int pageSize, long... columns)
+            throws DSOutOfServiceException, DSAccessException {
+        if (fileId < 0)
+            return null;
+
+        TablePrx table = null;
+        try {
+            OriginalFile file = new OriginalFileI(fileId, false);
+            SharedResourcesPrx sr = gateway.getSharedResources(ctx);
+            if (!sr.areTablesEnabled()) {
+                throw new DSAccessException(
+                        "Tables feature is not enabled on this server!");
+            }
+
+            table = sr.openTable(file);
+
+            Column[] cols = table.getHeaders();
+
+            if (columns == null || columns.length == 0) {
+                columns = new long[cols.length];
+                for (int i = 0; i < cols.length; i++) {
+                    columns[i] = i;
+                }
+            }
+
+            TableDataColumn[] header = new TableDataColumn[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                int columnIndex = (int) columns[i];
+                header[i] = new TableDataColumn(cols[columnIndex].name,
+                        cols[columnIndex].description, columnIndex,
+                        TablesFacilityHelper.getColumnType(cols[columnIndex]));
+            }
+
+            if (rowFrom < 0)
+                rowFrom = 0;
+
+            long nRows = table.getNumberOfRows();
+            if (rowTo < 0 || rowTo >= nRows)
+                rowTo = nRows - 1;
+
+            if (pageSize <= 0)
+                pageSize = DEFAULT_MAX_ROWS_TO_FETCH;
+
+            TablePageIterator result = new TablePageIterator(this, table,
+                    header, columns, rowFrom, rowTo + 1, pageSize);
+            table = null; // Closed by the iterator
+            return result;
+        } catch (Exception e) {
+            handleException(this, e, "Could not load table data");
+        } finally {
+            if (table != null)
+                try {
+                    table.close();
+                } catch (ServerError e) {
+                    logError(this, "Could not close table", e);
+                }
+        }
+        return null;
+    }
+
     /**
      * Get all available tables for a the specified object
      *
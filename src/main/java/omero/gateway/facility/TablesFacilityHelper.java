@@ -137,13 +137,13 @@ public class TablesFacilityHelper {
 
         for (int i = 0; i < data.columns.length; i++) {
             Column col = data.columns[i];
+            header[i].setType(getColumnType(col));
             if (col instanceof BoolColumn) {
                 Boolean[] rowData = new Boolean[nRows];
                 boolean tableData[] = ((BoolColumn) col).values;
                 for (int j = 0; j < nRows; j++)
                     rowData[j] = tableData[j];
                 dataArray[i] = rowData;
-                header[i].setType(Boolean.class);
             }
             if (col instanceof DoubleArrayColumn) {
                 Double[][] rowData = new Double[nRows][];
@@ -156,7 +156,6 @@ public class TablesFacilityHelper {
                     rowData[j] = tmp;
                 }
                 dataArray[i] = rowData;
-                header[i].setType(Double[].class);
             }
             if (col instanceof DoubleColumn) {
                 Double[] rowData = new Double[nRows];
@@ -164,7 +163,6 @@ public class TablesFacilityHelper {
                 for (int j = 0; j < nRows; j++)
                     rowData[j] = tableData[j];
                 dataArray[i] = rowData;
-                header[i].setType(Double.class);
             }
             if (col instanceof FileColumn) {
                 FileAnnotationData[] rowData = new FileAnnotationData[nRows];
@@ -174,7 +172,6 @@ public class TablesFacilityHelper {
                     rowData[j] = new FileAnnotationData(f);
                 }
                 dataArray[i] = rowData;
-                header[i].setType(FileAnnotationData.class);
             }
             if (col instanceof FloatArrayColumn) {
                 Float[][] rowData = new Float[nRows][];
@@ -187,7 +184,6 @@ public class TablesFacilityHelper {
                     rowData[j] = tmp;
                 }
                 dataArray[i] = rowData;
-                header[i].setType(Float[].class);
             }
             if (col instanceof ImageColumn) {
                 ImageData[] rowData = new ImageData[nRows];
@@ -197,7 +193,6 @@ public class TablesFacilityHelper {
                     rowData[j] = new ImageData(im);
                 }
                 dataArray[i] = rowData;
-                header[i].setType(ImageData.class);
             }
             if (col instanceof LongArrayColumn) {
                 Long[][] rowData = new Long[nRows][];
@@ -210,7 +205,6 @@ public class TablesFacilityHelper {
                     rowData[j] = tmp;
                 }
                 dataArray[i] = rowData;
-                header[i].setType(Long[].class);
             }
             if (col instanceof LongColumn) {
                 Long[] rowData = new Long[nRows];
@@ -218,7 +212,6 @@ public class TablesFacilityHelper {
                 for (int j = 0; j < nRows; j++)
                     rowData[j] = tableData[j];
                 dataArray[i] = rowData;
-                header[i].setType(Long.class);
             }
             if (col instanceof MaskColumn) {
                 MaskColumn mc = ((MaskColumn) col);
@@ -231,7 +224,6 @@ public class TablesFacilityHelper {
                     rowData[j] = md;
                 }
                 dataArray[i] = rowData;
-                header[i].setType(MaskData.class);
             }
             if (col instanceof PlateColumn) {
                 PlateData[] rowData = new PlateData[nRows];
@@ -241,7 +233,6 @@ public class TablesFacilityHelper {
                     rowData[j] = new PlateData(p);
                 }
                 dataArray[i] = rowData;
-                header[i].setType(PlateData.class);
             }
             if (col instanceof RoiColumn) {
                 ROIData[] rowData = new ROIData[nRows];
@@ -251,11 +242,9 @@ public class TablesFacilityHelper {
                     rowData[j] = new ROIData(p);
                 }
                 dataArray[i] = rowData;
-                header[i].setType(ROIData.class);
             }
             if (col instanceof StringColumn) {
                 dataArray[i] = ((StringColumn) col).values;
-                header[i].setType(String.class);
             }
             if (col instanceof WellColumn) {
                 WellSampleData[] rowData = new WellSampleData[nRows];
@@ -265,11 +254,48 @@ public class TablesFacilityHelper {
                     rowData[j] = new WellSampleData(p);
                 }
                 dataArray[i] = rowData;
-                header[i].setType(WellSampleData.class);
             }
         }
     }
 
+    /**
+     * Get the type which a {@link Column} is represented as in a
+     * {@link TableData}
+     * 
+     * @param col
+     *            The column
+     * @return See above, <code>Object.class</code> if unknown
+     */
+    static Class<?> getColumnType(Column col) {
+        if (col instanceof BoolColumn)
+            return Boolean.class;
+        if (col instanceof DoubleArrayColumn)
+            return Double[].class;
+        if (col instanceof DoubleColumn)
+            return Double.class;
+        if (col instanceof FileColumn)
+            return FileAnnotationData.class;
+        if (col instanceof FloatArrayColumn)
+            return Float[].class;
+        if (col instanceof ImageColumn)
+            return ImageData.class;
+        if (col instanceof LongArrayColumn)
+            return Long[].class;
+        if (col instanceof LongColumn)
+            return Long.class;
+        if (col instanceof MaskColumn)
+            return MaskData.class;
+        if (col instanceof PlateColumn)
+            return PlateData.class;
+        if (col instanceof RoiColumn)
+            return ROIData.class;
+        if (col instanceof StringColumn)
+            return String.class;
+        if (col instanceof WellColumn)
+            return WellSampleData.class;
+        return Object.class;
+    }
+
     /**
      * Create a {@link Column} with the specified data
      * 
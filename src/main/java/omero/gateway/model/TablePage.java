@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package omero.gateway.model;
+
+import omero.IllegalArgumentException;
+import omero.grid.BoolColumn;
+import omero.grid.Column;
+import omero.grid.DoubleArrayColumn;
+import omero.grid.DoubleColumn;
+import omero.grid.FileColumn;
+import omero.grid.FloatArrayColumn;
+import omero.grid.ImageColumn;
+import omero.grid.LongArrayColumn;
+import omero.grid.LongColumn;
+import omero.grid.PlateColumn;
+import omero.grid.RoiColumn;
+import omero.grid.StringColumn;
+import omero.grid.WellColumn;
+
+/**
+ * A page of consecutive rows of an OMERO.table. In contrast to
+ * {@link TableData} the values are kept column by column in the primitive
+ * arrays they were transferred in, so nothing is boxed or converted.
+ * Columns referencing objects (images, ROIs, wells, plates, files) are
+ * exposed as their ids.
+ */
+public class TablePage {
+
+    /** The column definitions */
+    private final TableDataColumn[] columns;
+
+    /** The data, one entry per column */
+    private final Column[] data;
+
+    /** The index of the first row of this page in the table */
+    private final long offset;
+
+    /** The number of rows of this page */
+    private final int rowCount;
+
+    /**
+     * Creates a new instance
+     *
+     * @param columns
+     *            The column definitions
+     * @param data
+     *            The data, one entry per column
+     * @param offset
+     *            The index of the first row of this page in the table
+     * @param rowCount
+     *            The number of rows of this page
+     */
+    public TablePage(TableDataColumn[] columns, Column[] data, long offset,
+            int rowCount) {
+        if (columns.length != data.length)
+            throw new IllegalArgumentException(
+                    "Number of column definitions must match the number of columns");
+        this.columns = columns;
+        this.data = data;
+        this.offset = offset;
+        this.rowCount = rowCount;
+    }
+
+    /**
+     * Get the column definitions
+     *
+     * @return See above
+     */
+    public TableDataColumn[] getColumns() {
+        return columns;
+    }
+
+    /**
+     * Get the index of the first row of this page in the table
+     *
+     * @return See above
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Get the number of rows of this page
+     *
+     * @return See above
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Get the raw data of a column, e.g. for mask columns
+     *
+     * @param column
+     *            The index of the column in this page
+     * @return See above
+     */
+    public Column getColumn(int column) {
+        return data[column];
+    }
+
+    /**
+     * Get the values of a boolean column
+     *
+     * @param column
+     *            The index of the column in this page
+     * @return See above
+     */
+    public boolean[] getBooleans(int column) {
+        return ((BoolColumn) check(column, BoolColumn.class)).values;
+    }
+
+    /**
+     * Get the values of a double column
+     *
+     * @param column
+     *            The index of the column in this page
+     * @return See above
+     */
+    public double[] getDoubles(int column) {
+        return ((DoubleColumn) check(column, DoubleColumn.class)).values;
+    }
+
+    /**
+     * Get the values of a long column, or the ids of an image, ROI, well,
+     * plate or file column
+     *
+     * @param column
+     *            The index of the column in this page
+     * @return See above
+     */
+    public long[] getLongs(int column) {
+        Column c = data[column];
+        if (c instanceof LongColumn)
+            return ((LongColumn) c).values;
+        if (c instanceof ImageColumn)
+            return ((ImageColumn) c).values;
+        if (c instanceof RoiColumn)
+            return ((RoiColumn) c).values;
+        if (c instanceof WellColumn)
+            return ((WellColumn) c).values;
+        if (c instanceof PlateColumn)
+            return ((PlateColumn) c).values;
+        if (c instanceof FileColumn)
+            return ((FileColumn) c).values;
+        throw mismatch(column, "long");
+    }
+
+    /**
+     * Get the values of a string column
+     *
+     * @param column
+     *            The index of the column in this page
+     * @return See above
+     */
+    public String[] getStrings(int column) {
+        return ((StringColumn) check(column, StringColumn.class)).values;
+    }
+
+    /**
+     * Get the values of a double array column
+     *
+     * @param column
+     *            The index of the column in this page
+     * @return See above
+     */
+    public double[][] getDoubleArrays(int column) {
+        return ((DoubleArrayColumn) check(column, DoubleArrayColumn.class)).values;
+    }
+
+    /**
+     * Get the values of a float array column
+     *
+     * @param column
+     *            The index of the column in this page
+     * @return See above
+     */
+    public float[][] getFloatArrays(int column) {
+        return ((FloatArrayColumn) check(column, FloatArrayColumn.class)).values;
+    }
+
+    /**
+     * Get the values of a long array column
+     *
+     * @param column
+     *            The index of the column in this page
+     * @return See above
+     */
+    public long[][] getLongArrays(int column) {
+        return ((LongArrayColumn) check(column, LongArrayColumn.class)).values;
+    }
+
+    /**
+     * Returns the column if it is of the expected type
+     *
+     * @param column
+     *            The index of the column in this page
+     * @param type
+     *            The expected type
+     * @return See above
+     */
+    private Column check(int column, Class<? extends Column> type) {
+        Column c = data[column];
+        if (!type.isInstance(c))
+            throw mismatch(column, type.getSimpleName());
+        return c;
+    }
+
+    private IllegalArgumentException mismatch(int column, String type) {
+        return new IllegalArgumentException("Column " + columns[column].getName()
+                + " is not a " + type + " column");
+    }
+
+    @Override
+    public String toString() {
+        return "TablePage [offset=" + offset + ", rowCount=" + rowCount
+                + ", columns=" + columns.length + "]";
+    }
+}
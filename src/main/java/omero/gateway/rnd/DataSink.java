@@ -148,8 +148,23 @@ public class DataSink implements AutoCloseable
             BytesConverter strategy)
                     throws DataSourceException
     {
-        //Retrieve data
-        Plane2D plane = null;
+        ReadOnlyByteArray array = fetchPlane(z, t, c);
+        return new Plane2D(array, source.getSizeX(), source.getSizeY(),
+                bytesPerPixels, strategy);
+    }
+
+    /**
+     * Retrieves the raw data of a plane.
+     * @param z The z-section at which data is to be fetched.
+     * @param t The timepoint at which data is to be fetched.
+     * @param c The channel at which data is to be fetched.
+     * @return See above.
+     * @throws DataSourceException If an error occurs while retrieving the
+     *                              plane data from the pixels source.
+     */
+    private ReadOnlyByteArray fetchPlane(int z, int t, int c)
+            throws DataSourceException
+    {
         byte[] data = null; 
         try {
             data = store.getPlane(z, c, t);
@@ -157,10 +172,34 @@ public class DataSink implements AutoCloseable
             String p = "("+z+", "+c+", "+t+")";
             throw new DataSourceException("Cannot retrieve the plane "+p, e);
         }
-        ReadOnlyByteArray array = new ReadOnlyByteArray(data, 0, data.length);
-        plane = new Plane2D(array, source.getSizeX(), source.getSizeY(), 
-                bytesPerPixels, strategy);
-        return plane;
+        return new ReadOnlyByteArray(data, 0, data.length);
+    }
+
+    /**
+     * Retrieves the raw data of a tile.
+     * @param z The z-section at which data is to be fetched.
+     * @param t The timepoint at which data is to be fetched.
+     * @param c The channel at which data is to be fetched.
+     * @param x The x coordinate
+     * @param y The y coordinate
+     * @param w The width of the tile
+     * @param h The height of the tile
+     * @return See above.
+     * @throws DataSourceException If an error occurs while retrieving the
+     *                              tile data from the pixels source.
+     */
+    private ReadOnlyByteArray fetchTile(int z, int t, int c, int x, int y,
+            int w, int h) throws DataSourceException
+    {
+        byte[] data = null;
+        try {
+            data = store.getTile(z, c, t, x, y, w, h);
+        } catch (Exception e) {
+            String p = "(" + z + ", " + c + ", " + t + ", " + x + ", " + y
+                    + ", " + w + ", " + h + ")";
+            throw new DataSourceException("Cannot retrieve the plane " + p, e);
+        }
+        return new ReadOnlyByteArray(data, 0, data.length);
     }
 
     /**
@@ -187,16 +226,37 @@ public class DataSink implements AutoCloseable
      */
     public Plane2D getTile(int z, int t, int c, int x,
             int y, int w, int h) throws DataSourceException {
-        byte[] data = null;
-        try {
-            data = store.getTile(z, c, t, x, y, w, h);
-        } catch (Exception e) {
-            String p = "(" + z + ", " + c + ", " + t + ", " + x + ", " + y
-                    + ", " + w + ", " + h + ")";
-            throw new DataSourceException("Cannot retrieve the plane " + p, e);
-        }
-        ReadOnlyByteArray array = new ReadOnlyByteArray(data, 0, data.length);
-        return new Plane2D(array, w, h, bytesPerPixels, strategy);
+        return new Plane2D(fetchTile(z, t, c, x, y, w, h), w, h,
+                bytesPerPixels, strategy);
+    }
+
+    /**
+     * Extracts a 2D tile from the pixels set this object is working for,
+     * without converting the pixel values up front.
+     *
+     * @param z
+     *            The z-section at which data is to be fetched.
+     * @param t
+     *            The timepoint at which data is to be fetched.
+     * @param c
+     *            The channel at which data is to be fetched.
+     * @param x
+     *            The x coordinate
+     * @param y
+     *            The y coordinate
+     * @param w
+     *            The width of the tile
+     * @param h
+     *            The height of the tile
+     * @return A view of the tile pixels.
+     * @throws DataSourceException
+     *             If an error occurs while retrieving the plane data from the
+     *             pixels source.
+     */
+    public PlaneView getTileView(int z, int t, int c, int x,
+            int y, int w, int h) throws DataSourceException {
+        return new PlaneView(fetchTile(z, t, c, x, y, w, h), w, h,
+                source.getPixelType(), bytesPerPixels);
     }
 
     /**
@@ -215,6 +275,24 @@ public class DataSink implements AutoCloseable
         return createPlane(z, t, c, strategy);
     }
 
+    /**
+     * Extracts a 2D plane from the pixels set this object is working for,
+     * without converting the pixel values up front.
+     *
+     * @param z The z-section at which data is to be fetched.
+     * @param t The timepoint at which data is to be fetched.
+     * @param c The channel at which data is to be fetched.
+     * @return A view of the plane pixels.
+     * @throws DataSourceException If an error occurs while retrieving the
+     *                              plane data from the pixels source.
+     */
+    public PlaneView getPlaneView(int z, int t, int c)
+            throws DataSourceException
+    {
+        return new PlaneView(fetchPlane(z, t, c), source.getSizeX(),
+                source.getSizeY(), source.getPixelType(), bytesPerPixels);
+    }
+
     /**
      * Get the histogram data for the given image. Currently only non-tiled
      * images are supported.
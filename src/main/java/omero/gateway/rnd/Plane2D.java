@@ -47,8 +47,8 @@ public class Plane2D
     /** Strategy used to transform original data. */
     private BytesConverter strategy;
 
-    /** The converted raw data. */
-    private double[][] mappedData;
+    /** The number of elements along the y-axis. */
+    private int sizeY;
 
     /** 
      * Determines the offset value.
@@ -65,11 +65,11 @@ public class Plane2D
     /**
      * Converts the raw data.
      *
-     * @param sizeY The number of pixels along the y-axis.
+     * @return The values indexed by x-coordinate then y-coordinate.
      */
-    private void mappedData(int sizeY)
+    private double[][] mappedData()
     {
-        mappedData = new double[sizeX][sizeY];
+        double[][] mappedData = new double[sizeX][sizeY];
         int offset;
         for (int x = 0; x < sizeX; x++) {
             for (int y = 0; y < sizeY; y++) {
@@ -77,6 +77,7 @@ public class Plane2D
                 mappedData[x][y] = strategy.pack(data, offset, bytesPerPixel);
             }
         }
+        return mappedData;
     }
 
     /**
@@ -95,7 +96,7 @@ public class Plane2D
         this.data = data;
         this.strategy = strategy;
         this.sizeX = sizeX;
-        mappedData(sizeY);
+        this.sizeY = sizeY;
     }
 
     /**
@@ -108,16 +109,19 @@ public class Plane2D
      */
     public double getPixelValue(int x, int y)
     {
-        return mappedData[x][y];
+        if (x < 0 || x >= sizeX || y < 0 || y >= sizeY)
+            throw new ArrayIndexOutOfBoundsException("("+x+", "+y+")");
+        return strategy.pack(data, calculateOffset(x, y), bytesPerPixel);
     }
 
     /**
-     * Returns the pixels values
+     * Returns the pixels values, converting the whole plane. Prefer
+     * {@link DataSink#getPlaneView(int, int, int)} for bulk access.
      * 
      * @return See above.
      */
     public double[][] getPixelValues() {
-        return copyArray(mappedData);
+        return mappedData();
     }
 
     /**
@@ -130,20 +134,4 @@ public class Plane2D
     {
         return data.get(offset);
     }
-    
-    /**
-     * Simply copies a 2-dimensional double array
-     * 
-     * @param src
-     *            The array to copy
-     * @return A copy of the array
-     */
-    private double[][] copyArray(double[][] src) {
-        int length = src.length;
-        double[][] target = new double[length][src[0].length];
-        for (int i = 0; i < length; i++) {
-            System.arraycopy(src[i], 0, target[i], 0, src[i].length);
-        }
-        return target;
-    }
 }
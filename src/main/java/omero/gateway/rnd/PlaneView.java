@@ -0,0 +1,283 @@
+/*
+ *------------------------------------------------------------------------------
+ *  Copyright (C) 2018 University of Dundee. All rights reserved.
+ *
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *------------------------------------------------------------------------------
+ */
+package omero.gateway.rnd;
+
+import java.nio.ByteBuffer;
+
+import omero.util.ReadOnlyByteArray;
+
+/**
+ * Read-only view of the raw pixels of a plane or tile. Unlike
+ * {@link Plane2D} nothing is converted up front: values are decoded from the
+ * underlying bytes on access, either one at a time or in bulk, row by row
+ * (index <code>y * sizeX + x</code>), into arrays of the pixel type or of
+ * <code>double</code>.
+ *
+ * The typed bulk accessors only apply to the matching pixel type and return
+ * the stored bits, so unsigned values have to be masked by the caller, e.g.
+ * <code>b &amp; 0xFF</code> for {@link DataSink#UINT_8}.
+ *
+ * @since 5.5
+ */
+public class PlaneView
+{
+
+    /** The raw data, big-endian. */
+    private final ByteBuffer data;
+
+    /** The number of elements along the x-axis. */
+    private final int sizeX;
+
+    /** The number of elements along the y-axis. */
+    private final int sizeY;
+
+    /** The pixels type, one of the constants of {@link DataSink}. */
+    private final String pixelsType;
+
+    /** The number of bytes per pixel. */
+    private final int bytesPerPixel;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param data The array of byte.
+     * @param sizeX The number of pixels along the x-axis.
+     * @param sizeY The number of pixels along the y-axis.
+     * @param pixelsType The pixels type.
+     * @param bytesPerPixel The number of bytes per pixel.
+     */
+    PlaneView(ReadOnlyByteArray data, int sizeX, int sizeY,
+            String pixelsType, int bytesPerPixel)
+    {
+        if (data.length < (long) sizeX * sizeY * bytesPerPixel)
+            throw new IllegalArgumentException("Expected "
+                    + ((long) sizeX * sizeY * bytesPerPixel) + " bytes, got "
+                    + data.length);
+        this.data = data.asByteBuffer();
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.pixelsType = pixelsType;
+        this.bytesPerPixel = bytesPerPixel;
+    }
+
+    /**
+     * Returns the number of pixels along the x-axis.
+     *
+     * @return See above.
+     */
+    public int getSizeX() { return sizeX; }
+
+    /**
+     * Returns the number of pixels along the y-axis.
+     *
+     * @return See above.
+     */
+    public int getSizeY() { return sizeY; }
+
+    /**
+     * Returns the pixels type, one of the constants of {@link DataSink}.
+     *
+     * @return See above.
+     */
+    public String getPixelsType() { return pixelsType; }
+
+    /**
+     * Returns the number of bytes per pixel.
+     *
+     * @return See above.
+     */
+    public int getBytesPerPixel() { return bytesPerPixel; }
+
+    /**
+     * Returns the pixels value at the point specified by the x-coordinate
+     * and y-coordinate.
+     *
+     * @param x The x-coordinate.
+     * @param y The y-coordinate.
+     * @return See above.
+     */
+    public double getPixelValue(int x, int y)
+    {
+        if (x < 0 || x >= sizeX || y < 0 || y >= sizeY)
+            throw new IndexOutOfBoundsException("("+x+", "+y+")");
+        return value(y*sizeX+x);
+    }
+
+    /**
+     * Copies the values of a row into <code>buffer</code>.
+     *
+     * @param y The y-coordinate of the row.
+     * @param buffer The array to fill, of at least <code>sizeX</code>
+     *               elements, or <code>null</code> to allocate one.
+     * @return The filled array.
+     */
+    public double[] getRow(int y, double[] buffer)
+    {
+        if (y < 0 || y >= sizeY)
+            throw new IndexOutOfBoundsException("y="+y);
+        buffer = allocate(buffer, sizeX);
+        int start = y*sizeX;
+        for (int x = 0; x < sizeX; x++)
+            buffer[x] = value(start+x);
+        return buffer;
+    }
+
+    /**
+     * Copies all values into <code>buffer</code>, row by row.
+     *
+     * @param buffer The array to fill, of at least <code>sizeX*sizeY</code>
+     *               elements, or <code>null</code> to allocate one.
+     * @return The filled array.
+     */
+    public double[] getDoubles(double[] buffer)
+    {
+        int n = sizeX*sizeY;
+        buffer = allocate(buffer, n);
+        if (DataSink.DOUBLE.equals(pixelsType)) {
+            data.duplicate().asDoubleBuffer().get(buffer, 0, n);
+        } else {
+            for (int i = 0; i < n; i++)
+                buffer[i] = value(i);
+        }
+        return buffer;
+    }
+
+    /**
+     * Copies all values of an 8-bit plane into <code>buffer</code>, row by
+     * row.
+     *
+     * @param buffer The array to fill, of at least <code>sizeX*sizeY</code>
+     *               elements, or <code>null</code> to allocate one.
+     * @return The filled array.
+     */
+    public byte[] getBytes(byte[] buffer)
+    {
+        check(1, false);
+        int n = sizeX*sizeY;
+        if (buffer == null || buffer.length < n) buffer = new byte[n];
+        data.duplicate().get(buffer, 0, n);
+        return buffer;
+    }
+
+    /**
+     * Copies all values of a 16-bit plane into <code>buffer</code>, row by
+     * row.
+     *
+     * @param buffer The array to fill, of at least <code>sizeX*sizeY</code>
+     *               elements, or <code>null</code> to allocate one.
+     * @return The filled array.
+     */
+    public short[] getShorts(short[] buffer)
+    {
+        check(2, false);
+        int n = sizeX*sizeY;
+        if (buffer == null || buffer.length < n) buffer = new short[n];
+        data.duplicate().asShortBuffer().get(buffer, 0, n);
+        return buffer;
+    }
+
+    /**
+     * Copies all values of a 32-bit integer plane into <code>buffer</code>,
+     * row by row.
+     *
+     * @param buffer The array to fill, of at least <code>sizeX*sizeY</code>
+     *               elements, or <code>null</code> to allocate one.
+     * @return The filled array.
+     */
+    public int[] getInts(int[] buffer)
+    {
+        check(4, false);
+        int n = sizeX*sizeY;
+        if (buffer == null || buffer.length < n) buffer = new int[n];
+        data.duplicate().asIntBuffer().get(buffer, 0, n);
+        return buffer;
+    }
+
+    /**
+     * Copies all values of a {@link DataSink#FLOAT} plane into
+     * <code>buffer</code>, row by row.
+     *
+     * @param buffer The array to fill, of at least <code>sizeX*sizeY</code>
+     *               elements, or <code>null</code> to allocate one.
+     * @return The filled array.
+     */
+    public float[] getFloats(float[] buffer)
+    {
+        check(4, true);
+        int n = sizeX*sizeY;
+        if (buffer == null || buffer.length < n) buffer = new float[n];
+        data.duplicate().asFloatBuffer().get(buffer, 0, n);
+        return buffer;
+    }
+
+    /**
+     * Decodes the pixel at the given index.
+     *
+     * @param i The index of the pixel, <code>y*sizeX+x</code>.
+     * @return See above.
+     */
+    private double value(int i)
+    {
+        switch (bytesPerPixel) {
+            case 1:
+                byte b = data.get(i);
+                return DataSink.UINT_8.equals(pixelsType) ? b & 0xFF : b;
+            case 2:
+                short s = data.getShort(i*2);
+                return DataSink.UINT_16.equals(pixelsType) ? s & 0xFFFF : s;
+            case 4:
+                if (DataSink.FLOAT.equals(pixelsType))
+                    return data.getFloat(i*4);
+                int v = data.getInt(i*4);
+                return DataSink.UINT_32.equals(pixelsType) ? v & 0xFFFFFFFFL : v;
+            case 8:
+                return data.getDouble(i*8);
+            default:
+                throw new IllegalStateException(
+                        "Unsupported pixels type: "+pixelsType);
+        }
+    }
+
+    /**
+     * Checks that the pixel type matches a typed accessor.
+     *
+     * @param bytes The number of bytes per pixel of the accessor.
+     * @param floating Whether the accessor is for floating point values.
+     */
+    private void check(int bytes, boolean floating)
+    {
+        boolean isFloat = DataSink.FLOAT.equals(pixelsType) ||
+                DataSink.DOUBLE.equals(pixelsType);
+        if (bytesPerPixel != bytes || isFloat != floating)
+            throw new IllegalStateException(
+                    "Not applicable to pixels type: "+pixelsType);
+    }
+
+    /**
+     * Returns <code>buffer</code> if it can hold <code>n</code> values,
+     * otherwise a new array.
+     */
+    private static double[] allocate(double[] buffer, int n)
+    {
+        if (buffer == null || buffer.length < n) return new double[n];
+        return buffer;
+    }
+}
@@ -24,10 +24,9 @@ package omero.gateway.util;
 import java.awt.Color;
 import java.awt.Point;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
 
 import omero.gateway.model.MaskData;
+import omero.util.LabelMasks;
 
 /** 
  * The mask.
@@ -41,20 +40,8 @@ import omero.gateway.model.MaskData;
 class MaskClass
 {
 	
-	/** The points in the mask. */
-	private Set<Point> points;
-	
-	/** The color of the mask. */
-	private int colour;
-	
-	/** The minimum and maximum (x,y) coordinates of the mask. */
-	private Point min, max;
-	
-	/** The mask Width. */
-	private int width;
-	
-	/** The mask Height. */
-	private int height;
+	/** The pixels of the mask as runs within their bounding box. */
+	private final LabelMasks.Label label;
 
 	/**
 	 * Creates a new instance. 
@@ -63,8 +50,17 @@ class MaskClass
 	 */
 	MaskClass(int value)
 	{
-		points = new HashSet<Point>();
-		colour = value;
+		this(new LabelMasks.Label(value));
+	}
+
+	/**
+	 * Creates a new instance for a label found in a mask image.
+	 * 
+	 * @param label The label.
+	 */
+	MaskClass(LabelMasks.Label label)
+	{
+		this.label = label;
 	}
 
 	/**
@@ -72,7 +68,7 @@ class MaskClass
 	 * 
 	 * @return See above.
 	 */
-	public Color getColour() { return new Color(colour); }
+	public Color getColour() { return new Color(label.getValue()); }
 	
 	/**
 	 * Converts the mask data to a byte array.
@@ -82,21 +78,7 @@ class MaskClass
 	byte[] asBytes() 
 		throws IOException
 	{
-		byte[] data = new byte[(int) Math.ceil(
-				(double) width*(double) height/8.0)];
-		int offset = 0;
-		for (int y = min.y ; y < max.y + 1 ; y++)
-		{
-			for (int x = min.x ; x < max.x + 1 ; x++)
-			{
-				if(points.contains(new Point(x,y)))
-					setBit(data, offset, 1);
-				else
-					setBit(data, offset, 0);
-				offset++;
-			}
-		}
-		return data;
+		return label.toBitMask().getBytes();
 	}
 
 	/**
@@ -105,21 +87,7 @@ class MaskClass
 	 */
 	void add(Point p)
 	{
-		if (points.size() == 0)
-		{
-			min = new Point(p);
-			max = new Point(p);
-		}
-		else
-		{
-			min.x = Math.min(p.x, min.x);
-			min.y = Math.min(p.y, min.y);
-			max.x = Math.max(p.x, max.x);
-			max.y = Math.max(p.y, max.y);
-		}
-		width = max.x-min.x+1;
-		height = max.y-min.y+1;
-		points.add(p);
+		label.addRun(p.y, p.x, p.x+1);
 	}
 
 	/**
@@ -136,15 +104,15 @@ class MaskClass
 		throws IOException
 	{
 		MaskData mask = new MaskData();
-		mask.setX((double) min.x);
-		mask.setY((double) min.y);
-		mask.setWidth((double) width);
-		mask.setHeight((double) height);
+		mask.setX((double) label.getX());
+		mask.setY((double) label.getY());
+		mask.setWidth((double) label.getWidth());
+		mask.setHeight((double) label.getHeight());
 		mask.setReadOnly(true);
 		mask.setT(t);
 		mask.setZ(z);
 		mask.setC(c);
-		mask.getShapeSettings().setFill(new Color(colour));
+		mask.getShapeSettings().setFill(getColour());
 		mask.setMask(asBytes());
 		return mask;
 	}
@@ -22,7 +22,6 @@
 package omero.gateway.util;
 
 import java.awt.Color;
-import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -37,6 +36,7 @@ import javax.imageio.ImageIO;
 import omero.gateway.model.MaskData;
 import omero.gateway.model.ROIData;
 import omero.model.RoiI;
+import omero.util.LabelMasks;
 
 /** 
  * Uploaded for masks.
@@ -136,59 +136,47 @@ public class UploadMask
 	private Map<Integer, MaskClass> createMasks(byte[] bytes) 
 		throws IOException
 	{
-		Map<Integer, MaskClass> maskMap = new HashMap<Integer, MaskClass>();
 		ByteArrayInputStream imageStream = new ByteArrayInputStream(bytes);
 		BufferedImage inputImage = ImageIO.read(imageStream);
-		int value;
-		MaskClass mask;
-		for (int x = 0; x < inputImage.getWidth(); x++)
-			for (int y = 0; y < inputImage.getHeight(); y++)
-			{
-				value = inputImage.getRGB(x, y);
-				if (value == DEFAUL_COLOR)
-					continue;
-				if (!maskMap.containsKey(value))
-				{
-					mask = new MaskClass(value);
-					maskMap.put(value, mask);
-				}
-				else
-					mask = maskMap.get(value);
-				mask.add(new Point(x, y));
-			}
-		return maskMap;
+		return toMaskClasses(LabelMasks.of(inputImage, DEFAUL_COLOR));
 	}
 	
 	/**
-	 * Creates Mask Class objects from the bytes stream, This will create a 
-	 * Mask object for each unique colour value in the image.  
+	 * Creates Mask Class objects from the label array, indexed as
+	 * <code>data[x][y]</code>. This will create a Mask object for each
+	 * unique value in the array.
 	 * 
-	 * @param bytes The bytes representing the image.
+	 * @param data The label values.
 	 * @return A map of <Integer, MaskClass>
 	 * @throws IOException Thrown if an error occurred while creating the mask.
 	 */
 	private Map<Integer, MaskClass> createMasks(int[][] data) 
 		throws IOException
 	{
-		Map<Integer, MaskClass> maskMap = new HashMap<Integer, MaskClass>();
+		LabelMasks labels = new LabelMasks(DEFAUL_COLOR, 0);
+		int width = data.length;
+		int height = width == 0 ? 0 : data[0].length;
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++)
+		{
+			for (int x = 0; x < width; x++)
+				row[x] = data[x][y];
+			labels.addRow(y, row, width);
+		}
+		return toMaskClasses(labels);
+	}
 	
-		int value;
-		MaskClass mask;
-		for (int y = 0; y < data.length; y++)
-			for (int x = 0; x < data[y].length; x++)
-			{
-				value = data[x][y];
-				if (value == DEFAUL_COLOR || value == 0)
-					continue;
-				if (!maskMap.containsKey(value))
-				{
-					mask = new MaskClass(value);
-					maskMap.put(value, mask);
-				}
-				else
-					mask = maskMap.get(value);
-				mask.add(new Point(x, y));
-			}
+	/**
+	 * Wraps the labels found in an image.
+	 * 
+	 * @param labels The labels.
+	 * @return A map of <Integer, MaskClass>
+	 */
+	private Map<Integer, MaskClass> toMaskClasses(LabelMasks labels)
+	{
+		Map<Integer, MaskClass> maskMap = new HashMap<Integer, MaskClass>();
+		for (LabelMasks.Label label : labels.getLabels().values())
+			maskMap.put(label.getValue(), new MaskClass(label));
 		return maskMap;
 	}
 	
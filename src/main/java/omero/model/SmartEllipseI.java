@@ -14,20 +14,23 @@ import java.awt.Shape;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.PathIterator;
-import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
 public class SmartEllipseI extends omero.model.EllipseI implements SmartShape {
     public void areaPoints(PointCallback cb) {
-        Shape s = asAwtShape();
-        if (s == null) {
+        Util.pointsBySpans(this, cb);
+    }
+
+    public void areaSpans(SpanCallback cb) {
+        try {
+            Util.ellipseSpans(getX().getValue(), getY().getValue(),
+                    getRadiusX().getValue(), getRadiusY().getValue(),
+                    this.transform, cb);
+        } catch (NullPointerException npe) {
             return;
         }
-        if (transform != null) s = Util.transformAwtShape(s, this.transform);
-        Rectangle2D r = s.getBounds2D();
-        Util.pointsByBoundingBox(s, r, cb);
     }
 
     public Shape asAwtShape() {
@@ -30,6 +30,10 @@ public class SmartLineI extends omero.model.LineI implements SmartShape {
             cb.handle((int) p.getX(), (int) p.getY());
     }
     
+    public void areaSpans(SpanCallback cb) {
+        Util.spansByPoints(this, cb);
+    }
+
     public Shape asAwtShape() {
         try {
             double x1 = getX1().getValue();
@@ -14,16 +14,48 @@ import java.awt.geom.Rectangle2D;
 import java.util.List;
 import java.util.Random;
 
+import omero.util.BitMask;
+
 public class SmartMaskI extends omero.model.MaskI implements SmartShape {
 
     public void areaPoints(PointCallback cb) {
-        Shape s = asAwtShape();
-        if (s == null) {
+        Util.pointsBySpans(this, cb);
+    }
+
+    /**
+     * Passes the runs of set pixels of the mask. Masks without bytes are
+     * treated as covering their whole rectangle.
+     */
+    public void areaSpans(SpanCallback cb) {
+        double[] d = data();
+        if (d == null || d.length != 4) {
             return;
         }
-        if (transform != null) s = Util.transformAwtShape(s, transform);
-        Rectangle2D r = s.getBounds2D();
-        Util.pointsByBoundingBox(s, r, cb);
+        BitMask mask = asBitMask();
+        if (mask == null) {
+            Util.rectangleSpans(d[0], d[1], d[2], d[3], transform, cb);
+        } else {
+            Util.maskSpans(d[0], d[1], mask, transform, cb);
+        }
+    }
+
+    /**
+     * Returns the mask bytes as a {@link BitMask} of the size of the mask.
+     *
+     * @return See above or <code>null</code> if there are no bytes, or too
+     *         few for the size.
+     */
+    public BitMask asBitMask() {
+        double[] d = data();
+        if (d == null || bytes == null) {
+            return null;
+        }
+        int w = (int) d[2];
+        int h = (int) d[3];
+        if (w <= 0 || h <= 0 || bytes.length < BitMask.size(w, h)) {
+            return null;
+        }
+        return new BitMask(bytes, w, h);
     }
 
     public Shape asAwtShape() {
@@ -20,7 +20,16 @@ import org.apache.batik.parser.PathParser;
 public class SmartPathI extends omero.model.PathI implements SmartShape {
 
     public void areaPoints(PointCallback cb) {
-        throw new UnsupportedOperationException();
+        Util.pointsBySpans(this, cb);
+    }
+
+    public void areaSpans(SpanCallback cb) {
+        Shape s = asAwtShape();
+        if (s == null) {
+            return;
+        }
+        if (transform != null) s = Util.transformAwtShape(s, transform);
+        Util.spansByScanline(s, cb);
     }
     
     public Shape asAwtShape() {
@@ -36,6 +36,10 @@ public class SmartPointI extends omero.model.PointI implements SmartShape {
         }
     }
 
+    public void areaSpans(SpanCallback cb) {
+        Util.spansByPoints(this, cb);
+    }
+
     public Shape asAwtShape() {
         List<Point> points = asPoints();
         if (points == null) {
@@ -10,20 +10,22 @@ package omero.model;
 import static omero.rtypes.rstring;
 
 import java.awt.Shape;
-import java.awt.geom.Rectangle2D;
 import java.util.List;
 import java.util.Random;
 
 public class SmartPolygonI extends omero.model.PolygonI implements SmartShape {
 
     public void areaPoints(PointCallback cb) {
+        Util.pointsBySpans(this, cb);
+    }
+
+    public void areaSpans(SpanCallback cb) {
         Shape s = asAwtShape();
         if (s == null) {
             return;
         }
         if (transform != null) s = Util.transformAwtShape(s, transform);
-        Rectangle2D r = s.getBounds2D();
-        Util.pointsByBoundingBox(s, r, cb);
+        Util.spansByScanline(s, cb);
     }
     
     public Shape asAwtShape() {
@@ -40,6 +40,10 @@ public class SmartPolylineI extends omero.model.PolylineI implements SmartShape
         }
     }
     
+    public void areaSpans(SpanCallback cb) {
+        Util.spansByPoints(this, cb);
+    }
+
     public Shape asAwtShape() {
         String str = this.points.getValue();
         if (str == null) {
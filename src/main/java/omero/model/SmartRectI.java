@@ -17,13 +17,15 @@ import java.util.Random;
 public class SmartRectI extends omero.model.RectangleI implements SmartShape {
 
     public void areaPoints(PointCallback cb) {
-        Shape s = asAwtShape();
-        if (s == null) {
+        Util.pointsBySpans(this, cb);
+    }
+
+    public void areaSpans(SpanCallback cb) {
+        double[] d = data();
+        if (d == null) {
             return;
         }
-        if (transform != null) s = Util.transformAwtShape(s, transform);
-        Rectangle2D r = s.getBounds2D();
-        Util.pointsByBoundingBox(s, r, cb);
+        Util.rectangleSpans(d[0], d[1], d[2], d[3], transform, cb);
     }
 
     public Shape asAwtShape() {
@@ -10,10 +10,14 @@ package omero.model;
 import static omero.rtypes.rdouble;
 
 import java.awt.Shape;
+import java.awt.geom.Ellipse2D;
 import java.awt.geom.Line2D;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.PathIterator;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Random;
@@ -26,6 +30,8 @@ import org.apache.batik.parser.PointsHandler;
 import org.apache.batik.parser.PointsParser;
 import org.apache.xerces.impl.xpath.regex.ParseException;
 
+import omero.util.BitMask;
+
 /**
  * Orthogonal interface hierarchy of types for working with the
  * {@link omero.model.Shape} hierarchy.
@@ -220,6 +226,361 @@ public interface SmartShape {
             }
         }
 
+        /**
+         * Offset of the point sampled within each pixel, the centre of the
+         * square tested by {@link #pointsByBoundingBox(Shape, Rectangle2D, PointCallback)}.
+         */
+        private static final double SAMPLE = 0.0005;
+
+        /** Flatness used when approximating curves by line segments. */
+        private static final double FLATNESS = 0.01;
+
+        /**
+         * The pixels sampled within the bounding box of a shape: one per
+         * step of 1 from the corner of the box, as walked by
+         * {@link #pointsByBoundingBox(Shape, Rectangle2D, PointCallback)}.
+         */
+        private static final class Grid {
+
+            final double startX;
+
+            final double startY;
+
+            final int columns;
+
+            final int rows;
+
+            Grid(Rectangle2D r) {
+                startX = r.getX();
+                startY = r.getY();
+                columns = (int) Math.ceil(r.getWidth());
+                rows = (int) Math.ceil(r.getHeight());
+            }
+
+            /** The y coordinate sampled in the given row. */
+            double sampleY(int row) {
+                return startY + row + SAMPLE;
+            }
+
+            /**
+             * Passes the pixels of the row whose sample point lies in
+             * <code>[xa, xb)</code> to the callback.
+             */
+            void span(int row, double xa, double xb, SpanCallback cb) {
+                int k0 = (int) Math.max(0, Math.ceil(xa - startX - SAMPLE));
+                int k1 = (int) Math.min(columns, Math.ceil(xb - startX - SAMPLE));
+                if (k0 < k1) {
+                    int x = (int) Math.floor(startX + k0);
+                    cb.handle((int) Math.floor(startY + row), x, x + k1 - k0);
+                }
+            }
+        }
+
+        /**
+         * Narrows <code>range</code> to the x for which
+         * <code>a * x + b</code> lies within <code>[lo, hi]</code>.
+         */
+        private static void clip(double[] range, double a, double b,
+                double lo, double hi) {
+            if (a == 0) {
+                if (b < lo || b > hi) {
+                    range[1] = range[0];
+                }
+                return;
+            }
+            double x0 = (lo - b) / a;
+            double x1 = (hi - b) / a;
+            range[0] = Math.max(range[0], Math.min(x0, x1));
+            range[1] = Math.min(range[1], Math.max(x0, x1));
+        }
+
+        /**
+         * Returns the inverse of the given transform or <code>null</code>
+         * if it cannot be inverted, in which case the shape has no area.
+         */
+        private static java.awt.geom.AffineTransform inverse(AffineTransform transform) {
+            java.awt.geom.AffineTransform t = getAwtTransform(transform);
+            if (t == null) {
+                return new java.awt.geom.AffineTransform();
+            }
+            try {
+                return t.createInverse();
+            } catch (NoninvertibleTransformException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Calls the {@link SpanCallback} with the rows of pixels within a
+         * rectangle, transformed if a transform is given. The pixels are
+         * those that {@link #pointsByBoundingBox(Shape, Rectangle2D, PointCallback)}
+         * visits but each row is solved directly rather than testing every
+         * pixel.
+         *
+         * @param x the lowest x of the rectangle
+         * @param y the lowest y of the rectangle
+         * @param w the width of the rectangle
+         * @param h the height of the rectangle
+         * @param transform the transform of the shape, may be null
+         * @param cb the callback to call
+         */
+        public static void rectangleSpans(double x, double y, double w,
+                double h, AffineTransform transform, SpanCallback cb) {
+            Shape s = transformAwtShape(new Rectangle2D.Double(x, y, w, h),
+                    transform);
+            java.awt.geom.AffineTransform inv = inverse(transform);
+            if (inv == null || w <= 0 || h <= 0) {
+                return;
+            }
+            Grid grid = new Grid(s.getBounds2D());
+            double[] range = new double[2];
+            for (int row = 0; row < grid.rows; row++) {
+                double yc = grid.sampleY(row);
+                range[0] = Double.NEGATIVE_INFINITY;
+                range[1] = Double.POSITIVE_INFINITY;
+                clip(range, inv.getScaleX(),
+                        inv.getShearX() * yc + inv.getTranslateX(), x, x + w);
+                clip(range, inv.getShearY(),
+                        inv.getScaleY() * yc + inv.getTranslateY(), y, y + h);
+                grid.span(row, range[0], range[1], cb);
+            }
+        }
+
+        /**
+         * Calls the {@link SpanCallback} with the rows of pixels within an
+         * ellipse, transformed if a transform is given, by solving for the
+         * ends of each row.
+         *
+         * @param cx the x of the centre of the ellipse
+         * @param cy the y of the centre of the ellipse
+         * @param rx the radius along the x axis
+         * @param ry the radius along the y axis
+         * @param transform the transform of the shape, may be null
+         * @param cb the callback to call
+         */
+        public static void ellipseSpans(double cx, double cy, double rx,
+                double ry, AffineTransform transform, SpanCallback cb) {
+            Shape s = transformAwtShape(new Ellipse2D.Double(cx - rx, cy - ry,
+                    rx * 2, ry * 2), transform);
+            java.awt.geom.AffineTransform inv = inverse(transform);
+            if (inv == null || rx <= 0 || ry <= 0) {
+                return;
+            }
+            Grid grid = new Grid(s.getBounds2D());
+            double rx2 = rx * rx;
+            double ry2 = ry * ry;
+            for (int row = 0; row < grid.rows; row++) {
+                double yc = grid.sampleY(row);
+                // The untransformed point is (a * x + b, c * x + d)
+                double a = inv.getScaleX();
+                double b = inv.getShearX() * yc + inv.getTranslateX() - cx;
+                double c = inv.getShearY();
+                double d = inv.getScaleY() * yc + inv.getTranslateY() - cy;
+                double qa = a * a / rx2 + c * c / ry2;
+                double qb = 2 * (a * b / rx2 + c * d / ry2);
+                double qc = b * b / rx2 + d * d / ry2 - 1;
+                double disc = qb * qb - 4 * qa * qc;
+                if (qa <= 0 || disc < 0) {
+                    continue;
+                }
+                double root = Math.sqrt(disc);
+                grid.span(row, (-qb - root) / (2 * qa), (-qb + root) / (2 * qa),
+                        cb);
+            }
+        }
+
+        /**
+         * Calls the {@link SpanCallback} with the set pixels of a mask whose
+         * top left corner is at <code>(x, y)</code>, transformed if a
+         * transform is given. Without a transform the runs of the mask are
+         * passed on directly, otherwise the pixels of the transformed
+         * bounding rectangle are mapped back into the mask by their centres.
+         *
+         * @param x the lowest x of the mask
+         * @param y the lowest y of the mask
+         * @param mask the pixels of the mask
+         * @param transform the transform of the shape, may be null
+         * @param cb the callback to call
+         */
+        public static void maskSpans(double x, double y, final BitMask mask,
+                AffineTransform transform, final SpanCallback cb) {
+            final int x0 = (int) Math.floor(x);
+            final int y0 = (int) Math.floor(y);
+            if (transform == null) {
+                mask.runs(new BitMask.RunCallback() {
+                    public void handle(int row, int xStart, int xEnd) {
+                        cb.handle(y0 + row, x0 + xStart, x0 + xEnd);
+                    }
+                });
+                return;
+            }
+            final java.awt.geom.AffineTransform inv = inverse(transform);
+            if (inv == null) {
+                return;
+            }
+            rectangleSpans(x0, y0, mask.getWidth(), mask.getHeight(),
+                    transform, new SpanCallback() {
+                public void handle(int py, int xStart, int xEnd) {
+                    double yc = py + 0.5;
+                    int start = xEnd;
+                    for (int px = xStart; px < xEnd; px++) {
+                        double xc = px + 0.5;
+                        int mx = (int) Math.floor(inv.getScaleX() * xc
+                                + inv.getShearX() * yc + inv.getTranslateX()) - x0;
+                        int my = (int) Math.floor(inv.getShearY() * xc
+                                + inv.getScaleY() * yc + inv.getTranslateY()) - y0;
+                        boolean set = mx >= 0 && my >= 0 && mx < mask.getWidth()
+                                && my < mask.getHeight() && mask.get(mx, my);
+                        if (set && start == xEnd) {
+                            start = px;
+                        } else if (!set && start != xEnd) {
+                            cb.handle(py, start, px);
+                            start = xEnd;
+                        }
+                    }
+                    if (start != xEnd) {
+                        cb.handle(py, start, xEnd);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Calls the {@link SpanCallback} with the rows of pixels within any
+         * shape by intersecting each row with its outline, using the
+         * winding rule of the shape. Curves are flattened first. Samples the
+         * same pixels as
+         * {@link #pointsByBoundingBox(Shape, Rectangle2D, PointCallback)}.
+         *
+         * @param s the shape, already transformed
+         * @param cb the callback to call
+         */
+        public static void spansByScanline(Shape s, SpanCallback cb) {
+            PathIterator it = s.getPathIterator(null, FLATNESS);
+            boolean evenOdd = it.getWindingRule() == PathIterator.WIND_EVEN_ODD;
+            Edges edges = new Edges();
+            double[] coords = new double[6];
+            double mx = 0, my = 0, px = 0, py = 0;
+            for (; !it.isDone(); it.next()) {
+                switch (it.currentSegment(coords)) {
+                case PathIterator.SEG_MOVETO:
+                    // fills close every subpath implicitly
+                    edges.add(px, py, mx, my);
+                    px = mx = coords[0];
+                    py = my = coords[1];
+                    break;
+                case PathIterator.SEG_CLOSE:
+                    edges.add(px, py, mx, my);
+                    px = mx;
+                    py = my;
+                    break;
+                default:
+                    edges.add(px, py, coords[0], coords[1]);
+                    px = coords[0];
+                    py = coords[1];
+                }
+            }
+            edges.add(px, py, mx, my);
+            if (edges.count == 0) {
+                return;
+            }
+            Grid grid = new Grid(s.getBounds2D());
+            double[] e = edges.values;
+            double[] xs = new double[edges.count];
+            int[] dirs = new int[edges.count];
+            for (int row = 0; row < grid.rows; row++) {
+                double yc = grid.sampleY(row);
+                int n = 0;
+                for (int i = 0; i < edges.count * 5; i += 5) {
+                    if (yc < e[i + 1] || yc >= e[i + 3]) {
+                        continue;
+                    }
+                    double x = e[i] + (yc - e[i + 1]) * (e[i + 2] - e[i])
+                            / (e[i + 3] - e[i + 1]);
+                    // insertion sort, rows usually cross few edges
+                    int j = n++;
+                    while (j > 0 && xs[j - 1] > x) {
+                        xs[j] = xs[j - 1];
+                        dirs[j] = dirs[j - 1];
+                        j--;
+                    }
+                    xs[j] = x;
+                    dirs[j] = (int) e[i + 4];
+                }
+                int winding = 0;
+                double start = 0;
+                for (int j = 0; j < n; j++) {
+                    boolean wasInside = evenOdd ? (winding & 1) != 0 : winding != 0;
+                    winding += dirs[j];
+                    boolean isInside = evenOdd ? (winding & 1) != 0 : winding != 0;
+                    if (!wasInside && isInside) {
+                        start = xs[j];
+                    } else if (wasInside && !isInside) {
+                        grid.span(row, start, xs[j], cb);
+                    }
+                }
+            }
+        }
+
+        /**
+         * The non-horizontal edges of an outline, each stored as
+         * <code>x0, y0, x1, y1, direction</code> with <code>y0 &lt; y1</code>.
+         */
+        private static final class Edges {
+
+            double[] values = new double[80];
+
+            int count;
+
+            void add(double x0, double y0, double x1, double y1) {
+                if (y0 == y1) {
+                    return;
+                }
+                if (count * 5 + 5 > values.length) {
+                    values = Arrays.copyOf(values, values.length * 2);
+                }
+                boolean down = y0 < y1;
+                int i = count++ * 5;
+                values[i] = down ? x0 : x1;
+                values[i + 1] = down ? y0 : y1;
+                values[i + 2] = down ? x1 : x0;
+                values[i + 3] = down ? y1 : y0;
+                values[i + 4] = down ? 1 : -1;
+            }
+        }
+
+        /**
+         * Calls the {@link PointCallback} with every pixel of the spans of
+         * the given shape.
+         *
+         * @param shape the shape
+         * @param cb the callback to call
+         */
+        public static void pointsBySpans(SmartShape shape, final PointCallback cb) {
+            shape.areaSpans(new SpanCallback() {
+                public void handle(int y, int xStart, int xEnd) {
+                    for (int x = xStart; x < xEnd; x++) {
+                        cb.handle(x, y);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Calls the {@link SpanCallback} with each point of the shape as a
+         * span of one pixel, for shapes without an area.
+         *
+         * @param shape the shape
+         * @param cb the callback to call
+         */
+        public static void spansByPoints(SmartShape shape, final SpanCallback cb) {
+            shape.areaPoints(new PointCallback() {
+                public void handle(int x, int y) {
+                    cb.handle(y, x, x + 1);
+                }
+            });
+        }
+
         public static java.awt.geom.AffineTransform getAwtTransform(AffineTransform transform) {
             if (transform == null) return null;
             return 
@@ -300,6 +661,25 @@ public interface SmartShape {
      */
     void areaPoints(PointCallback action);
 
+    /**
+     * Callback interface passed every row of pixels which are within the area
+     * of this shape, from <code>xStart</code> inclusive to <code>xEnd</code>
+     * exclusive. Shapes with an area pass the rows from top to bottom and
+     * left to right; shapes without one, such as lines, may pass single
+     * pixels in any order.
+     */
+    public interface SpanCallback {
+        void handle(int y, int xStart, int xEnd);
+    }
+
+    /**
+     * Calls the {@link SpanCallback} with all of the rows of pixels which
+     * are within the shape. This covers the same pixels as
+     * {@link #areaPoints(PointCallback)} without visiting them one by one.
+     * @param action the callback to call
+     */
+    void areaSpans(SpanCallback action);
+
     /**
      * Converts the current {@link SmartShape} to a {@link Shape}. This
      * is useful for determining paths and included points.
@@ -35,6 +35,10 @@ public class SmartTextI extends omero.model.LabelI implements SmartShape {
         }
     }
 
+    public void areaSpans(SpanCallback cb) {
+        Util.spansByPoints(this, cb);
+    }
+
     public Shape asAwtShape() {
         List<Point> points = asPoints();
         if (points == null) {
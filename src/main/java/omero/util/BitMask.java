@@ -0,0 +1,190 @@
+/*
+ *   Copyright 2018 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omero.util;
+
+/**
+ * A rectangular binary mask packed eight pixels to a byte, row by row with
+ * the first pixel in the most significant bit, as stored in
+ * {@link omero.model.Mask#getBytes()}. Rows are not padded so a row may start
+ * in the middle of a byte. Set pixels can be visited as horizontal runs,
+ * skipping empty and full bytes whole.
+ *
+ * @since 5.5
+ */
+public class BitMask {
+
+    /**
+     * Callback passed each run of set pixels of a row, from
+     * <code>xStart</code> inclusive to <code>xEnd</code> exclusive.
+     */
+    public interface RunCallback {
+        void handle(int y, int xStart, int xEnd);
+    }
+
+    private final byte[] bits;
+
+    private final int width;
+
+    private final int height;
+
+    /**
+     * Creates an empty mask.
+     *
+     * @param width the number of pixels per row
+     * @param height the number of rows
+     */
+    public BitMask(int width, int height) {
+        this(new byte[size(width, height)], width, height);
+    }
+
+    /**
+     * Wraps the given bytes without copying them.
+     *
+     * @param bits the packed pixels
+     * @param width the number of pixels per row
+     * @param height the number of rows
+     * @throws IllegalArgumentException if the size is negative or there are
+     *         fewer bytes than pixels
+     */
+    public BitMask(byte[] bits, int width, int height) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Negative size: " + width
+                    + "x" + height);
+        }
+        if (bits.length < size(width, height)) {
+            throw new IllegalArgumentException("Expected "
+                    + size(width, height) + " bytes for " + width + "x"
+                    + height + ", got " + bits.length);
+        }
+        this.bits = bits;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @param width the number of pixels per row
+     * @param height the number of rows
+     * @return the number of bytes needed for a mask of the given size
+     */
+    public static int size(int width, int height) {
+        long pixels = (long) width * height;
+        if (pixels > (long) Integer.MAX_VALUE * 8) {
+            throw new IllegalArgumentException("Mask too large: " + width
+                    + "x" + height);
+        }
+        return (int) ((pixels + 7) / 8);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the packed pixels, not a copy
+     */
+    public byte[] getBytes() {
+        return bits;
+    }
+
+    public boolean get(int x, int y) {
+        long bit = index(x, y);
+        return (bits[(int) (bit >>> 3)] & (0x80 >>> (bit & 7))) != 0;
+    }
+
+    public void set(int x, int y) {
+        long bit = index(x, y);
+        bits[(int) (bit >>> 3)] |= 0x80 >>> (bit & 7);
+    }
+
+    /**
+     * Sets the pixels of a row from <code>xStart</code> inclusive to
+     * <code>xEnd</code> exclusive.
+     */
+    public void setRun(int y, int xStart, int xEnd) {
+        if (xStart >= xEnd) {
+            return;
+        }
+        index(xStart, y);
+        index(xEnd - 1, y);
+        long bit = (long) y * width + xStart;
+        long end = (long) y * width + xEnd;
+        for (; bit < end && (bit & 7) != 0; bit++) {
+            bits[(int) (bit >>> 3)] |= 0x80 >>> (bit & 7);
+        }
+        for (; bit + 8 <= end; bit += 8) {
+            bits[(int) (bit >>> 3)] = (byte) 0xFF;
+        }
+        for (; bit < end; bit++) {
+            bits[(int) (bit >>> 3)] |= 0x80 >>> (bit & 7);
+        }
+    }
+
+    /**
+     * @return the number of set pixels
+     */
+    public long cardinality() {
+        final long[] count = { 0 };
+        runs(new RunCallback() {
+            public void handle(int y, int xStart, int xEnd) {
+                count[0] += xEnd - xStart;
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Calls the callback with each run of set pixels, top to bottom and
+     * left to right.
+     *
+     * @param cb the callback to call
+     */
+    public void runs(RunCallback cb) {
+        for (int y = 0; y < height; y++) {
+            long rowStart = (long) y * width;
+            long rowEnd = rowStart + width;
+            long bit = rowStart;
+            while (bit < rowEnd) {
+                long start = next(bit, rowEnd, 0);
+                if (start == rowEnd) {
+                    break;
+                }
+                bit = next(start, rowEnd, 0xFF);
+                cb.handle(y, (int) (start - rowStart), (int) (bit - rowStart));
+            }
+        }
+    }
+
+    /**
+     * Returns the first pixel from <code>from</code> up to <code>to</code>
+     * which is set, or clear if <code>flip</code> is <code>0xFF</code>, or
+     * <code>to</code> if there is none.
+     */
+    private long next(long from, long to, int flip) {
+        long bit = from;
+        while (bit < to) {
+            int b = (bits[(int) (bit >>> 3)] ^ flip) & 0xFF;
+            int shifted = (b << (bit & 7)) & 0xFF;
+            if (shifted == 0) {
+                bit = (bit | 7) + 1;
+                continue;
+            }
+            return Math.min(bit + Integer.numberOfLeadingZeros(shifted) - 24,
+                    to);
+        }
+        return to;
+    }
+
+    private long index(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            throw new IndexOutOfBoundsException("(" + x + ", " + y
+                    + ") outside of " + width + "x" + height);
+        }
+        return (long) y * width + x;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ *   Copyright 2018 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omero.util;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Splits a label image into one {@link BitMask} per label value in a single
+ * pass over its rows. Each label only records its bounding box and the runs
+ * of pixels it covers, so memory grows with the number of runs rather than
+ * of pixels; the masks are only packed when requested.
+ *
+ * @since 5.5
+ */
+public class LabelMasks {
+
+    /**
+     * The pixels of one label of the image.
+     */
+    public static class Label {
+
+        private final int value;
+
+        private int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+
+        private int maxX = -1, maxY = -1;
+
+        /** The runs as <code>y, xStart, xEnd</code> triples. */
+        private int[] runs = new int[12];
+
+        private int count;
+
+        public Label(int value) {
+            this.value = value;
+        }
+
+        /**
+         * @return the label value, e.g. the colour of a mask image
+         */
+        public int getValue() {
+            return value;
+        }
+
+        /**
+         * Adds the pixels of a row from <code>xStart</code> inclusive to
+         * <code>xEnd</code> exclusive. Runs may be added in any order and
+         * may overlap.
+         */
+        public void addRun(int y, int xStart, int xEnd) {
+            if (xStart >= xEnd) {
+                return;
+            }
+            if (count == runs.length) {
+                runs = Arrays.copyOf(runs, runs.length * 2);
+            }
+            runs[count++] = y;
+            runs[count++] = xStart;
+            runs[count++] = xEnd;
+            minX = Math.min(minX, xStart);
+            maxX = Math.max(maxX, xEnd - 1);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+        }
+
+        public boolean isEmpty() {
+            return count == 0;
+        }
+
+        /**
+         * @return the lowest x of the bounding box
+         */
+        public int getX() {
+            return minX;
+        }
+
+        /**
+         * @return the lowest y of the bounding box
+         */
+        public int getY() {
+            return minY;
+        }
+
+        /**
+         * @return the width of the bounding box
+         */
+        public int getWidth() {
+            return maxX - minX + 1;
+        }
+
+        /**
+         * @return the height of the bounding box
+         */
+        public int getHeight() {
+            return maxY - minY + 1;
+        }
+
+        /**
+         * @return the pixels of the label within its bounding box
+         */
+        public BitMask toBitMask() {
+            if (isEmpty()) {
+                return new BitMask(0, 0);
+            }
+            BitMask mask = new BitMask(getWidth(), getHeight());
+            for (int i = 0; i < count; i += 3) {
+                mask.setRun(runs[i] - minY, runs[i + 1] - minX,
+                        runs[i + 2] - minX);
+            }
+            return mask;
+        }
+    }
+
+    private final Map<Integer, Label> labels = new LinkedHashMap<Integer, Label>();
+
+    private final int[] background;
+
+    /**
+     * @param background the values which do not belong to any label
+     */
+    public LabelMasks(int... background) {
+        this.background = background.clone();
+    }
+
+    /**
+     * Splits an image by the ARGB value of its pixels.
+     *
+     * @param image the image
+     * @param background the values which do not belong to any label
+     * @return See above.
+     */
+    public static LabelMasks of(BufferedImage image, int... background) {
+        LabelMasks masks = new LabelMasks(background);
+        int width = image.getWidth();
+        int[] row = new int[width];
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            masks.addRow(y, row, width);
+        }
+        return masks;
+    }
+
+    /**
+     * Adds a row of the image. Consecutive pixels with the same value are
+     * added to their label as one run.
+     *
+     * @param y the index of the row
+     * @param row the label values of the row
+     * @param width the number of values of the row to use
+     */
+    public void addRow(int y, int[] row, int width) {
+        int x = 0;
+        Label label = null;
+        while (x < width) {
+            int value = row[x];
+            int end = x + 1;
+            while (end < width && row[end] == value) {
+                end++;
+            }
+            if (!isBackground(value)) {
+                if (label == null || label.value != value) {
+                    label = labels.get(value);
+                    if (label == null) {
+                        label = new Label(value);
+                        labels.put(value, label);
+                    }
+                }
+                label.addRun(y, x, end);
+            }
+            x = end;
+        }
+    }
+
+    /**
+     * @return the labels by value, in the order they were first found
+     */
+    public Map<Integer, Label> getLabels() {
+        return labels;
+    }
+
+    private boolean isBackground(int value) {
+        for (int b : background) {
+            if (b == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -6,6 +6,11 @@
  */
 package omero.util;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
 import omero.ServerError;
 import omero.api.RawPixelsStorePrx;
 import omero.model.Pixels;
@@ -13,39 +18,130 @@ import omero.model.Pixels;
 /**
  * Access strategy which can be implemented by diverse resources
  *
+ * With a window greater than one, {@link #setTile(byte[], int, int, int, int, int, int, int)}
+ * is write-behind: up to that many asynchronous writes may be outstanding,
+ * and all are completed before {@link #close()} saves. Likewise up to that
+ * many tiles may be {@link #prefetchTile(int, int, int, int, int, int, int) prefetched}.
+ * Since asynchronous reads and writes are not ordered with respect to one
+ * another, a window of one should be used when reading back tiles which were
+ * written by the same loop. Tiles may be written through a different service
+ * than they are read with, so that the workers of a parallel loop share one
+ * writer. Instances are not thread-safe.
  */
-public class RPSTileData implements TileData
+public class RPSTileData implements TileData, TilePrefetcher
 {
 
     final protected RawPixelsStorePrx rps;
 
+    final protected RawPixelsStorePrx writer;
+
     final protected RPSTileLoop loop;
 
+    final protected int window;
+
+
+    private final Deque<Ice.AsyncResult> pendingWrites = new ArrayDeque<Ice.AsyncResult>();
+
+    private final Map<String, Ice.AsyncResult> prefetched = new HashMap<String, Ice.AsyncResult>();
+
     public RPSTileData(RPSTileLoop loop, RawPixelsStorePrx rps) {
+        this(loop, rps, 1);
+    }
+
+    /**
+     * @param loop the loop to which the saved {@link Pixels} are passed
+     * @param rps the service to read and write tiles with
+     * @param window the maximum number of outstanding writes or prefetched reads
+     */
+    public RPSTileData(RPSTileLoop loop, RawPixelsStorePrx rps, int window) {
+        this(loop, rps, rps, window);
+    }
+
+    /**
+     * @param loop the loop to which the saved {@link Pixels} are passed
+     * @param rps the service to read tiles with
+     * @param writer the service to write tiles with; if it is not
+     * <code>rps</code> then {@link #close()} only completes the outstanding
+     * writes, leaving the owner of the writer to save and close it
+     * @param window the maximum number of outstanding writes or prefetched reads
+     */
+    public RPSTileData(RPSTileLoop loop, RawPixelsStorePrx rps, RawPixelsStorePrx writer, int window) {
         this.loop = loop;
         this.rps = rps;
+        this.writer = writer;
+        this.window = Math.max(1, window);
+    }
+
+    private static String key(int z, int c, int t, int x, int y, int w, int h) {
+        return z + "/" + c + "/" + t + "/" + x + "/" + y + "/" + w + "/" + h;
     }
 
     public byte[] getTile(int z, int c, int t, int x, int y, int w, int h) {
         try {
+            final Ice.AsyncResult r = prefetched.remove(key(z, c, t, x, y, w, h));
+            if (r != null) {
+                return rps.end_getTile(r);
+            }
             return rps.getTile(z, c, t, x, y, w, h);
         } catch (ServerError se) {
             throw new RuntimeException(se);
         }
     }
 
+    public void prefetchTile(int z, int c, int t, int x, int y, int w, int h) {
+        if (window <= 1 || prefetched.size() >= window) {
+            return;
+        }
+        final String key = key(z, c, t, x, y, w, h);
+        if (!prefetched.containsKey(key)) {
+            prefetched.put(key, rps.begin_getTile(z, c, t, x, y, w, h));
+        }
+    }
+
     public void setTile(byte[] buffer, int z, int c, int t, int x, int y, int w, int h) {
         try {
-            rps.setTile(buffer, z, c, t, x, y, w, h);
+            if (window <= 1) {
+                writer.setTile(buffer, z, c, t, x, y, w, h);
+                return;
+            }
+            while (pendingWrites.size() >= window) {
+                writer.end_setTile(pendingWrites.removeFirst());
+            }
+            // The buffer is marshalled before begin_setTile returns
+            // and so may be reused by the caller.
+            pendingWrites.addLast(writer.begin_setTile(buffer, z, c, t, x, y, w, h));
         } catch (ServerError se) {
             throw new RuntimeException(se);
         }
     }
 
+    /**
+     * Completes the outstanding writes and the prefetched reads which were
+     * never requested, then saves the pixels unless they were written
+     * through a shared writer, and closes the service.
+     */
     public void close() {
         try {
-            Pixels pixels = rps.save();
-            loop.setPixels(pixels);
+            try {
+                while (!pendingWrites.isEmpty()) {
+                    writer.end_setTile(pendingWrites.removeFirst());
+                }
+            } finally {
+                // Unrequested tiles are discarded but their replies must
+                // still be read, and a failure to read them is of no matter.
+                for (Ice.AsyncResult r : prefetched.values()) {
+                    try {
+                        rps.end_getTile(r);
+                    } catch (Exception e) {
+                        // ignore
+                    }
+                }
+                prefetched.clear();
+            }
+            if (writer == rps) {
+                Pixels pixels = rps.save();
+                loop.setPixels(pixels);
+            }
             rps.close();
         } catch (ServerError se) {
             throw new RuntimeException(se);
@@ -30,6 +30,19 @@ public class RPSTileLoop extends TileLoop {
      */
     protected volatile Pixels pixels;
 
+    /**
+     * Number of asynchronous requests each {@link RPSTileData} may have
+     * outstanding.
+     */
+    protected volatile int window = 1;
+
+    /**
+     * The service through which the workers of a parallel loop write their
+     * tiles, so that only one pixel buffer on the server writes the pixels.
+     * Guarded by this.
+     */
+    private RawPixelsStorePrx writer;
+
     public RPSTileLoop(ServiceFactoryPrx session, Pixels pixels) {
         this.session = session;
         this.pixels = pixels;
@@ -62,16 +75,77 @@ public class RPSTileLoop extends TileLoop {
         this.pixels = pixels;
     }
 
+    /**
+     * Set the number of tile writes (write-behind) or prefetched tile reads
+     * (read-ahead) which each {@link RPSTileData} may have outstanding.
+     * The default of 1 is synchronous.
+     */
+    public void setWindow(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
     public TileData createData() {
         try {
-            RawPixelsStorePrx rps = getSession().createRawPixelsStore();
-            rps.setPixelsId(getPixels().getId().getValue(), false); // 'false' is ignored here.
-            return new RPSTileData(this, rps);
+            return new RPSTileData(this, createStore(), window);
         } catch (ServerError se) {
             throw new RuntimeException(se);
         }
     }
 
+    /**
+     * The workers of a parallel loop each read tiles with their own service
+     * but all write through one shared service, which is saved once, by
+     * {@link #finishWorkers(boolean)}, after all the workers are done.
+     */
+    @Override
+    protected TileData createWorkerData() {
+        try {
+            return new RPSTileData(this, createStore(), getWriter(), window);
+        } catch (ServerError se) {
+            throw new RuntimeException(se);
+        }
+    }
+
+    private synchronized RawPixelsStorePrx getWriter() throws ServerError {
+        if (writer == null) {
+            writer = createStore();
+        }
+        return writer;
+    }
+
+    @Override
+    protected void finishWorkers(boolean succeeded) {
+        final RawPixelsStorePrx rps;
+        synchronized (this) {
+            rps = writer;
+            writer = null;
+        }
+        if (rps == null) {
+            return;
+        }
+        try {
+            try {
+                if (succeeded) {
+                    setPixels(rps.save());
+                }
+            } finally {
+                rps.close();
+            }
+        } catch (ServerError se) {
+            throw new RuntimeException(se);
+        }
+    }
+
+    private RawPixelsStorePrx createStore() throws ServerError {
+        RawPixelsStorePrx rps = getSession().createRawPixelsStore();
+        rps.setPixelsId(getPixels().getId().getValue(), false); // 'false' is ignored here.
+        return rps;
+    }
+
     /**
      * Iterates over every tile in a given pixel based on the
      * over arching dimensions and a requested maximum tile width and height.
@@ -85,6 +159,23 @@ public class RPSTileLoop extends TileLoop {
      */
     public int forEachTile(int tileWidth, int tileHeight,
                            TileLoopIteration iteration) throws ClientError, ServerError {
+        return forEachTile(tileWidth, tileHeight, 1, iteration);
+    }
+
+    /**
+     * As {@link #forEachTile(int, int, TileLoopIteration)} but shares the
+     * tiles out among {@code parallelism} workers, each reading with its own
+     * {@link RawPixelsStorePrx} and writing through one shared one.
+     * @param tileWidth <b>Maximum</b> width of the tile requested.
+     * @param tileHeight <b>Maximum</b> height of the tile requested.
+     * @param parallelism the number of workers
+     * @param iteration Invoker to call for each tile; must be thread-safe if
+     * {@code parallelism} is greater than one.
+     * @return The total number of tiles iterated over.
+     * @see TileLoop#forEachTile(int, int, int, int, int, int, int, int, TileLoopIteration)
+     */
+    public int forEachTile(int tileWidth, int tileHeight, int parallelism,
+                           TileLoopIteration iteration) throws ClientError, ServerError {
 
         if (!pixels.isLoaded()) {
             try {
@@ -100,7 +191,8 @@ public class RPSTileLoop extends TileLoop {
         final int sizeC = pixels.getSizeC().getValue();
         final int sizeT = pixels.getSizeT().getValue();
 
-        return forEachTile(sizeX, sizeY, sizeZ, sizeC, sizeT, tileWidth, tileHeight, iteration);
+        return forEachTile(sizeX, sizeY, sizeZ, sizeC, sizeT, tileWidth, tileHeight,
+                parallelism, iteration);
 
     }
 }
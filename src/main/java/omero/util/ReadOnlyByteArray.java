@@ -23,6 +23,8 @@
 
 package omero.util;
 
+import java.nio.ByteBuffer;
+
 /** 
  * A read-only slice of a given array.
  * Given a <code>base</code> array and an interval <code>[offset, offset+length]
@@ -109,5 +111,17 @@ public class ReadOnlyByteArray
 		checkIndex(index);
 		return base[offset+index];
 	}
+	
+	/**
+	 * Returns a read-only, big-endian buffer over this slice. As with this
+	 * class, the elements are not copied.
+	 * 
+	 * @return	A buffer whose position <code>0</code> is the start of this
+	 *          slice.
+	 */
+	public ByteBuffer asByteBuffer()
+	{
+		return ByteBuffer.wrap(base, offset, length).slice().asReadOnlyBuffer();
+	}
 
 }
@@ -6,12 +6,39 @@
  */
 package omero.util;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * @author Josh Moore, josh at glencoesoftware.com
  * @since 4.3.0
  */
 public abstract class TileLoop {
 
+    private volatile boolean readAhead = false;
+
+    /**
+     * If set and the {@link TileData} instances implement
+     * {@link TilePrefetcher}, then during
+     * {@link #forEachTile(int, int, int, int, int, int, int, int, TileLoopIteration)}
+     * each worker requests its next tile before running the iteration for
+     * the current one. Only useful for iterations which read tiles.
+     * @param readAhead if tiles should be prefetched
+     */
+    public void setReadAhead(boolean readAhead) {
+        this.readAhead = readAhead;
+    }
+
+    public boolean isReadAhead() {
+        return readAhead;
+    }
+
     /**
      * Subclasses must provide a fresh instance of {@link TileData}.
      * The instance will be closed after the run of
@@ -20,6 +47,29 @@ public abstract class TileLoop {
      */
     public abstract TileData createData();
 
+    /**
+     * Provides the {@link TileData} for one worker of
+     * {@link #forEachTile(int, int, int, int, int, int, int, int, TileLoopIteration)}.
+     * The instance will be closed once the worker has no more tiles.
+     * By default, the same as {@link #createData()}.
+     * @return the new instance
+     */
+    protected TileData createWorkerData() {
+        return createData();
+    }
+
+    /**
+     * Called once every worker of
+     * {@link #forEachTile(int, int, int, int, int, int, int, int, TileLoopIteration)}
+     * has closed its {@link TileData}, so that work which must be done once
+     * for the whole loop, rather than once per worker, may be done here, and
+     * resources shared by the workers released. By default, does nothing.
+     * @param succeeded if every worker closed its {@link TileData} without
+     * failing, though some tiles may have failed
+     */
+    protected void finishWorkers(boolean succeeded) {
+    }
+
     /**
      * Iterates over every tile in a given pixel based on the
      * over arching dimensions and a requested maximum tile width and height.
@@ -89,4 +139,141 @@ public abstract class TileLoop {
 
         }
     }
+
+    /**
+     * Parallel version of
+     * {@link #forEachTile(int, int, int, int, int, int, int, TileLoopIteration)}.
+     * The tiles are shared out among {@code parallelism} workers, each of
+     * which uses its own {@link TileData} from {@link #createData()}. Each
+     * worker repeatedly claims the next tile in the serial order, so the
+     * {@code tileCount} passed to the iteration is the same as for the
+     * serial loop, though iterations may be run in any order and
+     * concurrently. The {@link TileLoopIteration} must therefore be
+     * thread-safe, and the {@link TileData} instances must be able to act on
+     * the same pixels at once, for instance by writing through a single
+     * resource shared by the workers.
+     *
+     * A failed tile does not stop the loop. Once all tiles have been tried,
+     * a {@link TileLoopException} listing every failure is thrown.
+     * @param sizeX the size of the plane's X dimension
+     * @param sizeY the size of the plane's Y dimension
+     * @param sizeZ the size of the plane's Z dimension
+     * @param sizeC the size of the plane's C dimension
+     * @param sizeT the size of the plane's T dimension
+     * @param tileWidth <b>Maximum</b> width of the tile requested.
+     * @param tileHeight <b>Maximum</b> height of the tile requested.
+     * @param parallelism the number of workers; 1 uses the serial loop
+     * @param iteration Invoker to call for each tile.
+     * @return The total number of tiles iterated over.
+     * @throws TileLoopException if any tiles failed
+     */
+    public int forEachTile(final int sizeX, final int sizeY,
+                           final int sizeZ, final int sizeC, final int sizeT,
+                           final int tileWidth, final int tileHeight,
+                           final int parallelism,
+                           final TileLoopIteration iteration) {
+
+        if (parallelism <= 1) {
+            return forEachTile(sizeX, sizeY, sizeZ, sizeC, sizeT,
+                    tileWidth, tileHeight, iteration);
+        }
+
+        final int tilesX = (sizeX + tileWidth - 1) / tileWidth;
+        final int tilesY = (sizeY + tileHeight - 1) / tileHeight;
+        final int planeTiles = tilesX * tilesY;
+        final int total = sizeT * sizeC * sizeZ * planeTiles;
+        final int workers = Math.min(parallelism, total);
+        if (workers == 0) {
+            return 0;
+        }
+
+        final boolean prefetch = readAhead;
+        final AtomicInteger next = new AtomicInteger(0);
+        final ConcurrentSkipListMap<Integer, Throwable> failures =
+                new ConcurrentSkipListMap<Integer, Throwable>();
+        final ExecutorService pool = Executors.newFixedThreadPool(workers);
+        final List<Future<?>> futures = new ArrayList<Future<?>>(workers);
+        try {
+            for (int i = 0; i < workers; i++) {
+                futures.add(pool.submit(new Runnable() {
+                    public void run() {
+                        final TileData data = createWorkerData();
+                        try {
+                            int current = next.getAndIncrement();
+                            while (current < total) {
+                                final int following = next.getAndIncrement();
+                                final int[] tile = tile(current);
+                                if (prefetch && following < total
+                                        && data instanceof TilePrefetcher) {
+                                    final int[] nextTile = tile(following);
+                                    ((TilePrefetcher) data).prefetchTile(
+                                            nextTile[0], nextTile[1], nextTile[2],
+                                            nextTile[3], nextTile[4],
+                                            nextTile[5], nextTile[6]);
+                                }
+                                try {
+                                    iteration.run(data, tile[0], tile[1], tile[2],
+                                            tile[3], tile[4], tile[5], tile[6],
+                                            current);
+                                } catch (Exception e) {
+                                    failures.put(current, e);
+                                }
+                                current = following;
+                            }
+                        } finally {
+                            data.close();
+                        }
+                    }
+
+                    /**
+                     * Decodes a tile count into z, c, t, x, y, w, h following
+                     * the nesting of the serial loop.
+                     */
+                    private int[] tile(int tileCount) {
+                        final int plane = tileCount / planeTiles;
+                        final int inPlane = tileCount % planeTiles;
+                        final int x = (inPlane % tilesX) * tileWidth;
+                        final int y = (inPlane / tilesX) * tileHeight;
+                        return new int[] {
+                                plane % sizeZ,
+                                (plane / sizeZ) % sizeC,
+                                plane / (sizeZ * sizeC),
+                                x, y,
+                                Math.min(tileWidth, sizeX - x),
+                                Math.min(tileHeight, sizeY - y) };
+                    }
+                }));
+            }
+
+            RuntimeException closeFailure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted during tile loop", ie);
+                } catch (ExecutionException ee) {
+                    // Failure in createWorkerData() or close(): not per tile.
+                    if (closeFailure == null) {
+                        closeFailure = new RuntimeException(ee.getCause());
+                    }
+                }
+            }
+            try {
+                finishWorkers(closeFailure == null);
+            } catch (RuntimeException rt) {
+                if (closeFailure == null) {
+                    closeFailure = rt;
+                }
+            }
+            if (!failures.isEmpty()) {
+                throw new TileLoopException(total, failures);
+            } else if (closeFailure != null) {
+                throw closeFailure;
+            }
+            return total;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 }
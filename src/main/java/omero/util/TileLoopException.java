@@ -0,0 +1,48 @@
+/*
+ *   Copyright 2018 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omero.util;
+
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Thrown by the parallel {@link TileLoop} once every tile has been tried
+ * if one or more of the tiles failed.
+ *
+ * @since 5.5
+ */
+public class TileLoopException extends RuntimeException
+{
+
+    private static final long serialVersionUID = 1L;
+
+    private final int tileCount;
+
+    private final SortedMap<Integer, Throwable> failures;
+
+    public TileLoopException(int tileCount, SortedMap<Integer, Throwable> failures) {
+        super(failures.size() + " of " + tileCount + " tiles failed; first: tile "
+                + failures.firstKey(), failures.get(failures.firstKey()));
+        this.tileCount = tileCount;
+        this.failures = Collections.unmodifiableSortedMap(
+                new TreeMap<Integer, Throwable>(failures));
+    }
+
+    /**
+     * @return the total number of tiles in the loop
+     */
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * @return the cause of failure for each failed tile by tile count
+     */
+    public SortedMap<Integer, Throwable> getFailures() {
+        return failures;
+    }
+
+}
@@ -0,0 +1,22 @@
+/*
+ *   Copyright 2018 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omero.util;
+
+/**
+ * Optional extension of a {@link TileData} which can begin loading a tile
+ * before it is requested via {@link TileData#getTile(int, int, int, int, int, int, int)}.
+ *
+ * @see TileLoop#setReadAhead(boolean)
+ * @since 5.5
+ */
+public interface TilePrefetcher
+{
+    /**
+     * Hint that the given tile will soon be requested. Implementations
+     * may ignore the hint.
+     */
+    public void prefetchTile(int z, int c, int t, int x, int y, int w, int h);
+
+}